@@ -0,0 +1,175 @@
+package com.example.filter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import org.springframework.cloud.gateway.support.ServerWebExchangeUtils;
+import org.springframework.web.server.ServerWebExchange;
+
+/**
+ * Strategies to tell clients apart, configured per route with the keyResolver argument of the
+ * {@link RateLimiterCustomFilter}. Each strategy creates its resolver function once, when the
+ * filter is applied to a route, so a request only runs the lookup itself.
+ * <p>When a request doesn't carry the configured value (no header, no token, no path variable)
+ * the client IP is used instead, so such requests are still limited per client.
+ * <p>Every key starts with its source ({@code ip:}, {@code hdr:}, {@code sub:}, {@code var:}), so
+ * a client can't send a header, subject or path variable which equals the IP of another client
+ * and use up that client's quota, and clients without the value don't share one with a value
+ * which happens to equal their IP.
+ * <p>The tiers of a route with nested limits pick a resolver each, e.g. ROUTE for the cap of the
+ * whole route, PATH_VARIABLE for the tenant and JWT_SUBJECT for the user.
+ */
+public enum ClientKeyResolver {
+
+  // One key for all requests, the limit of the route as a whole.
+  ROUTE {
+    @Override
+    Function<ServerWebExchange, String> resolver(Arguments config) {
+      return exchange -> ALL;
+    }
+  },
+
+  // Address of the connection, the client itself or the closest proxy.
+  IP {
+    @Override
+    Function<ServerWebExchange, String> resolver(Arguments config) {
+      return ClientKeyResolver::remoteAddress;
+    }
+  },
+
+  // Client address as seen by the trustedProxies proxies in front of the gateway, like the
+  // maxTrustedIndex of Spring's XForwardedRemoteAddressResolver. Every proxy appends the address it
+  // was connected from, so the entry trustedProxies from the end is the first one a client can't
+  // forge. A header with fewer entries didn't pass all of them and may be made up entirely, the
+  // address of the connection is used instead.
+  X_FORWARDED_FOR {
+    @Override
+    Function<ServerWebExchange, String> resolver(Arguments config) {
+      int trustedProxies = config.getTrustedProxies();
+      if (trustedProxies < 1) {
+        throw new IllegalArgumentException("trustedProxies must be at least 1 for the " + this
+            + " key resolver, was " + trustedProxies + ", use IP without a proxy");
+      }
+      return exchange -> {
+        List<String> values = exchange.getRequest().getHeaders().get(FORWARDED_FOR);
+        if (values == null) {
+          return remoteAddress(exchange);
+        }
+        // Entries of all lines of the header, a proxy may add a line instead of appending.
+        List<String> entries = new ArrayList<>();
+        for (String value : values) {
+          for (String entry : value.split(",", -1)) {
+            entries.add(entry.trim());
+          }
+        }
+        int client = entries.size() - trustedProxies;
+        return client < 0 || entries.get(client).isEmpty() ? remoteAddress(exchange)
+            : IP_PREFIX + entries.get(client);
+      };
+    }
+  },
+
+  // Value of the keyHeader, e.g. an API key.
+  HEADER {
+    @Override
+    Function<ServerWebExchange, String> resolver(Arguments config) {
+      String header = required(config.getKeyHeader(), "keyHeader", this);
+      return exchange -> {
+        String value = exchange.getRequest().getHeaders().getFirst(header);
+        return value == null ? remoteAddress(exchange) : HEADER_PREFIX + value;
+      };
+    }
+  },
+
+  // Subject of the bearer token in the Authorization header. The token is only decoded, not
+  // verified, so this must run behind a filter that authenticates the token - otherwise every
+  // made up subject would get a quota of its own.
+  JWT_SUBJECT {
+    @Override
+    Function<ServerWebExchange, String> resolver(Arguments config) {
+      return exchange -> {
+        String subject = jwtSubject(exchange.getRequest().getHeaders().getFirst("Authorization"));
+        return subject == null ? remoteAddress(exchange) : SUBJECT_PREFIX + subject;
+      };
+    }
+  },
+
+  // Variable of the route's Path predicate, e.g. tenant of Path=/api/{tenant}/**.
+  PATH_VARIABLE {
+    @Override
+    Function<ServerWebExchange, String> resolver(Arguments config) {
+      String variable = required(config.getKeyPathVariable(), "keyPathVariable", this);
+      return exchange -> {
+        Map<String, String> variables = exchange.getAttribute(
+            ServerWebExchangeUtils.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        String value = variables == null ? null : variables.get(variable);
+        return value == null ? remoteAddress(exchange) : VARIABLE_PREFIX + value;
+      };
+    }
+  };
+
+  private static final String ALL = "all";
+  private static final String IP_PREFIX = "ip:";
+  private static final String HEADER_PREFIX = "hdr:";
+  private static final String SUBJECT_PREFIX = "sub:";
+  private static final String VARIABLE_PREFIX = "var:";
+  private static final String BEARER = "Bearer ";
+  private static final String FORWARDED_FOR = "X-Forwarded-For";
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  abstract Function<ServerWebExchange, String> resolver(Arguments config);
+
+  /**
+   * Arguments some of the resolvers read, of the route or of one of its tiers.
+   */
+  interface Arguments {
+
+    String getKeyHeader();
+
+    String getKeyPathVariable();
+
+    int getTrustedProxies();
+  }
+
+  private static String remoteAddress(ServerWebExchange exchange) {
+    InetSocketAddress remoteAddress = exchange.getRequest().getRemoteAddress();
+    return IP_PREFIX
+        + (remoteAddress == null ? "unknown" : remoteAddress.getAddress().getHostAddress());
+  }
+
+  private static String required(String value, String argument, ClientKeyResolver resolver) {
+    if (value == null || value.isEmpty()) {
+      throw new IllegalArgumentException(argument + " is required by the " + resolver
+          + " key resolver");
+    }
+    return value;
+  }
+
+  private static String jwtSubject(String authorization) {
+    if (authorization == null || !authorization.regionMatches(true, 0, BEARER, 0,
+        BEARER.length())) {
+      return null;
+    }
+    // header.payload.signature, the subject is the "sub" claim of the base64url encoded payload.
+    String[] parts = authorization.substring(BEARER.length()).trim().split("\\.");
+    if (parts.length != 3) {
+      return null;
+    }
+    try {
+      byte[] payload = Base64.getUrlDecoder().decode(parts[1]);
+      JsonNode subject = OBJECT_MAPPER.readTree(new String(payload, StandardCharsets.UTF_8))
+          .get("sub");
+      return subject == null || !subject.isTextual() ? null : subject.asText();
+    } catch (IllegalArgumentException | IOException e) {
+      // Not a JWT, limit the request by its IP instead.
+      return null;
+    }
+  }
+}
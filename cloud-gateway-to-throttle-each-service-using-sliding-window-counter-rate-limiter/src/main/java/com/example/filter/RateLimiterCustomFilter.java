@@ -1,12 +1,24 @@
 package com.example.filter;
 
 import com.example.service.RateLimiterService;
-import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import org.example.Decision;
+import org.example.LimitResolver;
+import org.example.RateLimitTier;
+import org.example.ReactiveHierarchicalRateLimiterStrategy;
+import org.example.ReactiveRateLimiterStrategy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cloud.gateway.filter.GatewayFilter;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
 import org.springframework.cloud.gateway.filter.factory.AbstractGatewayFilterFactory;
+import org.springframework.cloud.gateway.support.HasRouteId;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
@@ -19,7 +31,12 @@ import reactor.core.publisher.Mono;
 @Component
 public class RateLimiterCustomFilter extends AbstractGatewayFilterFactory<RateLimiterCustomFilter.Config> {
 
+  // While Redis is down every request fails the same way, one warning a minute tells as much.
+  private static final long LIMITER_WARNING_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
   Logger logger = LoggerFactory.getLogger(RateLimiterCustomFilter.class);
+  private final AtomicLong nextLimiterWarningNanos = new AtomicLong(System.nanoTime());
+  private final AtomicLong suppressedLimiterWarnings = new AtomicLong();
 
   @Autowired
   private final RateLimiterService rateLimiterService;
@@ -32,37 +49,116 @@ public class RateLimiterCustomFilter extends AbstractGatewayFilterFactory<RateLi
 
   @Override
   public GatewayFilter apply(Config config) {
+    // The routes are applied again on every refresh, the strategies built for the route before
+    // stop their periodic tasks and meters.
+    rateLimiterService.release(config.getRouteId());
+    if (!config.getTiers().isEmpty()) {
+      return applyTiers(config);
+    }
+    // Resolved once per route, a request only runs the lookup of its client key.
+    Function<ServerWebExchange, String> clientKeyResolver =
+        config.getKeyResolver().resolver(config);
+    // One strategy per route with the period and limit of the route, so a request only passes its
+    // key and cost. The route id keeps the keys of routes which share Redis apart.
+    ReactiveRateLimiterStrategy rateLimiter =
+        config.getStrategy().create(config, rateLimiterService);
+    String keyPrefix = config.getRouteId() + ":";
+    // Same limit as the strategy decides with, for the RateLimit-Limit header.
+    LimitResolver limits = config.getStrategy().dynamicLimits()
+        ? rateLimiterService.limits(config.getRouteId(), config.getMaxAllowedRequestsPerPeriod())
+        : LimitResolver.fixed(config.getMaxAllowedRequestsPerPeriod());
+
     //Custom Pre Filter. Suppose we can extract JWT and perform Authentication
     return (exchange, chain) -> {
-      logger.info("First pre filter" + exchange.getRequest());
+      // Guarded, the message isn't even built on the hot path unless debug logging is on.
+      if (logger.isDebugEnabled()) {
+        logger.debug("First pre filter {}", exchange.getRequest().getURI());
+      }
 
-      // Access properties from config
-      int maxAllowedRequestsPerPeriod = config.getMaxAllowedRequestsPerPeriod();
-      int timePeriodInSeconds = config.getTimePeriodInSeconds();
+      int permits = getPermits(exchange, config);
+      String key = keyPrefix + clientKeyResolver.apply(exchange);
 
-      // Your rate limiting logic using maxRequests and timeWindowInSeconds
-      if (!rateLimiterService.isAllowed(getKey(exchange),timePeriodInSeconds, maxAllowedRequestsPerPeriod, Clock.systemUTC())) {
-//        exchange.getResponse().setStatusCode(HttpStatus.TOO_MANY_REQUESTS);
-//        return exchange.getResponse().setComplete();
-        ServerHttpResponse response = exchange.getResponse();
-        response.setStatusCode(HttpStatus.TOO_MANY_REQUESTS);
+      // Composed, not called: the decision must never block the event loop of the request.
+      return decideThenRespond(rateLimiter.decide(key, permits), exchange, chain,
+          decision -> respond(exchange, chain, limits.limitOf(key), decision));
+    };
+  }
 
-        // Set retry headers
-        HttpHeaders headers = response.getHeaders();
-        headers.add("X-Retry-After", String.valueOf(timePeriodInSeconds/maxAllowedRequestsPerPeriod)); // Retry after 60 seconds
-        headers.add("X-RateLimit-Limit", String.valueOf(maxAllowedRequestsPerPeriod));
-        headers.add("X-RateLimit-Remaining", "0");
+  // Nested limits, e.g. a user within its tenant within the cap of the route. The tiers replace
+  // the limit and key resolver of the route.
+  private GatewayFilter applyTiers(Config config) {
+    List<RateLimitTier> tiers = new ArrayList<>();
+    List<Function<ServerWebExchange, String>> keyResolvers = new ArrayList<>();
+    for (Config.Tier tier : config.getTiers()) {
+      tiers.add(new RateLimitTier(tier.getName(), tier.getTimePeriodInSeconds(),
+          tier.getMaxAllowedRequestsPerPeriod()));
+      keyResolvers.add(tier.getKeyResolver().resolver(tier));
+    }
+    ReactiveHierarchicalRateLimiterStrategy rateLimiter =
+        config.getStrategy().createTiers(config.getRouteId(), tiers, rateLimiterService);
+    // The keys of the inner tiers are nested in the outermost one, only it needs the route id.
+    String keyPrefix = config.getRouteId() + ":";
 
-        return response.setComplete();
+    return (exchange, chain) -> {
+      int permits = getPermits(exchange, config);
+      List<String> keys = new ArrayList<>(keyResolvers.size());
+      for (Function<ServerWebExchange, String> keyResolver : keyResolvers) {
+        keys.add(keys.isEmpty() ? keyPrefix + keyResolver.apply(exchange)
+            : keyResolver.apply(exchange));
       }
 
-      //Custom Post Filter.Suppose we can call error response handler based on error code.
-      return chain.filter(exchange).then(Mono.fromRunnable(() -> {
-        logger.info("First post filter");
-      }));
+      // The quota headers are those of the tier which rejected the request, or of the one with
+      // the fewest permits left.
+      return decideThenRespond(rateLimiter.decide(keys, permits), exchange, chain,
+          decision -> respond(exchange, chain,
+              tiers.get(decision.tier()).maxAllowedRequestsPerPeriod(), decision));
     };
   }
 
+  // Only a failing decision falls back to the fail-open policy. An error of the routed request
+  // is not the limiter's: resuming it would log it as a limiter failure and run the chain again.
+  private Mono<Void> decideThenRespond(Mono<Decision> decision, ServerWebExchange exchange,
+      GatewayFilterChain chain, Function<Decision, Mono<Void>> respond) {
+    return decision
+        .map(Optional::of)
+        .onErrorResume(e -> {
+          warnLimiterError(e);
+          return Mono.just(Optional.empty());
+        })
+        .flatMap(decided -> decided.isPresent() ? respond.apply(decided.get())
+            : onLimiterError(exchange, chain));
+  }
+
+  private Mono<Void> respond(ServerWebExchange exchange, GatewayFilterChain chain,
+      int maxAllowedRequestsPerPeriod, Decision decision) {
+    // Quota headers (IETF RateLimit header fields) on every response, so well behaved clients
+    // can slow down before they are rejected.
+    ServerHttpResponse response = exchange.getResponse();
+    HttpHeaders headers = response.getHeaders();
+    headers.set("RateLimit-Limit", String.valueOf(maxAllowedRequestsPerPeriod));
+    headers.set("RateLimit-Remaining", String.valueOf(decision.remaining()));
+
+    if (!decision.allowed()) {
+      response.setStatusCode(HttpStatus.TOO_MANY_REQUESTS);
+
+      // Exact time until the request fits again, rounded up to the whole seconds of the header,
+      // instead of the average request interval which sent every client back at the same time.
+      // A request which costs more than the limit never fits, it gets no retry time.
+      if (decision.retryAfterMillis() != Decision.NEVER) {
+        String retryAfterSeconds = String.valueOf((decision.retryAfterMillis() + 999) / 1000);
+        headers.set("Retry-After", retryAfterSeconds);
+        headers.set("RateLimit-Reset", retryAfterSeconds);
+      }
+
+      return response.setComplete();
+    }
+
+    //Custom Post Filter.Suppose we can call error response handler based on error code.
+    return chain.filter(exchange).then(Mono.fromRunnable(() -> {
+      logger.debug("First post filter");
+    }));
+  }
+
 //  @Override
 //  public GatewayFilter apply(Config config) {
 //    return (exchange, chain) -> {
@@ -81,16 +177,78 @@ public class RateLimiterCustomFilter extends AbstractGatewayFilterFactory<RateLi
     return response.writeWith(Mono.just(buffer));
   }
 
-  private String getKey(ServerWebExchange exchange) {
-    // Example of generating a key based on client IP
-    return exchange.getRequest().getRemoteAddress().getAddress().getHostAddress();
+  // Redis is unreachable or too slow to keep up: same fail-open policy as a full key map.
+  private Mono<Void> onLimiterError(ServerWebExchange exchange, GatewayFilterChain chain) {
+    if (rateLimiterService.failOpen()) {
+      return chain.filter(exchange);
+    }
+    ServerHttpResponse response = exchange.getResponse();
+    response.setStatusCode(HttpStatus.TOO_MANY_REQUESTS);
+    return response.setComplete();
+  }
+
+
+  // Sampled: the first failure is logged right away, the next ones once per interval together with
+  // the number of failures in between.
+  private void warnLimiterError(Throwable error) {
+    long now = System.nanoTime();
+    long next = nextLimiterWarningNanos.get();
+    if (now - next < 0
+        || !nextLimiterWarningNanos.compareAndSet(next, now + LIMITER_WARNING_INTERVAL_NANOS)) {
+      suppressedLimiterWarnings.incrementAndGet();
+      return;
+    }
+    logger.warn("Rate limiter failed, request {} ({} more failures since the last warning)",
+        rateLimiterService.failOpen() ? "allowed" : "rejected",
+        suppressedLimiterWarnings.getAndSet(0), error);
   }
 
+  // Cost of the request: the value of the permits header when the route names one and the request
+  // carries a valid value, otherwise the fixed cost of the route.
+  private int getPermits(ServerWebExchange exchange, Config config) {
+    String permitsHeader = config.getPermitsHeader();
+    if (permitsHeader != null) {
+      String value = exchange.getRequest().getHeaders().getFirst(permitsHeader);
+      if (value != null) {
+        try {
+          int permits = Integer.parseInt(value.trim());
+          if (permits >= 1) {
+            return permits;
+          }
+        } catch (NumberFormatException e) {
+          // Fall back to the cost of the route.
+        }
+      }
+    }
+    return config.getPermits();
+  }
 
-  public static class Config {
+  public static class Config implements HasRouteId, ClientKeyResolver.Arguments {
     // Example properties for the rate limiter filter
     private int maxAllowedRequestsPerPeriod;
     private int timePeriodInSeconds;
+    // Algorithm and storage of the route's limit, and the bound of the near cache.
+    private RateLimiterStrategyType strategy = RateLimiterStrategyType.SLIDING_WINDOW;
+    private int maxUnsyncedPermits;
+    // Buckets the window of SLIDING_WINDOW_BUCKETS is split into.
+    private int buckets = 10;
+    // Stripes and accuracy bound of SLIDING_WINDOW_STRIPED, 0 for the defaults.
+    private int stripes;
+    private int maxLeasedPermits;
+    // Set by the gateway to the id of the route the filter is applied to.
+    private String routeId;
+    // Permits every request of the route takes from the limit, e.g. 50 for a bulk export.
+    private int permits = 1;
+    // Optional request header carrying the cost of the individual request.
+    private String permitsHeader;
+    // How clients are told apart, and the header or path variable some of the resolvers read.
+    private ClientKeyResolver keyResolver = ClientKeyResolver.IP;
+    private String keyHeader;
+    private String keyPathVariable;
+    // Proxies in front of the gateway which append to X-Forwarded-For, for X_FORWARDED_FOR.
+    private int trustedProxies = 1;
+    // Nested limits, outermost first. When set they replace the limit and key of the route.
+    private List<Tier> tiers = new ArrayList<>();
 
     // Getters and setters for the properties
 
@@ -109,5 +267,184 @@ public class RateLimiterCustomFilter extends AbstractGatewayFilterFactory<RateLi
     public void setTimePeriodInSeconds(int timePeriodInSeconds) {
       this.timePeriodInSeconds = timePeriodInSeconds;
     }
+
+    public RateLimiterStrategyType getStrategy() {
+      return strategy;
+    }
+
+    public void setStrategy(RateLimiterStrategyType strategy) {
+      this.strategy = strategy;
+    }
+
+    public int getMaxUnsyncedPermits() {
+      return maxUnsyncedPermits;
+    }
+
+    public void setMaxUnsyncedPermits(int maxUnsyncedPermits) {
+      this.maxUnsyncedPermits = maxUnsyncedPermits;
+    }
+
+    public int getBuckets() {
+      return buckets;
+    }
+
+    public void setBuckets(int buckets) {
+      this.buckets = buckets;
+    }
+
+    public int getStripes() {
+      return stripes;
+    }
+
+    public void setStripes(int stripes) {
+      this.stripes = stripes;
+    }
+
+    public int getMaxLeasedPermits() {
+      return maxLeasedPermits;
+    }
+
+    public void setMaxLeasedPermits(int maxLeasedPermits) {
+      this.maxLeasedPermits = maxLeasedPermits;
+    }
+
+    @Override
+    public String getRouteId() {
+      return routeId;
+    }
+
+    @Override
+    public void setRouteId(String routeId) {
+      this.routeId = routeId;
+    }
+
+    public int getPermits() {
+      return permits;
+    }
+
+    public void setPermits(int permits) {
+      this.permits = permits;
+    }
+
+    public String getPermitsHeader() {
+      return permitsHeader;
+    }
+
+    public void setPermitsHeader(String permitsHeader) {
+      this.permitsHeader = permitsHeader;
+    }
+
+    public ClientKeyResolver getKeyResolver() {
+      return keyResolver;
+    }
+
+    public void setKeyResolver(ClientKeyResolver keyResolver) {
+      this.keyResolver = keyResolver;
+    }
+
+    @Override
+    public String getKeyHeader() {
+      return keyHeader;
+    }
+
+    public void setKeyHeader(String keyHeader) {
+      this.keyHeader = keyHeader;
+    }
+
+    @Override
+    public String getKeyPathVariable() {
+      return keyPathVariable;
+    }
+
+    public void setKeyPathVariable(String keyPathVariable) {
+      this.keyPathVariable = keyPathVariable;
+    }
+
+    @Override
+    public int getTrustedProxies() {
+      return trustedProxies;
+    }
+
+    public void setTrustedProxies(int trustedProxies) {
+      this.trustedProxies = trustedProxies;
+    }
+
+    public List<Tier> getTiers() {
+      return tiers;
+    }
+
+    public void setTiers(List<Tier> tiers) {
+      this.tiers = tiers;
+    }
+
+    // One level of nested limits with the key resolver which tells its keys apart.
+    public static class Tier implements ClientKeyResolver.Arguments {
+      private String name;
+      private int maxAllowedRequestsPerPeriod;
+      private int timePeriodInSeconds;
+      private ClientKeyResolver keyResolver = ClientKeyResolver.IP;
+      private String keyHeader;
+      private String keyPathVariable;
+      private int trustedProxies = 1;
+
+      public String getName() {
+        return name;
+      }
+
+      public void setName(String name) {
+        this.name = name;
+      }
+
+      public int getMaxAllowedRequestsPerPeriod() {
+        return maxAllowedRequestsPerPeriod;
+      }
+
+      public void setMaxAllowedRequestsPerPeriod(int maxAllowedRequestsPerPeriod) {
+        this.maxAllowedRequestsPerPeriod = maxAllowedRequestsPerPeriod;
+      }
+
+      public int getTimePeriodInSeconds() {
+        return timePeriodInSeconds;
+      }
+
+      public void setTimePeriodInSeconds(int timePeriodInSeconds) {
+        this.timePeriodInSeconds = timePeriodInSeconds;
+      }
+
+      public ClientKeyResolver getKeyResolver() {
+        return keyResolver;
+      }
+
+      public void setKeyResolver(ClientKeyResolver keyResolver) {
+        this.keyResolver = keyResolver;
+      }
+
+      @Override
+      public String getKeyHeader() {
+        return keyHeader;
+      }
+
+      public void setKeyHeader(String keyHeader) {
+        this.keyHeader = keyHeader;
+      }
+
+      @Override
+      public String getKeyPathVariable() {
+        return keyPathVariable;
+      }
+
+      public void setKeyPathVariable(String keyPathVariable) {
+        this.keyPathVariable = keyPathVariable;
+      }
+
+      @Override
+      public int getTrustedProxies() {
+        return trustedProxies;
+      }
+
+      public void setTrustedProxies(int trustedProxies) {
+        this.trustedProxies = trustedProxies;
+      }
+    }
   }
 }
@@ -0,0 +1,202 @@
+package com.example.filter;
+
+import com.example.service.RateLimiterService;
+import java.util.List;
+import org.example.GcraDistributedUsingRedisStrategy;
+import org.example.RateLimitTier;
+import org.example.ReactiveHierarchicalRateLimiterStrategy;
+import org.example.ReactiveRateLimiterStrategy;
+import org.example.SlidingWindowCountDistributedUsingRedisStrategy;
+import org.example.SlidingWindowCountStripedStrategy;
+import org.example.SlidingWindowLogDistributedUsingRedisStrategy;
+
+/**
+ * Strategies of the rate-limiter module a route can pick with the strategy argument of the
+ * {@link RateLimiterCustomFilter}. The strategy is built once, when the filter is applied to the
+ * route, with the period and the limit of the route.
+ * <p>Routes with nested limits (the tiers argument) are limited by the hierarchical sliding window,
+ * in memory with SLIDING_WINDOW and through Redis with SLIDING_WINDOW_REDIS. The other strategies
+ * don't support tiers.
+ * <p>SLIDING_WINDOW and SLIDING_WINDOW_REDIS look the limit of every key up in the limits of the
+ * {@link RateLimiterService}, so it can be changed at runtime. The other strategies keep the limit
+ * of the route.
+ */
+public enum RateLimiterStrategyType {
+
+  // Sliding window counter in the memory of this gateway instance.
+  SLIDING_WINDOW {
+    @Override
+    ReactiveRateLimiterStrategy create(RateLimiterCustomFilter.Config config,
+        RateLimiterService service) {
+      return service.local(config.getRouteId(), service.slidingWindow(config.getRouteId(),
+          config.getTimePeriodInSeconds(), config.getMaxAllowedRequestsPerPeriod()));
+    }
+
+    @Override
+    boolean dynamicLimits() {
+      return true;
+    }
+
+    @Override
+    ReactiveHierarchicalRateLimiterStrategy createTiers(String routeId,
+        List<RateLimitTier> tiers, RateLimiterService service) {
+      return service.localTiers(routeId, tiers);
+    }
+  },
+
+  // Sliding window of buckets in memory, never over the limit in any window however bursty the
+  // traffic, at the cost of rejecting up to one bucket length (a window / buckets) early.
+  SLIDING_WINDOW_BUCKETS {
+    @Override
+    ReactiveRateLimiterStrategy create(RateLimiterCustomFilter.Config config,
+        RateLimiterService service) {
+      return service.local(config.getRouteId(), service.slidingWindowBuckets(
+          config.getRouteId(), config.getTimePeriodInSeconds(),
+          config.getMaxAllowedRequestsPerPeriod(), config.getBuckets()));
+    }
+  },
+
+  // Exact sliding window log in memory, a timestamp per permit of the limit and key: for contracts
+  // like "no more than 100 calls in any 60 seconds".
+  SLIDING_WINDOW_LOG {
+    @Override
+    ReactiveRateLimiterStrategy create(RateLimiterCustomFilter.Config config,
+        RateLimiterService service) {
+      return service.local(config.getRouteId(), service.slidingWindowLog(
+          config.getRouteId(), config.getTimePeriodInSeconds(),
+          config.getMaxAllowedRequestsPerPeriod()));
+    }
+  },
+
+  // Sliding window counter in memory for a hot key, e.g. the limit of the whole route (keyResolver
+  // ROUTE): the cores take their permits from budgets leased from the count, at most
+  // maxLeasedPermits at a time.
+  SLIDING_WINDOW_STRIPED {
+    @Override
+    ReactiveRateLimiterStrategy create(RateLimiterCustomFilter.Config config,
+        RateLimiterService service) {
+      return service.local(config.getRouteId(), service.slidingWindowStriped(
+          config.getRouteId(), config.getTimePeriodInSeconds(),
+          config.getMaxAllowedRequestsPerPeriod(), stripes(config), maxLeasedPermits(config)));
+    }
+  },
+
+  // Token bucket in memory, the whole limit may be used as one burst.
+  TOKEN_BUCKET {
+    @Override
+    ReactiveRateLimiterStrategy create(RateLimiterCustomFilter.Config config,
+        RateLimiterService service) {
+      return service.local(config.getRouteId(), service.tokenBucket(
+          config.getRouteId(), config.getTimePeriodInSeconds(),
+          config.getMaxAllowedRequestsPerPeriod()));
+    }
+  },
+
+  // Generic cell rate algorithm in memory, same limit as the token bucket with one long per key.
+  GCRA {
+    @Override
+    ReactiveRateLimiterStrategy create(RateLimiterCustomFilter.Config config,
+        RateLimiterService service) {
+      return service.local(config.getRouteId(), service.gcra(
+          config.getRouteId(), config.getTimePeriodInSeconds(),
+          config.getMaxAllowedRequestsPerPeriod()));
+    }
+  },
+
+  // Sliding window counter in Redis, one limit shared by all gateway instances.
+  SLIDING_WINDOW_REDIS {
+    @Override
+    ReactiveRateLimiterStrategy create(RateLimiterCustomFilter.Config config,
+        RateLimiterService service) {
+      return service.offload(config.getRouteId(),
+          new SlidingWindowCountDistributedUsingRedisStrategy(config.getTimePeriodInSeconds(),
+              service.limits(config.getRouteId(), config.getMaxAllowedRequestsPerPeriod()),
+              service.clock(), service.redis()));
+    }
+
+    @Override
+    boolean dynamicLimits() {
+      return true;
+    }
+
+    @Override
+    ReactiveHierarchicalRateLimiterStrategy createTiers(String routeId,
+        List<RateLimitTier> tiers, RateLimiterService service) {
+      return service.redisTiers(tiers);
+    }
+  },
+
+  // Exact sliding window log in a Redis sorted set per key, one limit shared by all gateway
+  // instances.
+  SLIDING_WINDOW_LOG_REDIS {
+    @Override
+    ReactiveRateLimiterStrategy create(RateLimiterCustomFilter.Config config,
+        RateLimiterService service) {
+      return service.offload(config.getRouteId(),
+          new SlidingWindowLogDistributedUsingRedisStrategy(config.getTimePeriodInSeconds(),
+              config.getMaxAllowedRequestsPerPeriod(), service.clock(), service.redis()));
+    }
+  },
+
+  // GCRA in Redis, one limit shared by all gateway instances.
+  GCRA_REDIS {
+    @Override
+    ReactiveRateLimiterStrategy create(RateLimiterCustomFilter.Config config,
+        RateLimiterService service) {
+      return service.offload(config.getRouteId(), new GcraDistributedUsingRedisStrategy(
+          config.getTimePeriodInSeconds(), config.getMaxAllowedRequestsPerPeriod(),
+          service.clock(), service.redis()));
+    }
+  },
+
+  // Decides in memory and syncs the counts with Redis in the background, every instance may go
+  // over the shared limit by its maxUnsyncedPermits.
+  SLIDING_WINDOW_NEAR_CACHE {
+    @Override
+    ReactiveRateLimiterStrategy create(RateLimiterCustomFilter.Config config,
+        RateLimiterService service) {
+      return service.local(config.getRouteId(), service.nearCache(
+          config.getRouteId(), config.getTimePeriodInSeconds(),
+          config.getMaxAllowedRequestsPerPeriod(), maxUnsyncedPermits(config)));
+    }
+  };
+
+  abstract ReactiveRateLimiterStrategy create(RateLimiterCustomFilter.Config config,
+      RateLimiterService service);
+
+  // Whether the strategy resolves the limit of every key with RateLimiterService.limits().
+  boolean dynamicLimits() {
+    return false;
+  }
+
+  // The tiers are outermost first.
+  ReactiveHierarchicalRateLimiterStrategy createTiers(String routeId,
+      List<RateLimitTier> tiers, RateLimiterService service) {
+    throw new IllegalArgumentException("the " + this + " strategy doesn't support tiers");
+  }
+
+  // Two per core unless the route sets them.
+  private static int stripes(RateLimiterCustomFilter.Config config) {
+    if (config.getStripes() > 0) {
+      return config.getStripes();
+    }
+    return 2 * Runtime.getRuntime().availableProcessors();
+  }
+
+  // The default of the strategy unless the route sets it.
+  private static int maxLeasedPermits(RateLimiterCustomFilter.Config config) {
+    if (config.getMaxLeasedPermits() > 0) {
+      return config.getMaxLeasedPermits();
+    }
+    return SlidingWindowCountStripedStrategy.defaultMaxLeasedPermits(
+        config.getMaxAllowedRequestsPerPeriod(), stripes(config));
+  }
+
+  // A tenth of the limit unless the route sets it.
+  private static int maxUnsyncedPermits(RateLimiterCustomFilter.Config config) {
+    if (config.getMaxUnsyncedPermits() > 0) {
+      return config.getMaxUnsyncedPermits();
+    }
+    return Math.max(1, config.getMaxAllowedRequestsPerPeriod() / 10);
+  }
+}
@@ -0,0 +1,44 @@
+package com.example.service;
+
+import java.util.Map;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * /actuator/limits: the limits which replace the configured ones at runtime, by key. A key is the
+ * route id plus the client key, or the route id alone for all clients of the route. POST
+ * {@code {"key": "firstModule:ip:10.0.0.7", "limit": 50}} sets a limit, DELETE
+ * /actuator/limits/{key} removes it. The change takes effect with the next request and keeps the
+ * counts of the key, but only on this instance and only until rate-limiter.limits.file changes.
+ * <p>The operations are not authenticated: the sample configuration serves the actuator on
+ * management.server.port bound to 127.0.0.1, never on the port of the routes.
+ */
+@Component
+@Endpoint(id = "limits")
+public class LimitsEndpoint {
+
+  private final RateLimiterService rateLimiterService;
+
+  public LimitsEndpoint(RateLimiterService rateLimiterService) {
+    this.rateLimiterService = rateLimiterService;
+  }
+
+  @ReadOperation
+  public Map<String, Integer> limits() {
+    return rateLimiterService.dynamicLimits().policy().limits();
+  }
+
+  @WriteOperation
+  public Map<String, Integer> setLimit(String key, int limit) {
+    return rateLimiterService.dynamicLimits().setLimit(key, limit).limits();
+  }
+
+  @DeleteOperation
+  public Map<String, Integer> removeLimit(@Selector String key) {
+    return rateLimiterService.dynamicLimits().removeLimit(key).limits();
+  }
+}
@@ -0,0 +1,140 @@
+package com.example.service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+import org.example.InstrumentedRateLimiterStrategy;
+import org.example.JedisPoolConnectionProvider;
+import org.example.LatencyRecorder;
+import org.example.SlidingWindowCountNearCacheStrategy;
+import org.example.SlidingWindowCountStrategy;
+
+/**
+ * Exports the metrics the rate-limiter module keeps to Micrometer, so they show up under
+ * /actuator/metrics. The meters only read the LongAdders and latency histograms of the limiters
+ * when they are published, a decision never touches Micrometer.
+ * <p>Every limiter meter is tagged with the route, e.g.
+ * {@code rate.limiter.decisions{route=firstModule,outcome=rejected}}.
+ */
+class RateLimiterMetrics {
+
+  private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+  private final MeterRegistry registry;
+
+  RateLimiterMetrics(MeterRegistry registry) {
+    this.registry = registry;
+  }
+
+  // The meters of a route are removed with remove() when the route is released, otherwise the
+  // registry would keep the meters of the first strategy of the route id and ignore the next.
+  List<Meter> bind(String routeId, InstrumentedRateLimiterStrategy strategy) {
+    String[] route = {"route", routeId};
+    List<Meter> meters = new ArrayList<>();
+    meters.add(decisions(strategy, route, "allowed", m -> m.metrics().allowed()));
+    meters.add(decisions(strategy, route, "rejected", m -> m.metrics().rejected()));
+    meters.add(decisions(strategy, route, "error", m -> m.metrics().errors()));
+    meters.addAll(latency("rate.limiter.decision.latency", strategy.latency(), route));
+    meters.add(Gauge.builder("rate.limiter.keys", strategy,
+            InstrumentedRateLimiterStrategy::liveKeys)
+        .tags(route)
+        .description("Keys the limiter holds in memory")
+        .register(registry));
+
+    if (strategy.delegate() instanceof SlidingWindowCountStrategy slidingWindow) {
+      meters.add(FunctionCounter.builder("rate.limiter.key.evictions", slidingWindow,
+              s -> s.keyMetrics().expiredEvictions())
+          .tags(route).tag("cause", "expired")
+          .register(registry));
+      meters.add(FunctionCounter.builder("rate.limiter.key.evictions", slidingWindow,
+              s -> s.keyMetrics().capacityEvictions())
+          .tags(route).tag("cause", "capacity")
+          .register(registry));
+      meters.add(FunctionCounter.builder("rate.limiter.overflow.decisions", slidingWindow,
+              s -> s.keyMetrics().overflowDecisions())
+          .tags(route)
+          .description("Requests of new keys decided by the fail-open policy, without state")
+          .register(registry));
+      meters.add(FunctionCounter.builder("rate.limiter.snapshots", slidingWindow,
+              s -> s.snapshotMetrics().snapshots())
+          .tags(route).tag("outcome", "success")
+          .register(registry));
+      meters.add(FunctionCounter.builder("rate.limiter.snapshots", slidingWindow,
+              s -> s.snapshotMetrics().failedSnapshots())
+          .tags(route).tag("outcome", "failure")
+          .register(registry));
+      meters.add(FunctionCounter.builder("rate.limiter.restored.keys", slidingWindow,
+              s -> s.snapshotMetrics().restoredKeys())
+          .tags(route)
+          .description("Keys whose state was restored from the snapshot of a previous instance")
+          .register(registry));
+    }
+    if (strategy.delegate() instanceof SlidingWindowCountNearCacheStrategy nearCache) {
+      meters.add(FunctionCounter.builder("rate.limiter.near.cache.syncs", nearCache,
+              s -> s.metrics().syncs())
+          .tags(route).tag("outcome", "success")
+          .register(registry));
+      meters.add(FunctionCounter.builder("rate.limiter.near.cache.syncs", nearCache,
+              s -> s.metrics().failedSyncs())
+          .tags(route).tag("outcome", "failure")
+          .register(registry));
+      meters.add(Gauge.builder("rate.limiter.near.cache.degraded", nearCache,
+              s -> s.metrics().degraded() ? 1 : 0)
+          .tags(route)
+          .description("1 while the limiter decides locally because Redis can't be reached")
+          .register(registry));
+    }
+    return meters;
+  }
+
+  void bind(JedisPoolConnectionProvider redis) {
+    FunctionTimer.builder("rate.limiter.redis.calls", redis, r -> r.metrics().calls(),
+            r -> r.metrics().totalLatencyNanos(), TimeUnit.NANOSECONDS)
+        .description("Round trips to Redis, including the wait for a pooled connection")
+        .register(registry);
+    latency("rate.limiter.redis.latency", redis.latency());
+    FunctionCounter.builder("rate.limiter.redis.borrow.timeouts", redis,
+            r -> r.metrics().borrowTimeouts())
+        .register(registry);
+    Gauge.builder("rate.limiter.redis.connections", redis, r -> r.metrics().active())
+        .tag("state", "active")
+        .register(registry);
+    Gauge.builder("rate.limiter.redis.connections", redis, r -> r.metrics().idle())
+        .tag("state", "idle")
+        .register(registry);
+  }
+
+  void remove(List<Meter> meters) {
+    meters.forEach(registry::remove);
+  }
+
+  private Meter decisions(InstrumentedRateLimiterStrategy strategy, String[] route,
+      String outcome, ToDoubleFunction<InstrumentedRateLimiterStrategy> count) {
+    return FunctionCounter.builder("rate.limiter.decisions", strategy, count)
+        .tags(route).tag("outcome", outcome)
+        .register(registry);
+  }
+
+  // Percentiles and max of the last interval of the recorder, see RateLimiterService for the roll.
+  private List<Meter> latency(String name, LatencyRecorder recorder, String... tags) {
+    List<Meter> meters = new ArrayList<>();
+    for (double quantile : QUANTILES) {
+      meters.add(TimeGauge.builder(name, recorder, TimeUnit.NANOSECONDS,
+              r -> r.valueAtPercentileNanos(quantile * 100))
+          .tags(tags).tag("quantile", String.valueOf(quantile))
+          .register(registry));
+    }
+    meters.add(TimeGauge.builder(name + ".max", recorder, TimeUnit.NANOSECONDS,
+            LatencyRecorder::maxNanos)
+        .tags(tags)
+        .register(registry));
+    return meters;
+  }
+}
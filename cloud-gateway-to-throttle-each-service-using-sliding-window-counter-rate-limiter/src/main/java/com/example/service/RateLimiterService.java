@@ -1,160 +1,445 @@
 package com.example.service;
 
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Clock;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.example.CoarseClock;
+import org.example.DynamicLimits;
+import org.example.GcraStrategy;
+import org.example.HeavyHitters;
+import org.example.HierarchicalSlidingWindowCountDistributedUsingRedisStrategy;
+import org.example.HierarchicalSlidingWindowCountStrategy;
+import org.example.InstrumentedRateLimiterStrategy;
+import org.example.JedisPoolConnectionProvider;
+import org.example.KeyCapacity;
+import org.example.LatencyRecorder;
+import org.example.LimitPolicy;
+import org.example.LimitResolver;
+import org.example.OffloadingReactiveRateLimiterStrategy;
+import org.example.RateLimitTier;
+import org.example.RateLimiterStrategy;
+import org.example.ReactiveHierarchicalRateLimiterStrategy;
+import org.example.ReactiveRateLimiterStrategy;
+import org.example.RedisConnectionProvider;
+import org.example.SlidingWindowBucketStrategy;
+import org.example.SlidingWindowCountNearCacheStrategy;
+import org.example.SlidingWindowCountStrategy;
+import org.example.SlidingWindowCountStripedStrategy;
+import org.example.SlidingWindowLogStrategy;
+import org.example.TokenBucketStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.gateway.event.RefreshRoutesResultEvent;
+import org.springframework.cloud.gateway.route.Route;
+import org.springframework.cloud.gateway.route.RouteLocator;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
 /**
- * Sliding window counter strategy for rate limiting.
- * <p>There are two approaches to implement sliding window count rate limiting:
- * 1. By creating smaller buckets with single timestamp for each bucket and then checking the count
- * of requests in the bucket. This approach is slight better than sliding window log approach in
- * terms of memory usage where we store timestamp of each request.
- * <p>
- * 2. Using weighted counter of previous and current window. We are using this approach here as it
- * is more efficient in terms of memory usage.
- * <p>This strategy uses a sliding window counter to track the number of requests within a given
- * time period. The sliding window is divided into fixed windows of equal length. The current fixed
- * window is the current time period, and the previous fixed window is the previous time period. The
- * strategy calculates the weight of the previous window based on the overlap with the sliding
- * window. The total request count within the sliding window is calculated based on the weight of
- * the previous window and the count of the current window. If the request count within the sliding
- * window exceeds the limit, the request is rejected; otherwise, the request count is updated in the
- * current fixed window, and the request is allowed. This strategy is efficient for a large number
- * of requests and provides a uniform distribution of requests over the previous and current
- * windows. The sliding window count strategy is suitable for scenarios where the request rate is
- * expected to be uniform over time.
- * <p>
- * The SlidingWindowCountStrategy class implements the RateLimiterStrategy. The class uses a
- * ConcurrentHashMap to store the sliding window state for each user. The SlidingWindowCountStrategy
- * class is thread-safe and ensures atomicity of operations on the sliding window using a
- * synchronized block.
+ * Builds the rate limiter strategies of the routes from the rate-limiter module and owns what they
+ * share: the clock, the Redis connection pool, the scheduler Redis decisions are offloaded to and
+ * the thread which evicts expired keys and syncs the near caches.
+ * <p>Every route gets its own strategy when its filter is applied (see
+ * {@link com.example.filter.RateLimiterStrategyType}), so a request only passes its key and cost.
+ * The Redis resources are created with the first route which needs them, a gateway limiting in
+ * memory only never connects to Redis.
+ * <p>The in-memory sliding window of a route keeps at most rate-limiter.max-keys keys, its in-memory
+ * nested limits as many keys of all tiers together. Once it is full, requests of new keys are
+ * allowed (rate-limiter.fail-open=true) or rejected without being tracked until expired keys are
+ * evicted. The same policy applies when Redis can't be reached.
+ * <p>Every strategy is wrapped in an {@link InstrumentedRateLimiterStrategy} and exported through
+ * Micrometer by {@link RateLimiterMetrics}. The latency histograms start a new interval every
+ * rate-limiter.metrics-interval-ms. The keys the limiters reject are tracked in one
+ * {@link HeavyHitters} shared by all routes, see {@link RejectedKeysEndpoint}.
+ * <p>With rate-limiter.snapshot.directory set, the in-memory sliding window of every route is
+ * written to {@code <directory>/<route id>.snapshot} every rate-limiter.snapshot.interval-ms and
+ * on shutdown, and restored from there on startup, so a restart or a deployment doesn't hand every
+ * client a fresh quota. Pointing the new instances of a blue/green deployment at the directory of
+ * the old ones hands the state over the same way.
+ * <p>All strategies read the time from one {@link CoarseClock}, which reads the system clock every
+ * rate-limiter.clock-resolution-ms on a ticker thread instead of on every decision; 0 reads the
+ * system clock directly.
+ * <p>The limits of single keys, or of whole routes by their id, can be changed at runtime without
+ * losing the counts: from the file rate-limiter.limits.file, read again when it changed (checked
+ * every rate-limiter.limits.reload-interval-ms), or key by key through {@link LimitsEndpoint}.
+ * The in-memory and the Redis sliding window look the limit up on every decision, the other
+ * strategies keep the limit of the route.
+ * <p>The periodic tasks and the meters of the strategies are kept by route id. A route which is
+ * applied again, when the routes are refreshed, releases those of its previous strategies first
+ * (see {@link #release(String)}), and a refresh releases the routes it removed.
  */
 @Service
-public class RateLimiterService {
-
-  private static final int ZERO = 0;
-
-//  private final int maxAllowedRequestsPerPeriod;
-//  private final int timePeriodInSeconds;
-//  private final Clock clock;
-  // ConcurrentHashMap to store the sliding window state for each user.
-  private final ConcurrentMap<String, SlidingWindow> userSlidingWindow = new ConcurrentHashMap<>();
-
-//  // Passing the timePeriodInSeconds, maxAllowedRequestsPerPeriod in the constructor so no need to
-//  // pass with each method call.
-//  public RateLimiterService(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod,
-//      Clock clock) {
-//    this.timePeriodInSeconds = timePeriodInSeconds;
-//    this.maxAllowedRequestsPerPeriod = maxAllowedRequestsPerPeriod;
-//    this.clock = clock;
-//  }
-
-  public boolean isAllowed(String key, int timePeriodInSeconds, int maxAllowedRequestsPerPeriod, Clock clock) {
-    long now = clock.millis();
-    long windowLengthInMilliSeconds = timePeriodInSeconds * 1000L;
-
-    // Initialize an empty sliding window for new users or retrieve existing one.
-    SlidingWindow slidingWindow = userSlidingWindow.computeIfAbsent(key,
-        k -> new SlidingWindow(new FixedWindow(now, ZERO),
-            new FixedWindow(now, ZERO)));
-
-    // Use synchronized block to ensure atomicity of operations on the sliding window.
-    synchronized (slidingWindow) {
-      FixedWindow currentFixedWindow = slidingWindow.currentFixedWindow();
-      FixedWindow previousFixedWindow = slidingWindow.previousFixedWindow();
-
-      // Transition to a new fixed window when the current one expires.
-      if (currentFixedWindow.timestamp() + windowLengthInMilliSeconds < now) {
-        previousFixedWindow = currentFixedWindow;
-        currentFixedWindow = new FixedWindow(now, ZERO);
-        userSlidingWindow.put(key,
-            new SlidingWindow(previousFixedWindow, currentFixedWindow));
-      }
+public class RateLimiterService implements DisposableBean {
+
+  private static final Logger logger = LoggerFactory.getLogger(RateLimiterService.class);
+
+  private final Clock clock;
+  private final KeyCapacity keyCapacity;
+  private final boolean failOpen;
+  private final Duration evictionInterval;
+  private final Duration syncInterval;
+  private final Duration metricsInterval;
+  private final RateLimiterMetrics metrics;
+  private final HeavyHitters rejectedKeys;
+  private final String redisHost;
+  private final int redisPort;
+  private final int redisMaxConnections;
+  private final Duration redisBorrowTimeout;
+  private final int queuedRedisDecisions;
+  private final Path snapshotDirectory;
+  private final Duration snapshotInterval;
+  private final DynamicLimits limits = new DynamicLimits();
+  // Written once more on shutdown, in the order the routes were created.
+  private final Map<Path, SlidingWindowCountStrategy> snapshots = new LinkedHashMap<>();
+  // Cancel the tasks, remove the meters and write the last snapshot of the strategies of a route.
+  private final Map<String, List<Runnable>> releases = new HashMap<>();
+  // Key eviction and near cache syncs, light periodic work which never runs on the event loop.
+  private final ScheduledExecutorService maintenance =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rate-limiter-maintenance");
+        thread.setDaemon(true);
+        return thread;
+      });
+  private JedisPoolConnectionProvider redis;
+  private Scheduler redisScheduler;
+
+  public RateLimiterService(@Value("${rate-limiter.max-keys:1000000}") int maxKeys,
+      @Value("${rate-limiter.fail-open:true}") boolean failOpen,
+      @Value("${rate-limiter.eviction-interval-ms:60000}") long evictionIntervalMillis,
+      @Value("${rate-limiter.sync-interval-ms:100}") long syncIntervalMillis,
+      @Value("${rate-limiter.metrics-interval-ms:10000}") long metricsIntervalMillis,
+      @Value("${rate-limiter.redis.host:localhost}") String redisHost,
+      @Value("${rate-limiter.redis.port:6379}") int redisPort,
+      @Value("${rate-limiter.redis.max-connections:16}") int redisMaxConnections,
+      @Value("${rate-limiter.redis.borrow-timeout-ms:100}") long redisBorrowTimeoutMillis,
+      @Value("${rate-limiter.redis.queued-decisions:1000}") int queuedRedisDecisions,
+      @Value("${rate-limiter.rejected-keys.top:100}") int rejectedKeysTop,
+      @Value("${rate-limiter.rejected-keys.sketch-width:16384}") int rejectedKeysSketchWidth,
+      @Value("${rate-limiter.rejected-keys.sketch-depth:4}") int rejectedKeysSketchDepth,
+      @Value("${rate-limiter.rejected-keys.decay-interval-ms:60000}")
+      long rejectedKeysDecayIntervalMillis,
+      @Value("${rate-limiter.snapshot.directory:}") String snapshotDirectory,
+      @Value("${rate-limiter.snapshot.interval-ms:30000}") long snapshotIntervalMillis,
+      @Value("${rate-limiter.clock-resolution-ms:1}") long clockResolutionMillis,
+      @Value("${rate-limiter.limits.file:}") String limitsFile,
+      @Value("${rate-limiter.limits.reload-interval-ms:5000}") long limitsReloadIntervalMillis,
+      MeterRegistry meterRegistry) {
+    this.clock = clockResolutionMillis > 0
+        ? new CoarseClock(Clock.systemUTC(), Duration.ofMillis(clockResolutionMillis))
+        : Clock.systemUTC();
+    this.keyCapacity = new KeyCapacity(maxKeys,
+        failOpen ? KeyCapacity.OverflowPolicy.ALLOW : KeyCapacity.OverflowPolicy.REJECT);
+    this.failOpen = failOpen;
+    this.evictionInterval = Duration.ofMillis(evictionIntervalMillis);
+    this.syncInterval = Duration.ofMillis(syncIntervalMillis);
+    this.metricsInterval = Duration.ofMillis(metricsIntervalMillis);
+    this.metrics = new RateLimiterMetrics(meterRegistry);
+    this.rejectedKeys = new HeavyHitters(rejectedKeysTop, rejectedKeysSketchWidth,
+        rejectedKeysSketchDepth);
+    rejectedKeys.scheduleDecay(maintenance, Duration.ofMillis(rejectedKeysDecayIntervalMillis));
+    this.redisHost = redisHost;
+    this.redisPort = redisPort;
+    this.redisMaxConnections = redisMaxConnections;
+    this.redisBorrowTimeout = Duration.ofMillis(redisBorrowTimeoutMillis);
+    this.queuedRedisDecisions = queuedRedisDecisions;
+    this.snapshotDirectory = snapshotDirectory.isEmpty() ? null : Path.of(snapshotDirectory);
+    this.snapshotInterval = Duration.ofMillis(snapshotIntervalMillis);
+    if (!limitsFile.isEmpty()) {
+      loadLimits(Path.of(limitsFile), Duration.ofMillis(limitsReloadIntervalMillis));
+    }
+  }
+
+  // A missing or broken file leaves the configured limits in place until it is fixed.
+  private void loadLimits(Path file, Duration reloadInterval) {
+    try {
+      limits.reload(file);
+      logger.info("Loaded {} limits from {}", limits.policy().limits().size(), file);
+    } catch (IOException e) {
+      logger.warn("Could not load the limits from {}: {}", file, e.getMessage());
+    }
+    limits.scheduleReload(maintenance, reloadInterval, file);
+  }
+
+  public Clock clock() {
+    return clock;
+  }
+
+  public boolean failOpen() {
+    return failOpen;
+  }
+
+  public HeavyHitters rejectedKeys() {
+    return rejectedKeys;
+  }
+
+  public DynamicLimits dynamicLimits() {
+    return limits;
+  }
+
+  /**
+   * @return limit of a key of the route: its own in the current table, or else the one of the
+   *     route id, or else the configured one
+   */
+  public LimitResolver limits(String routeId, int maxAllowedRequestsPerPeriod) {
+    return key -> {
+      // One table for both lookups, even while it is replaced.
+      LimitPolicy policy = limits.policy();
+      return policy.limitOf(key, policy.limitOf(routeId, maxAllowedRequestsPerPeriod));
+    };
+  }
+
+  // In-memory strategies never block, they decide on the event loop of the request.
+  public ReactiveRateLimiterStrategy local(String routeId, RateLimiterStrategy strategy) {
+    return ReactiveRateLimiterStrategy.of(instrument(routeId, strategy));
+  }
 
-      // Weight calculation for the previous window.
-      long slidingWindowStart = Math.max(0, now - windowLengthInMilliSeconds);
-      long previousFixedWindowEnd =
-          previousFixedWindow.timestamp() + windowLengthInMilliSeconds;
-
-      // Weight of the previous window based on overlap with the sliding window.
-      // Math.max is necessary for cases when we don't have any new request for longer time,
-      // and the previous window is completely outside the current sliding window. In that case,
-      // the previousFixedWindowWeight will be negative, and we need to set it to 0.
-      double previousFixedWindowWeight =
-          Math.max(0, previousFixedWindowEnd - slidingWindowStart)
-              / (double) windowLengthInMilliSeconds;
-
-      // Calculate total request count within the sliding window.
-      // if we have a rolling window of 10 seconds and allow 5 requests,
-      // then we assume approximately 1 request is allowed every 2 seconds.
-      // This is the gist of the "sliding window count" algorithm where we
-      // assume uniform distribution of requests over the previous/current window verses
-      // the "sliding window log" algorithm where we need to keep track of each and every timestamp
-      // of the requests in the previous window and that makes it less efficient in terms of memory
-      // usage for a large number of requests.
-
-      // Assume that the previous window is 10 seconds and the current window is 10 seconds.
-      // And we allow 5 requests per 10 seconds window. Now, we are at 14th second, which is 4th second
-      // of the current window. So, the previous window is from 4th second to 14th second.
-      // So now when we calculate the weight of the previous window, it will be 6/10 = 0.6.
-      // And weight of the current window will be 0.4.
-      // So, the total count will be 0.6 * count of previous window + count of current window.
-      int count = (int) (previousFixedWindow.count()
-          * previousFixedWindowWeight
-          + currentFixedWindow.count());
-
-      // Check if the request count within the sliding window exceeds the limit.
-      // If so, reject the request; otherwise, update the request count
-      // in the current fixed window and allow the request.
-      if (count >= maxAllowedRequestsPerPeriod) {
-        return false;
-      } else {
-        // Create a new FixedWindow with updated count
-        currentFixedWindow = new FixedWindow(currentFixedWindow.timestamp(),
-            currentFixedWindow.count() + 1);
-        userSlidingWindow.put(key,
-            new SlidingWindow(previousFixedWindow, currentFixedWindow));
-        return true;
+  public SlidingWindowCountStrategy slidingWindow(String routeId, int timePeriodInSeconds,
+      int maxAllowedRequestsPerPeriod) {
+    SlidingWindowCountStrategy strategy = new SlidingWindowCountStrategy(timePeriodInSeconds,
+        limits(routeId, maxAllowedRequestsPerPeriod), clock, keyCapacity);
+    cancelOnRelease(routeId, strategy.scheduleEviction(maintenance, evictionInterval));
+    if (snapshotDirectory != null) {
+      Path file = snapshotDirectory.resolve(routeId + ".snapshot");
+      restore(routeId, strategy, file);
+      ScheduledFuture<?> snapshot = strategy.scheduleSnapshot(maintenance, snapshotInterval, file);
+      synchronized (snapshots) {
+        snapshots.put(file, strategy);
       }
+      // The last snapshot hands the counts over to the next strategy of the route, which restores
+      // them from the file.
+      onRelease(routeId, () -> {
+        snapshot.cancel(false);
+        synchronized (snapshots) {
+          if (!snapshots.remove(file, strategy)) {
+            return;
+          }
+        }
+        snapshotOnMaintenance(file, strategy);
+      });
+    }
+    return strategy;
+  }
+
+  // Loads the file before the route serves, the keys are decoded when their clients come back.
+  private static void restore(String routeId, SlidingWindowCountStrategy strategy, Path file) {
+    if (!Files.exists(file)) {
+      return;
     }
+    try {
+      logger.info("Restored {} keys of route {} from {}", strategy.restore(file), routeId, file);
+    } catch (IOException e) {
+      // E.g. the period of the route changed, the limiter starts without state.
+      logger.warn("Could not restore route {} from {}: {}", routeId, file, e.getMessage());
+    }
+  }
+
+  public SlidingWindowBucketStrategy slidingWindowBuckets(String routeId, int timePeriodInSeconds,
+      int maxAllowedRequestsPerPeriod, int buckets) {
+    SlidingWindowBucketStrategy strategy = new SlidingWindowBucketStrategy(timePeriodInSeconds,
+        maxAllowedRequestsPerPeriod, buckets, clock, keyCapacity);
+    cancelOnRelease(routeId, strategy.scheduleEviction(maintenance, evictionInterval));
+    return strategy;
+  }
+
+  public SlidingWindowLogStrategy slidingWindowLog(String routeId, int timePeriodInSeconds,
+      int maxAllowedRequestsPerPeriod) {
+    SlidingWindowLogStrategy strategy = new SlidingWindowLogStrategy(timePeriodInSeconds,
+        maxAllowedRequestsPerPeriod, clock, keyCapacity);
+    cancelOnRelease(routeId, strategy.scheduleEviction(maintenance, evictionInterval));
+    return strategy;
+  }
+
+  public SlidingWindowCountStripedStrategy slidingWindowStriped(String routeId,
+      int timePeriodInSeconds, int maxAllowedRequestsPerPeriod, int stripes,
+      int maxLeasedPermits) {
+    SlidingWindowCountStripedStrategy strategy = new SlidingWindowCountStripedStrategy(
+        timePeriodInSeconds, maxAllowedRequestsPerPeriod, stripes, maxLeasedPermits, clock,
+        keyCapacity);
+    cancelOnRelease(routeId, strategy.scheduleEviction(maintenance, evictionInterval));
+    return strategy;
+  }
+
+  public TokenBucketStrategy tokenBucket(String routeId, int timePeriodInSeconds,
+      int maxAllowedRequestsPerPeriod) {
+    TokenBucketStrategy strategy = new TokenBucketStrategy(timePeriodInSeconds,
+        maxAllowedRequestsPerPeriod, maxAllowedRequestsPerPeriod, clock, keyCapacity);
+    cancelOnRelease(routeId, strategy.scheduleEviction(maintenance, evictionInterval));
+    return strategy;
+  }
+
+  public GcraStrategy gcra(String routeId, int timePeriodInSeconds,
+      int maxAllowedRequestsPerPeriod) {
+    GcraStrategy strategy = new GcraStrategy(timePeriodInSeconds, maxAllowedRequestsPerPeriod,
+        maxAllowedRequestsPerPeriod, clock, keyCapacity);
+    cancelOnRelease(routeId, strategy.scheduleEviction(maintenance, evictionInterval));
+    return strategy;
+  }
+
+  public SlidingWindowCountNearCacheStrategy nearCache(String routeId, int timePeriodInSeconds,
+      int maxAllowedRequestsPerPeriod, int maxUnsyncedPermits) {
+    SlidingWindowCountNearCacheStrategy strategy = new SlidingWindowCountNearCacheStrategy(
+        timePeriodInSeconds, maxAllowedRequestsPerPeriod, maxUnsyncedPermits, clock, redis());
+    cancelOnRelease(routeId, strategy.scheduleSync(maintenance, syncInterval));
+    return strategy;
+  }
+
+  // Jedis blocks, so Redis decisions run on a scheduler sized to the connection pool.
+  public ReactiveRateLimiterStrategy offload(String routeId, RateLimiterStrategy strategy) {
+    return new OffloadingReactiveRateLimiterStrategy(instrument(routeId, strategy),
+        redisScheduler());
+  }
+
+  // Nested limits of a route, decided in memory on the event loop of the request.
+  public ReactiveHierarchicalRateLimiterStrategy localTiers(String routeId,
+      List<RateLimitTier> tiers) {
+    HierarchicalSlidingWindowCountStrategy strategy =
+        new HierarchicalSlidingWindowCountStrategy(tiers, clock, keyCapacity);
+    cancelOnRelease(routeId, strategy.scheduleEviction(maintenance, evictionInterval));
+    return ReactiveHierarchicalRateLimiterStrategy.of(strategy);
+  }
+
+  // Nested limits of a route shared through Redis, one script call for all tiers.
+  public ReactiveHierarchicalRateLimiterStrategy redisTiers(List<RateLimitTier> tiers) {
+    return ReactiveHierarchicalRateLimiterStrategy.offloading(
+        new HierarchicalSlidingWindowCountDistributedUsingRedisStrategy(tiers, clock, redis()),
+        redisScheduler());
   }
 
-  private static class SlidingWindow {
-    private final FixedWindow previousFixedWindow;
-    private final FixedWindow currentFixedWindow;
+  private synchronized Scheduler redisScheduler() {
+    if (redisScheduler == null) {
+      redisScheduler = Schedulers.newBoundedElastic(redisMaxConnections, queuedRedisDecisions,
+          "rate-limiter-redis");
+    }
+    return redisScheduler;
+  }
 
-    public SlidingWindow(FixedWindow previousFixedWindow, FixedWindow currentFixedWindow) {
-      this.previousFixedWindow = previousFixedWindow;
-      this.currentFixedWindow = currentFixedWindow;
+  public synchronized RedisConnectionProvider redis() {
+    if (redis == null) {
+      redis = new JedisPoolConnectionProvider(redisHost, redisPort, redisMaxConnections,
+          redisBorrowTimeout);
+      metrics.bind(redis);
+      scheduleRoll(redis.latency());
     }
+    return redis;
+  }
 
-    public FixedWindow previousFixedWindow() {
-      return previousFixedWindow;
+  private static void snapshot(Path file, SlidingWindowCountStrategy strategy) {
+    try {
+      strategy.snapshot(file);
+    } catch (IOException e) {
+      logger.warn("Could not write the rate limiter snapshot {}: {}", file, e.getMessage());
     }
+  }
+
+  private InstrumentedRateLimiterStrategy instrument(String routeId,
+      RateLimiterStrategy strategy) {
+    InstrumentedRateLimiterStrategy instrumented =
+        new InstrumentedRateLimiterStrategy(strategy, rejectedKeys);
+    List<Meter> meters = metrics.bind(routeId, instrumented);
+    onRelease(routeId, () -> metrics.remove(meters));
+    cancelOnRelease(routeId, scheduleRoll(instrumented.latency()));
+    return instrumented;
+  }
+
+  private ScheduledFuture<?> scheduleRoll(LatencyRecorder latency) {
+    long intervalMillis = metricsInterval.toMillis();
+    return maintenance.scheduleAtFixedRate(latency::roll, intervalMillis, intervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  private void cancelOnRelease(String routeId, ScheduledFuture<?> task) {
+    onRelease(routeId, () -> task.cancel(false));
+  }
 
-    public FixedWindow currentFixedWindow() {
-      return currentFixedWindow;
+  private void onRelease(String routeId, Runnable release) {
+    synchronized (releases) {
+      releases.computeIfAbsent(routeId, id -> new ArrayList<>()).add(release);
     }
   }
 
+  /**
+   * Cancels the periodic tasks and removes the meters of the strategies built for the route so
+   * far, and writes their last snapshot. Called before the strategy of a route is built again,
+   * the strategy it replaces still decides until the gateway switches to the new routes.
+   */
+  public void release(String routeId) {
+    List<Runnable> routeReleases;
+    synchronized (releases) {
+      routeReleases = releases.remove(routeId);
+    }
+    if (routeReleases != null) {
+      routeReleases.forEach(Runnable::run);
+    }
+  }
 
-  private static class FixedWindow {
-    private final long timestamp;
-    private final int count;
+  // The routes a refresh removed are not applied again, their strategies are released here.
+  @EventListener
+  public void onRoutesRefreshed(RefreshRoutesResultEvent event) {
+    if (event.isSuccess() && event.getSource() instanceof RouteLocator routeLocator) {
+      routeLocator.getRoutes().map(Route::getId).collectList().subscribe(this::retainRoutes);
+    }
+  }
 
-    public FixedWindow(long timestamp, int count) {
-      this.timestamp = timestamp;
-      this.count = count;
+  void retainRoutes(List<String> routeIds) {
+    List<String> removed;
+    synchronized (releases) {
+      removed = new ArrayList<>(releases.keySet());
     }
+    removed.removeAll(routeIds);
+    removed.forEach(this::release);
+  }
 
-    public long timestamp() {
-      return timestamp;
+  // Queued behind a periodic snapshot which may still be writing the same file, and waited for:
+  // the next strategy of the route restores the file right after.
+  private void snapshotOnMaintenance(Path file, SlidingWindowCountStrategy strategy) {
+    try {
+      maintenance.submit(() -> snapshot(file, strategy)).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | RejectedExecutionException e) {
+      // Shutting down, destroy() writes the snapshots still registered.
     }
+  }
 
-    public int count() {
-      return count;
+  @Override
+  public synchronized void destroy() {
+    maintenance.shutdownNow();
+    try {
+      // A periodic snapshot may still be writing the file the last one writes.
+      maintenance.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (snapshots) {
+      snapshots.forEach(RateLimiterService::snapshot);
+    }
+    if (redisScheduler != null) {
+      redisScheduler.dispose();
+    }
+    if (redis != null) {
+      redis.close();
+    }
+    if (clock instanceof CoarseClock coarseClock) {
+      coarseClock.close();
     }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,28 @@
+package com.example.service;
+
+import java.util.List;
+import org.example.HeavyHitters;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * /actuator/rejectedkeys: the keys rejected most by the rate limiters of all routes, highest count
+ * first, e.g. the IPs of an attack. A key is the route id plus the client key, the counts are
+ * estimates which decay, see rate-limiter.rejected-keys in application.yml.
+ */
+@Component
+@Endpoint(id = "rejectedkeys")
+public class RejectedKeysEndpoint {
+
+  private final RateLimiterService rateLimiterService;
+
+  public RejectedKeysEndpoint(RateLimiterService rateLimiterService) {
+    this.rateLimiterService = rateLimiterService;
+  }
+
+  @ReadOperation
+  public List<HeavyHitters.HeavyHitter> rejectedKeys() {
+    return rateLimiterService.rejectedKeys().top();
+  }
+}
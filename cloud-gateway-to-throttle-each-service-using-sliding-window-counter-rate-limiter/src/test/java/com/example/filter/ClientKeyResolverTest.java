@@ -0,0 +1,171 @@
+package com.example.filter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.cloud.gateway.support.ServerWebExchangeUtils;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.web.server.ServerWebExchange;
+
+class ClientKeyResolverTest {
+
+  private static final String REMOTE_ADDRESS = "192.0.2.1";
+  private static final InetSocketAddress REMOTE = new InetSocketAddress(REMOTE_ADDRESS, 54321);
+  private static final String REMOTE_KEY = "ip:" + REMOTE_ADDRESS;
+  private RateLimiterCustomFilter.Config config;
+
+  @BeforeEach
+  void setUp() {
+    config = new RateLimiterCustomFilter.Config();
+  }
+
+  @Test
+  void testIpIsTheAddressOfTheConnection() {
+    assertEquals(REMOTE_KEY, resolve(ClientKeyResolver.IP,
+        request().header("X-Forwarded-For", "203.0.113.7")));
+  }
+
+  @Test
+  void testRouteIsOneKeyForAllClients() {
+    assertEquals(resolve(ClientKeyResolver.ROUTE, request()),
+        resolve(ClientKeyResolver.ROUTE, request().header("X-Forwarded-For", "203.0.113.7")));
+  }
+
+  // The proxy in front of the gateway appends the address of the client, whatever the client
+  // wrote before it.
+  @Test
+  void testForwardedForTakesTheEntryOfTheTrustedProxy() {
+    assertEquals("ip:203.0.113.7", resolve(ClientKeyResolver.X_FORWARDED_FOR,
+        request().header("X-Forwarded-For", "6.6.6.6, 203.0.113.7")));
+    assertEquals("ip:203.0.113.7", resolve(ClientKeyResolver.X_FORWARDED_FOR,
+        request().header("X-Forwarded-For", "203.0.113.7")));
+  }
+
+  @Test
+  void testForwardedForSkipsTheEntriesOfInnerProxies() {
+    config.setTrustedProxies(2);
+    assertEquals("ip:203.0.113.7", resolve(ClientKeyResolver.X_FORWARDED_FOR,
+        request().header("X-Forwarded-For", "6.6.6.6, 203.0.113.7, 10.0.0.2")));
+    // A proxy which adds a line of its own instead of appending to the first one.
+    assertEquals("ip:203.0.113.7", resolve(ClientKeyResolver.X_FORWARDED_FOR,
+        request().header("X-Forwarded-For", "6.6.6.6, 203.0.113.7", "10.0.0.2")));
+  }
+
+  // Fewer entries than trusted proxies: the request didn't pass all of them, so the client may
+  // have written the whole header.
+  @Test
+  void testForwardedForFallsBackToTheConnectionWhenTooShort() {
+    config.setTrustedProxies(2);
+    assertEquals(REMOTE_KEY, resolve(ClientKeyResolver.X_FORWARDED_FOR,
+        request().header("X-Forwarded-For", "203.0.113.7")));
+    assertEquals(REMOTE_KEY, resolve(ClientKeyResolver.X_FORWARDED_FOR, request()));
+    // An empty entry where the client should be.
+    assertEquals(REMOTE_KEY, resolve(ClientKeyResolver.X_FORWARDED_FOR,
+        request().header("X-Forwarded-For", ", 10.0.0.2")));
+  }
+
+  @Test
+  void testForwardedForNeedsATrustedProxy() {
+    config.setTrustedProxies(0);
+    assertThrows(IllegalArgumentException.class,
+        () -> ClientKeyResolver.X_FORWARDED_FOR.resolver(config));
+  }
+
+  @Test
+  void testJwtSubjectIsTheSubClaimOfTheBearerToken() {
+    assertEquals("sub:alice", resolve(ClientKeyResolver.JWT_SUBJECT,
+        request().header("Authorization", "Bearer " + jwt("{\"sub\":\"alice\"}"))));
+    // The scheme is case insensitive.
+    assertEquals("sub:alice", resolve(ClientKeyResolver.JWT_SUBJECT,
+        request().header("Authorization", "bearer " + jwt("{\"sub\":\"alice\"}"))));
+  }
+
+  @Test
+  void testJwtSubjectFallsBackToTheConnectionWithoutASubject() {
+    assertEquals(REMOTE_KEY, resolve(ClientKeyResolver.JWT_SUBJECT, request()));
+    assertEquals(REMOTE_KEY, resolve(ClientKeyResolver.JWT_SUBJECT,
+        request().header("Authorization", "Basic YWxpY2U6c2VjcmV0")));
+    assertEquals(REMOTE_KEY, resolve(ClientKeyResolver.JWT_SUBJECT,
+        request().header("Authorization", "Bearer opaque-token")));
+    assertEquals(REMOTE_KEY, resolve(ClientKeyResolver.JWT_SUBJECT,
+        request().header("Authorization", "Bearer a.%%%.c")));
+    assertEquals(REMOTE_KEY, resolve(ClientKeyResolver.JWT_SUBJECT,
+        request().header("Authorization", "Bearer " + jwt("not json"))));
+    assertEquals(REMOTE_KEY, resolve(ClientKeyResolver.JWT_SUBJECT,
+        request().header("Authorization", "Bearer " + jwt("{\"sub\":42}"))));
+    assertEquals(REMOTE_KEY, resolve(ClientKeyResolver.JWT_SUBJECT,
+        request().header("Authorization", "Bearer " + jwt("{\"iss\":\"gateway\"}"))));
+  }
+
+  @Test
+  void testHeaderIsTheValueOfTheKeyHeader() {
+    config.setKeyHeader("X-API-Key");
+    assertEquals("hdr:key-1", resolve(ClientKeyResolver.HEADER,
+        request().header("X-API-Key", "key-1")));
+    assertEquals(REMOTE_KEY, resolve(ClientKeyResolver.HEADER, request()));
+  }
+
+  @Test
+  void testPathVariableIsTheVariableOfTheRoute() {
+    config.setKeyPathVariable("tenant");
+    ServerWebExchange exchange = MockServerWebExchange.from(request().build());
+    exchange.getAttributes().put(ServerWebExchangeUtils.URI_TEMPLATE_VARIABLES_ATTRIBUTE,
+        Map.of("tenant", "acme"));
+    assertEquals("var:acme", ClientKeyResolver.PATH_VARIABLE.resolver(config).apply(exchange));
+    assertEquals(REMOTE_KEY, resolve(ClientKeyResolver.PATH_VARIABLE, request()));
+  }
+
+  // A client can't take the quota of another client by sending its IP as the value, nor do
+  // clients without the value share a quota with one which equals their IP.
+  @Test
+  void testValuesNeverCollideWithTheAddressOfAClient() {
+    config.setKeyHeader("X-API-Key");
+    config.setKeyPathVariable("tenant");
+    String victim = resolve(ClientKeyResolver.IP, request());
+
+    assertNotEquals(victim, resolve(ClientKeyResolver.HEADER,
+        request().header("X-API-Key", REMOTE_ADDRESS)));
+    assertNotEquals(victim, resolve(ClientKeyResolver.JWT_SUBJECT,
+        request().header("Authorization", "Bearer " + jwt("{\"sub\":\"" + REMOTE_ADDRESS
+            + "\"}"))));
+    ServerWebExchange exchange = MockServerWebExchange.from(request().build());
+    exchange.getAttributes().put(ServerWebExchangeUtils.URI_TEMPLATE_VARIABLES_ATTRIBUTE,
+        Map.of("tenant", REMOTE_ADDRESS));
+    assertNotEquals(victim, ClientKeyResolver.PATH_VARIABLE.resolver(config).apply(exchange));
+    // Nor do the sources collide with each other.
+    assertNotEquals(resolve(ClientKeyResolver.HEADER, request().header("X-API-Key", "alice")),
+        resolve(ClientKeyResolver.JWT_SUBJECT,
+            request().header("Authorization", "Bearer " + jwt("{\"sub\":\"alice\"}"))));
+  }
+
+  @Test
+  void testRequiredArguments() {
+    assertThrows(IllegalArgumentException.class,
+        () -> ClientKeyResolver.HEADER.resolver(config));
+    assertThrows(IllegalArgumentException.class,
+        () -> ClientKeyResolver.PATH_VARIABLE.resolver(config));
+  }
+
+  private static MockServerHttpRequest.BaseBuilder<?> request() {
+    return MockServerHttpRequest.get("/api/first/weather").remoteAddress(REMOTE);
+  }
+
+  private String resolve(ClientKeyResolver resolver, MockServerHttpRequest.BaseBuilder<?> request) {
+    return resolver.resolver(config).apply(MockServerWebExchange.from(request.build()));
+  }
+
+  // Unsigned header.payload.signature, the resolver only decodes the payload.
+  private static String jwt(String payload) {
+    Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    return encoder.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8)) + "."
+        + encoder.encodeToString(payload.getBytes(StandardCharsets.UTF_8)) + ".signature";
+  }
+}
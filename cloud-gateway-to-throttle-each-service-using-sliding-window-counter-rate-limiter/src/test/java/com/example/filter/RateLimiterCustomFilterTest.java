@@ -0,0 +1,145 @@
+package com.example.filter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.example.service.RateLimiterService;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.example.Decision;
+import org.example.ReactiveRateLimiterStrategy;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.cloud.gateway.filter.GatewayFilter;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Mono;
+
+class RateLimiterCustomFilterTest {
+
+  private static final String ROUTE_ID = "route";
+  private RateLimiterService rateLimiterService;
+  private ReactiveRateLimiterStrategy rateLimiter;
+  private RateLimiterCustomFilter.Config config;
+  // Requests the routed service got, and what it answers.
+  private final AtomicInteger routed = new AtomicInteger();
+  private GatewayFilterChain chain;
+
+  @BeforeEach
+  void setUp() {
+    rateLimiterService = mock(RateLimiterService.class);
+    rateLimiter = mock(ReactiveRateLimiterStrategy.class);
+    // The strategy of the route is the mock, whatever the service builds for it.
+    when(rateLimiterService.local(eq(ROUTE_ID), any())).thenReturn(rateLimiter);
+    when(rateLimiterService.failOpen()).thenReturn(true);
+
+    config = new RateLimiterCustomFilter.Config();
+    config.setRouteId(ROUTE_ID);
+    config.setStrategy(RateLimiterStrategyType.TOKEN_BUCKET);
+    config.setTimePeriodInSeconds(1);
+    config.setMaxAllowedRequestsPerPeriod(5);
+    config.setKeyResolver(ClientKeyResolver.ROUTE);
+    chain = exchange -> {
+      routed.incrementAndGet();
+      exchange.getResponse().setStatusCode(HttpStatus.OK);
+      return exchange.getResponse().setComplete();
+    };
+  }
+
+  @Test
+  void testAllowedRequestIsRoutedWithQuotaHeaders() {
+    decide(new Decision().set(true, 1, 3, 0));
+
+    client().get().uri("/resource").exchange()
+        .expectStatus().isOk()
+        .expectHeader().valueEquals("RateLimit-Limit", "5")
+        .expectHeader().valueEquals("RateLimit-Remaining", "3")
+        .expectHeader().doesNotExist("Retry-After");
+    assertEquals(1, routed.get());
+  }
+
+  // The retry time is rounded up to whole seconds, so the client doesn't come back too early.
+  @Test
+  void testRejectedRequestGetsRetryAfter() {
+    decide(new Decision().set(false, 5, 0, 1_200));
+
+    client().get().uri("/resource").exchange()
+        .expectStatus().isEqualTo(HttpStatus.TOO_MANY_REQUESTS)
+        .expectHeader().valueEquals("RateLimit-Remaining", "0")
+        .expectHeader().valueEquals("Retry-After", "2")
+        .expectHeader().valueEquals("RateLimit-Reset", "2");
+    assertEquals(0, routed.get());
+  }
+
+  @Test
+  void testRequestOverTheLimitGetsNoRetryAfter() {
+    decide(new Decision().set(false, 0, 5, Decision.NEVER));
+
+    client().get().uri("/resource").exchange()
+        .expectStatus().isEqualTo(HttpStatus.TOO_MANY_REQUESTS)
+        .expectHeader().doesNotExist("Retry-After");
+    assertEquals(0, routed.get());
+  }
+
+  @Test
+  void testRequestTakesThePermitsOfTheRoute() {
+    config.setPermits(3);
+    decide(new Decision().set(true, 3, 2, 0));
+
+    client().get().uri("/resource").exchange().expectStatus().isOk();
+    verify(rateLimiter).decide(anyString(), eq(3));
+  }
+
+  @Test
+  void testLimiterErrorFailsOpen() {
+    when(rateLimiter.decide(anyString(), anyInt()))
+        .thenReturn(Mono.error(new IllegalStateException("Redis is down")));
+
+    client().get().uri("/resource").exchange().expectStatus().isOk();
+    assertEquals(1, routed.get());
+  }
+
+  @Test
+  void testLimiterErrorFailsClosed() {
+    when(rateLimiterService.failOpen()).thenReturn(false);
+    when(rateLimiter.decide(anyString(), anyInt()))
+        .thenReturn(Mono.error(new IllegalStateException("Redis is down")));
+
+    client().get().uri("/resource").exchange()
+        .expectStatus().isEqualTo(HttpStatus.TOO_MANY_REQUESTS);
+    assertEquals(0, routed.get());
+  }
+
+  // An error of the routed request passes through the filter: it is not resumed as a failing
+  // limiter, which would route the request a second time.
+  @Test
+  void testDownstreamErrorIsNotALimiterError() {
+    decide(new Decision().set(true, 1, 3, 0));
+    chain = exchange -> {
+      routed.incrementAndGet();
+      return Mono.error(new IllegalStateException("Downstream failed"));
+    };
+
+    client().get().uri("/resource").exchange().expectStatus().is5xxServerError();
+    assertEquals(1, routed.get());
+    // Only a limiter error asks for the fail-open policy.
+    verify(rateLimiterService, never()).failOpen();
+  }
+
+  private void decide(Decision decision) {
+    when(rateLimiter.decide(anyString(), anyInt())).thenReturn(Mono.just(decision));
+  }
+
+  // The filter of the route in front of the chain, applied when the client is built.
+  private WebTestClient client() {
+    GatewayFilter filter = new RateLimiterCustomFilter(rateLimiterService).apply(config);
+    return WebTestClient.bindToWebHandler(exchange -> filter.filter(exchange, chain)).build();
+  }
+}
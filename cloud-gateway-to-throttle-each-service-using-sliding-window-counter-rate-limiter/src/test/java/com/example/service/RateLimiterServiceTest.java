@@ -0,0 +1,87 @@
+package com.example.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.file.Path;
+import java.util.List;
+import org.example.SlidingWindowCountStrategy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RateLimiterServiceTest {
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private RateLimiterService service;
+
+  @AfterEach
+  void tearDown() {
+    if (service != null) {
+      service.destroy();
+    }
+  }
+
+  @Test
+  void testReleaseRemovesTheMetersOfTheRoute() {
+    service = service("");
+    service.local("first", service.tokenBucket("first", 1, 5));
+    service.local("second", service.gcra("second", 1, 5));
+    assertNotNull(keys("first"));
+
+    service.release("first");
+    assertNull(keys("first"));
+    assertNotNull(keys("second"));
+  }
+
+  // Without the release the registry would hand back the meters of the first strategy of the
+  // route, which read the strategy the gateway no longer decides with.
+  @Test
+  void testMetersOfARouteAppliedAgainReadTheNewStrategy() {
+    service = service("");
+    service.local("first", service.tokenBucket("first", 1, 5)).decide("client", 1).block();
+    assertEquals(1, keys("first").value());
+
+    service.release("first");
+    service.local("first", service.tokenBucket("first", 1, 5));
+    assertEquals(0, keys("first").value());
+  }
+
+  @Test
+  void testRefreshReleasesTheRoutesItRemoved() {
+    service = service("");
+    service.local("first", service.slidingWindowLog("first", 1, 5));
+    service.local("second", service.slidingWindowLog("second", 1, 5));
+
+    service.retainRoutes(List.of("second"));
+    assertNull(keys("first"));
+    assertNotNull(keys("second"));
+  }
+
+  // The last snapshot of the released strategy is what the next one of the route restores.
+  @Test
+  void testRouteAppliedAgainKeepsItsCounts(@TempDir Path directory) {
+    service = service(directory.toString());
+    SlidingWindowCountStrategy first = service.slidingWindow("first", 60, 5);
+    for (int i = 0; i < 3; i++) {
+      first.allowed("client");
+    }
+
+    service.release("first");
+    SlidingWindowCountStrategy again = service.slidingWindow("first", 60, 5);
+    assertEquals(3, again.decide("client", 1).count());
+  }
+
+  private Gauge keys(String routeId) {
+    return registry.find("rate.limiter.keys").tag("route", routeId).gauge();
+  }
+
+  // Reads the system clock directly and never connects to Redis.
+  private RateLimiterService service(String snapshotDirectory) {
+    return new RateLimiterService(1_000, true, 60_000, 100, 10_000, "localhost", 6379, 16, 100,
+        1_000, 100, 1024, 4, 60_000, snapshotDirectory, 30_000, 0, "", 5_000, registry);
+  }
+}
@@ -0,0 +1,76 @@
+package org.example.benchmarks;
+
+import java.time.Clock;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.example.CoarseClock;
+import org.example.RateLimiterStrategy;
+import org.example.SlidingWindowCountStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of reading the time, the system clock against a {@link CoarseClock}, alone and as part of
+ * a sliding window decision.
+ * <p>The difference depends on the clocksource of the host: small with the TSC on bare metal, large
+ * on VMs which read the time through the hypervisor. Compare
+ * {@code /sys/devices/system/clocksource/clocksource0/current_clocksource} of the hosts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClockBenchmark {
+
+  private static final int KEY_COUNT = 1024;
+
+  @Param({"SYSTEM", "COARSE"})
+  public String clockType;
+
+  private Clock clock;
+  private RateLimiterStrategy rateLimiter;
+  private String[] keys;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    clock = clockType.equals("COARSE") ? new CoarseClock() : Clock.systemUTC();
+    rateLimiter = new SlidingWindowCountStrategy(3600, 1_000_000_000, clock);
+    keys = new String[KEY_COUNT];
+    for (int i = 0; i < KEY_COUNT; i++) {
+      keys[i] = "key-" + i;
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    if (clock instanceof CoarseClock coarseClock) {
+      coarseClock.close();
+    }
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public long millis() {
+    return clock.millis();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public boolean decision() {
+    return rateLimiter.allowed(keys[ThreadLocalRandom.current().nextInt(KEY_COUNT)]);
+  }
+}
@@ -0,0 +1,85 @@
+package org.example.benchmarks;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.example.RateLimiterStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the distributed strategies on a Redis Cluster of 1, 2 and 4 nodes. Every Redis
+ * node executes scripts on a single thread, so with the keys spread uniformly over the slots the
+ * throughput should grow linearly with the nodes, as long as the machine has a core per node and
+ * enough benchmark threads to keep all nodes busy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClusterScalingBenchmark {
+
+  private static final int KEY_COUNT = 100_000;
+  // Power of two, so a thread can walk the sample with a mask.
+  private static final int SAMPLES = 1 << 16;
+
+  @Param({"SLIDING_WINDOW_COUNT_REDIS", "GCRA_REDIS"})
+  public StrategyFactory strategy;
+
+  @Param({"1", "2", "4"})
+  public int nodes;
+
+  private EmbeddedRedisCluster cluster;
+  private RateLimiterStrategy rateLimiter;
+  private String[] keys;
+  private int[] sample;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    cluster = new EmbeddedRedisCluster(nodes);
+    rateLimiter = strategy.create(3600, 1_000_000_000, Clock.systemUTC(), cluster.connections());
+    keys = new String[KEY_COUNT];
+    for (int i = 0; i < KEY_COUNT; i++) {
+      keys[i] = "key-" + i;
+    }
+    sample = KeyDistribution.UNIFORM.sample(KEY_COUNT, SAMPLES, new Random(42));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    cluster.close();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public boolean maxThreads(Cursor cursor) {
+    return rateLimiter.allowed(keys[sample[cursor.next() & (SAMPLES - 1)]]);
+  }
+
+  // Position of a thread in the shared key sample, threads start at different positions.
+  @State(Scope.Thread)
+  public static class Cursor {
+
+    private int position = ThreadLocalRandom.current().nextInt(SAMPLES);
+
+    int next() {
+      return position++;
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package org.example.benchmarks;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+import org.example.RateLimiterStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the redis sliding window count on 8 threads with a connection pool of 1 to 8
+ * connections. A decision holds its connection for a whole round trip, so the throughput should
+ * grow with the pool until every thread has a connection of its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectionPoolBenchmark {
+
+  @Param({"1", "2", "4", "8"})
+  public int maxConnections;
+
+  private EmbeddedRedis redis;
+  private RateLimiterStrategy rateLimiter;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    redis = new EmbeddedRedis(maxConnections);
+    rateLimiter = StrategyFactory.SLIDING_WINDOW_COUNT_REDIS.create(3600, 1_000_000_000,
+        Clock.systemUTC(), redis.connections());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    redis.close();
+  }
+
+  @Benchmark
+  @Threads(8)
+  public boolean eightThreads(Key key) {
+    return rateLimiter.allowed(key.key);
+  }
+
+  // Every thread decides for its own key, so only the pool is shared.
+  @State(Scope.Thread)
+  public static class Key {
+
+    private final String key = "user-" + Thread.currentThread().threadId();
+  }
+}
@@ -0,0 +1,40 @@
+package org.example.benchmarks;
+
+import java.io.IOException;
+import java.time.Duration;
+import org.example.JedisPoolConnectionProvider;
+import redis.embedded.RedisServer;
+
+/**
+ * Local redis server for the benchmarks of the distributed strategies, by default with a
+ * connection pool large enough that the benchmark threads never wait for a connection.
+ */
+final class EmbeddedRedis implements AutoCloseable {
+
+  private static final int PORT = 6390;
+
+  private final RedisServer redisServer;
+  private final JedisPoolConnectionProvider connections;
+
+  EmbeddedRedis() throws IOException {
+    this(Runtime.getRuntime().availableProcessors() * 2);
+  }
+
+  EmbeddedRedis(int maxConnections) throws IOException {
+    redisServer = new RedisServer(PORT);
+    redisServer.start();
+    connections = new JedisPoolConnectionProvider("localhost", PORT, maxConnections,
+        Duration.ofSeconds(5));
+  }
+
+  JedisPoolConnectionProvider connections() {
+    return connections;
+  }
+
+  @Override
+  public void close() throws IOException {
+    connections.execute(jedis -> jedis.flushAll());
+    connections.close();
+    redisServer.stop();
+  }
+}
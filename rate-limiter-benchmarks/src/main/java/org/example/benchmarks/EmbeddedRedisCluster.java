@@ -0,0 +1,97 @@
+package org.example.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.example.JedisClusterConnectionProvider;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.embedded.RedisServer;
+
+/**
+ * Local Redis Cluster of the given number of master nodes for the benchmarks of the distributed
+ * strategies. The hash slots are split evenly between the nodes, without replicas.
+ */
+final class EmbeddedRedisCluster implements AutoCloseable {
+
+  private static final int FIRST_PORT = 7100;
+  private static final int SLOTS = 16384;
+
+  private final List<RedisServer> redisServers = new ArrayList<>();
+  private final Set<HostAndPort> nodes = new LinkedHashSet<>();
+  private final JedisClusterConnectionProvider connections;
+
+  EmbeddedRedisCluster(int nodeCount) throws IOException {
+    for (int i = 0; i < nodeCount; i++) {
+      int port = FIRST_PORT + i;
+      // A node config of an earlier run would make the node rejoin that cluster.
+      Files.deleteIfExists(Path.of("nodes-" + port + ".conf"));
+      RedisServer redisServer = RedisServer.newRedisServer()
+          .port(port)
+          .setting("cluster-enabled yes")
+          .setting("cluster-config-file nodes-" + port + ".conf")
+          .setting("cluster-node-timeout 5000")
+          .setting("appendonly no")
+          .build();
+      redisServer.start();
+      redisServers.add(redisServer);
+      nodes.add(new HostAndPort("127.0.0.1", port));
+    }
+    createCluster(nodeCount);
+    connections = new JedisClusterConnectionProvider(nodes,
+        Runtime.getRuntime().availableProcessors() * 2, Duration.ofSeconds(5));
+  }
+
+  private void createCluster(int nodeCount) {
+    int i = 0;
+    for (HostAndPort node : nodes) {
+      try (Jedis jedis = new Jedis(node)) {
+        if (i > 0) {
+          jedis.clusterMeet("127.0.0.1", FIRST_PORT);
+        }
+        int from = i * SLOTS / nodeCount;
+        int to = (i + 1) * SLOTS / nodeCount;
+        int[] slots = new int[to - from];
+        for (int slot = from; slot < to; slot++) {
+          slots[slot - from] = slot;
+        }
+        jedis.clusterAddSlots(slots);
+      }
+      i++;
+    }
+    // The nodes learn about each other through the cluster bus, wait until all of them agree.
+    long deadline = System.nanoTime() + Duration.ofSeconds(30).toNanos();
+    for (HostAndPort node : nodes) {
+      try (Jedis jedis = new Jedis(node)) {
+        while (!jedis.clusterInfo().contains("cluster_state:ok")) {
+          if (System.nanoTime() > deadline) {
+            throw new IllegalStateException("Redis Cluster of " + nodeCount + " nodes not ready");
+          }
+          Thread.onSpinWait();
+        }
+      }
+    }
+  }
+
+  JedisClusterConnectionProvider connections() {
+    return connections;
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (HostAndPort node : nodes) {
+      try (Jedis jedis = new Jedis(node)) {
+        jedis.flushAll();
+      }
+    }
+    connections.close();
+    for (RedisServer redisServer : redisServers) {
+      redisServer.stop();
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package org.example.benchmarks;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+import org.example.RateLimiterStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One global key, e.g. the cap of a route, decided by every thread: the striped sliding window
+ * count against the sliding window count, whose threads all compare-and-set the same counter.
+ * <p>The limit is a billion per hour, like the ALLOW regime of
+ * {@link RateLimiterStrategyBenchmark}, so every decision is allowed and takes a permit. It shows
+ * how the throughput of both changes with the threads, no results are recorded with the code: run
+ * it on a machine with 32 or more cores. Fewer cores than threads measure the contention of time
+ * slicing, not of the counter.
+ * <p>The striped strategy is not part of {@link RateLimiterStrategyBenchmark}: a key takes 128
+ * bytes per stripe, which is meant for a few hot keys, not for its 100,000.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HotKeyScalingBenchmark {
+
+  private static final String KEY = "route:orders";
+
+  @Param({"SLIDING_WINDOW_COUNT", "SLIDING_WINDOW_COUNT_STRIPED"})
+  public StrategyFactory strategy;
+
+  private RateLimiterStrategy rateLimiter;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    rateLimiter = strategy.create(3600, 1_000_000_000, Clock.systemUTC(), null);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public boolean oneThread() {
+    return rateLimiter.allowed(KEY);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public boolean fourThreads() {
+    return rateLimiter.allowed(KEY);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public boolean sixteenThreads() {
+    return rateLimiter.allowed(KEY);
+  }
+
+  @Benchmark
+  @Threads(32)
+  public boolean thirtyTwoThreads() {
+    return rateLimiter.allowed(KEY);
+  }
+
+  @Benchmark
+  @Threads(64)
+  public boolean sixtyFourThreads() {
+    return rateLimiter.allowed(KEY);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public boolean maxThreads() {
+    return rateLimiter.allowed(KEY);
+  }
+}
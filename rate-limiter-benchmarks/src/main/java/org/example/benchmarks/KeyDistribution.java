@@ -0,0 +1,52 @@
+package org.example.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * How the requests of a benchmark are spread over the keys. The key indices are generated up
+ * front, so no random number generation is measured together with the decisions.
+ */
+public enum KeyDistribution {
+
+  // Every request for the same key, e.g. a global per-route limit or a busy tenant.
+  HOT {
+    @Override
+    int[] sample(int keyCount, int samples, Random random) {
+      return new int[samples];
+    }
+  },
+
+  // Every key equally likely, e.g. a scan from many addresses.
+  UNIFORM {
+    @Override
+    int[] sample(int keyCount, int samples, Random random) {
+      int[] indices = new int[samples];
+      for (int i = 0; i < samples; i++) {
+        indices[i] = random.nextInt(keyCount);
+      }
+      return indices;
+    }
+  },
+
+  // Few keys take most of the traffic, like real clients (Zipf distribution with exponent 1).
+  ZIPFIAN {
+    @Override
+    int[] sample(int keyCount, int samples, Random random) {
+      double[] cumulative = new double[keyCount];
+      double sum = 0;
+      for (int rank = 0; rank < keyCount; rank++) {
+        sum += 1.0 / (rank + 1);
+        cumulative[rank] = sum;
+      }
+      int[] indices = new int[samples];
+      for (int i = 0; i < samples; i++) {
+        int position = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+        indices[i] = Math.min(keyCount - 1, position >= 0 ? position : -position - 1);
+      }
+      return indices;
+    }
+  };
+
+  abstract int[] sample(int keyCount, int samples, Random random);
+}
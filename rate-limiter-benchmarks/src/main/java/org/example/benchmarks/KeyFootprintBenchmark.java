@@ -0,0 +1,77 @@
+package org.example.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Clock;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.example.RateLimiterStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Heap footprint and tail latency with a million live keys, the heap strategy against the
+ * off-heap one.
+ * <p>The setup makes one request per key and prints the heap the limiter takes per key, measured
+ * after a GC. The benchmark then keeps deciding for random keys of the million: the sample time
+ * mode reports p99.9 and p99.99, where the pauses of a collector walking millions of live objects
+ * show up, and the GC profiler of {@link BenchmarkRunner} the GC count and time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Xms4g"})
+public class KeyFootprintBenchmark {
+
+  private static final int KEY_COUNT = 1_000_000;
+
+  @Param({"SLIDING_WINDOW_COUNT", "SLIDING_WINDOW_BUCKETS", "SLIDING_WINDOW_COUNT_OFF_HEAP"})
+  public StrategyFactory strategy;
+
+  private RateLimiterStrategy rateLimiter;
+  private String[] keys;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    keys = new String[KEY_COUNT];
+    for (int i = 0; i < KEY_COUNT; i++) {
+      keys[i] = "10." + (i >> 16) + "." + (i >> 8 & 0xff) + "." + (i & 0xff);
+    }
+    long heapBefore = usedHeapAfterGc();
+    rateLimiter = strategy.create(3600, 1_000_000_000, Clock.systemUTC(), null);
+    for (String key : keys) {
+      rateLimiter.allowed(key);
+    }
+    long heapAfter = usedHeapAfterGc();
+    // The keys were allocated before, only what the limiter holds on to is counted.
+    System.out.printf("%n%s: %d live keys, %d heap bytes per key%n", strategy,
+        rateLimiter.liveKeys(), (heapAfter - heapBefore) / KEY_COUNT);
+  }
+
+  private static long usedHeapAfterGc() {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public boolean fourThreads() {
+    return rateLimiter.allowed(keys[ThreadLocalRandom.current().nextInt(KEY_COUNT)]);
+  }
+}
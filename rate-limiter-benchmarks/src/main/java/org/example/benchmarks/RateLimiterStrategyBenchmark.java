@@ -0,0 +1,134 @@
+package org.example.benchmarks;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.example.InstrumentedRateLimiterStrategy;
+import org.example.RateLimiterStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decision throughput and latency of every strategy, for a hot key, uniformly spread keys and a
+ * Zipfian key distribution, on 1, 4 and all available threads.
+ * <p>In the ALLOW regime the limit is never reached, so every decision counts a request. In the
+ * REJECT regime every key allows only its first request, so nearly every decision is a rejection.
+ * <p>Throughput is reported in ops/us, the sample time mode reports the latency percentiles
+ * (p99 among them). Run it with the GC profiler for the allocation rate, see {@link
+ * BenchmarkRunner}.
+ * <p>With {@code instrumented} the strategy is wrapped in an {@link InstrumentedRateLimiterStrategy},
+ * the difference is the cost of the counters and the latency histogram.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RateLimiterStrategyBenchmark {
+
+  private static final int KEY_COUNT = 100_000;
+  // Power of two, so a thread can walk the sample with a mask.
+  private static final int SAMPLES = 1 << 16;
+
+  @Param({"SLIDING_WINDOW_COUNT", "SLIDING_WINDOW_BUCKETS", "SLIDING_WINDOW_COUNT_SKETCH",
+      "SLIDING_WINDOW_COUNT_OFF_HEAP", "SLIDING_WINDOW_COUNT_REDIS", "TOKEN_BUCKET", "GCRA",
+      "GCRA_REDIS"})
+  public StrategyFactory strategy;
+
+  @Param({"HOT", "UNIFORM", "ZIPFIAN"})
+  public KeyDistribution keyDistribution;
+
+  @Param({"ALLOW", "REJECT"})
+  public Regime regime;
+
+  @Param({"false", "true"})
+  public boolean instrumented;
+
+  private EmbeddedRedis redis;
+  private RateLimiterStrategy rateLimiter;
+  private String[] keys;
+  private int[] sample;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    if (strategy.usesRedis()) {
+      redis = new EmbeddedRedis();
+    }
+    rateLimiter = strategy.create(3600, regime.maxAllowedRequestsPerPeriod, Clock.systemUTC(),
+        redis == null ? null : redis.connections());
+    if (instrumented) {
+      rateLimiter = new InstrumentedRateLimiterStrategy(rateLimiter);
+    }
+    keys = new String[KEY_COUNT];
+    for (int i = 0; i < KEY_COUNT; i++) {
+      keys[i] = "key-" + i;
+    }
+    sample = keyDistribution.sample(KEY_COUNT, SAMPLES, new Random(42));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    if (redis != null) {
+      redis.close();
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public boolean oneThread(Cursor cursor) {
+    return decide(cursor);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public boolean fourThreads(Cursor cursor) {
+    return decide(cursor);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public boolean maxThreads(Cursor cursor) {
+    return decide(cursor);
+  }
+
+  private boolean decide(Cursor cursor) {
+    return rateLimiter.allowed(keys[sample[cursor.next() & (SAMPLES - 1)]]);
+  }
+
+  public enum Regime {
+    ALLOW(1_000_000_000),
+    REJECT(1);
+
+    private final int maxAllowedRequestsPerPeriod;
+
+    Regime(int maxAllowedRequestsPerPeriod) {
+      this.maxAllowedRequestsPerPeriod = maxAllowedRequestsPerPeriod;
+    }
+  }
+
+  // Position of a thread in the shared key sample, threads start at different positions.
+  @State(Scope.Thread)
+  public static class Cursor {
+
+    private int position = ThreadLocalRandom.current().nextInt(SAMPLES);
+
+    int next() {
+      return position++;
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package org.example.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.example.RateLimiterStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The exact sliding window log against the weighted sliding window count, in memory and in Redis.
+ * <p>A hot key gets requests exactly at its limit: the clock moves 1000 / limit milliseconds per
+ * decision, so every decision is allowed and the log of the key stays full, every new timestamp
+ * pushing out the oldest one. That is the most expensive steady state of the log, a rejected
+ * request only counts. The count does the same work whatever the limit.
+ * <p>The logs are not part of {@link RateLimiterStrategyBenchmark}: its ALLOW regime has a limit
+ * of a billion per hour, which no log should be sized for.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SlidingWindowLogBenchmark {
+
+  private static final String KEY = "hot-key";
+
+  @Param({"SLIDING_WINDOW_COUNT", "SLIDING_WINDOW_LOG", "SLIDING_WINDOW_COUNT_REDIS",
+      "SLIDING_WINDOW_LOG_REDIS"})
+  public StrategyFactory strategy;
+
+  // Requests per second, 1000 divided by it is a whole number of milliseconds.
+  @Param({"100", "1000"})
+  public int limit;
+
+  private EmbeddedRedis redis;
+  private RateLimiterStrategy rateLimiter;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    if (strategy.usesRedis()) {
+      redis = new EmbeddedRedis();
+    }
+    rateLimiter = strategy.create(1, limit, new TickingClock(1000 / limit),
+        redis == null ? null : redis.connections());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    if (redis != null) {
+      redis.close();
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public boolean oneThread() {
+    return rateLimiter.allowed(KEY);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public boolean fourThreads() {
+    return rateLimiter.allowed(KEY);
+  }
+}
@@ -0,0 +1,153 @@
+package org.example.benchmarks;
+
+import java.time.Clock;
+import org.example.GcraDistributedUsingRedisStrategy;
+import org.example.GcraStrategy;
+import org.example.KeyCapacity;
+import org.example.RateLimiterStrategy;
+import org.example.RedisConnectionProvider;
+import org.example.SlidingWindowBucketStrategy;
+import org.example.SlidingWindowCountDistributedUsingRedisStrategy;
+import org.example.SlidingWindowCountOffHeapStrategy;
+import org.example.SlidingWindowCountSketchStrategy;
+import org.example.SlidingWindowCountStrategy;
+import org.example.SlidingWindowCountStripedStrategy;
+import org.example.SlidingWindowLogDistributedUsingRedisStrategy;
+import org.example.SlidingWindowLogStrategy;
+import org.example.TokenBucketStrategy;
+
+/**
+ * All {@link RateLimiterStrategy} implementations under benchmark. A new strategy only needs an
+ * entry here (and in the @Param lists of the benchmarks) to be compared with the existing ones.
+ */
+public enum StrategyFactory {
+
+  SLIDING_WINDOW_COUNT {
+    @Override
+    RateLimiterStrategy create(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod,
+        Clock clock, RedisConnectionProvider connections) {
+      return new SlidingWindowCountStrategy(timePeriodInSeconds, maxAllowedRequestsPerPeriod,
+          clock);
+    }
+  },
+
+  // 100 buckets per window, 404 bytes of counts per key.
+  SLIDING_WINDOW_BUCKETS {
+    @Override
+    RateLimiterStrategy create(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod,
+        Clock clock, RedisConnectionProvider connections) {
+      return new SlidingWindowBucketStrategy(timePeriodInSeconds, maxAllowedRequestsPerPeriod,
+          100, clock);
+    }
+  },
+
+  // A timestamp per permit of the limit and key: only for realistic limits, see
+  // SlidingWindowLogBenchmark.
+  SLIDING_WINDOW_LOG {
+    @Override
+    RateLimiterStrategy create(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod,
+        Clock clock, RedisConnectionProvider connections) {
+      return new SlidingWindowLogStrategy(timePeriodInSeconds, maxAllowedRequestsPerPeriod, clock);
+    }
+  },
+
+  // Two stripes per core and the default bound of the leased permits: 128 bytes per stripe and
+  // key, only for hot keys, see HotKeyScalingBenchmark.
+  SLIDING_WINDOW_COUNT_STRIPED {
+    @Override
+    RateLimiterStrategy create(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod,
+        Clock clock, RedisConnectionProvider connections) {
+      int stripes = 2 * Runtime.getRuntime().availableProcessors();
+      return new SlidingWindowCountStripedStrategy(timePeriodInSeconds,
+          maxAllowedRequestsPerPeriod, stripes,
+          SlidingWindowCountStripedStrategy.defaultMaxLeasedPermits(maxAllowedRequestsPerPeriod,
+              stripes), clock);
+    }
+  },
+
+  // 2^20 counters by 4 rows per window, 64 MiB whatever the number of keys.
+  SLIDING_WINDOW_COUNT_SKETCH {
+    @Override
+    RateLimiterStrategy create(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod,
+        Clock clock, RedisConnectionProvider connections) {
+      return new SlidingWindowCountSketchStrategy(timePeriodInSeconds,
+          maxAllowedRequestsPerPeriod, 1 << 20, 4, clock);
+    }
+  },
+
+  // Off-heap table for 2 million keys, 32 bytes per slot, about 128 MiB outside the heap.
+  SLIDING_WINDOW_COUNT_OFF_HEAP {
+    @Override
+    RateLimiterStrategy create(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod,
+        Clock clock, RedisConnectionProvider connections) {
+      return new SlidingWindowCountOffHeapStrategy(timePeriodInSeconds,
+          maxAllowedRequestsPerPeriod, clock,
+          new KeyCapacity(2_000_000, KeyCapacity.OverflowPolicy.EVICT_LEAST_RECENTLY_USED));
+    }
+  },
+
+  SLIDING_WINDOW_COUNT_REDIS {
+    @Override
+    RateLimiterStrategy create(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod,
+        Clock clock, RedisConnectionProvider connections) {
+      return new SlidingWindowCountDistributedUsingRedisStrategy(timePeriodInSeconds,
+          maxAllowedRequestsPerPeriod, clock, connections);
+    }
+
+    @Override
+    boolean usesRedis() {
+      return true;
+    }
+  },
+
+  SLIDING_WINDOW_LOG_REDIS {
+    @Override
+    RateLimiterStrategy create(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod,
+        Clock clock, RedisConnectionProvider connections) {
+      return new SlidingWindowLogDistributedUsingRedisStrategy(timePeriodInSeconds,
+          maxAllowedRequestsPerPeriod, clock, connections);
+    }
+
+    @Override
+    boolean usesRedis() {
+      return true;
+    }
+  },
+
+  TOKEN_BUCKET {
+    @Override
+    RateLimiterStrategy create(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod,
+        Clock clock, RedisConnectionProvider connections) {
+      return new TokenBucketStrategy(timePeriodInSeconds, maxAllowedRequestsPerPeriod, clock);
+    }
+  },
+
+  GCRA {
+    @Override
+    RateLimiterStrategy create(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod,
+        Clock clock, RedisConnectionProvider connections) {
+      return new GcraStrategy(timePeriodInSeconds, maxAllowedRequestsPerPeriod, clock);
+    }
+  },
+
+  GCRA_REDIS {
+    @Override
+    RateLimiterStrategy create(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod,
+        Clock clock, RedisConnectionProvider connections) {
+      return new GcraDistributedUsingRedisStrategy(timePeriodInSeconds,
+          maxAllowedRequestsPerPeriod, clock, connections);
+    }
+
+    @Override
+    boolean usesRedis() {
+      return true;
+    }
+  };
+
+  abstract RateLimiterStrategy create(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod,
+      Clock clock, RedisConnectionProvider connections);
+
+  boolean usesRedis() {
+    return false;
+  }
+}
@@ -0,0 +1,49 @@
+package org.example.benchmarks;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clock which moves forward by a fixed step every time it is read, so the benchmark controls how
+ * often the fixed windows roll over instead of the wall clock.
+ */
+final class TickingClock extends Clock {
+
+  private final AtomicLong millis;
+  private final long millisPerRead;
+  private final ZoneId zone;
+
+  TickingClock(long millisPerRead) {
+    this(new AtomicLong(), millisPerRead, ZoneOffset.UTC);
+  }
+
+  private TickingClock(AtomicLong millis, long millisPerRead, ZoneId zone) {
+    this.millis = millis;
+    this.millisPerRead = millisPerRead;
+    this.zone = zone;
+  }
+
+  @Override
+  public long millis() {
+    return millis.addAndGet(millisPerRead);
+  }
+
+  @Override
+  public Instant instant() {
+    return Instant.ofEpochMilli(millis());
+  }
+
+  @Override
+  public ZoneId getZone() {
+    return zone;
+  }
+
+  // Ticks with this clock, every read of either one moves both forward.
+  @Override
+  public Clock withZone(ZoneId zone) {
+    return zone.equals(this.zone) ? this : new TickingClock(millis, millisPerRead, zone);
+  }
+}
@@ -0,0 +1,74 @@
+package org.example.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.example.RateLimiterStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Window roll-over storm: the clock advances on every decision, so the fixed windows of a 1 second
+ * limit roll over every 1000 / millisPerDecision decisions (every decision with 1001). This is
+ * the slow path of the strategies, which normally runs once per window length and key. The buckets
+ * of SLIDING_WINDOW_BUCKETS move on every decision, with 1001 the whole ring is cleared each time.
+ * <p>All threads share the ticking clock, its counter adds some contention of its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WindowRolloverBenchmark {
+
+  private static final String KEY = "hot-key";
+
+  @Param({"SLIDING_WINDOW_COUNT", "SLIDING_WINDOW_BUCKETS", "SLIDING_WINDOW_COUNT_REDIS"})
+  public StrategyFactory strategy;
+
+  @Param({"10", "1001"})
+  public long millisPerDecision;
+
+  private EmbeddedRedis redis;
+  private RateLimiterStrategy rateLimiter;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    if (strategy.usesRedis()) {
+      redis = new EmbeddedRedis();
+    }
+    rateLimiter = strategy.create(1, 100, new TickingClock(millisPerDecision),
+        redis == null ? null : redis.connections());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    if (redis != null) {
+      redis.close();
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public boolean oneThread() {
+    return rateLimiter.allowed(KEY);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public boolean fourThreads() {
+    return rateLimiter.allowed(KEY);
+  }
+}
@@ -0,0 +1,132 @@
+package org.example;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Clock which reads the time once per resolution on a ticker thread instead of on every call.
+ * <p>Every decision of a strategy reads {@link Clock#millis()}. On a host with a slow clocksource,
+ * e.g. a VM which falls back from the TSC to the HPET or a hypervisor clock, that is a system call
+ * of a microsecond or more, and at millions of decisions per second it shows up in the profile.
+ * This clock reads the time of its source on a single daemon thread every resolution (1 ms by
+ * default) and publishes it through a volatile field, so {@link #millis()} is a plain load on x86
+ * and ARM and every core reads the same cache line, which only changes once per tick.
+ * <p>The strategies take any {@link Clock}, pass a coarse clock where the decisions are hot and a
+ * fixed or mocked clock in tests. The time lags its source by up to one resolution, plus however
+ * long the ticker thread isn't scheduled, which the limits of whole seconds don't notice; a
+ * strategy must never be given a resolution close to its window length.
+ * <p>{@link #close()} stops the ticker, the clock then keeps the last time it read.
+ */
+public final class CoarseClock extends Clock implements AutoCloseable {
+
+  private final Clock source;
+  private final long resolutionNanos;
+  private final Thread ticker;
+  private volatile long millis;
+  private volatile boolean closed;
+
+  /**
+   * Ticks every millisecond on the UTC system clock.
+   */
+  public CoarseClock() {
+    this(Clock.systemUTC(), Duration.ofMillis(1));
+  }
+
+  /**
+   * @param source clock the ticker thread reads, e.g. {@link Clock#systemUTC()}
+   * @param resolution how often the ticker thread reads it
+   */
+  public CoarseClock(Clock source, Duration resolution) {
+    if (resolution.isNegative() || resolution.isZero()) {
+      throw new IllegalArgumentException("resolution must be positive, was " + resolution);
+    }
+    this.source = source;
+    this.resolutionNanos = resolution.toNanos();
+    this.millis = source.millis();
+    this.ticker = new Thread(this::tick, "rate-limiter-clock");
+    ticker.setDaemon(true);
+    ticker.start();
+  }
+
+  private void tick() {
+    while (!closed) {
+      millis = source.millis();
+      LockSupport.parkNanos(this, resolutionNanos);
+    }
+  }
+
+  @Override
+  public long millis() {
+    return millis;
+  }
+
+  @Override
+  public Instant instant() {
+    return Instant.ofEpochMilli(millis);
+  }
+
+  @Override
+  public ZoneId getZone() {
+    return ZoneOffset.UTC;
+  }
+
+  /**
+   * @return a view of this clock in the given zone, reading the same ticker
+   */
+  @Override
+  public Clock withZone(ZoneId zone) {
+    return zone.equals(ZoneOffset.UTC) ? this : new ZonedView(this, zone);
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    LockSupport.unpark(ticker);
+  }
+
+  @Override
+  public String toString() {
+    return "CoarseClock[" + source + ", " + Duration.ofNanos(resolutionNanos) + "]";
+  }
+
+  // The time of the coarse clock in another zone, closing the coarse clock stops both.
+  private static final class ZonedView extends Clock {
+
+    private final CoarseClock clock;
+    private final ZoneId zone;
+
+    private ZonedView(CoarseClock clock, ZoneId zone) {
+      this.clock = clock;
+      this.zone = zone;
+    }
+
+    @Override
+    public long millis() {
+      return clock.millis;
+    }
+
+    @Override
+    public Instant instant() {
+      return Instant.ofEpochMilli(clock.millis);
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return zone;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return clock.withZone(zone);
+    }
+
+    @Override
+    public String toString() {
+      return clock + "[" + zone + "]";
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package org.example;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count-Min Sketch: approximate counts of any number of keys in a fixed amount of memory.
+ * <p>The sketch is {@code depth} rows of {@code width} counters. A key adds its count to one
+ * counter per row, picked by a hash of the key, and its estimate is the smallest of those
+ * counters. Other keys hashing to the same counters only add to them, so the estimate never
+ * under-counts. With N the total of all counts it over-counts by at most {@code e / width * N}
+ * with probability {@code 1 - e^-depth}, e.g. a width of 16384 and a depth of 4 keep the error
+ * under 0.017% of N for 98% of the keys, in 512 KB.
+ * <p>Updates are lock-free, one atomic add per row. The hash is seeded per sketch, so a client
+ * can't craft keys which collide with the keys it wants to hurt.
+ */
+public class CountMinSketch {
+
+  private final int depth;
+  private final int widthMask;
+  private final long seed = ThreadLocalRandom.current().nextLong();
+  private final AtomicLongArray counters;
+
+  /**
+   * @param width counters per row, rounded up to a power of two
+   * @param depth rows, each with an independent hash
+   */
+  public CountMinSketch(int width, int depth) {
+    if (width < 1 || depth < 1) {
+      throw new IllegalArgumentException("width and depth must be positive");
+    }
+    int roundedWidth = Integer.highestOneBit(Math.max(1, width - 1)) << 1;
+    this.depth = depth;
+    this.widthMask = roundedWidth - 1;
+    this.counters = new AtomicLongArray(roundedWidth * depth);
+  }
+
+  public int width() {
+    return widthMask + 1;
+  }
+
+  public int depth() {
+    return depth;
+  }
+
+  public long memoryBytes() {
+    return counters.length() * (long) Long.BYTES;
+  }
+
+  /**
+   * Adds the count to the key. The rows are added to one after another, so the returned estimate
+   * may miss counts which concurrent adds of the key put in its first rows after they were read.
+   * An {@link #estimate} read after this add returns sees them.
+   *
+   * @return estimate of the key including this count
+   */
+  public long add(String key, long count) {
+    long hash = hash(key, seed);
+    // Double hashing: the rows use h1 + i * h2, as independent as separate hash functions.
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32) | 1;
+    long estimate = Long.MAX_VALUE;
+    for (int row = 0; row < depth; row++) {
+      estimate = Math.min(estimate, counters.addAndGet(index(row, h1 + row * h2), count));
+    }
+    return estimate;
+  }
+
+  public long estimate(String key) {
+    long hash = hash(key, seed);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32) | 1;
+    long estimate = Long.MAX_VALUE;
+    for (int row = 0; row < depth; row++) {
+      estimate = Math.min(estimate, counters.get(index(row, h1 + row * h2)));
+    }
+    return estimate;
+  }
+
+  /**
+   * Halves every counter, so old counts fade out and the sketch follows the current traffic.
+   * Counts added concurrently may be halved or not, which only blurs the estimates further.
+   */
+  public void halve() {
+    for (int i = 0; i < counters.length(); i++) {
+      long current;
+      do {
+        current = counters.get(i);
+      } while (current != 0 && !counters.compareAndSet(i, current, current >> 1));
+    }
+  }
+
+  public void clear() {
+    for (int i = 0; i < counters.length(); i++) {
+      counters.set(i, 0);
+    }
+  }
+
+  private int index(int row, int hash) {
+    return row * (widthMask + 1) + (hash & widthMask);
+  }
+
+  // 64-bit FNV-1a over the chars of the key, finished with the murmur3 mix so every bit of the
+  // result depends on every char.
+  static long hash(String key, long seed) {
+    long hash = 0xcbf29ce484222325L ^ seed;
+    for (int i = 0; i < key.length(); i++) {
+      hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,80 @@
+package org.example;
+
+/**
+ * Outcome of a rate limiter decision with the quota information a client needs to behave well:
+ * how many permits are left, and when exactly a rejected request can be retried.
+ * <p>A decision is a mutable holder which the strategy fills in, so a caller can reuse one
+ * instance for every decision it makes and the allow path stays free of allocation and boxing.
+ * Use {@link RateLimiterStrategy#decide(String, int)} for a fresh instance instead.
+ * <p>A decision is not thread-safe, a holder must not be shared by concurrent callers.
+ */
+public final class Decision {
+
+  // Retry-after of a request which can never be allowed, it asks for more permits than the limit.
+  public static final long NEVER = -1L;
+
+  private boolean allowed;
+  private int count;
+  private int remaining;
+  private long retryAfterMillis;
+  private int tier;
+
+  /**
+   * @return true when the request was allowed and its permits were counted
+   */
+  public boolean allowed() {
+    return allowed;
+  }
+
+  /**
+   * @return permits in use before this request, the weighted count of the sliding window
+   */
+  public int count() {
+    return count;
+  }
+
+  /**
+   * @return permits left after this request
+   */
+  public int remaining() {
+    return remaining;
+  }
+
+  /**
+   * @return milliseconds until the permits of a rejected request fit into the limit again, given
+   *     no other request is counted in the meantime; 0 for an allowed request, {@link #NEVER} when
+   *     the request asks for more permits than the limit
+   */
+  public long retryAfterMillis() {
+    return retryAfterMillis;
+  }
+
+  /**
+   * @return index of the tier of a {@link HierarchicalRateLimiterStrategy} the count, remaining
+   *     permits and retry-after are of: the tier which rejected the request, or the one with the
+   *     fewest permits left; 0 for a single limit
+   */
+  public int tier() {
+    return tier;
+  }
+
+  public Decision set(boolean allowed, int count, int remaining, long retryAfterMillis) {
+    this.allowed = allowed;
+    this.count = count;
+    this.remaining = remaining;
+    this.retryAfterMillis = retryAfterMillis;
+    this.tier = 0;
+    return this;
+  }
+
+  public Decision setTier(int tier) {
+    this.tier = tier;
+    return this;
+  }
+
+  @Override
+  public String toString() {
+    return "Decision[allowed=" + allowed + ", count=" + count + ", remaining=" + remaining
+        + ", retryAfterMillis=" + retryAfterMillis + ", tier=" + tier + "]";
+  }
+}
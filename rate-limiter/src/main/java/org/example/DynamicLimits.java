@@ -0,0 +1,131 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The current {@link LimitPolicy}, replaced as a whole while the limiters keep deciding, so a
+ * limit can be raised during an incident without a restart.
+ * <p>Copy-on-write: a decision reads the current table with one volatile read and looks its key up
+ * in it, without a lock. A change builds a new table and swaps it in, concurrent changes are
+ * applied one after the other. The limiters keep their counts when a limit changes, a key which
+ * used 80 of 100 requests has 920 left when its limit is raised to 1000.
+ * <p>The table is either reloaded from a file, polled for changes with {@link #scheduleReload},
+ * or changed key by key with {@link #setLimit} and {@link #removeLimit}, e.g. from an admin
+ * endpoint. A reload replaces the whole table, including keys changed one by one since. A file
+ * which can't be read or parsed leaves the current table in place.
+ */
+public class DynamicLimits {
+
+  private final AtomicReference<LimitPolicy> policy;
+  private final LongAdder reloads = new LongAdder();
+  private final LongAdder failedReloads = new LongAdder();
+  // Last modified time of the file the table was last read from, only used by the reload thread.
+  private FileTime loadedModifiedTime;
+
+  public DynamicLimits() {
+    this(LimitPolicy.EMPTY);
+  }
+
+  public DynamicLimits(LimitPolicy policy) {
+    this.policy = new AtomicReference<>(policy);
+  }
+
+  public LimitPolicy policy() {
+    return policy.get();
+  }
+
+  /**
+   * @return the limit of the key in the current table, or the fallback when it has none
+   */
+  public int limitOf(String key, int fallback) {
+    return policy.get().limitOf(key, fallback);
+  }
+
+  /**
+   * @return the limits of the current table, keys without one have the given limit
+   */
+  public LimitResolver resolver(int maxAllowedRequestsPerPeriod) {
+    return key -> limitOf(key, maxAllowedRequestsPerPeriod);
+  }
+
+  public void replace(LimitPolicy policy) {
+    this.policy.set(policy);
+  }
+
+  /**
+   * @return the table with the new limit
+   * @throws IllegalArgumentException if the limit is negative
+   */
+  public LimitPolicy setLimit(String key, int limit) {
+    return policy.updateAndGet(current -> current.withLimit(key, limit));
+  }
+
+  /**
+   * @return the table without the limit, the key is back at its configured limit
+   */
+  public LimitPolicy removeLimit(String key) {
+    return policy.updateAndGet(current -> current.withoutLimit(key));
+  }
+
+  /**
+   * Reads the table from the file, unless it wasn't modified since it was last read.
+   *
+   * @return whether the table was replaced
+   * @throws IOException if the file can't be read or parsed, the current table stays in place
+   */
+  public synchronized boolean reload(Path file) throws IOException {
+    try {
+      FileTime modifiedTime = Files.getLastModifiedTime(file);
+      if (modifiedTime.equals(loadedModifiedTime)) {
+        return false;
+      }
+      policy.set(LimitPolicy.read(file));
+      loadedModifiedTime = modifiedTime;
+      reloads.increment();
+      return true;
+    } catch (IOException | RuntimeException e) {
+      failedReloads.increment();
+      throw e;
+    }
+  }
+
+  /**
+   * Runs {@link #reload(Path)} periodically on the given scheduler, which stays owned by the
+   * caller. A failed reload is counted in {@link #reloadMetrics()} and retried with the next one.
+   * Cancel the returned future to stop it.
+   */
+  public ScheduledFuture<?> scheduleReload(ScheduledExecutorService scheduler,
+      Duration interval, Path file) {
+    return scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        reload(file);
+      } catch (IOException | RuntimeException e) {
+        // Counted by reload(), an exception would cancel the schedule.
+      }
+    }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  public ReloadMetrics reloadMetrics() {
+    return new ReloadMetrics(reloads.sum(), failedReloads.sum(), policy.get().limits().size());
+  }
+
+  /**
+   * Point in time counts of the reloads of the table.
+   *
+   * @param reloads tables read from the file
+   * @param failedReloads files which could not be read or parsed
+   * @param limits keys with a limit in the current table
+   */
+  public record ReloadMetrics(long reloads, long failedReloads, int limits) {
+
+  }
+}
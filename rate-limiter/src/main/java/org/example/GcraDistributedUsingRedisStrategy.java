@@ -0,0 +1,195 @@
+package org.example;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import redis.clients.jedis.Jedis;
+
+/**
+ * Distributed version of the {@link GcraStrategy} which keeps the theoretical arrival time of
+ * every key in Redis, so all instances of the rate limiter share the same state.
+ * <p>The state of a key is one string value with a TTL, and a decision is a single Lua script call
+ * (EVALSHA): read the theoretical arrival time, check it against the burst tolerance and store the
+ * new one. The script is atomic, so concurrent gateway nodes can not both take the last slot. The
+ * TTL is the time until the key is back to its full burst, after that the key carries no
+ * information anymore and simply expires.
+ * <p>Independent batches are pipelined, one script call per key in one round trip per node. The
+ * script takes any number of keys, so an all-or-nothing batch is decided in one call which writes
+ * the new arrival times only when every key allows the request.
+ * <p>Keys are hash-tagged ({@code {key}:gcra}, see {@link RedisKeys}). On a Redis Cluster a script
+ * may only touch keys of one slot, so the keys of an all-or-nothing batch must share a hash tag.
+ */
+public class GcraDistributedUsingRedisStrategy implements RateLimiterStrategy {
+
+  // KEYS - theoretical arrival time of each limited key, in microseconds.
+  // ARGV[1] - emission interval in microseconds, ARGV[2] - burst tolerance in microseconds,
+  // ARGV[3] - now in microseconds, ARGV[4] - 1 when no key may consume quota unless every key
+  // allows the request, ARGV[5] - permits the request takes from every key.
+  // Returns three values per key: the decision (1 when the request is allowed, 0 when it is
+  // rejected), the permits in use and the milliseconds until a rejected request fits (-1 never).
+  static final RedisScript GCRA_SCRIPT = new RedisScript("""
+      local interval = tonumber(ARGV[1])
+      local tolerance = tonumber(ARGV[2])
+      local now = tonumber(ARGV[3])
+      local allOrNothing = ARGV[4] == '1'
+      local permits = tonumber(ARGV[5])
+
+      -- Epoch microseconds as an integer string: %d truncates them to 32 bits on some Lua
+      -- interpreters, %.0f and tostring print an exponent on others.
+      local function integer(n)
+        if n < 1e9 then
+          return string.format('%d', n)
+        end
+        return string.format('%d%09d', math.floor(n / 1e9), n % 1e9)
+      end
+
+      local decisions = {}
+      -- Theoretical arrival time after this call, per key (same key twice in a batch).
+      local arrivalTimes = {}
+      local allAllowed = true
+      for i = 1, #KEYS do
+        local key = KEYS[i]
+        local arrivalTime = arrivalTimes[key] or tonumber(redis.call('GET', key)) or now
+        -- A key which was idle doesn't bank quota beyond its burst, it starts over from now.
+        local start = math.max(arrivalTime, now)
+        local nextArrivalTime = start + interval * permits
+        if nextArrivalTime - tolerance <= now then
+          decisions[3 * i - 2] = 1
+          decisions[3 * i] = 0
+          arrivalTimes[key] = nextArrivalTime
+        else
+          decisions[3 * i - 2] = 0
+          if interval * permits > tolerance then
+            decisions[3 * i] = -1
+          else
+            decisions[3 * i] = math.ceil((nextArrivalTime - tolerance - now) / 1000)
+          end
+          allAllowed = false
+        end
+        decisions[3 * i - 1] = math.ceil((start - now) / interval)
+      end
+
+      -- Store the new arrival times only now, so a rejection by one key leaves the others
+      -- untouched.
+      if allAllowed or not allOrNothing then
+        for key, arrivalTime in pairs(arrivalTimes) do
+          local ttl = math.ceil((arrivalTime - now) / 1000)
+          redis.call('SET', key, integer(arrivalTime), 'PX', string.format('%d', ttl))
+        end
+      end
+      return decisions
+      """);
+
+  private static final Long ALLOWED = 1L;
+
+  private final long emissionIntervalMicros;
+  private final long burstToleranceMicros;
+  private final int burst;
+  private final Clock clock;
+  private final RedisConnectionProvider connections;
+
+  // Burst of maxAllowedRequestsPerPeriod - the whole quota of a period may be used at once.
+  public GcraDistributedUsingRedisStrategy(int timePeriodInSeconds,
+      int maxAllowedRequestsPerPeriod, Clock clock, RedisConnectionProvider connections) {
+    this(timePeriodInSeconds, maxAllowedRequestsPerPeriod, maxAllowedRequestsPerPeriod, clock,
+        connections);
+  }
+
+  public GcraDistributedUsingRedisStrategy(int timePeriodInSeconds,
+      int maxAllowedRequestsPerPeriod, int burst, Clock clock,
+      RedisConnectionProvider connections) {
+    this.emissionIntervalMicros = timePeriodInSeconds * 1_000_000L / maxAllowedRequestsPerPeriod;
+    this.burstToleranceMicros = emissionIntervalMicros * burst;
+    this.burst = burst;
+    this.clock = clock;
+    this.connections = connections;
+  }
+
+  // A single connection is not thread-safe, calls on it are serialized by the provider.
+  public GcraDistributedUsingRedisStrategy(int timePeriodInSeconds,
+      int maxAllowedRequestsPerPeriod, Clock clock, Jedis jedis) {
+    this(timePeriodInSeconds, maxAllowedRequestsPerPeriod, clock,
+        RedisConnectionProvider.of(jedis));
+  }
+
+  @Override
+  public boolean allowed(String key) {
+    return allowed(key, 1);
+  }
+
+  @Override
+  public boolean allowed(String key, int permits) {
+    return ALLOWED.equals(eval(key, permits).get(0));
+  }
+
+  @Override
+  public Decision decide(String key, int permits, Decision decision) {
+    List<?> result = eval(key, permits);
+    int count = ((Long) result.get(1)).intValue();
+    if (ALLOWED.equals(result.get(0))) {
+      return decision.set(true, count, burst - count - permits, 0);
+    }
+    return decision.set(false, count, Math.max(0, burst - count), (Long) result.get(2));
+  }
+
+  private List<?> eval(String key, int permits) {
+    if (permits < 1) {
+      throw new IllegalArgumentException("permits must be positive, was " + permits);
+    }
+    List<String> keys = List.of(arrivalTimeKey(key));
+    List<String> args = scriptArgs(clock.millis(), false, permits);
+    return connections.execute(keys.get(0),
+        jedis -> (List<?>) GCRA_SCRIPT.eval(jedis, keys, args));
+  }
+
+  @Override
+  public boolean[] allowedAll(List<String> keys, boolean allOrNothing) {
+    if (keys.isEmpty()) {
+      return new boolean[0];
+    }
+    List<String> scriptKeys = new ArrayList<>(keys.size());
+    for (String key : keys) {
+      scriptKeys.add(arrivalTimeKey(key));
+    }
+    List<String> args = scriptArgs(clock.millis(), allOrNothing, 1);
+    boolean[] decisions = new boolean[keys.size()];
+
+    if (allOrNothing) {
+      // All keys in one script call, so the keys are checked and counted in one atomic step.
+      List<?> results = connections.execute(scriptKeys.get(0),
+          jedis -> (List<?>) GCRA_SCRIPT.eval(jedis, scriptKeys, args));
+      for (int i = 0; i < decisions.length; i++) {
+        decisions[i] = ALLOWED.equals(results.get(3 * i));
+      }
+      return decisions;
+    }
+
+    // Independent decisions: one script call per key, pipelined in one round trip per node.
+    for (List<Integer> node : connections.groupByNode(scriptKeys)) {
+      List<List<String>> nodeKeys = new ArrayList<>(node.size());
+      for (int i : node) {
+        nodeKeys.add(List.of(scriptKeys.get(i)));
+      }
+      List<Object> results = connections.execute(nodeKeys.get(0).get(0),
+          jedis -> GCRA_SCRIPT.evalPipelined(jedis, nodeKeys, args));
+      for (int i = 0; i < node.size(); i++) {
+        Object result = results.get(i);
+        if (RedisScript.isRedirected(result)) {
+          // The slot moved since the keys were grouped by node, the call did not run.
+          result = GCRA_SCRIPT.eval(connections, nodeKeys.get(i), args);
+        }
+        decisions[node.get(i)] = ALLOWED.equals(((List<?>) result).get(0));
+      }
+    }
+    return decisions;
+  }
+
+  static String arrivalTimeKey(String key) {
+    return RedisKeys.of(key, "gcra");
+  }
+
+  private List<String> scriptArgs(long now, boolean allOrNothing, int permits) {
+    return List.of(String.valueOf(emissionIntervalMicros), String.valueOf(burstToleranceMicros),
+        String.valueOf(now * 1000L), allOrNothing ? "1" : "0", String.valueOf(permits));
+  }
+}
@@ -0,0 +1,285 @@
+package org.example;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Generic cell rate algorithm (GCRA) strategy for rate limiting.
+ * <p>GCRA is a token bucket without the bucket: instead of a token count and the time of the last
+ * refill it stores one value per key, the "theoretical arrival time" (TAT) - the time at which the
+ * key would have used up its quota if it kept sending at exactly the allowed rate. Requests are
+ * spaced by the emission interval (time period / max allowed requests), and a request is allowed
+ * when it does not arrive earlier than TAT minus the burst tolerance (emission interval * burst).
+ * <p>Let's take an example: 5 requests per 10 seconds with a burst of 5. The emission interval is 2
+ * seconds. A new key can send 5 requests at once, the TAT is then 10 seconds ahead. Afterwards one
+ * request is allowed every 2 seconds, each moving the TAT 2 seconds further.
+ * <p>Compared with the sliding window counter, the burst allowance is exact instead of
+ * approximated, and the state is a single long per key which is updated with one compare-and-set
+ * per decision. Times are kept in microseconds, so emission intervals of less than a millisecond
+ * are not rounded away.
+ * <p>A key whose TAT is not after now has its whole burst, like a new key, so it is removed by
+ * {@link #evictExpiredKeys()} without changing any decision, or lazily when a new key is inserted
+ * into a limiter bounded by a {@link KeyCapacity}. Without a time of the last request, the least
+ * recently used key is the one with the earliest TAT: it is the closest to its whole burst, so
+ * evicting it forgives the fewest permits.
+ */
+public class GcraStrategy implements RateLimiterStrategy {
+
+  private static final long REJECTED = Long.MIN_VALUE;
+  // TAT of a key which was evicted while we used it, resolve the key again. No real TAT comes
+  // anywhere near it.
+  private static final long EVICTED = Long.MAX_VALUE;
+  // Keys looked at to make room for a new key in a full limiter.
+  private static final int EVICTION_SAMPLE_SIZE = 16;
+
+  private final long emissionIntervalMicros;
+  private final long burstToleranceMicros;
+  private final int burst;
+  private final Clock clock;
+  private final KeyCapacity keyCapacity;
+  private final LongAdder expiredEvictions = new LongAdder();
+  private final LongAdder capacityEvictions = new LongAdder();
+  private final LongAdder overflowDecisions = new LongAdder();
+  // Theoretical arrival time of each key in microseconds.
+  private final ConcurrentMap<String, AtomicLong> theoreticalArrivalTimes =
+      new ConcurrentHashMap<>();
+
+  // Burst of maxAllowedRequestsPerPeriod - the whole quota of a period may be used at once.
+  public GcraStrategy(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod, Clock clock) {
+    this(timePeriodInSeconds, maxAllowedRequestsPerPeriod, maxAllowedRequestsPerPeriod, clock);
+  }
+
+  public GcraStrategy(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod, int burst,
+      Clock clock) {
+    this(timePeriodInSeconds, maxAllowedRequestsPerPeriod, burst, clock, KeyCapacity.UNBOUNDED);
+  }
+
+  public GcraStrategy(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod, int burst,
+      Clock clock, KeyCapacity keyCapacity) {
+    this.emissionIntervalMicros = timePeriodInSeconds * 1_000_000L / maxAllowedRequestsPerPeriod;
+    this.burstToleranceMicros = emissionIntervalMicros * burst;
+    this.burst = burst;
+    this.clock = clock;
+    this.keyCapacity = keyCapacity;
+  }
+
+  @Override
+  public boolean allowed(String key) {
+    return allowed(key, 1);
+  }
+
+  @Override
+  public boolean allowed(String key, int permits) {
+    return acquire(key, permits, null);
+  }
+
+  @Override
+  public Decision decide(String key, int permits, Decision decision) {
+    acquire(key, permits, decision);
+    return decision;
+  }
+
+  private boolean acquire(String key, int permits, Decision decision) {
+    if (permits < 1) {
+      throw new IllegalArgumentException("permits must be positive, was " + permits);
+    }
+    long now = clock.millis() * 1000L;
+    while (true) {
+      AtomicLong theoreticalArrivalTime = theoreticalArrivalTimeOf(key, now);
+      if (theoreticalArrivalTime == null) {
+        boolean allowed = overflowDecision();
+        if (decision != null) {
+          // The key has no state: a new key has its whole burst, without one we can only tell
+          // that the sweep makes room once a key is back to its burst.
+          decision.set(allowed, 0, allowed ? Math.max(0, burst - permits) : 0,
+              allowed ? 0 : Math.ceilDiv(burstToleranceMicros, 1000L));
+        }
+        return allowed;
+      }
+      long acquired = tryAcquire(theoreticalArrivalTime, now, permits, decision);
+      if (acquired != EVICTED) {
+        return acquired != REJECTED;
+      }
+    }
+  }
+
+  @Override
+  public boolean[] allowedAll(List<String> keys, boolean allOrNothing) {
+    long now = clock.millis() * 1000L;
+    int size = keys.size();
+    AtomicLong[] theoreticalArrivalTimes = new AtomicLong[size];
+    boolean[] decisions = new boolean[size];
+    boolean allAllowed = true;
+    long[] acquired = new long[size];
+    for (int i = 0; i < size; i++) {
+      do {
+        theoreticalArrivalTimes[i] = theoreticalArrivalTimeOf(keys.get(i), now);
+        acquired[i] = theoreticalArrivalTimes[i] == null ? REJECTED
+            : tryAcquire(theoreticalArrivalTimes[i], now, 1, null);
+      } while (acquired[i] == EVICTED);
+      decisions[i] = theoreticalArrivalTimes[i] == null
+          ? overflowDecision() : acquired[i] != REJECTED;
+      allAllowed &= decisions[i];
+    }
+
+    // One of the limits rejected the request, move the TAT of the others back by one interval.
+    if (allOrNothing && !allAllowed) {
+      for (int i = 0; i < size; i++) {
+        if (acquired[i] != REJECTED) {
+          // An evicted key keeps its mark, the next decision resolves it again.
+          theoreticalArrivalTimes[i].getAndUpdate(
+              tat -> tat == EVICTED ? EVICTED : tat - emissionIntervalMicros);
+        }
+      }
+    }
+    return decisions;
+  }
+
+  /**
+   * Removes all keys whose TAT is not after now, which have their whole burst again.
+   *
+   * @return number of evicted keys
+   */
+  public int evictExpiredKeys() {
+    long now = clock.millis() * 1000L;
+    int evicted = 0;
+    for (Map.Entry<String, AtomicLong> entry : theoreticalArrivalTimes.entrySet()) {
+      if (evict(entry.getValue(), now, true)) {
+        theoreticalArrivalTimes.remove(entry.getKey(), entry.getValue());
+        evicted++;
+      }
+    }
+    expiredEvictions.add(evicted);
+    return evicted;
+  }
+
+  /**
+   * Runs {@link #evictExpiredKeys()} periodically on the given scheduler, which stays owned by the
+   * caller. Cancel the returned future to stop it.
+   */
+  public ScheduledFuture<?> scheduleEviction(ScheduledExecutorService scheduler,
+      Duration interval) {
+    return scheduler.scheduleWithFixedDelay(this::evictExpiredKeys, interval.toMillis(),
+        interval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public long liveKeys() {
+    return theoreticalArrivalTimes.size();
+  }
+
+  public KeyMetrics keyMetrics() {
+    return new KeyMetrics(theoreticalArrivalTimes.size(), expiredEvictions.sum(),
+        capacityEvictions.sum(), overflowDecisions.sum());
+  }
+
+  // Returns null if the limiter is full and no key could be evicted.
+  private AtomicLong theoreticalArrivalTimeOf(String key, long now) {
+    AtomicLong theoreticalArrivalTime = theoreticalArrivalTimes.get(key);
+    if (theoreticalArrivalTime != null) {
+      return theoreticalArrivalTime;
+    }
+    if (keyCapacity.isBounded() && theoreticalArrivalTimes.size() >= keyCapacity.maxKeys()
+        && !makeRoom(now)) {
+      return null;
+    }
+    // Zero is far in the past, so a new key starts with its whole burst available.
+    return theoreticalArrivalTimes.computeIfAbsent(key, k -> new AtomicLong());
+  }
+
+  private boolean overflowDecision() {
+    overflowDecisions.increment();
+    return keyCapacity.overflowPolicy() == KeyCapacity.OverflowPolicy.ALLOW;
+  }
+
+  // Evicts one key of a small random sample: one with its whole burst if there is any, otherwise
+  // the one with the earliest TAT if the policy allows it.
+  private boolean makeRoom(long now) {
+    Map.Entry<String, AtomicLong> earliest = null;
+    long earliestTheoreticalArrivalTime = EVICTED;
+    for (Map.Entry<String, AtomicLong> entry : KeySample.of(theoreticalArrivalTimes,
+        EVICTION_SAMPLE_SIZE)) {
+      AtomicLong theoreticalArrivalTime = entry.getValue();
+      if (evict(theoreticalArrivalTime, now, true)) {
+        theoreticalArrivalTimes.remove(entry.getKey(), theoreticalArrivalTime);
+        expiredEvictions.increment();
+        return true;
+      }
+      long current = theoreticalArrivalTime.get();
+      if (current < earliestTheoreticalArrivalTime) {
+        earliest = entry;
+        earliestTheoreticalArrivalTime = current;
+      }
+    }
+    if (keyCapacity.overflowPolicy() == KeyCapacity.OverflowPolicy.EVICT_LEAST_RECENTLY_USED
+        && earliest != null && evict(earliest.getValue(), now, false)) {
+      theoreticalArrivalTimes.remove(earliest.getKey(), earliest.getValue());
+      capacityEvictions.increment();
+      return true;
+    }
+    return false;
+  }
+
+  // Marks the TAT as evicted, with onlyIfExpired only while it is not after now. A decision which
+  // resolved the key before fails its compare-and-set and resolves the key again.
+  private static boolean evict(AtomicLong theoreticalArrivalTime, long now,
+      boolean onlyIfExpired) {
+    while (true) {
+      long current = theoreticalArrivalTime.get();
+      if (current == EVICTED || onlyIfExpired && current > now) {
+        return false;
+      }
+      if (theoreticalArrivalTime.compareAndSet(current, EVICTED)) {
+        return true;
+      }
+    }
+  }
+
+  // A request of several permits moves the TAT by one emission interval per permit. The decision
+  // is only filled in when one is given, the plain boolean path doesn't pay for it. Returns the
+  // new TAT, REJECTED or EVICTED.
+  private long tryAcquire(AtomicLong theoreticalArrivalTime, long now, int permits,
+      Decision decision) {
+    long increment = emissionIntervalMicros * permits;
+    while (true) {
+      long current = theoreticalArrivalTime.get();
+      if (current == EVICTED) {
+        return EVICTED;
+      }
+      // A key which was idle doesn't bank quota beyond its burst, it starts over from now.
+      long start = Math.max(current, now);
+      long next = start + increment;
+      if (next - burstToleranceMicros > now) {
+        if (decision != null) {
+          int count = permitsInUse(start, now);
+          // The request fits once the TAT fell back far enough, nothing fits more than the burst.
+          long retryAfterMillis = increment > burstToleranceMicros
+              ? Decision.NEVER : Math.ceilDiv(next - burstToleranceMicros - now, 1000L);
+          decision.set(false, count, Math.max(0, burst - count), retryAfterMillis);
+        }
+        return REJECTED;
+      }
+      if (theoreticalArrivalTime.compareAndSet(current, next)) {
+        if (decision != null) {
+          int count = permitsInUse(start, now);
+          decision.set(true, count, burst - count - permits, 0);
+        }
+        return next;
+      }
+    }
+  }
+
+  // Permits of the burst in use: how many emission intervals the TAT is ahead of now.
+  private int permitsInUse(long theoreticalArrivalTime, long now) {
+    return (int) Math.ceilDiv(theoreticalArrivalTime - now, emissionIntervalMicros);
+  }
+}
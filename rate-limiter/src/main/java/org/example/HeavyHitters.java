@@ -0,0 +1,173 @@
+package org.example;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streaming top-K of the keys seen most often, e.g. the keys rejected most during an attack, in
+ * fixed memory whatever the number of distinct keys.
+ * <p>Every key is counted in a {@link CountMinSketch}, and the K keys with the highest counts
+ * are tracked by name in a Space-Saving table: a key which isn't tracked replaces the tracked key
+ * with the smallest count once its sketch estimate beats it. The long tail of keys seen a few
+ * times only updates the sketch, so it never pushes a real heavy hitter out, and the counts are
+ * the over-counting estimates of the sketch (see its error bound).
+ * <p>Recording takes no lock of its own: a few atomic adds into the sketch and a read of the
+ * smallest tracked count for a key which isn't a heavy hitter, one more atomic add for a tracked
+ * key. Only the rare replacement takes a lock, and finds the smallest tracked key in a min-heap
+ * in O(log K) instead of scanning the K entries. {@link #scheduleDecay} halves all counts
+ * periodically so the top-K follows the current traffic instead of all time totals.
+ */
+public class HeavyHitters {
+
+  private final int k;
+  private final CountMinSketch sketch;
+  private final ConcurrentMap<String, AtomicLong> tracked = new ConcurrentHashMap<>();
+  // The tracked keys by the count they had when they were last sorted in, which is never more
+  // than their count: counts only grow between two decays. Guarded by its monitor, like every
+  // change of the tracked keys.
+  private final PriorityQueue<Ranked> byCount =
+      new PriorityQueue<>(Comparator.comparingLong(ranked -> ranked.rank));
+  // Smallest count in the full table as of the last replacement, a key must beat it to be
+  // tracked. It may be lower than the current one, the replacement checks again.
+  private volatile long minTrackedCount;
+
+  /**
+   * @param k number of keys tracked by name
+   * @param width counters per row of the sketch, see {@link CountMinSketch}
+   * @param depth rows of the sketch
+   */
+  public HeavyHitters(int k, int width, int depth) {
+    if (k < 1) {
+      throw new IllegalArgumentException("k must be positive, was " + k);
+    }
+    this.k = k;
+    this.sketch = new CountMinSketch(width, depth);
+  }
+
+  public void record(String key) {
+    record(key, 1);
+  }
+
+  public void record(String key, long count) {
+    long estimate = sketch.add(key, count);
+    AtomicLong trackedCount = tracked.get(key);
+    if (trackedCount != null) {
+      trackedCount.addAndGet(count);
+    } else if (tracked.size() < k || estimate > minTrackedCount) {
+      track(key, estimate);
+    }
+  }
+
+  /**
+   * @return estimate of the count of any key, tracked or not
+   */
+  public long estimate(String key) {
+    return sketch.estimate(key);
+  }
+
+  /**
+   * @return the tracked keys, highest count first
+   */
+  public List<HeavyHitter> top() {
+    List<HeavyHitter> top = new ArrayList<>(k);
+    for (Map.Entry<String, AtomicLong> entry : tracked.entrySet()) {
+      top.add(new HeavyHitter(entry.getKey(), entry.getValue().get()));
+    }
+    top.sort(Comparator.comparingLong(HeavyHitter::count).reversed());
+    return top;
+  }
+
+  /**
+   * Halves the counts of the sketch and of the tracked keys.
+   */
+  public void decay() {
+    sketch.halve();
+    synchronized (byCount) {
+      for (AtomicLong count : tracked.values()) {
+        count.getAndUpdate(current -> current >> 1);
+      }
+      // Keys halved to nothing carry no information anymore.
+      tracked.values().removeIf(count -> count.get() == 0);
+      // The ranks were counts before the halving, sort the keys in again.
+      byCount.clear();
+      tracked.forEach((key, count) -> byCount.add(new Ranked(key, count)));
+      refreshMinTrackedCount();
+    }
+  }
+
+  public ScheduledFuture<?> scheduleDecay(ScheduledExecutorService scheduler, Duration interval) {
+    return scheduler.scheduleAtFixedRate(this::decay, interval.toMillis(), interval.toMillis(),
+        TimeUnit.MILLISECONDS);
+  }
+
+  private void track(String key, long estimate) {
+    synchronized (byCount) {
+      if (tracked.containsKey(key)) {
+        return;
+      }
+      // Space-Saving: the new key replaces the smallest one once the table holds k keys.
+      if (tracked.size() >= k) {
+        Ranked smallest = smallest();
+        if (estimate <= smallest.rank) {
+          minTrackedCount = smallest.rank;
+          return;
+        }
+        byCount.poll();
+        tracked.remove(smallest.key, smallest.count);
+      }
+      AtomicLong count = new AtomicLong(estimate);
+      tracked.put(key, count);
+      byCount.add(new Ranked(key, count));
+      refreshMinTrackedCount();
+    }
+  }
+
+  // Sorts the head of the heap in again until its rank is its current count, which makes it the
+  // smallest count: the ranks of the others are at most their counts. Each key is sorted in again
+  // at most once per change of its count.
+  private Ranked smallest() {
+    Ranked head = byCount.peek();
+    while (head.rank < head.count.get()) {
+      byCount.poll();
+      head.rank = head.count.get();
+      byCount.add(head);
+      head = byCount.peek();
+    }
+    return head;
+  }
+
+  private void refreshMinTrackedCount() {
+    minTrackedCount = tracked.size() < k ? 0 : smallest().rank;
+  }
+
+  // A tracked key in the heap.
+  private static final class Ranked {
+
+    private final String key;
+    private final AtomicLong count;
+    private long rank;
+
+    private Ranked(String key, AtomicLong count) {
+      this.key = key;
+      this.count = count;
+      this.rank = count.get();
+    }
+  }
+
+  /**
+   * A tracked key and the estimate of its count, which may over-count but never under-counts.
+   */
+  public record HeavyHitter(String key, long count) {
+
+  }
+}
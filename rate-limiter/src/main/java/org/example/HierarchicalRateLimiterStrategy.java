@@ -0,0 +1,32 @@
+package org.example;
+
+import java.util.List;
+
+/**
+ * Nested limits decided together, e.g. a user within its tenant within a global cap of the route.
+ * A request passes one key per tier, outermost first, and is allowed only if every tier allows it.
+ * <p>Unlike chaining one {@link RateLimiterStrategy} per tier, a rejection by any tier leaves the
+ * quota of all other tiers untouched, so the caller never has to give permits back, and the tiers
+ * are decided in one pass: one walk down a tree of keys in memory, one script call in Redis.
+ */
+public interface HierarchicalRateLimiterStrategy {
+
+  /**
+   * @return the tiers, outermost first
+   */
+  List<RateLimitTier> tiers();
+
+  /**
+   * Takes the permits from every tier or from none. The decision carries the count, remaining
+   * permits and retry-after of the tier which rejected the request, of the tier with the fewest
+   * permits left when it was allowed, and the index of that tier in {@link Decision#tier()}.
+   *
+   * @param keys one key per tier, outermost first, e.g. route, tenant, user
+   * @throws IllegalArgumentException if permits is not positive or there isn't one key per tier
+   */
+  Decision decide(List<String> keys, int permits, Decision decision);
+
+  default Decision decide(List<String> keys, int permits) {
+    return decide(keys, permits, new Decision());
+  }
+}
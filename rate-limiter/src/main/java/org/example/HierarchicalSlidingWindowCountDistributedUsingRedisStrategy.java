@@ -0,0 +1,128 @@
+package org.example;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Distributed version of the {@link HierarchicalSlidingWindowCountStrategy}, the windows of every
+ * tier live in Redis.
+ * <p>All tiers are decided by one call of the sliding window script of the
+ * {@link SlidingWindowCountDistributedUsingRedisStrategy}, with the window length and limit of
+ * every tier and all-or-nothing set: the script checks every tier first and counts the request
+ * only if all of them allow it. So a decision is one round trip however many tiers there are, and a
+ * rejection by any tier leaves the quota of the others untouched.
+ * <p>The Redis key of a tier is the path of keys down to it, each prefixed with its length, e.g.
+ * {@code {5:route}:4:acme:6:user-7} for the user tier, so a user of two tenants has a window per
+ * tenant, as in memory, and keys containing ':' can't make two paths meet. The outermost key is
+ * the hash tag of all of them, so on a Redis Cluster the windows of one request live in one slot
+ * and the script runs on one node. The tag is always built here, a '}' or '%' in the key is
+ * percent-encoded, so a client can't pick the slot with a tag or a '}' of its own.
+ */
+public class HierarchicalSlidingWindowCountDistributedUsingRedisStrategy
+    implements HierarchicalRateLimiterStrategy {
+
+  private static final Long ALLOWED = 1L;
+
+  private final List<RateLimitTier> tiers;
+  private final Clock clock;
+  private final RedisConnectionProvider connections;
+  // Window length and limit of every tier, the script arguments after the first five.
+  private final List<String> tierArgs;
+
+  /**
+   * @param tiers outermost first
+   */
+  public HierarchicalSlidingWindowCountDistributedUsingRedisStrategy(List<RateLimitTier> tiers,
+      Clock clock, RedisConnectionProvider connections) {
+    if (tiers.isEmpty()) {
+      throw new IllegalArgumentException("at least one tier is required");
+    }
+    this.tiers = List.copyOf(tiers);
+    this.clock = clock;
+    this.connections = connections;
+    List<String> tierArgs = new ArrayList<>(tiers.size() * 2);
+    for (RateLimitTier tier : tiers) {
+      tierArgs.add(String.valueOf(tier.windowLengthInMilliSeconds()));
+      tierArgs.add(String.valueOf(tier.maxAllowedRequestsPerPeriod()));
+    }
+    this.tierArgs = List.copyOf(tierArgs);
+  }
+
+  @Override
+  public List<RateLimitTier> tiers() {
+    return tiers;
+  }
+
+  @Override
+  public Decision decide(List<String> keys, int permits, Decision decision) {
+    if (permits < 1) {
+      throw new IllegalArgumentException("permits must be positive, was " + permits);
+    }
+    int tierCount = tiers.size();
+    if (keys.size() != tierCount) {
+      throw new IllegalArgumentException(tierCount + " keys expected, one per tier, got " + keys);
+    }
+    long now = clock.millis();
+
+    List<String> scriptKeys = new ArrayList<>(tierCount * 2);
+    StringBuilder path = new StringBuilder();
+    for (int tier = 0; tier < tierCount; tier++) {
+      String key = keys.get(tier);
+      if (tier == 0) {
+        path.append('{').append(key.length()).append(':');
+        appendTagEncoded(path, key);
+        path.append('}');
+      } else {
+        path.append(':').append(key.length()).append(':').append(key);
+      }
+      scriptKeys.addAll(SlidingWindowCountDistributedUsingRedisStrategy.fixedWindowKeys(
+          path.toString()));
+    }
+    List<String> args = new ArrayList<>(5 + tierArgs.size());
+    // The first window length and limit are the defaults, every tier overrides them.
+    args.add(tierArgs.get(0));
+    args.add(tierArgs.get(1));
+    args.add(String.valueOf(now));
+    args.add("1");
+    args.add(String.valueOf(permits));
+    args.addAll(tierArgs);
+    List<?> results = connections.execute(scriptKeys.get(1),
+        jedis -> (List<?>) SlidingWindowCountDistributedUsingRedisStrategy.SLIDING_WINDOW_SCRIPT
+            .eval(jedis, scriptKeys, args));
+
+    // Report the innermost tier which rejected, or the one with the fewest permits left.
+    int tightestTier = -1;
+    int tightestRemaining = Integer.MAX_VALUE;
+    for (int tier = tierCount - 1; tier >= 0; tier--) {
+      int maxAllowedRequestsPerPeriod = tiers.get(tier).maxAllowedRequestsPerPeriod();
+      int count = ((Long) results.get(3 * tier + 1)).intValue();
+      if (!ALLOWED.equals(results.get(3 * tier))) {
+        return decision.set(false, count, Math.max(0, maxAllowedRequestsPerPeriod - count),
+            (Long) results.get(3 * tier + 2)).setTier(tier);
+      }
+      int remaining = maxAllowedRequestsPerPeriod - count - permits;
+      if (remaining < tightestRemaining) {
+        tightestTier = tier;
+        tightestRemaining = remaining;
+        decision.set(true, count, remaining, 0);
+      }
+    }
+    return decision.setTier(tightestTier);
+  }
+
+  // Redis ends the hash tag at the first '}', so it must not occur in the key. Escaping '%' too
+  // keeps the encoding unambiguous.
+  private static void appendTagEncoded(StringBuilder path, String key) {
+    for (int i = 0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      if (c == '}') {
+        path.append("%7D");
+      } else if (c == '%') {
+        path.append("%25");
+      } else {
+        path.append(c);
+      }
+    }
+  }
+}
@@ -0,0 +1,390 @@
+package org.example;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory {@link HierarchicalRateLimiterStrategy} with a sliding window counter per tier, the
+ * same weighted count as the {@link SlidingWindowCountStrategy}.
+ * <p>The keys form a tree: the keys of the outermost tier are the roots, the keys of the next tier
+ * are children of the key they are nested in. A decision walks down the tree once to resolve the
+ * keys of all tiers, then counts the permits from the innermost tier outwards. The innermost tiers
+ * reject most requests, so a rejected request usually never touches the counters of the outer
+ * tiers all requests share. When an outer tier rejects, the permits are taken back from the inner
+ * tiers before the decision returns.
+ * <p>Every key is updated under its own monitor, for a few field reads and writes, and a decision
+ * holds one monitor at a time. A nested key is inserted under the monitor of the key it is nested
+ * in, which is only evicted without nested keys, so no key is ever inserted into an evicted one.
+ * Keys whose windows have both expired and which have no nested keys left are removed by
+ * {@link #evictExpiredKeys()}.
+ * <p>A {@link KeyCapacity} bounds the keys of all tiers together. A full limiter makes room for a
+ * new key by evicting a key without nested keys, found by random walks down the tree from a small
+ * sample of the outermost keys: an expired one if there is any, otherwise the least recently used
+ * one if the policy allows it.
+ */
+public class HierarchicalSlidingWindowCountStrategy implements HierarchicalRateLimiterStrategy {
+
+  private static final long REJECTED = Long.MIN_VALUE;
+  // The node was evicted while we used it, resolve the keys again.
+  private static final long EVICTED = Long.MIN_VALUE + 1;
+  // Outcomes of resolve() besides the tier of a new key there was no room for.
+  private static final int RESOLVED = -1;
+  private static final int PARENT_EVICTED = -2;
+  // Keys without nested keys looked at to make room, one random walk from an outermost key each.
+  private static final int EVICTION_SAMPLE_SIZE = 16;
+
+  private final List<RateLimitTier> tiers;
+  private final Clock clock;
+  private final KeyCapacity keyCapacity;
+  // Keys of the outermost tier.
+  private final ConcurrentMap<String, Node> roots = new ConcurrentHashMap<>();
+  private final LongAdder liveKeys = new LongAdder();
+  private final LongAdder expiredEvictions = new LongAdder();
+  private final LongAdder capacityEvictions = new LongAdder();
+  private final LongAdder overflowDecisions = new LongAdder();
+
+  /**
+   * @param tiers outermost first
+   */
+  public HierarchicalSlidingWindowCountStrategy(List<RateLimitTier> tiers, Clock clock) {
+    this(tiers, clock, KeyCapacity.UNBOUNDED);
+  }
+
+  /**
+   * @param tiers outermost first
+   * @param keyCapacity bound on the keys of all tiers together, at least one key per tier
+   */
+  public HierarchicalSlidingWindowCountStrategy(List<RateLimitTier> tiers, Clock clock,
+      KeyCapacity keyCapacity) {
+    if (tiers.isEmpty()) {
+      throw new IllegalArgumentException("at least one tier is required");
+    }
+    if (keyCapacity.maxKeys() < tiers.size()) {
+      throw new IllegalArgumentException("maxKeys must hold one key per tier, was "
+          + keyCapacity.maxKeys() + " for " + tiers.size() + " tiers");
+    }
+    this.tiers = List.copyOf(tiers);
+    this.clock = clock;
+    this.keyCapacity = keyCapacity;
+  }
+
+  @Override
+  public List<RateLimitTier> tiers() {
+    return tiers;
+  }
+
+  @Override
+  public Decision decide(List<String> keys, int permits, Decision decision) {
+    if (permits < 1) {
+      throw new IllegalArgumentException("permits must be positive, was " + permits);
+    }
+    int tierCount = tiers.size();
+    if (keys.size() != tierCount) {
+      throw new IllegalArgumentException(tierCount + " keys expected, one per tier, got " + keys);
+    }
+    long now = clock.millis();
+    Node[] path = new Node[tierCount];
+    long[] acquiredFixedWindows = new long[tierCount];
+    while (true) {
+      int unresolvedTier = resolve(keys, now, path);
+      if (unresolvedTier == PARENT_EVICTED) {
+        continue;
+      }
+      if (unresolvedTier != RESOLVED) {
+        return overflowDecision(unresolvedTier, permits, decision);
+      }
+      int tightestTier = -1;
+      int tightestCount = 0;
+      int tightestRemaining = Integer.MAX_VALUE;
+      int tier = tierCount - 1;
+      for (; tier >= 0; tier--) {
+        acquiredFixedWindows[tier] =
+            path[tier].tryAcquire(tiers.get(tier), now, permits, decision);
+        if (acquiredFixedWindows[tier] == REJECTED || acquiredFixedWindows[tier] == EVICTED) {
+          break;
+        }
+        if (decision.remaining() < tightestRemaining) {
+          tightestTier = tier;
+          tightestCount = decision.count();
+          tightestRemaining = decision.remaining();
+        }
+      }
+      if (tier < 0) {
+        return decision.set(true, tightestCount, tightestRemaining, 0).setTier(tightestTier);
+      }
+
+      // The inner tiers have counted the permits already, give them back.
+      for (int inner = tierCount - 1; inner > tier; inner--) {
+        path[inner].release(acquiredFixedWindows[inner], permits);
+      }
+      if (acquiredFixedWindows[tier] == REJECTED) {
+        // Filled in by the rejecting tier.
+        return decision.setTier(tier);
+      }
+    }
+  }
+
+  // Returns RESOLVED, PARENT_EVICTED when a key was evicted while a key nested in it was inserted,
+  // or the tier of a new key the full limiter has no room for.
+  private int resolve(List<String> keys, long now, Node[] path) {
+    ConcurrentMap<String, Node> nodes = roots;
+    Node parent = null;
+    for (int tier = 0; tier < path.length; tier++) {
+      // Plain get first: computeIfAbsent would allocate a capturing lambda on every call.
+      Node node = nodes.get(keys.get(tier));
+      if (node == null) {
+        // The limiter is full: make room for the new key, or let the overflow policy decide.
+        if (keyCapacity.isBounded() && liveKeys.sum() >= keyCapacity.maxKeys()
+            && !makeRoom(now, path, tier)) {
+          return tier;
+        }
+        node = insert(parent, nodes, keys.get(tier), now, tier == path.length - 1);
+        if (node == null) {
+          return PARENT_EVICTED;
+        }
+      }
+      path[tier] = node;
+      parent = node;
+      nodes = node.children;
+    }
+    return RESOLVED;
+  }
+
+  // Returns null if the parent was evicted, the new key would be lost with it.
+  private Node insert(Node parent, ConcurrentMap<String, Node> nodes, String key, long now,
+      boolean innermost) {
+    if (parent == null) {
+      return nodes.computeIfAbsent(key, k -> newNode(now, innermost));
+    }
+    // The parent is evicted under its monitor once it has no nested keys, so it can't be evicted
+    // between the check and the insert.
+    synchronized (parent) {
+      if (parent.evicted) {
+        return null;
+      }
+      return nodes.computeIfAbsent(key, k -> newNode(now, innermost));
+    }
+  }
+
+  private Node newNode(long now, boolean innermost) {
+    liveKeys.increment();
+    return new Node(now, innermost);
+  }
+
+  private Decision overflowDecision(int tier, int permits, Decision decision) {
+    overflowDecisions.increment();
+    RateLimitTier rateLimitTier = tiers.get(tier);
+    boolean allowed = keyCapacity.overflowPolicy() == KeyCapacity.OverflowPolicy.ALLOW;
+    // The key has no state: a new key has its whole quota, without one we can only tell that the
+    // sweep makes room within a window length.
+    return decision.set(allowed, 0,
+        allowed ? rateLimitTier.maxAllowedRequestsPerPeriod() - permits : 0,
+        allowed ? 0 : rateLimitTier.windowLengthInMilliSeconds()).setTier(tier);
+  }
+
+  // Evicts one key without nested keys: an expired one if there is any, otherwise the least
+  // recently used one if the policy allows it. The keys of the decision's own path stay.
+  private boolean makeRoom(long now, Node[] path, int resolvedTiers) {
+    Leaf leastRecentlyUsed = null;
+    for (Map.Entry<String, Node> root : KeySample.of(roots, EVICTION_SAMPLE_SIZE)) {
+      Leaf leaf = randomLeaf(root);
+      if (isOnPath(leaf.node, path, resolvedTiers)) {
+        continue;
+      }
+      if (evict(leaf, now, true)) {
+        expiredEvictions.increment();
+        return true;
+      }
+      if (leastRecentlyUsed == null || leaf.node.lastAccess < leastRecentlyUsed.node.lastAccess) {
+        leastRecentlyUsed = leaf;
+      }
+    }
+    if (keyCapacity.overflowPolicy() == KeyCapacity.OverflowPolicy.EVICT_LEAST_RECENTLY_USED
+        && leastRecentlyUsed != null && evict(leastRecentlyUsed, now, false)) {
+      capacityEvictions.increment();
+      return true;
+    }
+    return false;
+  }
+
+  // Walks down from the outermost key through nested keys picked at random, to a key without
+  // nested keys.
+  private Leaf randomLeaf(Map.Entry<String, Node> root) {
+    ConcurrentMap<String, Node> nodes = roots;
+    Map.Entry<String, Node> entry = root;
+    int tier = 0;
+    while (entry.getValue().children != null) {
+      List<Map.Entry<String, Node>> nested = KeySample.of(entry.getValue().children, 1);
+      if (nested.isEmpty()) {
+        break;
+      }
+      nodes = entry.getValue().children;
+      entry = nested.get(0);
+      tier++;
+    }
+    return new Leaf(nodes, entry.getKey(), entry.getValue(), tier);
+  }
+
+  private static boolean isOnPath(Node node, Node[] path, int resolvedTiers) {
+    for (int tier = 0; tier < resolvedTiers; tier++) {
+      if (path[tier] == node) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean evict(Leaf leaf, long now, boolean onlyIfExpired) {
+    if (!leaf.node.evict(now, tiers.get(leaf.tier).windowLengthInMilliSeconds(),
+        onlyIfExpired)) {
+      return false;
+    }
+    leaf.nodes.remove(leaf.key, leaf.node);
+    liveKeys.decrement();
+    return true;
+  }
+
+  /**
+   * Removes the keys whose previous and current fixed window have both expired and which have no
+   * nested keys anymore. Nested keys are removed first, so a whole idle subtree goes in one sweep.
+   *
+   * @return number of evicted keys
+   */
+  public int evictExpiredKeys() {
+    int evicted = evictExpiredKeys(roots, 0, clock.millis());
+    expiredEvictions.add(evicted);
+    liveKeys.add(-evicted);
+    return evicted;
+  }
+
+  private int evictExpiredKeys(ConcurrentMap<String, Node> nodes, int tier, long now) {
+    long windowLengthInMilliSeconds = tiers.get(tier).windowLengthInMilliSeconds();
+    int evicted = 0;
+    for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+      Node node = entry.getValue();
+      if (node.children != null) {
+        evicted += evictExpiredKeys(node.children, tier + 1, now);
+      }
+      if (node.evict(now, windowLengthInMilliSeconds, true)) {
+        nodes.remove(entry.getKey(), node);
+        evicted++;
+      }
+    }
+    return evicted;
+  }
+
+  /**
+   * Runs {@link #evictExpiredKeys()} periodically on the given scheduler, which stays owned by the
+   * caller. Cancel the returned future to stop it.
+   */
+  public ScheduledFuture<?> scheduleEviction(ScheduledExecutorService scheduler,
+      Duration interval) {
+    return scheduler.scheduleWithFixedDelay(this::evictExpiredKeys, interval.toMillis(),
+        interval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return keys of all tiers holding state
+   */
+  public long liveKeys() {
+    return liveKeys.sum();
+  }
+
+  public KeyMetrics keyMetrics() {
+    return new KeyMetrics(liveKeys.sum(), expiredEvictions.sum(), capacityEvictions.sum(),
+        overflowDecisions.sum());
+  }
+
+  // A key without nested keys found by randomLeaf, and the map it is in.
+  private record Leaf(ConcurrentMap<String, Node> nodes, String key, Node node, int tier) {
+
+  }
+
+  // Sliding window of one key of a tier and the keys nested in it.
+  private static final class Node {
+
+    // Null at the innermost tier.
+    private final ConcurrentMap<String, Node> children;
+    private long previousTimestamp;
+    private long currentTimestamp;
+    private int previousCount;
+    private int currentCount;
+    // Read without the monitor to pick the least recently used key, a stale value only makes the
+    // pick less exact.
+    private long lastAccess;
+    private boolean evicted;
+
+    private Node(long now, boolean innermost) {
+      this.children = innermost ? null : new ConcurrentHashMap<>();
+      this.previousTimestamp = now;
+      this.currentTimestamp = now;
+      this.lastAccess = now;
+    }
+
+    // Returns the timestamp of the fixed window the permits were counted in, REJECTED or EVICTED.
+    private synchronized long tryAcquire(RateLimitTier tier, long now, int permits,
+        Decision decision) {
+      if (evicted) {
+        return EVICTED;
+      }
+      lastAccess = now;
+      long windowLengthInMilliSeconds = tier.windowLengthInMilliSeconds();
+      int maxAllowedRequestsPerPeriod = tier.maxAllowedRequestsPerPeriod();
+      // Transition to a new fixed window when the current one expires.
+      if (currentTimestamp + windowLengthInMilliSeconds < now) {
+        previousTimestamp = currentTimestamp;
+        previousCount = currentCount;
+        currentTimestamp = now;
+        currentCount = 0;
+      }
+      long slidingWindowStart = Math.max(0, now - windowLengthInMilliSeconds);
+      double previousFixedWindowWeight =
+          Math.max(0, previousTimestamp + windowLengthInMilliSeconds - slidingWindowStart)
+              / (double) windowLengthInMilliSeconds;
+      int count = (int) (previousCount * previousFixedWindowWeight + currentCount);
+
+      if ((long) count + permits > maxAllowedRequestsPerPeriod) {
+        decision.set(false, count, Math.max(0, maxAllowedRequestsPerPeriod - count),
+            SlidingWindowCountStrategy.retryAfterMillis(now, windowLengthInMilliSeconds,
+                maxAllowedRequestsPerPeriod, permits, previousTimestamp, previousCount,
+                currentTimestamp, currentCount,
+                currentTimestamp + windowLengthInMilliSeconds + 1));
+        return REJECTED;
+      }
+      currentCount += permits;
+      decision.set(true, count, maxAllowedRequestsPerPeriod - count - permits, 0);
+      return currentTimestamp;
+    }
+
+    // The window may have rolled over since the permits were counted, then they are in the
+    // previous fixed window now.
+    private synchronized void release(long acquiredFixedWindow, int permits) {
+      if (currentTimestamp == acquiredFixedWindow) {
+        currentCount -= permits;
+      } else if (previousTimestamp == acquiredFixedWindow) {
+        previousCount -= permits;
+      }
+    }
+
+    // No key is nested in this one and, with onlyIfExpired, both fixed windows end before the
+    // sliding window starts. A decision which resolved the node before sees the flag and resolves
+    // its keys again.
+    private synchronized boolean evict(long now, long windowLengthInMilliSeconds,
+        boolean onlyIfExpired) {
+      if (evicted || onlyIfExpired && currentTimestamp + 2 * windowLengthInMilliSeconds > now
+          || children != null && !children.isEmpty()) {
+        return false;
+      }
+      evicted = true;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package org.example;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decorator which counts the decisions of any {@link RateLimiterStrategy} and records their
+ * latency, for dashboards and alerts on how a limiter behaves.
+ * <p>The hot path stays cheap: the counters are {@link LongAdder}s, so concurrent decisions
+ * increment different cells instead of contending on one cache line, and the latency goes into
+ * the wait-free {@link LatencyRecorder}. Reading the counters sums the cells, which is left to the
+ * metrics publisher. For a batch of {@link #allowedAll(List, boolean)} every key is counted and
+ * the latency of the whole batch is recorded once.
+ * <p>A decision which throws (e.g. redis can't be reached) is counted as an error and the
+ * exception is passed on, the caller still applies its fail-open or fail-closed policy.
+ * <p>Given a {@link HeavyHitters}, the keys of rejected requests are recorded into it, so the keys
+ * throttled most can be listed during an attack without walking the state of the strategy.
+ */
+public class InstrumentedRateLimiterStrategy implements RateLimiterStrategy {
+
+  private final RateLimiterStrategy delegate;
+  private final LongAdder allowed = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LatencyRecorder latency = new LatencyRecorder();
+  // Null when rejected keys aren't tracked.
+  private final HeavyHitters rejectedKeys;
+
+  public InstrumentedRateLimiterStrategy(RateLimiterStrategy delegate) {
+    this(delegate, null);
+  }
+
+  public InstrumentedRateLimiterStrategy(RateLimiterStrategy delegate, HeavyHitters rejectedKeys) {
+    this.delegate = delegate;
+    this.rejectedKeys = rejectedKeys;
+  }
+
+  public RateLimiterStrategy delegate() {
+    return delegate;
+  }
+
+  @Override
+  public boolean allowed(String key) {
+    long start = System.nanoTime();
+    try {
+      return count(key, delegate.allowed(key));
+    } catch (RuntimeException e) {
+      errors.increment();
+      throw e;
+    } finally {
+      latency.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public boolean allowed(String key, int permits) {
+    long start = System.nanoTime();
+    try {
+      return count(key, delegate.allowed(key, permits));
+    } catch (RuntimeException e) {
+      errors.increment();
+      throw e;
+    } finally {
+      latency.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public Decision decide(String key, int permits, Decision decision) {
+    long start = System.nanoTime();
+    try {
+      Decision result = delegate.decide(key, permits, decision);
+      count(key, result.allowed());
+      return result;
+    } catch (RuntimeException e) {
+      errors.increment();
+      throw e;
+    } finally {
+      latency.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public boolean[] allowedAll(List<String> keys, boolean allOrNothing) {
+    long start = System.nanoTime();
+    try {
+      boolean[] decisions = delegate.allowedAll(keys, allOrNothing);
+      for (int i = 0; i < decisions.length; i++) {
+        count(keys.get(i), decisions[i]);
+      }
+      return decisions;
+    } catch (RuntimeException e) {
+      errors.increment();
+      throw e;
+    } finally {
+      latency.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public long liveKeys() {
+    return delegate.liveKeys();
+  }
+
+  private boolean count(String key, boolean decision) {
+    if (decision) {
+      allowed.increment();
+    } else {
+      rejected.increment();
+      if (rejectedKeys != null) {
+        rejectedKeys.record(key);
+      }
+    }
+    return decision;
+  }
+
+  /**
+   * @return the keys rejected most, or null when rejected keys aren't tracked
+   */
+  public HeavyHitters rejectedKeys() {
+    return rejectedKeys;
+  }
+
+  /**
+   * Latency of the decisions since the last {@link LatencyRecorder#roll()}.
+   */
+  public LatencyRecorder latency() {
+    return latency;
+  }
+
+  public Metrics metrics() {
+    return new Metrics(allowed.sum(), rejected.sum(), errors.sum());
+  }
+
+  /**
+   * Decisions since the strategy was created, each count is exact but they are not read
+   * atomically together.
+   *
+   * @param allowed decisions which allowed the request
+   * @param rejected decisions which rejected the request
+   * @param errors decisions which failed with an exception
+   */
+  public record Metrics(long allowed, long rejected, long errors) {
+
+  }
+}
@@ -0,0 +1,106 @@
+package org.example;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.ConnectionPoolConfig;
+import redis.clients.jedis.DefaultJedisClientConfig;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisAskDataException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+import redis.clients.jedis.providers.ClusterConnectionProvider;
+import redis.clients.jedis.util.JedisClusterCRC16;
+
+/**
+ * Thread-safe {@link RedisConnectionProvider} for a Redis Cluster, so the limiter state is sharded
+ * over many Redis nodes and the throughput of the distributed strategies grows with the nodes.
+ * <p>Every call runs on a pooled connection to the node which owns the hash slot of the key, one
+ * hop like on a single server. The strategies hash-tag their keys (see {@link RedisKeys}), so all
+ * state of a limited key is in one slot and its script runs on one node. Batches are grouped by
+ * node with {@link #groupByNode(List)}, one pipelined round trip per node.
+ * <p>The slot of every node is cached. When a slot moved to another node (resharding, failover)
+ * Redis answers with MOVED: the cache is refreshed and the call runs again on the new node. A slot
+ * which is being migrated answers with ASK for keys already moved: the call runs again on the
+ * target node after ASKING, the cache stays as it is. A redirected command did not run, so the
+ * retry counts nothing twice. After {@value #MAX_REDIRECTS} redirects the error is passed on.
+ * <p>In a pipeline every command is redirected on its own and the pipeline returns the error in
+ * its results, since the commands which were not redirected have already run. The strategies run
+ * those again one by one and call {@link #refreshNodes()}.
+ */
+public class JedisClusterConnectionProvider implements RedisConnectionProvider, AutoCloseable {
+
+  // Redirects followed by one call, as many as the attempts of the Jedis cluster client.
+  static final int MAX_REDIRECTS = 5;
+
+  private final ClusterConnectionProvider cluster;
+
+  public JedisClusterConnectionProvider(Set<HostAndPort> nodes, int maxTotalPerNode,
+      Duration borrowTimeout) {
+    this(new ClusterConnectionProvider(nodes, DefaultJedisClientConfig.builder().build(),
+        poolConfig(maxTotalPerNode, borrowTimeout)));
+  }
+
+  public JedisClusterConnectionProvider(ClusterConnectionProvider cluster) {
+    this.cluster = cluster;
+  }
+
+  private static ConnectionPoolConfig poolConfig(int maxTotalPerNode, Duration borrowTimeout) {
+    ConnectionPoolConfig config = new ConnectionPoolConfig();
+    config.setMaxTotal(maxTotalPerNode);
+    // Keep all connections open, re-creating them under load would add a TCP handshake.
+    config.setMaxIdle(maxTotalPerNode);
+    config.setBlockWhenExhausted(true);
+    config.setMaxWait(borrowTimeout);
+    config.setJmxEnabled(false);
+    return config;
+  }
+
+  @Override
+  public <T> T execute(String key, Function<Jedis, T> action) {
+    Connection connection = cluster.getConnectionFromSlot(JedisClusterCRC16.getSlot(key));
+    boolean asking = false;
+    for (int redirects = 0; ; redirects++) {
+      try (Jedis jedis = new Jedis(connection)) {
+        if (asking) {
+          jedis.asking();
+        }
+        return action.apply(jedis);
+      } catch (JedisRedirectionException e) {
+        if (redirects == MAX_REDIRECTS) {
+          throw e;
+        }
+        asking = e instanceof JedisAskDataException;
+        if (!asking) {
+          cluster.renewSlotCache();
+        }
+        connection = cluster.getConnection(e.getTargetNode());
+      }
+    }
+  }
+
+  @Override
+  public void refreshNodes() {
+    cluster.renewSlotCache();
+  }
+
+  @Override
+  public List<List<Integer>> groupByNode(List<String> keys) {
+    Map<HostAndPort, List<Integer>> groups = new LinkedHashMap<>();
+    for (int i = 0; i < keys.size(); i++) {
+      HostAndPort node = cluster.getNode(JedisClusterCRC16.getSlot(keys.get(i)));
+      groups.computeIfAbsent(node, n -> new ArrayList<>()).add(i);
+    }
+    return new ArrayList<>(groups.values());
+  }
+
+  @Override
+  public void close() {
+    cluster.close();
+  }
+}
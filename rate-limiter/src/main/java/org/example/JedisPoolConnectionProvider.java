@@ -0,0 +1,105 @@
+package org.example;
+
+import java.time.Duration;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Thread-safe {@link RedisConnectionProvider} backed by a {@link JedisPool}.
+ * <p>Every call borrows a connection from the pool, runs the action and returns the connection, so
+ * any number of threads can make decisions concurrently, up to the size of the pool. When all
+ * connections are in use a caller waits at most the borrow timeout for one to be returned.
+ * <p>The provider also keeps a few cheap metrics (LongAdder based, so they don't add contention
+ * between the threads): number of calls, borrow timeouts and the latency of each call including
+ * the time spent waiting for a connection. The latency percentiles go into a {@link LatencyRecorder}.
+ */
+public class JedisPoolConnectionProvider implements RedisConnectionProvider, AutoCloseable {
+
+  private final JedisPool pool;
+  private final LongAdder calls = new LongAdder();
+  private final LongAdder borrowTimeouts = new LongAdder();
+  private final LongAdder totalLatencyNanos = new LongAdder();
+  private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+  private final LatencyRecorder latency = new LatencyRecorder();
+
+  public JedisPoolConnectionProvider(String host, int port, int maxTotal, Duration borrowTimeout) {
+    this(new JedisPool(poolConfig(maxTotal, borrowTimeout), host, port));
+  }
+
+  public JedisPoolConnectionProvider(JedisPool pool) {
+    this.pool = pool;
+  }
+
+  private static JedisPoolConfig poolConfig(int maxTotal, Duration borrowTimeout) {
+    JedisPoolConfig config = new JedisPoolConfig();
+    config.setMaxTotal(maxTotal);
+    // Keep all connections open, re-creating them under load would add a TCP handshake.
+    config.setMaxIdle(maxTotal);
+    config.setBlockWhenExhausted(true);
+    config.setMaxWait(borrowTimeout);
+    config.setJmxEnabled(false);
+    return config;
+  }
+
+  // A single server owns every key.
+  @Override
+  public <T> T execute(String key, Function<Jedis, T> action) {
+    return execute(action);
+  }
+
+  /**
+   * Runs the action with a pooled connection. Any key may be used, a single server owns them all.
+   */
+  public <T> T execute(Function<Jedis, T> action) {
+    long start = System.nanoTime();
+    try (Jedis jedis = pool.getResource()) {
+      return action.apply(jedis);
+    } catch (JedisException e) {
+      if (e.getCause() instanceof NoSuchElementException) {
+        borrowTimeouts.increment();
+      }
+      throw e;
+    } finally {
+      long latency = System.nanoTime() - start;
+      calls.increment();
+      totalLatencyNanos.add(latency);
+      maxLatencyNanos.accumulate(latency);
+      this.latency.record(latency);
+    }
+  }
+
+  /**
+   * Round trip latency of the calls since the last {@link LatencyRecorder#roll()}.
+   */
+  public LatencyRecorder latency() {
+    return latency;
+  }
+
+  public Metrics metrics() {
+    return new Metrics(pool.getMaxTotal(), pool.getNumActive(), pool.getNumIdle(),
+        pool.getNumWaiters(), calls.sum(), borrowTimeouts.sum(), totalLatencyNanos.sum(),
+        maxLatencyNanos.get());
+  }
+
+  @Override
+  public void close() {
+    pool.close();
+  }
+
+  /**
+   * Point in time snapshot of the pool sizing and the per-call latency.
+   */
+  public record Metrics(int maxTotal, int active, int idle, int waiters, long calls,
+                        long borrowTimeouts, long totalLatencyNanos, long maxLatencyNanos) {
+
+    public long averageLatencyNanos() {
+      return calls == 0 ? 0 : totalLatencyNanos / calls;
+    }
+  }
+}
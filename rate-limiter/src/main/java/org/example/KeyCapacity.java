@@ -0,0 +1,35 @@
+package org.example;
+
+/**
+ * Bounds the number of keys an in-memory rate limiter keeps state for.
+ * <p>Keys are client IPs, users or tenants, so without a bound the heap grows with every distinct
+ * key ever seen, and a scan or a flood of spoofed addresses can exhaust it. Keys whose windows
+ * have fully expired are always reclaimed first. When the limiter is still full, the policy
+ * decides what happens to a request of a new key.
+ * <p>The bound is checked before a new key is inserted, so under concurrent inserts it can be
+ * exceeded by at most the number of threads inserting at the same moment.
+ */
+public record KeyCapacity(int maxKeys, OverflowPolicy overflowPolicy) {
+
+  public static final KeyCapacity UNBOUNDED =
+      new KeyCapacity(Integer.MAX_VALUE, OverflowPolicy.EVICT_LEAST_RECENTLY_USED);
+
+  public KeyCapacity {
+    if (maxKeys <= 0) {
+      throw new IllegalArgumentException("maxKeys must be positive, was " + maxKeys);
+    }
+  }
+
+  public boolean isBounded() {
+    return maxKeys != Integer.MAX_VALUE;
+  }
+
+  public enum OverflowPolicy {
+    // Evict the least recently used key of a small sample (approximated LRU, like redis does).
+    EVICT_LEAST_RECENTLY_USED,
+    // Fail closed - reject requests of new keys until some key expires.
+    REJECT,
+    // Fail open - allow requests of new keys without tracking them until some key expires.
+    ALLOW
+  }
+}
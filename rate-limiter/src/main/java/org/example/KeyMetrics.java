@@ -0,0 +1,14 @@
+package org.example;
+
+/**
+ * Point in time snapshot of the keys held by an in-memory rate limiter, for capacity planning.
+ *
+ * @param liveKeys keys currently holding state
+ * @param expiredEvictions keys reclaimed because both of their windows had expired
+ * @param capacityEvictions keys evicted while still active to make room for a new key
+ * @param overflowDecisions requests of new keys decided by the overflow policy, without state
+ */
+public record KeyMetrics(long liveKeys, long expiredEvictions, long capacityEvictions,
+                         long overflowDecisions) {
+
+}
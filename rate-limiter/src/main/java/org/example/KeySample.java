@@ -0,0 +1,127 @@
+package org.example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Entries of a map picked at random, for the approximate LRU eviction of the limiters with a
+ * {@link KeyCapacity}: like Redis, the least recently used of a small sample is evicted instead of
+ * keeping a linked list through all keys.
+ * <p>Taking the first entries in iteration order would always sample the same low bins, and
+ * neighbouring bins often hold keys of about the same age, e.g. IPs of one range, so the sample is
+ * taken from a few regions of the table picked at random. Every split halves the bins and the
+ * estimated entries of a spliterator of the map, so taking either half at random reaches a region
+ * of a few entries anywhere in the table without walking the entries before it. Up to
+ * {@link #ENTRIES_PER_REGION} of its entries are picked at random, so none of them is favoured by
+ * its position in the region. An empty region is skipped for another one at random, so every
+ * entry is about as likely to be picked whatever the bins around it.
+ * <p>Each split allocates a spliterator and the map hands out every entry walked as a new object.
+ * A sample of 16 entries of a map of n keys takes about 4 regions of log2(n / 8) splits and 4 to
+ * 8 entries each, e.g. about 100 short-lived objects for a million keys.
+ */
+final class KeySample {
+
+  // Regions are split until they are estimated to hold at most this many entries.
+  private static final int MAX_REGION_ENTRIES = 8;
+  private static final int ENTRIES_PER_REGION = 4;
+  // Regions tried at random for an entry, before an empty one is topped up from its neighbours. A
+  // full limiter's table is at least about a third full, a sparser one only after mass removals.
+  private static final int MAX_ATTEMPTS = 32;
+
+  private KeySample() {
+  }
+
+  /**
+   * @return up to size entries of the map, fewer only if the map has fewer
+   */
+  static <K, V> List<Map.Entry<K, V>> of(ConcurrentMap<K, V> map, int size) {
+    List<Map.Entry<K, V>> sample = new ArrayList<>(size);
+    Reservoir<K, V> reservoir = new Reservoir<>(sample, ThreadLocalRandom.current());
+    Deque<Spliterator<Map.Entry<K, V>>> neighbours = new ArrayDeque<>();
+    while (sample.size() < size) {
+      reservoir.start(Math.min(ENTRIES_PER_REGION, size - sample.size()));
+      if (!addRandomRegion(map, reservoir, neighbours)) {
+        break;
+      }
+    }
+    return sample;
+  }
+
+  private static <K, V> boolean addRandomRegion(ConcurrentMap<K, V> map,
+      Reservoir<K, V> reservoir, Deque<Spliterator<Map.Entry<K, V>>> neighbours) {
+    for (int attempt = 1; ; attempt++) {
+      Spliterator<Map.Entry<K, V>> region = map.entrySet().spliterator();
+      neighbours.clear();
+      // Down to a few entries: in a larger region only its first entries could ever be picked,
+      // e.g. of the few keys of a small map which all hash into one half of the table.
+      while (region.estimateSize() > MAX_REGION_ENTRIES) {
+        Spliterator<Map.Entry<K, V>> half = region.trySplit();
+        if (half == null) {
+          break;
+        }
+        if (reservoir.random.nextBoolean()) {
+          neighbours.push(region);
+          region = half;
+        } else {
+          neighbours.push(half);
+        }
+      }
+      region.forEachRemaining(reservoir);
+      if (reservoir.seen > 0) {
+        return true;
+      }
+      // Another region at random: the entries after an empty region would be picked as often as
+      // there are empty regions before them.
+      if (attempt == MAX_ATTEMPTS) {
+        while (!neighbours.isEmpty()) {
+          neighbours.pop().forEachRemaining(reservoir);
+          if (reservoir.seen > 0) {
+            return true;
+          }
+        }
+        return false;
+      }
+    }
+  }
+
+  // Adds a uniform random choice of up to the given number of the entries it is fed to the sample.
+  private static final class Reservoir<K, V> implements Consumer<Map.Entry<K, V>> {
+
+    private final List<Map.Entry<K, V>> sample;
+    private final ThreadLocalRandom random;
+    private int first;
+    private int entries;
+    private int seen;
+
+    private Reservoir(List<Map.Entry<K, V>> sample, ThreadLocalRandom random) {
+      this.sample = sample;
+      this.random = random;
+    }
+
+    private void start(int entries) {
+      this.first = sample.size();
+      this.entries = entries;
+      this.seen = 0;
+    }
+
+    @Override
+    public void accept(Map.Entry<K, V> entry) {
+      if (seen < entries) {
+        sample.add(entry);
+      } else {
+        int replaced = random.nextInt(seen + 1);
+        if (replaced < entries) {
+          sample.set(first + replaced, entry);
+        }
+      }
+      seen++;
+    }
+  }
+}
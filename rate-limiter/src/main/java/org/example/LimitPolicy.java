@@ -0,0 +1,117 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable table of the limits of single keys, e.g. the raised quota of one tenant. Keys without
+ * an entry keep the limit they are configured with. Changes create a new table, so a table can be
+ * read by any number of threads without a lock (see {@link DynamicLimits}).
+ * <p>The file format is one {@code key=limit} per line, split at the last '=', so keys may contain
+ * ':' and '='. Blank lines and lines starting with '#' are ignored:
+ * <pre>
+ * # Incident 4711: tenant-7 gets ten times its quota.
+ * orders:tenant-7=1000
+ * </pre>
+ */
+public final class LimitPolicy {
+
+  public static final LimitPolicy EMPTY = new LimitPolicy(Map.of());
+
+  private final Map<String, Integer> limits;
+
+  /**
+   * @throws IllegalArgumentException if a limit is negative
+   */
+  public LimitPolicy(Map<String, Integer> limits) {
+    for (Map.Entry<String, Integer> entry : limits.entrySet()) {
+      if (entry.getValue() < 0) {
+        throw new IllegalArgumentException(
+            "limit of " + entry.getKey() + " must not be negative, was " + entry.getValue());
+      }
+    }
+    this.limits = Map.copyOf(limits);
+  }
+
+  /**
+   * Reads a table in the format described above.
+   *
+   * @throws IOException if the file can't be read or a line is not a key and a limit
+   */
+  public static LimitPolicy read(Path file) throws IOException {
+    List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+    Map<String, Integer> limits = new HashMap<>();
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i).strip();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      int separator = line.lastIndexOf('=');
+      try {
+        if (separator < 1) {
+          throw new IllegalArgumentException("expected key=limit");
+        }
+        int limit = Integer.parseInt(line.substring(separator + 1).strip());
+        if (limit < 0) {
+          throw new IllegalArgumentException("limit must not be negative");
+        }
+        limits.put(line.substring(0, separator).strip(), limit);
+      } catch (IllegalArgumentException e) {
+        // NumberFormatException included: a table half applied is worse than the old one.
+        throw new IOException(file + " line " + (i + 1) + ": " + e.getMessage(), e);
+      }
+    }
+    return new LimitPolicy(limits);
+  }
+
+  /**
+   * @return the limit of the key, or the fallback when the table has none
+   */
+  public int limitOf(String key, int fallback) {
+    // Map.get of the immutable map neither locks nor allocates, nor does unboxing the limit.
+    Integer limit = limits.get(key);
+    return limit != null ? limit : fallback;
+  }
+
+  public LimitPolicy withLimit(String key, int limit) {
+    Map<String, Integer> changed = new HashMap<>(limits);
+    changed.put(key, limit);
+    return new LimitPolicy(changed);
+  }
+
+  public LimitPolicy withoutLimit(String key) {
+    if (!limits.containsKey(key)) {
+      return this;
+    }
+    Map<String, Integer> changed = new HashMap<>(limits);
+    changed.remove(key);
+    return new LimitPolicy(changed);
+  }
+
+  /**
+   * @return the limits of the table, unmodifiable
+   */
+  public Map<String, Integer> limits() {
+    return limits;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof LimitPolicy other && limits.equals(other.limits);
+  }
+
+  @Override
+  public int hashCode() {
+    return limits.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "LimitPolicy" + limits;
+  }
+}
@@ -0,0 +1,22 @@
+package org.example;
+
+/**
+ * Limit of a key, resolved on every decision, so a limit can change while the limiter runs. See
+ * {@link DynamicLimits} for limits which are reloaded from a file or changed at runtime.
+ * <p>Called on the hot path of every decision: implementations must not block or allocate.
+ */
+@FunctionalInterface
+public interface LimitResolver {
+
+  /**
+   * @return max allowed requests per period of the key, not negative
+   */
+  int limitOf(String key);
+
+  /**
+   * @return the same limit for every key
+   */
+  static LimitResolver fixed(int maxAllowedRequestsPerPeriod) {
+    return key -> maxAllowedRequestsPerPeriod;
+  }
+}
@@ -0,0 +1,59 @@
+package org.example;
+
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * {@link ReactiveRateLimiterStrategy} for strategies which block on Redis, like the
+ * {@link SlidingWindowCountDistributedUsingRedisStrategy} and the
+ * {@link GcraDistributedUsingRedisStrategy}. Jedis is a blocking client, so the decision runs on a
+ * bounded scheduler and the event loop which subscribed only gets the result.
+ * <p>The scheduler is the back pressure of the limiter: size its threads to the connections of the
+ * {@link RedisConnectionProvider}, more threads would only wait for a connection. When all threads
+ * are busy the decisions queue up to the queue capacity, beyond that the Mono fails with a
+ * {@link java.util.concurrent.RejectedExecutionException} instead of piling up latency, and the
+ * caller decides whether to fail open or closed.
+ * <p>Downstream operators of the returned Mono run on the scheduler's thread as well, which is safe
+ * for a gateway filter: Netty hands writes from other threads over to the connection's event loop.
+ */
+public class OffloadingReactiveRateLimiterStrategy implements ReactiveRateLimiterStrategy,
+    AutoCloseable {
+
+  private final RateLimiterStrategy strategy;
+  private final Scheduler scheduler;
+  // Only a scheduler created here is disposed on close, a given one stays owned by the caller.
+  private final boolean ownsScheduler;
+
+  /**
+   * Runs the decisions on a scheduler of its own with the given number of threads and queued
+   * decisions, which is disposed by {@link #close()}.
+   */
+  public OffloadingReactiveRateLimiterStrategy(RateLimiterStrategy strategy, int threads,
+      int queuedDecisions) {
+    this(strategy, Schedulers.newBoundedElastic(threads, queuedDecisions, "rate-limiter"), true);
+  }
+
+  public OffloadingReactiveRateLimiterStrategy(RateLimiterStrategy strategy, Scheduler scheduler) {
+    this(strategy, scheduler, false);
+  }
+
+  private OffloadingReactiveRateLimiterStrategy(RateLimiterStrategy strategy, Scheduler scheduler,
+      boolean ownsScheduler) {
+    this.strategy = strategy;
+    this.scheduler = scheduler;
+    this.ownsScheduler = ownsScheduler;
+  }
+
+  @Override
+  public Mono<Decision> decide(String key, int permits) {
+    return Mono.fromCallable(() -> strategy.decide(key, permits)).subscribeOn(scheduler);
+  }
+
+  @Override
+  public void close() {
+    if (ownsScheduler) {
+      scheduler.dispose();
+    }
+  }
+}
@@ -0,0 +1,21 @@
+package org.example;
+
+/**
+ * One level of nested limits, e.g. the limit of a user, of a tenant or of a whole route. See
+ * {@link HierarchicalRateLimiterStrategy}.
+ *
+ * @param name what the keys of the tier are, e.g. "tenant", for logs and metrics
+ */
+public record RateLimitTier(String name, int timePeriodInSeconds,
+                            int maxAllowedRequestsPerPeriod) {
+
+  public RateLimitTier {
+    if (timePeriodInSeconds < 1 || maxAllowedRequestsPerPeriod < 0) {
+      throw new IllegalArgumentException("tier " + name + " needs a positive period and a limit");
+    }
+  }
+
+  long windowLengthInMilliSeconds() {
+    return timePeriodInSeconds * 1000L;
+  }
+}
@@ -1,5 +1,7 @@
 package org.example;
 
+import java.util.List;
+
 /**
  * RateLimiterStrategy interface to implement rate limiting strategies.
  * <p> In the future, we can add more rate limiting strategies by implementing this interface.
@@ -8,5 +10,55 @@ package org.example;
  */
 public interface RateLimiterStrategy {
 
-  boolean allowed(String userId);
+  default boolean allowed(String userId) {
+    return allowed(userId, 1);
+  }
+
+  /**
+   * Asks for several permits at once, for calls which cost more than others, e.g. a bulk export
+   * which consumes 50 units of the limit while a ping consumes 1. Like
+   * {@link java.util.concurrent.Semaphore#tryAcquire(int)} it either takes all permits or none, so
+   * a rejected request doesn't consume any quota, and a request for more permits than the limit is
+   * always rejected.
+   *
+   * @throws IllegalArgumentException if permits is not positive
+   */
+  boolean allowed(String key, int permits);
+
+  /**
+   * Same decision as {@link #allowed(String, int)}, written into the given holder together with
+   * the count, the remaining permits and the retry-after of the key. Reusing the holder keeps the
+   * decision free of allocation.
+   *
+   * @return the given decision
+   */
+  Decision decide(String key, int permits, Decision decision);
+
+  default Decision decide(String key, int permits) {
+    return decide(key, permits, new Decision());
+  }
+
+  /**
+   * Decides for several keys at once, e.g. the per-IP, per-user, per-tenant and per-route limits of
+   * one inbound request. Strategies resolve all keys more efficiently than one
+   * {@link #allowed(String)} call per key.
+   * <p>With {@code allOrNothing} the request is allowed only if every key allows it, and no key
+   * consumes quota when one of them rejects it. The returned decisions then tell which keys had
+   * quota left.
+   *
+   * @return decision per key, in the order of the given keys
+   */
+  boolean[] allowedAll(List<String> keys, boolean allOrNothing);
+
+  default boolean[] allowedAll(List<String> keys) {
+    return allowedAll(keys, false);
+  }
+
+  /**
+   * Keys the strategy currently holds state for in memory, for a live-keys gauge. Strategies which
+   * keep their state in redis hold none.
+   */
+  default long liveKeys() {
+    return 0;
+  }
 }
\ No newline at end of file
@@ -0,0 +1,60 @@
+package org.example;
+
+import java.util.List;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+/**
+ * Non-blocking counterpart of {@link HierarchicalRateLimiterStrategy}, see
+ * {@link ReactiveRateLimiterStrategy}.
+ */
+public interface ReactiveHierarchicalRateLimiterStrategy {
+
+  /**
+   * Same decision as {@link HierarchicalRateLimiterStrategy#decide(List, int)}, made when the
+   * returned Mono is subscribed to.
+   */
+  Mono<Decision> decide(List<String> keys, int permits);
+
+  /**
+   * @return the tiers, outermost first
+   */
+  List<RateLimitTier> tiers();
+
+  /**
+   * Wraps a strategy which decides in memory without blocking, e.g. the
+   * {@link HierarchicalSlidingWindowCountStrategy}.
+   */
+  static ReactiveHierarchicalRateLimiterStrategy of(HierarchicalRateLimiterStrategy strategy) {
+    return new ReactiveHierarchicalRateLimiterStrategy() {
+      @Override
+      public Mono<Decision> decide(List<String> keys, int permits) {
+        return Mono.fromSupplier(() -> strategy.decide(keys, permits));
+      }
+
+      @Override
+      public List<RateLimitTier> tiers() {
+        return strategy.tiers();
+      }
+    };
+  }
+
+  /**
+   * Wraps a strategy which blocks on Redis, the decisions run on the given scheduler, which stays
+   * owned by the caller. See {@link OffloadingReactiveRateLimiterStrategy} for sizing it.
+   */
+  static ReactiveHierarchicalRateLimiterStrategy offloading(
+      HierarchicalRateLimiterStrategy strategy, Scheduler scheduler) {
+    return new ReactiveHierarchicalRateLimiterStrategy() {
+      @Override
+      public Mono<Decision> decide(List<String> keys, int permits) {
+        return Mono.fromCallable(() -> strategy.decide(keys, permits)).subscribeOn(scheduler);
+      }
+
+      @Override
+      public List<RateLimitTier> tiers() {
+        return strategy.tiers();
+      }
+    };
+  }
+}
@@ -0,0 +1,35 @@
+package org.example;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Non-blocking counterpart of {@link RateLimiterStrategy} for reactive callers like a Spring Cloud
+ * Gateway filter. A WebFlux filter runs on a Netty event-loop thread which serves many connections,
+ * so a decision which waits for Redis on that thread stalls every connection of the loop. A
+ * reactive strategy returns the decision as a {@link Mono} instead and the caller composes it.
+ * <p>In-memory strategies never block, {@link #of(RateLimiterStrategy)} makes their decision on the
+ * subscribing thread. Redis backed strategies are wrapped in an
+ * {@link OffloadingReactiveRateLimiterStrategy}, which runs them on a bounded pool of threads.
+ */
+public interface ReactiveRateLimiterStrategy {
+
+  /**
+   * Same decision as {@link RateLimiterStrategy#decide(String, int)}, made when the returned Mono
+   * is subscribed to.
+   */
+  Mono<Decision> decide(String key, int permits);
+
+  default Mono<Decision> decide(String key) {
+    return decide(key, 1);
+  }
+
+  /**
+   * Wraps a strategy which decides in memory without blocking, e.g. the
+   * {@link SlidingWindowCountStrategy}, the {@link GcraStrategy} or the
+   * {@link SlidingWindowCountNearCacheStrategy}. Don't use it for a strategy which talks to Redis on
+   * every decision.
+   */
+  static ReactiveRateLimiterStrategy of(RateLimiterStrategy strategy) {
+    return (key, permits) -> Mono.fromSupplier(() -> strategy.decide(key, permits));
+  }
+}
@@ -0,0 +1,62 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import redis.clients.jedis.Jedis;
+
+/**
+ * Provides redis connections to the distributed rate limiter strategies.
+ * <p>A {@link Jedis} connection is not thread-safe, so the strategies never hold on to one. They
+ * ask the provider to run an action with a connection instead, and the provider decides where the
+ * connection comes from - a pool ({@link JedisPoolConnectionProvider}), a single shared connection
+ * ({@link #of(Jedis)}), the node of a Redis Cluster which owns the key
+ * ({@link JedisClusterConnectionProvider}) or anything else that implements this interface.
+ */
+public interface RedisConnectionProvider {
+
+  /**
+   * Runs the action with a connection to the node which owns the given Redis key. A single Redis
+   * server owns every key, so it ignores the key.
+   * <p>A cluster may run the action again on another node when the slot of the key moved, so the
+   * action must not run other commands before one which can be redirected. A pipeline returns
+   * its redirected commands in its results instead of throwing.
+   */
+  <T> T execute(String key, Function<Jedis, T> action);
+
+  /**
+   * Groups the given Redis keys by the node which owns them, so a batch takes one round trip per
+   * node. A single Redis server owns every key, so there is one group.
+   *
+   * @return indexes of the keys, one list per node, in the order of the keys
+   */
+  default List<List<Integer>> groupByNode(List<String> keys) {
+    List<Integer> indexes = new ArrayList<>(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      indexes.add(i);
+    }
+    return List.of(indexes);
+  }
+
+  /**
+   * Reloads which node owns which key, after a command of a pipeline was redirected to another
+   * node. A single Redis server owns every key, so there is nothing to reload.
+   */
+  default void refreshNodes() {
+  }
+
+  /**
+   * Wraps a single connection. Calls are serialized on the connection so it is safe to share
+   * between threads, but only one decision can be in flight at a time. Use a pool for concurrency.
+   */
+  static RedisConnectionProvider of(Jedis jedis) {
+    return new RedisConnectionProvider() {
+      @Override
+      public <T> T execute(String key, Function<Jedis, T> action) {
+        synchronized (jedis) {
+          return action.apply(jedis);
+        }
+      }
+    };
+  }
+}
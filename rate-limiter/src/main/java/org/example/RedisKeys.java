@@ -0,0 +1,32 @@
+package org.example;
+
+/**
+ * Layout of the Redis keys of the distributed strategies.
+ * <p>Redis Cluster distributes keys over 16384 hash slots by the CRC16 of the key. A script may
+ * only touch keys of one slot, and a decision which touches keys of two slots would be two hops to
+ * two nodes. So every Redis key of a limited key carries the limited key as hash tag, e.g.
+ * {@code {user-7}:prev} and {@code {user-7}:cur}: only the part in braces is hashed, all state of a
+ * key lives in the same slot, and different keys spread evenly over the nodes.
+ * <p>A key which already carries a hash tag keeps it, e.g. {@code {tenant-1}:user-7}. Keys with the
+ * same tag share a slot, which is what an all-or-nothing batch over several keys needs on a
+ * cluster.
+ */
+final class RedisKeys {
+
+  private RedisKeys() {
+  }
+
+  static String of(String key, String suffix) {
+    return hasHashTag(key) ? key + ":" + suffix : "{" + key + "}:" + suffix;
+  }
+
+  // Same rule as Redis: the first '{' followed by a '}' with at least one character in between.
+  static boolean hasHashTag(String key) {
+    int open = key.indexOf('{');
+    if (open < 0) {
+      return false;
+    }
+    int close = key.indexOf('}', open + 1);
+    return close > open + 1;
+  }
+}
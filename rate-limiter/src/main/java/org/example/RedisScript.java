@@ -0,0 +1,111 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+
+/**
+ * Lua script that is loaded into Redis once and afterwards executed by its SHA1 digest.
+ * <p>The script body is sent to Redis only on the first call (SCRIPT LOAD). Every following call
+ * is a single EVALSHA round trip that carries just the keys and arguments. Redis executes a script
+ * atomically, so the whole read-modify-write of a rate limiter decision happens without any other
+ * client being able to interleave its own commands.
+ * <p>When Redis answers with NOSCRIPT (script cache flushed, failover to a replica that never saw
+ * the script, server restart) the script is loaded again and the call is retried once.
+ */
+public final class RedisScript {
+
+  private final String script;
+  // SHA1 digest returned by SCRIPT LOAD, null until the script was loaded for the first time.
+  private volatile String sha;
+
+  public RedisScript(String script) {
+    this.script = script;
+  }
+
+  public Object eval(Jedis jedis, List<String> keys, List<String> args) {
+    String loadedSha = sha;
+    if (loadedSha == null) {
+      loadedSha = load(jedis);
+    }
+    try {
+      return jedis.evalsha(loadedSha, keys, args);
+    } catch (JedisNoScriptException e) {
+      // Script cache of the server was flushed - load it again and retry once.
+      return jedis.evalsha(load(jedis), keys, args);
+    }
+  }
+
+  /**
+   * Runs the script on the node which owns the keys, a call redirected to another node of a
+   * cluster runs again there.
+   */
+  public Object eval(RedisConnectionProvider connections, List<String> keys, List<String> args) {
+    return connections.execute(keys.get(0), jedis -> eval(jedis, keys, args));
+  }
+
+  /**
+   * Runs the script once per key list, all calls pipelined in one round trip. Calls which failed
+   * with NOSCRIPT are run again one by one after the script was loaded. Calls redirected to
+   * another node of a cluster did not run, their {@link JedisRedirectionException} is returned in
+   * the results, see {@link #isRedirected(Object)}.
+   */
+  public List<Object> evalPipelined(Jedis jedis, List<List<String>> keys, List<String> args) {
+    return evalPipelined(jedis, keys, i -> args);
+  }
+
+  /**
+   * Same as {@link #evalPipelined(Jedis, List, List)} with arguments per call, e.g. the limit of
+   * each key.
+   */
+  public List<Object> evalPipelined(Jedis jedis, List<List<String>> keys,
+      IntFunction<List<String>> args) {
+    String loadedSha = sha;
+    if (loadedSha == null) {
+      loadedSha = load(jedis);
+    }
+    Pipeline pipeline = jedis.pipelined();
+    List<Response<Object>> responses = new ArrayList<>(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      responses.add(pipeline.evalsha(loadedSha, keys.get(i), args.apply(i)));
+    }
+    pipeline.sync();
+
+    List<Object> results = new ArrayList<>(keys.size());
+    for (int i = 0; i < responses.size(); i++) {
+      try {
+        results.add(responses.get(i).get());
+      } catch (JedisNoScriptException e) {
+        results.add(eval(jedis, keys.get(i), args.apply(i)));
+      } catch (JedisRedirectionException e) {
+        // The other calls have run, the pipeline can't be retried as a whole.
+        results.add(e);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Whether a result of {@link #evalPipelined(Jedis, List, List)} is a call which was redirected
+   * to another node of a cluster and has to run again with
+   * {@link #eval(RedisConnectionProvider, List, List)}.
+   */
+  public static boolean isRedirected(Object result) {
+    return result instanceof JedisRedirectionException;
+  }
+
+  public String load(Jedis jedis) {
+    String loadedSha = jedis.scriptLoad(script);
+    sha = loadedSha;
+    return loadedSha;
+  }
+
+  public String script() {
+    return script;
+  }
+}
@@ -0,0 +1,332 @@
+package org.example;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sliding window counter which splits the window into buckets, the first approach described in
+ * {@link SlidingWindowCountStrategy}.
+ * <p>Every key has a ring of {@code buckets + 1} counts in an {@code int[]}, one per bucket length
+ * (window length / buckets), and the sum of the ring. The current bucket and the {@code buckets}
+ * before it always cover the whole sliding window plus at most one bucket length, so the sum never
+ * misses a request of the last window length: unlike the weighted count of the two fixed windows,
+ * which assumes the previous window was spread evenly, no burst at a window edge can go over the
+ * limit. The price is that a request is still counted up to one bucket length after it left the
+ * window, so a client may be rejected up to a bucket length early.
+ * <p>More buckets mean less of that, at 4 bytes per bucket and key: 10 buckets reject at most a
+ * tenth of a window early for 44 bytes, 60 buckets of a one minute window one second for 244 bytes.
+ * <p>A decision adds to the current bucket and the sum, it never walks the ring. Moving to the
+ * next bucket subtracts the bucket which drops out of the window from the sum, once per bucket
+ * length and at most {@code buckets + 1} times however long the key was idle, so the cost doesn't
+ * grow with the number of buckets. Only the retry-after of a rejected decision looks at the buckets
+ * to find when enough of them have dropped out.
+ * <p>Every key is updated under its own monitor, for a few field and array writes. Keys whose
+ * buckets have all dropped out of the window are removed by {@link #evictExpiredKeys()}, or lazily
+ * when a new key is inserted into a limiter bounded by a {@link KeyCapacity}.
+ */
+public class SlidingWindowBucketStrategy implements RateLimiterStrategy {
+
+  private static final long REJECTED = Long.MIN_VALUE;
+  // The ring was evicted while we used it, resolve the key again.
+  private static final long EVICTED = Long.MIN_VALUE + 1;
+  // Keys looked at to make room for a new key in a full limiter.
+  private static final int EVICTION_SAMPLE_SIZE = 16;
+
+  private final int maxAllowedRequestsPerPeriod;
+  private final int buckets;
+  private final long bucketLengthInMilliSeconds;
+  private final Clock clock;
+  private final KeyCapacity keyCapacity;
+  private final LongAdder expiredEvictions = new LongAdder();
+  private final LongAdder capacityEvictions = new LongAdder();
+  private final LongAdder overflowDecisions = new LongAdder();
+  private final ConcurrentMap<String, Ring> rings = new ConcurrentHashMap<>();
+
+  /**
+   * @param buckets buckets the window is split into, the window length in milliseconds must be a
+   *     multiple of them
+   */
+  public SlidingWindowBucketStrategy(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod,
+      int buckets, Clock clock) {
+    this(timePeriodInSeconds, maxAllowedRequestsPerPeriod, buckets, clock, KeyCapacity.UNBOUNDED);
+  }
+
+  /**
+   * @param buckets buckets the window is split into, the window length in milliseconds must be a
+   *     multiple of them
+   */
+  public SlidingWindowBucketStrategy(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod,
+      int buckets, Clock clock, KeyCapacity keyCapacity) {
+    long windowLengthInMilliSeconds = timePeriodInSeconds * 1000L;
+    if (buckets < 1 || windowLengthInMilliSeconds % buckets != 0) {
+      throw new IllegalArgumentException("a window of " + windowLengthInMilliSeconds
+          + " ms can't be split into " + buckets + " buckets");
+    }
+    this.maxAllowedRequestsPerPeriod = maxAllowedRequestsPerPeriod;
+    this.buckets = buckets;
+    this.bucketLengthInMilliSeconds = windowLengthInMilliSeconds / buckets;
+    this.clock = clock;
+    this.keyCapacity = keyCapacity;
+  }
+
+  @Override
+  public boolean allowed(String key) {
+    return allowed(key, 1);
+  }
+
+  @Override
+  public boolean allowed(String key, int permits) {
+    return acquire(key, permits, null);
+  }
+
+  @Override
+  public Decision decide(String key, int permits, Decision decision) {
+    acquire(key, permits, decision);
+    return decision;
+  }
+
+  private boolean acquire(String key, int permits, Decision decision) {
+    if (permits < 1) {
+      throw new IllegalArgumentException("permits must be positive, was " + permits);
+    }
+    long now = clock.millis();
+    while (true) {
+      Ring ring = ringOf(key, now);
+      if (ring == null) {
+        boolean allowed = overflowDecision();
+        if (decision != null) {
+          // The key has no state: a new key has its whole quota, without one we can only tell
+          // that the sweep makes room within a window length.
+          decision.set(allowed, 0, allowed ? maxAllowedRequestsPerPeriod - permits : 0,
+              allowed ? 0 : buckets * bucketLengthInMilliSeconds);
+        }
+        return allowed;
+      }
+      long acquiredBucket = ring.tryAcquire(now, permits, decision);
+      if (acquiredBucket != EVICTED) {
+        return acquiredBucket != REJECTED;
+      }
+    }
+  }
+
+  @Override
+  public boolean[] allowedAll(List<String> keys, boolean allOrNothing) {
+    long now = clock.millis();
+    int size = keys.size();
+    Ring[] acquiredRings = new Ring[size];
+    long[] acquiredBuckets = new long[size];
+    boolean[] decisions = new boolean[size];
+    boolean allAllowed = true;
+    for (int i = 0; i < size; i++) {
+      do {
+        acquiredRings[i] = ringOf(keys.get(i), now);
+        acquiredBuckets[i] = acquiredRings[i] == null ? REJECTED
+            : acquiredRings[i].tryAcquire(now, 1, null);
+      } while (acquiredBuckets[i] == EVICTED);
+      decisions[i] = acquiredRings[i] == null
+          ? overflowDecision() : acquiredBuckets[i] != REJECTED;
+      allAllowed &= decisions[i];
+    }
+
+    // One of the limits rejected the request, so give the quota back to the others.
+    if (allOrNothing && !allAllowed) {
+      for (int i = 0; i < size; i++) {
+        if (acquiredBuckets[i] != REJECTED) {
+          acquiredRings[i].release(acquiredBuckets[i], 1);
+        }
+      }
+    }
+    return decisions;
+  }
+
+  private Ring ringOf(String key, long now) {
+    // Plain get first: computeIfAbsent would allocate a capturing lambda on every call.
+    Ring ring = rings.get(key);
+    if (ring != null) {
+      return ring;
+    }
+    // The limiter is full: make room for the new key, or let the overflow policy decide.
+    if (keyCapacity.isBounded() && rings.size() >= keyCapacity.maxKeys() && !makeRoom(now)) {
+      return null;
+    }
+    return rings.computeIfAbsent(key, k -> new Ring(now, buckets + 1));
+  }
+
+  private boolean overflowDecision() {
+    overflowDecisions.increment();
+    return keyCapacity.overflowPolicy() == KeyCapacity.OverflowPolicy.ALLOW;
+  }
+
+  // Evicts one key of a small random sample: an expired one if there is any, otherwise the least
+  // recently used one if the policy allows it.
+  private boolean makeRoom(long now) {
+    Map.Entry<String, Ring> leastRecentlyUsed = null;
+    for (Map.Entry<String, Ring> entry : KeySample.of(rings, EVICTION_SAMPLE_SIZE)) {
+      Ring ring = entry.getValue();
+      if (ring.evict(now, true)) {
+        rings.remove(entry.getKey(), ring);
+        expiredEvictions.increment();
+        return true;
+      }
+      if (leastRecentlyUsed == null || ring.lastAccess < leastRecentlyUsed.getValue().lastAccess) {
+        leastRecentlyUsed = entry;
+      }
+    }
+    if (keyCapacity.overflowPolicy() == KeyCapacity.OverflowPolicy.EVICT_LEAST_RECENTLY_USED
+        && leastRecentlyUsed != null && leastRecentlyUsed.getValue().evict(now, false)) {
+      rings.remove(leastRecentlyUsed.getKey(), leastRecentlyUsed.getValue());
+      capacityEvictions.increment();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Removes all keys whose buckets have all dropped out of the window. Such a key counts nothing
+   * anymore, so dropping it doesn't change any decision.
+   *
+   * @return number of evicted keys
+   */
+  public int evictExpiredKeys() {
+    long now = clock.millis();
+    int evicted = 0;
+    for (Map.Entry<String, Ring> entry : rings.entrySet()) {
+      if (entry.getValue().evict(now, true)) {
+        rings.remove(entry.getKey(), entry.getValue());
+        evicted++;
+      }
+    }
+    expiredEvictions.add(evicted);
+    return evicted;
+  }
+
+  /**
+   * Runs {@link #evictExpiredKeys()} periodically on the given scheduler, which stays owned by the
+   * caller. Cancel the returned future to stop it.
+   */
+  public ScheduledFuture<?> scheduleEviction(ScheduledExecutorService scheduler,
+      Duration interval) {
+    return scheduler.scheduleWithFixedDelay(this::evictExpiredKeys, interval.toMillis(),
+        interval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public long liveKeys() {
+    return rings.size();
+  }
+
+  public KeyMetrics keyMetrics() {
+    return new KeyMetrics(rings.size(), expiredEvictions.sum(), capacityEvictions.sum(),
+        overflowDecisions.sum());
+  }
+
+  /**
+   * @return bytes of the counts of one key, for sizing the number of buckets
+   */
+  public int bytesPerKey() {
+    return (buckets + 1) * Integer.BYTES;
+  }
+
+  // Buckets of one key: the current bucket at head, the ones before it behind it.
+  private final class Ring {
+
+    private final int[] counts;
+    private int head;
+    private long currentBucketStart;
+    private int sum;
+    // Read without the monitor to pick the least recently used key, a stale value only makes the
+    // pick less exact.
+    private long lastAccess;
+    private boolean evicted;
+
+    private Ring(long now, int length) {
+      this.counts = new int[length];
+      this.currentBucketStart = now;
+      this.lastAccess = now;
+    }
+
+    private synchronized long tryAcquire(long now, int permits, Decision decision) {
+      if (evicted) {
+        return EVICTED;
+      }
+      lastAccess = now;
+      advance(now);
+      if ((long) sum + permits > maxAllowedRequestsPerPeriod) {
+        if (decision != null) {
+          decision.set(false, sum, Math.max(0, maxAllowedRequestsPerPeriod - sum),
+              retryAfterMillis(now, permits));
+        }
+        return REJECTED;
+      }
+      counts[head] += permits;
+      sum += permits;
+      if (decision != null) {
+        decision.set(true, sum - permits, maxAllowedRequestsPerPeriod - sum, 0);
+      }
+      return currentBucketStart;
+    }
+
+    // Moves the head to the bucket of now. The buckets in between had no requests, only the ones
+    // dropping out of the window are subtracted, at most the whole ring.
+    private void advance(long now) {
+      long elapsedBuckets = (now - currentBucketStart) / bucketLengthInMilliSeconds;
+      if (elapsedBuckets <= 0) {
+        return;
+      }
+      int steps = (int) Math.min(elapsedBuckets, counts.length);
+      for (int i = 0; i < steps; i++) {
+        head = head + 1 == counts.length ? 0 : head + 1;
+        sum -= counts[head];
+        counts[head] = 0;
+      }
+      currentBucketStart += elapsedBuckets * bucketLengthInMilliSeconds;
+    }
+
+    // The oldest bucket drops out when the head moves on, the next one a bucket length later, and
+    // so on: the earliest time enough of them are gone for the permits to fit.
+    private long retryAfterMillis(long now, int permits) {
+      if (permits > maxAllowedRequestsPerPeriod) {
+        return Decision.NEVER;
+      }
+      int left = sum;
+      for (int i = 1; i <= counts.length; i++) {
+        left -= counts[(head + i) % counts.length];
+        if (left + permits <= maxAllowedRequestsPerPeriod) {
+          return currentBucketStart + i * bucketLengthInMilliSeconds - now;
+        }
+      }
+      // Not reached: once every bucket dropped out nothing is counted.
+      return Decision.NEVER;
+    }
+
+    private synchronized void release(long acquiredBucket, int permits) {
+      long bucketsAgo = (currentBucketStart - acquiredBucket) / bucketLengthInMilliSeconds;
+      if (evicted || bucketsAgo >= counts.length) {
+        // The bucket dropped out of the window, the request doesn't count anymore anyway.
+        return;
+      }
+      int index = (int) ((head - bucketsAgo + counts.length) % counts.length);
+      counts[index] -= permits;
+      sum -= permits;
+    }
+
+    // With onlyIfExpired, only once every bucket dropped out of the window. A decision which
+    // resolved the ring before sees the flag and resolves its key again.
+    private synchronized boolean evict(long now, boolean onlyIfExpired) {
+      if (evicted || onlyIfExpired
+          && now - currentBucketStart < counts.length * bucketLengthInMilliSeconds) {
+        return false;
+      }
+      evicted = true;
+      return true;
+    }
+  }
+}
@@ -1,77 +1,271 @@
 package org.example;
 
 import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
 import redis.clients.jedis.Jedis;
 
+/**
+ * Distributed version of the {@link SlidingWindowCountStrategy} which keeps the previous and the
+ * current fixed window of every key in Redis, so all instances of the rate limiter share the same
+ * counters.
+ * <p>The whole decision - rolling over to a new fixed window, calculating the weighted count of
+ * the sliding window and incrementing the current window - runs inside one Lua script. That makes
+ * every decision a single network round trip (EVALSHA) and atomic across all gateway nodes, so
+ * concurrent nodes can not read the same count and both go over the limit.
+ * <p>The script also sets a TTL of two window lengths on the keys it writes. After that time the
+ * previous window has no weight in the sliding window anymore, so idle keys simply expire.
+ * <p>Batches of keys are pipelined, one script call per key in a single round trip. All-or-nothing
+ * batches pass every key to one script call instead, which first checks all keys and only then
+ * counts the request, so a key that rejects it leaves the quota of the others untouched.
+ * <p>The two windows of a key are hash-tagged with the key ({@code {key}:prev}, {@code {key}:cur},
+ * see {@link RedisKeys}), so on a Redis Cluster they live in the same slot and a decision is still
+ * one script call on one node. Batches are pipelined per node. The keys of an all-or-nothing batch
+ * are checked by one script, so on a cluster they must share a hash tag, e.g.
+ * {@code {tenant-1}:user-7} and {@code {tenant-1}:ip-10.0.0.1}, or Redis rejects the script with
+ * CROSSSLOT.
+ * <p>Connections are taken from a {@link RedisConnectionProvider}, typically a
+ * {@link JedisPoolConnectionProvider}, so the strategy can be shared by any number of threads.
+ * <p>The limit of a key is resolved on every decision by a {@link LimitResolver} and passed to
+ * the script, so limits can change at runtime without touching the counts in Redis.
+ */
 public class SlidingWindowCountDistributedUsingRedisStrategy implements RateLimiterStrategy {
 
-  private final int maxAllowedRequestsPerPeriod;
+  // KEYS - pairs of previous and current fixed window hashes, one pair per limited key.
+  // ARGV[1] - window length in milliseconds, ARGV[2] - max allowed requests, ARGV[3] - now,
+  // ARGV[4] - 1 when no key may consume quota unless every key allows the request,
+  // ARGV[5] - permits the request takes from every key, ARGV[4 + 2i] and ARGV[5 + 2i] - optional
+  // window length and max allowed requests of the i-th key, overriding ARGV[1] and ARGV[2] (the
+  // tiers of a HierarchicalSlidingWindowCountDistributedUsingRedisStrategy).
+  // Returns three values per key: the decision (1 when the request is allowed, 0 when it is
+  // rejected), the weighted count and the milliseconds until a rejected request fits (-1 never).
+  static final RedisScript SLIDING_WINDOW_SCRIPT = new RedisScript("""
+      local defaultWindow = tonumber(ARGV[1])
+      local defaultLimit = tonumber(ARGV[2])
+      -- Window and limit of the key being checked, read by retryAfter as well.
+      local window = defaultWindow
+      local limit = defaultLimit
+      local now = tonumber(ARGV[3])
+      local allOrNothing = ARGV[4] == '1'
+      local permits = tonumber(ARGV[5])
+
+      -- Earliest time the permits fit, solved from the linearly falling previous window weight.
+      local function retryAfter(previousTimestamp, previousCount, currentTimestamp, currentCount)
+        local budget = limit - permits - currentCount
+        local earliest = now
+        local latest = currentTimestamp + window + 1
+        if budget < 0 then
+          -- Not before the current window rolled over and became the previous one.
+          budget = limit - permits
+          if budget < 0 then
+            return -1
+          end
+          previousTimestamp = currentTimestamp
+          previousCount = currentCount
+          earliest = latest
+          latest = math.huge
+        end
+        if previousCount <= budget then
+          return earliest - now
+        end
+        local retryAt = previousTimestamp + 2 * window
+            - math.ceil(window * (budget + 1) / previousCount) + 1
+        return math.min(math.max(retryAt, earliest), latest) - now
+      end
+
+      local decisions = {}
+      local currentTimestamps = {}
+      local windows = {}
+      -- Permits taken earlier in this call, per current window key (same key twice in a batch).
+      local pending = {}
+      local allAllowed = true
+      for i = 1, #KEYS / 2 do
+        local previousKey = KEYS[2 * i - 1]
+        local currentKey = KEYS[2 * i]
+        window = tonumber(ARGV[4 + 2 * i]) or defaultWindow
+        limit = tonumber(ARGV[5 + 2 * i]) or defaultLimit
+        windows[i] = window
+        local previous = redis.call('HMGET', previousKey, 'timestamp', 'count')
+        local current = redis.call('HMGET', currentKey, 'timestamp', 'count')
+        local previousTimestamp = tonumber(previous[1]) or now
+        local previousCount = tonumber(previous[2]) or 0
+        local currentTimestamp = tonumber(current[1]) or now
+        local currentCount = tonumber(current[2]) or 0
+
+        -- Transition to a new fixed window when the current one expires.
+        if currentTimestamp + window < now then
+          previousTimestamp = currentTimestamp
+          previousCount = currentCount
+          currentTimestamp = now
+          currentCount = 0
+          redis.call('HSET', previousKey, 'timestamp', previousTimestamp, 'count', previousCount)
+          redis.call('HSET', currentKey, 'timestamp', currentTimestamp, 'count', currentCount)
+          redis.call('PEXPIRE', previousKey, 2 * window)
+          redis.call('PEXPIRE', currentKey, 2 * window)
+        end
+        currentCount = currentCount + (pending[currentKey] or 0)
+
+        -- Weight of the previous window based on overlap with the sliding window.
+        local slidingWindowStart = math.max(0, now - window)
+        local previousWeight = math.max(0, previousTimestamp + window - slidingWindowStart) / window
+        local count = math.floor(previousCount * previousWeight + currentCount)
+
+        if count + permits <= limit then
+          decisions[3 * i - 2] = 1
+          decisions[3 * i] = 0
+          pending[currentKey] = (pending[currentKey] or 0) + permits
+        else
+          decisions[3 * i - 2] = 0
+          decisions[3 * i] = retryAfter(previousTimestamp, previousCount, currentTimestamp,
+              currentCount)
+          allAllowed = false
+        end
+        decisions[3 * i - 1] = count
+        currentTimestamps[i] = currentTimestamp
+      end
+
+      -- Count the request only now, so a rejection by one key leaves the others untouched.
+      if allAllowed or not allOrNothing then
+        for i = 1, #KEYS / 2 do
+          if decisions[3 * i - 2] == 1 then
+            local currentKey = KEYS[2 * i]
+            redis.call('HSET', currentKey, 'timestamp', currentTimestamps[i])
+            redis.call('HINCRBY', currentKey, 'count', permits)
+            redis.call('PEXPIRE', currentKey, 2 * windows[i])
+          end
+        end
+      end
+      return decisions
+      """);
+
+  private static final Long ALLOWED = 1L;
+
+  private final LimitResolver limits;
   private final int timePeriodInSeconds;
   private final Clock clock;
-  private final Jedis jedis;
+  private final RedisConnectionProvider connections;
 
   public SlidingWindowCountDistributedUsingRedisStrategy(int timePeriodInSeconds,
-      int maxAllowedRequestsPerPeriod, Clock clock, Jedis jedis) {
+      int maxAllowedRequestsPerPeriod, Clock clock, RedisConnectionProvider connections) {
+    this(timePeriodInSeconds, LimitResolver.fixed(maxAllowedRequestsPerPeriod), clock,
+        connections);
+  }
+
+  public SlidingWindowCountDistributedUsingRedisStrategy(int timePeriodInSeconds,
+      LimitResolver limits, Clock clock, RedisConnectionProvider connections) {
     this.timePeriodInSeconds = timePeriodInSeconds;
-    this.maxAllowedRequestsPerPeriod = maxAllowedRequestsPerPeriod;
+    this.limits = limits;
     this.clock = clock;
-    this.jedis = jedis;
+    this.connections = connections;
   }
 
-  public boolean allowed(String key) {
-    long now = clock.millis();
-    long windowLengthInMilliSeconds = timePeriodInSeconds * 1000L;
+  // A single connection is not thread-safe, calls on it are serialized by the provider.
+  public SlidingWindowCountDistributedUsingRedisStrategy(int timePeriodInSeconds,
+      int maxAllowedRequestsPerPeriod, Clock clock, Jedis jedis) {
+    this(timePeriodInSeconds, maxAllowedRequestsPerPeriod, clock,
+        RedisConnectionProvider.of(jedis));
+  }
 
-    String previousFixedWindowKey = key + ":previous";
-    String currentFixedWindowKey = key + ":current";
+  public boolean allowed(String key) {
+    return allowed(key, 1);
+  }
 
-    // Initialize or retrieve the fixed windows from Redis.
-    FixedWindow previousFixedWindow = retrieveFixedWindow(jedis, previousFixedWindowKey, now);
-    FixedWindow currentFixedWindow = retrieveFixedWindow(jedis, currentFixedWindowKey, now);
+  @Override
+  public boolean allowed(String key, int permits) {
+    return ALLOWED.equals(eval(key, limits.limitOf(key), permits).get(0));
+  }
 
-    // Transition to a new fixed window when the current one expires.
-    if (currentFixedWindow.timestamp() + windowLengthInMilliSeconds < now) {
-      previousFixedWindow = currentFixedWindow;
-      currentFixedWindow = new FixedWindow(now, 0);
-      saveFixedWindow(jedis, previousFixedWindowKey, previousFixedWindow);
-      saveFixedWindow(jedis, currentFixedWindowKey, currentFixedWindow);
+  @Override
+  public Decision decide(String key, int permits, Decision decision) {
+    int maxAllowedRequestsPerPeriod = limits.limitOf(key);
+    List<?> result = eval(key, maxAllowedRequestsPerPeriod, permits);
+    int count = ((Long) result.get(1)).intValue();
+    if (ALLOWED.equals(result.get(0))) {
+      return decision.set(true, count, maxAllowedRequestsPerPeriod - count - permits, 0);
     }
+    return decision.set(false, count, Math.max(0, maxAllowedRequestsPerPeriod - count),
+        (Long) result.get(2));
+  }
 
-    long slidingWindowStart = Math.max(0, now - windowLengthInMilliSeconds);
-    long previousFixedWindowEnd = previousFixedWindow.timestamp() + windowLengthInMilliSeconds;
-
-    double previousFixedWindowWeight = Math.max(0, previousFixedWindowEnd - slidingWindowStart)
-        / (double) windowLengthInMilliSeconds;
+  private List<?> eval(String key, int maxAllowedRequestsPerPeriod, int permits) {
+    if (permits < 1) {
+      throw new IllegalArgumentException("permits must be positive, was " + permits);
+    }
+    long now = clock.millis();
 
-    int count = (int) (previousFixedWindow.count() * previousFixedWindowWeight
-        + currentFixedWindow.count());
+    // One atomic round trip: window roll-over, weighted count and increment happen in Redis.
+    List<String> keys = fixedWindowKeys(key);
+    List<String> args = scriptArgs(now, maxAllowedRequestsPerPeriod, false, permits);
+    return connections.execute(keys.get(1),
+        jedis -> (List<?>) SLIDING_WINDOW_SCRIPT.eval(jedis, keys, args));
+  }
 
-    // int countCeiling = (int) Math.ceil((previousFixedWindow.count() * previousFixedWindowWeight + currentFixedWindow.count()));
+  @Override
+  public boolean[] allowedAll(List<String> keys, boolean allOrNothing) {
+    if (keys.isEmpty()) {
+      return new boolean[0];
+    }
+    long now = clock.millis();
+    boolean[] decisions = new boolean[keys.size()];
 
-    if (count >= maxAllowedRequestsPerPeriod) {
-      return false;
-    } else {
-      currentFixedWindow = new FixedWindow(currentFixedWindow.timestamp(),
-          currentFixedWindow.count() + 1);
-      saveFixedWindow(jedis, currentFixedWindowKey, currentFixedWindow);
-      return true;
+    if (allOrNothing) {
+      // All keys in one script call, so the keys are checked and counted in one atomic step.
+      List<String> scriptKeys = new ArrayList<>(keys.size() * 2);
+      List<String> args = new ArrayList<>(5 + keys.size() * 2);
+      args.addAll(scriptArgs(now, 0, true, 1));
+      String windowLengthInMilliSeconds = args.get(0);
+      for (String key : keys) {
+        scriptKeys.addAll(fixedWindowKeys(key));
+        // Window length and limit of every key, read by the script like those of tiers, so the
+        // limit of the common arguments is never used.
+        args.add(windowLengthInMilliSeconds);
+        args.add(String.valueOf(limits.limitOf(key)));
+      }
+      List<?> results = connections.execute(scriptKeys.get(1),
+          jedis -> (List<?>) SLIDING_WINDOW_SCRIPT.eval(jedis, scriptKeys, args));
+      for (int i = 0; i < decisions.length; i++) {
+        decisions[i] = ALLOWED.equals(results.get(3 * i));
+      }
+      return decisions;
     }
-  }
 
-  private FixedWindow retrieveFixedWindow(Jedis jedis, String key, long now) {
-    String timestampStr = jedis.hget(key, "timestamp");
-    String countStr = jedis.hget(key, "count");
-    long timestamp = timestampStr != null ? Long.parseLong(timestampStr) : now;
-    int count = countStr != null ? Integer.parseInt(countStr) : 0;
-    return new FixedWindow(timestamp, count);
+    // Independent decisions: one script call per key, pipelined in one round trip per node.
+    List<String> currentKeys = new ArrayList<>(keys.size());
+    for (String key : keys) {
+      currentKeys.add(RedisKeys.of(key, "cur"));
+    }
+    for (List<Integer> node : connections.groupByNode(currentKeys)) {
+      List<List<String>> scriptKeys = new ArrayList<>(node.size());
+      List<List<String>> args = new ArrayList<>(node.size());
+      for (int i : node) {
+        scriptKeys.add(fixedWindowKeys(keys.get(i)));
+        args.add(scriptArgs(now, limits.limitOf(keys.get(i)), false, 1));
+      }
+      List<Object> results = connections.execute(currentKeys.get(node.get(0)),
+          jedis -> SLIDING_WINDOW_SCRIPT.evalPipelined(jedis, scriptKeys, args::get));
+      for (int i = 0; i < node.size(); i++) {
+        Object result = results.get(i);
+        if (RedisScript.isRedirected(result)) {
+          // The slot moved since the keys were grouped by node, the call did not run.
+          result = SLIDING_WINDOW_SCRIPT.eval(connections, scriptKeys.get(i), args.get(i));
+        }
+        decisions[node.get(i)] = ALLOWED.equals(((List<?>) result).get(0));
+      }
+    }
+    return decisions;
   }
 
-  private void saveFixedWindow(Jedis jedis, String key, FixedWindow fixedWindow) {
-    jedis.hset(key, "timestamp", String.valueOf(fixedWindow.timestamp()));
-    jedis.hset(key, "count", String.valueOf(fixedWindow.count()));
+  static List<String> fixedWindowKeys(String key) {
+    String previousFixedWindowKey = RedisKeys.of(key, "prev");
+    String currentFixedWindowKey = RedisKeys.of(key, "cur");
+    return List.of(previousFixedWindowKey, currentFixedWindowKey);
   }
 
-  private record FixedWindow(long timestamp, int count) {
-
+  private List<String> scriptArgs(long now, int maxAllowedRequestsPerPeriod, boolean allOrNothing,
+      int permits) {
+    long windowLengthInMilliSeconds = timePeriodInSeconds * 1000L;
+    return List.of(String.valueOf(windowLengthInMilliSeconds),
+        String.valueOf(maxAllowedRequestsPerPeriod), String.valueOf(now),
+        allOrNothing ? "1" : "0", String.valueOf(permits));
   }
 }
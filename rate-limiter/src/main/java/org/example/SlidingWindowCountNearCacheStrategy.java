@@ -0,0 +1,441 @@
+package org.example;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+
+/**
+ * Hybrid of the {@link SlidingWindowCountStrategy} and the
+ * {@link SlidingWindowCountDistributedUsingRedisStrategy}: decisions are made against local
+ * counters, and Redis only aggregates the counts of all instances in the background.
+ * <p>Every instance counts the requests it allowed per key in memory. A periodic {@link #sync()}
+ * adds those increments to the global count of the key's fixed window in Redis (pipelined INCRBY,
+ * one round trip per Redis node) and takes the global counts of the previous and the current fixed
+ * window back as the base of the following local decisions. This is the approach Cloudflare
+ * describes for its rate limiter: no decision waits for Redis, so Redis latency is off the request
+ * path and the load on Redis grows with the number of keys and instances, not with the requests.
+ * <p>The price is precision. Between two syncs an instance doesn't see what the others allowed, so
+ * the global count can go over the limit. Each instance allows at most maxUnsyncedPermits permits
+ * per key which Redis doesn't know yet, which bounds that overshoot to
+ * {@code 2 * (instances - 1) * maxUnsyncedPermits} over the limit: the others' unsynced permits
+ * plus the ones they synced after our last pull. A weighted request costing more than
+ * maxUnsyncedPermits is allowed only while a key has no unsynced permits, so it is the one batch
+ * of its key until the next sync and raises the bound to its cost. Size it to what an instance
+ * allows per key during one sync interval, a smaller value trades rejections for precision. This
+ * holds for a key new to an instance as well: it starts from a count of 0, and the instance pulls
+ * its global count with the first sync after its first request.
+ * <p>Fixed windows start at multiples of the window length, so all instances count into the same
+ * Redis keys. When Redis is unreachable the strategy degrades to local-only limiting: the
+ * unsynced permits are kept for the next sync, and the bound on them is lifted so an instance
+ * keeps admitting up to the full limit on its own instead of rejecting everything.
+ * <p>The state of a key is updated under the monitor of the key, the map lookup stays lock-free.
+ */
+public class SlidingWindowCountNearCacheStrategy implements RateLimiterStrategy {
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(SlidingWindowCountNearCacheStrategy.class);
+  private static final long REJECTED = Long.MIN_VALUE;
+
+  private final int maxAllowedRequestsPerPeriod;
+  private final int timePeriodInSeconds;
+  private final int maxUnsyncedPermits;
+  private final Clock clock;
+  private final RedisConnectionProvider connections;
+  private final LongAdder syncs = new LongAdder();
+  private final LongAdder failedSyncs = new LongAdder();
+  // Redis was unreachable on the last sync, decisions are local-only until a sync succeeds.
+  private volatile boolean degraded;
+  // Interval of the scheduled sync, bounds the retry-after of a request rejected for unsynced
+  // permits. 0 while no sync is scheduled.
+  private volatile long syncIntervalMillis;
+  private final ConcurrentMap<String, NearCacheWindow> userSlidingWindow =
+      new ConcurrentHashMap<>();
+
+  public SlidingWindowCountNearCacheStrategy(int timePeriodInSeconds,
+      int maxAllowedRequestsPerPeriod, int maxUnsyncedPermits, Clock clock,
+      RedisConnectionProvider connections) {
+    this.timePeriodInSeconds = timePeriodInSeconds;
+    this.maxAllowedRequestsPerPeriod = maxAllowedRequestsPerPeriod;
+    this.maxUnsyncedPermits = maxUnsyncedPermits;
+    this.clock = clock;
+    this.connections = connections;
+  }
+
+  @Override
+  public boolean allowed(String key) {
+    return acquire(key, 1, null) != REJECTED;
+  }
+
+  @Override
+  public boolean allowed(String key, int permits) {
+    return acquire(key, permits, null) != REJECTED;
+  }
+
+  @Override
+  public Decision decide(String key, int permits, Decision decision) {
+    acquire(key, permits, decision);
+    return decision;
+  }
+
+  @Override
+  public boolean[] allowedAll(List<String> keys, boolean allOrNothing) {
+    int size = keys.size();
+    long[] acquiredFixedWindows = new long[size];
+    boolean[] decisions = new boolean[size];
+    boolean allAllowed = true;
+    for (int i = 0; i < size; i++) {
+      acquiredFixedWindows[i] = acquire(keys.get(i), 1, null);
+      decisions[i] = acquiredFixedWindows[i] != REJECTED;
+      allAllowed &= decisions[i];
+    }
+
+    // One of the limits rejected the request, so give the quota back to the others.
+    if (allOrNothing && !allAllowed) {
+      for (int i = 0; i < size; i++) {
+        if (decisions[i]) {
+          release(keys.get(i), acquiredFixedWindows[i], 1);
+        }
+      }
+    }
+    return decisions;
+  }
+
+  // Local only, a decision never talks to Redis. Returns the start of the fixed window the
+  // permits were counted in, or REJECTED.
+  private long acquire(String key, int permits, Decision decision) {
+    if (permits < 1) {
+      throw new IllegalArgumentException("permits must be positive, was " + permits);
+    }
+    long now = clock.millis();
+    long windowLengthInMilliSeconds = timePeriodInSeconds * 1000L;
+    while (true) {
+      NearCacheWindow window = windowOf(key, now, windowLengthInMilliSeconds);
+      synchronized (window) {
+        if (window.evicted) {
+          // Removed by a sync in the meantime, resolve the key again.
+          continue;
+        }
+        window.rollOver(now, windowLengthInMilliSeconds);
+
+        // Same weighted count as the SlidingWindowCountStrategy, on the global counts as of the
+        // last sync plus what this instance allowed since.
+        double previousFixedWindowWeight =
+            (window.windowStart + windowLengthInMilliSeconds - now)
+                / (double) windowLengthInMilliSeconds;
+        long currentCount = window.currentCount + window.unsyncedPermits;
+        int count = (int) (window.previousCount * previousFixedWindowWeight + currentCount);
+
+        boolean withinLimit = (long) count + permits <= maxAllowedRequestsPerPeriod;
+        // A request costing more than maxUnsyncedPermits gets in alone, once per sync, or it
+        // would never get in.
+        boolean withinUnsynced = degraded || window.unsyncedPermits == 0
+            || (long) window.unsyncedPermits + permits <= maxUnsyncedPermits;
+        if (withinLimit && withinUnsynced) {
+          window.unsyncedPermits += permits;
+          if (decision != null) {
+            decision.set(true, count, maxAllowedRequestsPerPeriod - count - permits, 0);
+          }
+          return window.windowStart;
+        }
+        if (decision != null) {
+          long retryAfterMillis = !withinLimit
+              ? SlidingWindowCountStrategy.retryAfterMillis(now, windowLengthInMilliSeconds,
+                  maxAllowedRequestsPerPeriod, permits,
+                  window.windowStart - windowLengthInMilliSeconds, window.previousCount,
+                  window.windowStart, currentCount,
+                  window.windowStart + windowLengthInMilliSeconds)
+              // The limit has room, the permits only wait for the next sync or the roll-over,
+              // which starts a new batch of unsynced permits.
+              : unsyncedRetryAfterMillis(now - window.windowStart, windowLengthInMilliSeconds);
+          decision.set(false, count, Math.max(0, maxAllowedRequestsPerPeriod - count),
+              retryAfterMillis);
+        }
+        return REJECTED;
+      }
+    }
+  }
+
+  // Takes back permits of the same fixed window. A sync may have flushed them to Redis already,
+  // then the negative unsynced permits take them out of the global count with the next one. After
+  // a roll-over they count in the previous window, like the permits of the other strategies.
+  private void release(String key, long fixedWindowStart, int permits) {
+    NearCacheWindow window = userSlidingWindow.get(key);
+    if (window == null) {
+      return;
+    }
+    synchronized (window) {
+      if (!window.evicted && window.windowStart == fixedWindowStart) {
+        window.unsyncedPermits -= permits;
+      }
+    }
+  }
+
+  private NearCacheWindow windowOf(String key, long now, long windowLengthInMilliSeconds) {
+    // Plain get first: computeIfAbsent would allocate a capturing lambda on every call.
+    NearCacheWindow window = userSlidingWindow.get(key);
+    if (window != null) {
+      return window;
+    }
+    return userSlidingWindow.computeIfAbsent(key,
+        k -> new NearCacheWindow(now - now % windowLengthInMilliSeconds));
+  }
+
+  /**
+   * Adds the permits allowed since the last sync to the global counts in Redis and takes the
+   * global counts back, for all keys in one pipelined round trip per Redis node. Keys without any
+   * count in their sliding window are dropped. Runs one sync at a time.
+   */
+  public synchronized void sync() {
+    long now = clock.millis();
+    long windowLengthInMilliSeconds = timePeriodInSeconds * 1000L;
+
+    // Take the unsynced permits of every key, they are given back if Redis can't be reached.
+    List<String> keys = new ArrayList<>();
+    List<NearCacheWindow> windows = new ArrayList<>();
+    List<long[]> flushed = new ArrayList<>();
+    for (Map.Entry<String, NearCacheWindow> entry : userSlidingWindow.entrySet()) {
+      NearCacheWindow window = entry.getValue();
+      synchronized (window) {
+        window.rollOver(now, windowLengthInMilliSeconds);
+        if (window.isIdle()) {
+          window.evicted = true;
+          userSlidingWindow.remove(entry.getKey(), window);
+          continue;
+        }
+        keys.add(entry.getKey());
+        windows.add(window);
+        flushed.add(new long[]{window.windowStart, window.unsyncedPermits,
+            window.unsyncedPreviousPermits});
+        window.unsyncedPermits = 0;
+        window.unsyncedPreviousPermits = 0;
+      }
+    }
+    if (keys.isEmpty()) {
+      return;
+    }
+
+    // One pipelined round trip per Redis node, a node which can't be reached keeps its permits.
+    List<String> currentKeys = new ArrayList<>(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      currentKeys.add(fixedWindowKey(keys.get(i), flushed.get(i)[0]));
+    }
+    // Keys whose permits reached Redis or were given back.
+    boolean[] settled = new boolean[keys.size()];
+    boolean failed = false;
+    boolean redirected = false;
+    try {
+      for (List<Integer> node : connections.groupByNode(currentKeys)) {
+        List<Object> results;
+        try {
+          results = connections.execute(currentKeys.get(node.get(0)), jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            for (int i : node) {
+              long[] permits = flushed.get(i);
+              // INCRBY returns the global count including every instance, INCRBY 0 just reads it.
+              String currentKey = currentKeys.get(i);
+              String previousKey =
+                  fixedWindowKey(keys.get(i), permits[0] - windowLengthInMilliSeconds);
+              pipeline.incrBy(currentKey, permits[1]);
+              pipeline.pexpire(currentKey, 2 * windowLengthInMilliSeconds);
+              pipeline.incrBy(previousKey, permits[2]);
+              pipeline.pexpire(previousKey, 2 * windowLengthInMilliSeconds);
+            }
+            return pipeline.syncAndReturnAll();
+          });
+        } catch (JedisException e) {
+          // Redis is unreachable: keep limiting locally and sync the permits later.
+          failed = true;
+          for (int i : node) {
+            giveBack(windows.get(i), flushed.get(i), windowLengthInMilliSeconds);
+            settled[i] = true;
+          }
+          continue;
+        }
+        for (int j = 0; j < node.size(); j++) {
+          int i = node.get(j);
+          NearCacheWindow window = windows.get(i);
+          long[] permits = flushed.get(i);
+          Object current = results.get(4 * j);
+          Object previous = results.get(4 * j + 2);
+          settled[i] = true;
+          synchronized (window) {
+            if (current instanceof Long globalCurrentCount
+                && previous instanceof Long globalPreviousCount) {
+              window.applyGlobalCounts(permits[0], globalCurrentCount, globalPreviousCount,
+                  windowLengthInMilliSeconds);
+              continue;
+            }
+            // A command of the pipeline failed on its own, e.g. the slot of the key moved to
+            // another node of a cluster. Keep the permits it didn't add for the next sync.
+            window.giveBack(permits[0], current instanceof Long ? 0 : (int) permits[1],
+                previous instanceof Long ? 0 : (int) permits[2], windowLengthInMilliSeconds);
+          }
+          if (current instanceof JedisRedirectionException
+              || previous instanceof JedisRedirectionException) {
+            redirected = true;
+          } else {
+            failed = true;
+          }
+        }
+      }
+    } catch (RuntimeException e) {
+      // Not an unreachable Redis, but the permits were taken all the same. Give back the ones
+      // which didn't reach Redis, or they would be lost and their keys evicted as idle.
+      for (int i = 0; i < settled.length; i++) {
+        if (!settled[i]) {
+          giveBack(windows.get(i), flushed.get(i), windowLengthInMilliSeconds);
+        }
+      }
+      throw e;
+    }
+    if (redirected) {
+      // The next sync sends the keys to the node which owns them now.
+      connections.refreshNodes();
+    }
+    if (failed) {
+      failedSyncs.increment();
+    } else {
+      syncs.increment();
+    }
+    degraded = failed;
+  }
+
+  private static void giveBack(NearCacheWindow window, long[] permits,
+      long windowLengthInMilliSeconds) {
+    synchronized (window) {
+      window.giveBack(permits[0], (int) permits[1], (int) permits[2], windowLengthInMilliSeconds);
+    }
+  }
+
+  private long unsyncedRetryAfterMillis(long elapsedInWindow, long windowLengthInMilliSeconds) {
+    long untilRollOver = windowLengthInMilliSeconds - elapsedInWindow;
+    long interval = syncIntervalMillis;
+    return interval > 0 ? Math.min(interval, untilRollOver) : untilRollOver;
+  }
+
+  /**
+   * Runs {@link #sync()} periodically on the given scheduler, which stays owned by the caller.
+   * A sync which fails on something else than an unreachable Redis is counted in
+   * {@link #metrics()}, logged and retried with the next one. Cancel the returned future to stop
+   * it.
+   */
+  public ScheduledFuture<?> scheduleSync(ScheduledExecutorService scheduler, Duration interval) {
+    syncIntervalMillis = interval.toMillis();
+    return scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        sync();
+      } catch (RuntimeException e) {
+        // An exception would cancel the schedule, and the permits would never be synced again.
+        failedSyncs.increment();
+        logger.warn("Sync of the near cache with Redis failed", e);
+      }
+    }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public long liveKeys() {
+    return userSlidingWindow.size();
+  }
+
+  public Metrics metrics() {
+    return new Metrics(syncs.sum(), failedSyncs.sum(), degraded, userSlidingWindow.size());
+  }
+
+  private static String fixedWindowKey(String key, long windowStart) {
+    return RedisKeys.of(key, String.valueOf(windowStart));
+  }
+
+  /**
+   * Point in time snapshot of the synchronization with Redis.
+   *
+   * @param syncs successful syncs
+   * @param failedSyncs syncs which could not reach Redis or add every count to it
+   * @param degraded true while decisions are local-only because the last sync failed
+   * @param liveKeys keys currently holding state
+   */
+  public record Metrics(long syncs, long failedSyncs, boolean degraded, long liveKeys) {
+
+  }
+
+  // Local view of the sliding window of one key, guarded by its monitor.
+  private static final class NearCacheWindow {
+
+    // Start of the current fixed window, a multiple of the window length.
+    private long windowStart;
+    // Global count of the previous fixed window as of the last sync, plus the permits this
+    // instance allowed in it.
+    private long previousCount;
+    // Global count of the current fixed window as of the last sync.
+    private long currentCount;
+    // Permits this instance allowed in the current and the previous fixed window which are not
+    // in Redis yet.
+    private int unsyncedPermits;
+    private int unsyncedPreviousPermits;
+    private boolean evicted;
+
+    private NearCacheWindow(long windowStart) {
+      this.windowStart = windowStart;
+    }
+
+    private void rollOver(long now, long windowLengthInMilliSeconds) {
+      long start = now - now % windowLengthInMilliSeconds;
+      if (start <= windowStart) {
+        return;
+      }
+      if (start == windowStart + windowLengthInMilliSeconds) {
+        // The current fixed window becomes the previous one, its unsynced permits still have to
+        // be added to its Redis key.
+        previousCount = currentCount + unsyncedPermits;
+        unsyncedPreviousPermits = unsyncedPermits;
+      } else {
+        // Idle for more than a window length, nothing of the old windows counts anymore.
+        previousCount = 0;
+        unsyncedPreviousPermits = 0;
+      }
+      currentCount = 0;
+      unsyncedPermits = 0;
+      windowStart = start;
+    }
+
+    // Neither fixed window counts anything and nothing is left to sync, a new window would start
+    // from the same state.
+    private boolean isIdle() {
+      return previousCount == 0 && currentCount == 0
+          && unsyncedPermits == 0 && unsyncedPreviousPermits == 0;
+    }
+
+    // The windows may have rolled over while the sync was in flight.
+    private void applyGlobalCounts(long syncedWindowStart, long globalCurrentCount,
+        long globalPreviousCount, long windowLengthInMilliSeconds) {
+      if (windowStart == syncedWindowStart) {
+        currentCount = globalCurrentCount;
+        previousCount = globalPreviousCount + unsyncedPreviousPermits;
+      } else if (windowStart == syncedWindowStart + windowLengthInMilliSeconds) {
+        previousCount = globalCurrentCount + unsyncedPreviousPermits;
+      }
+    }
+
+    private void giveBack(long syncedWindowStart, int permits, int previousPermits,
+        long windowLengthInMilliSeconds) {
+      if (windowStart == syncedWindowStart) {
+        unsyncedPermits += permits;
+        unsyncedPreviousPermits += previousPermits;
+      } else if (windowStart == syncedWindowStart + windowLengthInMilliSeconds) {
+        unsyncedPreviousPermits += permits;
+      }
+    }
+  }
+}
@@ -0,0 +1,440 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sliding window counter with the state of the keys in an open-addressing hash table off the
+ * Java heap, for limiters holding millions of keys.
+ * <p>A {@link SlidingWindowCountStrategy} keeps a String and a SlidingWindow object per key in a
+ * ConcurrentHashMap: object headers, pointers to chase, and millions of long-lived objects which
+ * the garbage collector keeps copying and scanning, which shows up as long old-gen pauses. This
+ * strategy keeps a fixed-size slot per key in direct {@link ByteBuffer}s instead: the 64-bit hash
+ * of the key, the start of its current fixed window, both fixed window counts and the last access.
+ * The key itself is not stored, two keys with the same 64-bit hash share their counts: among a
+ * billion live keys a key has such a twin with a probability of about 5 * 10^-11. The heap only
+ * holds the few segment objects, decisions allocate nothing, and the table is sized once from the
+ * {@link KeyCapacity}.
+ * <p>The table is split into segments with a lock each (lock striping), a key's hash picks its
+ * segment and its home slot in it, and collisions probe the next slots (linear probing). A
+ * decision holds the lock of one segment for a few plain reads and writes of its slot. Every
+ * segment holds at most maxKeys / segments keys. Fixed windows start at multiples of the window
+ * length, otherwise the weighted count is the one of the {@link SlidingWindowCountStrategy}.
+ * <p>Keys whose windows have both expired are reused for new keys on the probe path, and removed
+ * by {@link #evictExpiredKeys()}. When a segment is full the {@link KeyCapacity.OverflowPolicy}
+ * applies: evict the least recently used of a sample of its keys, reject or allow.
+ */
+public class SlidingWindowCountOffHeapStrategy implements RateLimiterStrategy {
+
+  private static final long REJECTED = Long.MIN_VALUE;
+  // Decided by the overflow policy, nothing was counted.
+  private static final long UNTRACKED = Long.MIN_VALUE + 1;
+  private static final long EMPTY = 0;
+  // Slot layout: hash, start of the current fixed window, previous and current count, last access.
+  private static final int SLOT_BYTES = 32;
+  private static final int HASH = 0;
+  private static final int WINDOW_START = 8;
+  private static final int PREVIOUS_COUNT = 16;
+  private static final int CURRENT_COUNT = 20;
+  private static final int LAST_ACCESS = 24;
+  // Probed slots looked at for the least recently used key of a full segment.
+  private static final int EVICTION_SAMPLE_SIZE = 16;
+
+  private final int maxAllowedRequestsPerPeriod;
+  private final int timePeriodInSeconds;
+  private final Clock clock;
+  private final KeyCapacity keyCapacity;
+  private final long seed;
+  private final int segmentShift;
+  private final Segment[] segments;
+  private final LongAdder expiredEvictions = new LongAdder();
+  private final LongAdder capacityEvictions = new LongAdder();
+  private final LongAdder overflowDecisions = new LongAdder();
+
+  /**
+   * @param keyCapacity bound of the keys, the off-heap table is allocated for maxKeys keys
+   */
+  public SlidingWindowCountOffHeapStrategy(int timePeriodInSeconds,
+      int maxAllowedRequestsPerPeriod, Clock clock, KeyCapacity keyCapacity) {
+    this(timePeriodInSeconds, maxAllowedRequestsPerPeriod, clock, keyCapacity,
+        Runtime.getRuntime().availableProcessors() * 4);
+  }
+
+  SlidingWindowCountOffHeapStrategy(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod,
+      Clock clock, KeyCapacity keyCapacity, int segments) {
+    if (!keyCapacity.isBounded()) {
+      throw new IllegalArgumentException("the off-heap table needs a bounded key capacity");
+    }
+    this.timePeriodInSeconds = timePeriodInSeconds;
+    this.maxAllowedRequestsPerPeriod = maxAllowedRequestsPerPeriod;
+    this.clock = clock;
+    this.keyCapacity = keyCapacity;
+    this.seed = ThreadLocalRandom.current().nextLong();
+
+    // Power of two segments, no more than there are keys.
+    int segmentCount = Integer.highestOneBit(Math.max(1, Math.min(segments,
+        keyCapacity.maxKeys())));
+    this.segmentShift = 64 - Integer.numberOfTrailingZeros(segmentCount);
+    int maxKeysPerSegment = (int) Math.ceil(keyCapacity.maxKeys() / (double) segmentCount);
+    // At most 75% of the slots in use, so probe sequences stay short, and always an empty slot to
+    // end them.
+    int slotsPerSegment =
+        Integer.highestOneBit(maxKeysPerSegment + maxKeysPerSegment / 3) << 1;
+    this.segments = new Segment[segmentCount];
+    for (int i = 0; i < segmentCount; i++) {
+      this.segments[i] = new Segment(slotsPerSegment, maxKeysPerSegment);
+    }
+  }
+
+  @Override
+  public boolean allowed(String key) {
+    return acquire(key, 1, null) != REJECTED;
+  }
+
+  @Override
+  public boolean allowed(String key, int permits) {
+    return acquire(key, permits, null) != REJECTED;
+  }
+
+  @Override
+  public Decision decide(String key, int permits, Decision decision) {
+    acquire(key, permits, decision);
+    return decision;
+  }
+
+  @Override
+  public boolean[] allowedAll(List<String> keys, boolean allOrNothing) {
+    int size = keys.size();
+    boolean[] decisions = new boolean[size];
+    long[] acquiredFixedWindows = new long[size];
+    boolean allAllowed = true;
+    for (int i = 0; i < size; i++) {
+      acquiredFixedWindows[i] = acquire(keys.get(i), 1, null);
+      decisions[i] = acquiredFixedWindows[i] != REJECTED;
+      allAllowed &= decisions[i];
+    }
+
+    if (allOrNothing && !allAllowed) {
+      for (int i = 0; i < size; i++) {
+        if (acquiredFixedWindows[i] != REJECTED && acquiredFixedWindows[i] != UNTRACKED) {
+          release(keys.get(i), acquiredFixedWindows[i], 1);
+        }
+      }
+    }
+    return decisions;
+  }
+
+  // Returns the fixed window the permits were counted in, REJECTED or UNTRACKED.
+  private long acquire(String key, int permits, Decision decision) {
+    if (permits < 1) {
+      throw new IllegalArgumentException("permits must be positive, was " + permits);
+    }
+    long now = clock.millis();
+    long windowLengthInMilliSeconds = timePeriodInSeconds * 1000L;
+    long windowStart = now - now % windowLengthInMilliSeconds;
+    long hash = hashOf(key);
+    Segment segment = segmentOf(hash);
+
+    synchronized (segment) {
+      int slot = segment.findOrInsert(hash, now, windowLengthInMilliSeconds);
+      if (slot < 0) {
+        boolean allowed = overflowDecision();
+        if (decision != null) {
+          decision.set(allowed, 0, allowed ? maxAllowedRequestsPerPeriod - permits : 0,
+              allowed ? 0 : windowLengthInMilliSeconds);
+        }
+        return allowed ? UNTRACKED : REJECTED;
+      }
+      ByteBuffer slots = segment.slots;
+      int offset = slot * SLOT_BYTES;
+      segment.rollOver(offset, windowStart, windowLengthInMilliSeconds);
+      slots.putLong(offset + LAST_ACCESS, now);
+
+      int previousCount = slots.getInt(offset + PREVIOUS_COUNT);
+      int currentCount = slots.getInt(offset + CURRENT_COUNT);
+      // Same weighted count as the SlidingWindowCountStrategy.
+      double previousFixedWindowWeight =
+          (windowStart + windowLengthInMilliSeconds - now) / (double) windowLengthInMilliSeconds;
+      int count = (int) (previousCount * previousFixedWindowWeight + currentCount);
+
+      if ((long) count + permits > maxAllowedRequestsPerPeriod) {
+        if (decision != null) {
+          decision.set(false, count, Math.max(0, maxAllowedRequestsPerPeriod - count),
+              SlidingWindowCountStrategy.retryAfterMillis(now, windowLengthInMilliSeconds,
+                  maxAllowedRequestsPerPeriod, permits, windowStart - windowLengthInMilliSeconds,
+                  previousCount, windowStart, currentCount,
+                  windowStart + windowLengthInMilliSeconds));
+        }
+        return REJECTED;
+      }
+      slots.putInt(offset + CURRENT_COUNT, currentCount + permits);
+      if (decision != null) {
+        decision.set(true, count, maxAllowedRequestsPerPeriod - count - permits, 0);
+      }
+      return windowStart;
+    }
+  }
+
+  // Takes back permits counted by acquire. The window may have rolled over in the meantime, then
+  // the permits are in the previous fixed window now.
+  private void release(String key, long acquiredFixedWindow, int permits) {
+    long hash = hashOf(key);
+    Segment segment = segmentOf(hash);
+    synchronized (segment) {
+      int slot = segment.find(hash);
+      if (slot < 0) {
+        return;
+      }
+      ByteBuffer slots = segment.slots;
+      int offset = slot * SLOT_BYTES;
+      long windowStart = slots.getLong(offset + WINDOW_START);
+      int countOffset;
+      if (windowStart == acquiredFixedWindow) {
+        countOffset = offset + CURRENT_COUNT;
+      } else if (windowStart == acquiredFixedWindow + timePeriodInSeconds * 1000L) {
+        countOffset = offset + PREVIOUS_COUNT;
+      } else {
+        return;
+      }
+      slots.putInt(countOffset, Math.max(0, slots.getInt(countOffset) - permits));
+    }
+  }
+
+  private boolean overflowDecision() {
+    overflowDecisions.increment();
+    return keyCapacity.overflowPolicy() == KeyCapacity.OverflowPolicy.ALLOW;
+  }
+
+  private long hashOf(String key) {
+    long hash = CountMinSketch.hash(key, seed);
+    // Zero marks an empty slot.
+    return hash == EMPTY ? 1 : hash;
+  }
+
+  private Segment segmentOf(long hash) {
+    return segments[segmentShift == 64 ? 0 : (int) (hash >>> segmentShift)];
+  }
+
+  /**
+   * Removes all keys whose previous and current fixed window have both expired.
+   *
+   * @return number of keys removed
+   */
+  public int evictExpiredKeys() {
+    long now = clock.millis();
+    long windowLengthInMilliSeconds = timePeriodInSeconds * 1000L;
+    int evicted = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        evicted += segment.removeExpired(now, windowLengthInMilliSeconds);
+      }
+    }
+    expiredEvictions.add(evicted);
+    return evicted;
+  }
+
+  /**
+   * Runs {@link #evictExpiredKeys()} periodically on the given scheduler, which stays owned by the
+   * caller. Cancel the returned future to stop it.
+   */
+  public ScheduledFuture<?> scheduleEviction(ScheduledExecutorService scheduler,
+      Duration interval) {
+    return scheduler.scheduleWithFixedDelay(this::evictExpiredKeys, interval.toMillis(),
+        interval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public long liveKeys() {
+    long liveKeys = 0;
+    for (Segment segment : segments) {
+      liveKeys += segment.size;
+    }
+    return liveKeys;
+  }
+
+  public KeyMetrics keyMetrics() {
+    return new KeyMetrics(liveKeys(), expiredEvictions.sum(), capacityEvictions.sum(),
+        overflowDecisions.sum());
+  }
+
+  /**
+   * @return bytes of the table outside the heap, allocated once for maxKeys keys
+   */
+  public long offHeapBytes() {
+    return (long) segments.length * segments[0].slots.capacity();
+  }
+
+  // One stripe of the table, guarded by its monitor.
+  private final class Segment {
+
+    private final ByteBuffer slots;
+    private final int mask;
+    private final int maxKeys;
+    // Written under the monitor, read by the gauges without it.
+    private volatile int size;
+
+    Segment(int slotCount, int maxKeys) {
+      this.slots = ByteBuffer.allocateDirect(slotCount * SLOT_BYTES).order(ByteOrder.nativeOrder());
+      this.mask = slotCount - 1;
+      this.maxKeys = maxKeys;
+    }
+
+    private int home(long hash) {
+      return (int) hash & mask;
+    }
+
+    int find(long hash) {
+      for (int slot = home(hash); ; slot = (slot + 1) & mask) {
+        long slotHash = slots.getLong(slot * SLOT_BYTES + HASH);
+        if (slotHash == hash) {
+          return slot;
+        }
+        if (slotHash == EMPTY) {
+          return -1;
+        }
+      }
+    }
+
+    // Slot of the key, inserted if needed, or -1 when the segment is full and the overflow policy
+    // doesn't evict.
+    int findOrInsert(long hash, long now, long windowLengthInMilliSeconds) {
+      int expiredSlot = -1;
+      int slot = home(hash);
+      while (true) {
+        int offset = slot * SLOT_BYTES;
+        long slotHash = slots.getLong(offset + HASH);
+        if (slotHash == hash) {
+          return slot;
+        }
+        if (slotHash == EMPTY) {
+          break;
+        }
+        if (expiredSlot < 0 && isExpired(offset, now, windowLengthInMilliSeconds)) {
+          expiredSlot = slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+
+      // The key is not in the table. An expired key on its probe path can hand over its slot, a
+      // lookup from the home slot passes it before the empty slot which ends the path.
+      if (expiredSlot >= 0) {
+        expiredEvictions.increment();
+        return claim(expiredSlot, hash, now);
+      }
+      if (size < maxKeys) {
+        size++;
+        return claim(slot, hash, now);
+      }
+      if (keyCapacity.overflowPolicy() != KeyCapacity.OverflowPolicy.EVICT_LEAST_RECENTLY_USED) {
+        return -1;
+      }
+      // Deleting shifts keys around, the empty slot ending the probe path may have moved.
+      delete(leastRecentlyUsed(home(hash)));
+      capacityEvictions.increment();
+      for (slot = home(hash); slots.getLong(slot * SLOT_BYTES + HASH) != EMPTY; ) {
+        slot = (slot + 1) & mask;
+      }
+      return claim(slot, hash, now);
+    }
+
+    // Approximate LRU, like Redis: the least recently used of the first keys from the given slot
+    // on, rather than a linked list through all the keys.
+    private int leastRecentlyUsed(int from) {
+      int leastRecentlyUsedSlot = -1;
+      long leastRecentAccess = Long.MAX_VALUE;
+      int sampled = 0;
+      for (int i = 0, slot = from; i <= mask && sampled < EVICTION_SAMPLE_SIZE;
+          i++, slot = (slot + 1) & mask) {
+        int offset = slot * SLOT_BYTES;
+        if (slots.getLong(offset + HASH) != EMPTY) {
+          sampled++;
+          if (slots.getLong(offset + LAST_ACCESS) < leastRecentAccess) {
+            leastRecentAccess = slots.getLong(offset + LAST_ACCESS);
+            leastRecentlyUsedSlot = slot;
+          }
+        }
+      }
+      return leastRecentlyUsedSlot;
+    }
+
+    private int claim(int slot, long hash, long now) {
+      int offset = slot * SLOT_BYTES;
+      slots.putLong(offset + HASH, hash);
+      slots.putLong(offset + WINDOW_START, Long.MIN_VALUE);
+      slots.putInt(offset + PREVIOUS_COUNT, 0);
+      slots.putInt(offset + CURRENT_COUNT, 0);
+      slots.putLong(offset + LAST_ACCESS, now);
+      return slot;
+    }
+
+    // Moves the slot to the fixed window starting at windowStart.
+    void rollOver(int offset, long windowStart, long windowLengthInMilliSeconds) {
+      long slotWindowStart = slots.getLong(offset + WINDOW_START);
+      if (slotWindowStart >= windowStart) {
+        return;
+      }
+      int previousCount = slotWindowStart == windowStart - windowLengthInMilliSeconds
+          ? slots.getInt(offset + CURRENT_COUNT) : 0;
+      slots.putLong(offset + WINDOW_START, windowStart);
+      slots.putInt(offset + PREVIOUS_COUNT, previousCount);
+      slots.putInt(offset + CURRENT_COUNT, 0);
+    }
+
+    private boolean isExpired(int offset, long now, long windowLengthInMilliSeconds) {
+      // The current window became the previous one and ended as well.
+      return slots.getLong(offset + WINDOW_START) + 2 * windowLengthInMilliSeconds <= now;
+    }
+
+    int removeExpired(long now, long windowLengthInMilliSeconds) {
+      int removed = 0;
+      for (int slot = 0; slot <= mask; slot++) {
+        int offset = slot * SLOT_BYTES;
+        // Re-check the slot after a removal, deleting shifts a later key of the probe path in.
+        while (slots.getLong(offset + HASH) != EMPTY
+            && isExpired(offset, now, windowLengthInMilliSeconds)) {
+          delete(slot);
+          removed++;
+        }
+      }
+      size -= removed;
+      return removed;
+    }
+
+    // Backward shift deletion: keys after the slot whose probe path passes it move into the gap,
+    // so lookups never stop early at a hole and no tombstones are needed.
+    private void delete(int slot) {
+      int gap = slot;
+      for (int next = (gap + 1) & mask; ; next = (next + 1) & mask) {
+        long nextHash = slots.getLong(next * SLOT_BYTES + HASH);
+        if (nextHash == EMPTY) {
+          break;
+        }
+        int home = home(nextHash);
+        // The key at next may fill the gap if its home is not cyclically in (gap, next].
+        boolean homeAfterGap = gap <= next ? home > gap && home <= next
+            : home > gap || home <= next;
+        if (!homeAfterGap) {
+          copy(next, gap);
+          gap = next;
+        }
+      }
+      slots.putLong(gap * SLOT_BYTES + HASH, EMPTY);
+    }
+
+    private void copy(int from, int to) {
+      int fromOffset = from * SLOT_BYTES;
+      int toOffset = to * SLOT_BYTES;
+      for (int i = 0; i < SLOT_BYTES; i += Long.BYTES) {
+        slots.putLong(toOffset + i, slots.getLong(fromOffset + i));
+      }
+    }
+  }
+}
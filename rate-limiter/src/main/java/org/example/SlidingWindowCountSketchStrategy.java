@@ -0,0 +1,247 @@
+package org.example;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sliding window counter whose counts live in Count-Min Sketches instead of a map entry per
+ * key, so its memory is fixed whatever the number of distinct keys, e.g. per-IP limits at an edge
+ * which sees tens of millions of IPs an hour. A {@link SlidingWindowCountStrategy} entry costs
+ * well over 100 bytes per key plus the key itself.
+ * <p>One {@link CountMinSketch} counts the permits of the current fixed window, the other one
+ * keeps the counts of the previous fixed window, and the weighted count is the same as the one of
+ * the {@link SlidingWindowCountStrategy}. Fixed windows start at multiples of the window length.
+ * A third, cleared sketch becomes the sketch of the new current window when one ends, and the
+ * sketch of the window before is retired. Clearing it writes every counter, so
+ * {@link #scheduleClear} does it on the caller's scheduler, off the decision path, before the next
+ * roll-over needs it. Without a scheduled clear the roll-over clears it itself. The counters are
+ * allocated once, at construction.
+ * <p>The price is precision: keys sharing counters with other keys are over-counted, never
+ * under-counted, so a key can be rejected a little before its limit (a false reject) but is never
+ * allowed beyond it. With W the width of the sketches and N the permits allowed in a fixed window
+ * over all keys, a count is over-counted by more than {@code e / W * N} with a probability of at
+ * most {@code e^-depth}. {@link #withErrorBound} sizes the sketches from that bound.
+ * <p>A decision is lock-free: it adds the permits to the current sketch, checks the estimate
+ * including them, and takes them back when it is over the limit. The add reads the rows one after
+ * another, so concurrent requests may each see a row without the others' permits. A request
+ * which fits is therefore checked once more on a fresh estimate, read after its permits are in
+ * every row: of two concurrent requests at the limit, the later check sees both. They may then
+ * reject each other, they never both get in. Only the roll-over to a new window takes a lock,
+ * once per window length, to swap the sketches.
+ */
+public class SlidingWindowCountSketchStrategy implements RateLimiterStrategy {
+
+  private final int maxAllowedRequestsPerPeriod;
+  private final int timePeriodInSeconds;
+  private final Clock clock;
+  private volatile Windows windows;
+  // The sketch the next roll-over makes the current one, and whether it was cleared since it was
+  // retired. Guarded by its own monitor, so clearing it never holds the roll-over lock.
+  private final Object spareLock = new Object();
+  private CountMinSketch spare;
+  private boolean spareCleared = true;
+
+  /**
+   * @param width counters per row of each sketch, rounded up to a power of two
+   * @param depth rows of each sketch
+   */
+  public SlidingWindowCountSketchStrategy(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod,
+      int width, int depth, Clock clock) {
+    this.timePeriodInSeconds = timePeriodInSeconds;
+    this.maxAllowedRequestsPerPeriod = maxAllowedRequestsPerPeriod;
+    this.clock = clock;
+    long windowLengthInMilliSeconds = timePeriodInSeconds * 1000L;
+    long now = clock.millis();
+    this.windows = new Windows(now - now % windowLengthInMilliSeconds,
+        new CountMinSketch(width, depth), new CountMinSketch(width, depth));
+    this.spare = new CountMinSketch(width, depth);
+  }
+
+  /**
+   * Sizes the sketches so that a key is over-counted by more than maxOverCount permits with a
+   * probability of at most delta, as long as at most expectedPermitsPerWindow permits are allowed
+   * per fixed window over all keys. E.g. 10 million permits per window, an over-count of at most
+   * 10 permits for 99% of the keys: 2^22 counters by 5 rows, 480 MiB for the three sketches.
+   */
+  public static SlidingWindowCountSketchStrategy withErrorBound(int timePeriodInSeconds,
+      int maxAllowedRequestsPerPeriod, long expectedPermitsPerWindow, int maxOverCount,
+      double delta, Clock clock) {
+    long width = (long) Math.ceil(Math.E * expectedPermitsPerWindow / maxOverCount);
+    if (width > 1 << 30) {
+      throw new IllegalArgumentException("error bound needs " + width + " counters per row");
+    }
+    int depth = (int) Math.ceil(Math.log(1 / delta));
+    return new SlidingWindowCountSketchStrategy(timePeriodInSeconds, maxAllowedRequestsPerPeriod,
+        (int) width, Math.max(1, depth), clock);
+  }
+
+  @Override
+  public boolean allowed(String key) {
+    return acquire(key, 1, null);
+  }
+
+  @Override
+  public boolean allowed(String key, int permits) {
+    return acquire(key, permits, null);
+  }
+
+  @Override
+  public Decision decide(String key, int permits, Decision decision) {
+    acquire(key, permits, decision);
+    return decision;
+  }
+
+  private boolean acquire(String key, int permits, Decision decision) {
+    if (permits < 1) {
+      throw new IllegalArgumentException("permits must be positive, was " + permits);
+    }
+    long now = clock.millis();
+    long windowLengthInMilliSeconds = timePeriodInSeconds * 1000L;
+    return acquire(windowsAt(now, windowLengthInMilliSeconds), key, now,
+        windowLengthInMilliSeconds, permits, decision);
+  }
+
+  @Override
+  public boolean[] allowedAll(List<String> keys, boolean allOrNothing) {
+    long now = clock.millis();
+    long windowLengthInMilliSeconds = timePeriodInSeconds * 1000L;
+    Windows windows = windowsAt(now, windowLengthInMilliSeconds);
+    int size = keys.size();
+    boolean[] decisions = new boolean[size];
+    boolean allAllowed = true;
+    for (int i = 0; i < size; i++) {
+      decisions[i] = acquire(windows, keys.get(i), now, windowLengthInMilliSeconds, 1, null);
+      allAllowed &= decisions[i];
+    }
+
+    // One of the limits rejected the request, so give the quota back to the others. The sketch
+    // which counted the permits may have become the previous one meanwhile, never a retired one.
+    if (allOrNothing && !allAllowed) {
+      Windows current = this.windows;
+      if (current.current == windows.current || current.previous == windows.current) {
+        for (int i = 0; i < size; i++) {
+          if (decisions[i]) {
+            windows.current.add(keys.get(i), -1);
+          }
+        }
+      }
+    }
+    return decisions;
+  }
+
+  private boolean acquire(Windows windows, String key, long now, long windowLengthInMilliSeconds,
+      int permits, Decision decision) {
+    // Same weighted count as the SlidingWindowCountStrategy, on the estimates of the sketches.
+    double previousFixedWindowWeight = Math.min(1, Math.max(0,
+        (windows.start + windowLengthInMilliSeconds - now)
+            / (double) windowLengthInMilliSeconds));
+    long previousCount = windows.previous.estimate(key);
+    // Count first, check after: a concurrent request of the key sees these permits.
+    long currentCount = windows.current.add(key, permits) - permits;
+    int count = (int) (previousCount * previousFixedWindowWeight + currentCount);
+    if ((long) count + permits <= maxAllowedRequestsPerPeriod) {
+      // The add may have read some rows before a concurrent request counted into them.
+      currentCount = windows.current.estimate(key) - permits;
+      count = (int) (previousCount * previousFixedWindowWeight + currentCount);
+    }
+
+    if ((long) count + permits <= maxAllowedRequestsPerPeriod) {
+      if (decision != null) {
+        decision.set(true, count, maxAllowedRequestsPerPeriod - count - permits, 0);
+      }
+      return true;
+    }
+    windows.current.add(key, -permits);
+    if (decision != null) {
+      decision.set(false, count, Math.max(0, maxAllowedRequestsPerPeriod - count),
+          SlidingWindowCountStrategy.retryAfterMillis(now, windowLengthInMilliSeconds,
+              maxAllowedRequestsPerPeriod, permits, windows.start - windowLengthInMilliSeconds,
+              previousCount, windows.start, currentCount,
+              windows.start + windowLengthInMilliSeconds));
+    }
+    return false;
+  }
+
+  private Windows windowsAt(long now, long windowLengthInMilliSeconds) {
+    Windows windows = this.windows;
+    long start = now - now % windowLengthInMilliSeconds;
+    // A request whose clock is behind the last roll-over counts into the current window.
+    if (start <= windows.start) {
+      return windows;
+    }
+    synchronized (this) {
+      windows = this.windows;
+      if (start > windows.start) {
+        // The sketch of the window before the previous one has no weight anymore. Requests still
+        // deciding on the old windows only read it, with a weight of about zero.
+        CountMinSketch next = takeSpare(windows.previous);
+        if (start - windows.start == windowLengthInMilliSeconds) {
+          windows = new Windows(start, windows.current, next);
+        } else {
+          // No request for more than a window length, both windows are empty. Nothing decided
+          // meanwhile, so hardly a request waits for this clear.
+          windows.current.clear();
+          windows = new Windows(start, windows.current, next);
+        }
+        this.windows = windows;
+      }
+      return windows;
+    }
+  }
+
+  // Swaps the cleared spare for the retired sketch.
+  private CountMinSketch takeSpare(CountMinSketch retired) {
+    synchronized (spareLock) {
+      CountMinSketch next = spare;
+      if (!spareCleared) {
+        next.clear();
+      }
+      spare = retired;
+      spareCleared = false;
+      return next;
+    }
+  }
+
+  /**
+   * Clears the sketch retired by the last roll-over, so the next roll-over doesn't have to.
+   *
+   * @return whether there was a sketch to clear
+   */
+  public boolean clearRetiredSketch() {
+    synchronized (spareLock) {
+      if (spareCleared) {
+        return false;
+      }
+      spare.clear();
+      spareCleared = true;
+      return true;
+    }
+  }
+
+  /**
+   * Runs {@link #clearRetiredSketch()} periodically on the given scheduler, which stays owned by
+   * the caller. An interval well below the window length keeps every clear off the decision path.
+   * Cancel the returned future to stop it.
+   */
+  public ScheduledFuture<?> scheduleClear(ScheduledExecutorService scheduler, Duration interval) {
+    return scheduler.scheduleWithFixedDelay(this::clearRetiredSketch, interval.toMillis(),
+        interval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return bytes of the counters of all three sketches, the same for any number of keys
+   */
+  public long memoryBytes() {
+    return 3 * windows.current.memoryBytes();
+  }
+
+  // Start of the current fixed window and the sketches of the previous and the current window,
+  // replaced as a whole on roll-over so a decision reads a consistent pair.
+  private record Windows(long start, CountMinSketch previous, CountMinSketch current) {
+
+  }
+}
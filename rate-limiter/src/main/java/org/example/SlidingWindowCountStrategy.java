@@ -1,15 +1,29 @@
 package org.example;
 
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Sliding window counter strategy for rate limiting.
  * <p>There are two approaches to implement sliding window count rate limiting:
  * 1. By creating smaller buckets with single timestamp for each bucket and then checking the count
  * of requests in the bucket. This approach is slight better than sliding window log approach in
- * terms of memory usage where we store timestamp of each request.
+ * terms of memory usage where we store timestamp of each request. See
+ * {@link SlidingWindowBucketStrategy}.
  * <p>
  * 2. Using weighted counter of previous and current window. We are using this approach here as it
  * is more efficient in terms of memory usage.
@@ -27,16 +41,51 @@ import java.util.concurrent.ConcurrentMap;
  * <p>
  * The SlidingWindowCountStrategy class implements the RateLimiterStrategy. The class uses a
  * ConcurrentHashMap to store the sliding window state for each user. The SlidingWindowCountStrategy
- * class is thread-safe and ensures atomicity of operations on the sliding window using a
- * synchronized block.
+ * class is thread-safe and lock-free on the hot path: both fixed window counts of a key are packed
+ * into one long which is updated with compare-and-set. Only the roll-over to a new fixed window,
+ * once per window length, takes the monitor of the key. After a key was inserted no decision
+ * allocates any object or writes to the map.
+ * <p>Keys whose windows have both fully expired carry no information anymore and can be
+ * reclaimed, either by a periodic sweep ({@link #scheduleEviction}) or lazily when a new key is
+ * inserted into a limiter bounded by a {@link KeyCapacity}.
+ * <p>The state survives a restart through {@link #snapshot(Path)}, periodically with
+ * {@link #scheduleSnapshot} and once more on shutdown, and {@link #restore(Path)} on startup.
+ * Without it every client gets its whole quota back with every deployment.
+ * <p>The limit is resolved per key on every decision by a {@link LimitResolver}, so it can differ
+ * between keys and change at runtime, e.g. through {@link DynamicLimits}. The counts of a key don't
+ * depend on its limit, so they carry over when the limit changes.
  */
 public class SlidingWindowCountStrategy implements RateLimiterStrategy {
 
-  private static final int ZERO = 0;
+  private static final long REJECTED = Long.MIN_VALUE;
+  // The sliding window was evicted while we used it, resolve the key again.
+  private static final long EVICTED = Long.MIN_VALUE + 1;
+  // How many entries are looked at to find an expired or least recently used key to evict.
+  private static final int EVICTION_SAMPLE_SIZE = 16;
+  // One request in the previous fixed window of the packed counts.
+  private static final long PREVIOUS_COUNT_ONE = 1L << 32;
+  // Flipped by every roll-over of the packed counts, in the sign bit of the previous count which
+  // no count reaches. Without it a roll-over of zero counts leaves them as they were, and a request
+  // which read them before still counts itself into the new window but returns the old one.
+  private static final long GENERATION = 1L << 63;
+  // Odd, so readers never treat an evicted window as stable, and a count no window can reach.
+  private static final long EVICTED_VERSION = -1L;
+  private static final long EVICTED_COUNTS = -1L;
 
-  private final int maxAllowedRequestsPerPeriod;
+  private final LimitResolver limits;
   private final int timePeriodInSeconds;
   private final Clock clock;
+  private final KeyCapacity keyCapacity;
+  private final LongAdder expiredEvictions = new LongAdder();
+  private final LongAdder capacityEvictions = new LongAdder();
+  private final LongAdder overflowDecisions = new LongAdder();
+  private final LongAdder snapshots = new LongAdder();
+  private final LongAdder failedSnapshots = new LongAdder();
+  private final LongAdder restoredKeys = new LongAdder();
+  // Keys not in the map are looked up here first, until all windows of the snapshot expired.
+  private volatile SlidingWindowSnapshot restoredSnapshot;
+  // Buffer of the last snapshot, taken by the next one. Concurrent snapshots allocate their own.
+  private final AtomicReference<ByteBuffer> snapshotBuffer = new AtomicReference<>();
   // ConcurrentHashMap to store the sliding window state for each user.
   private final ConcurrentMap<String, SlidingWindow> userSlidingWindow = new ConcurrentHashMap<>();
 
@@ -44,38 +93,335 @@ public class SlidingWindowCountStrategy implements RateLimiterStrategy {
   // pass with each method call.
   public SlidingWindowCountStrategy(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod,
       Clock clock) {
+    this(timePeriodInSeconds, maxAllowedRequestsPerPeriod, clock, KeyCapacity.UNBOUNDED);
+  }
+
+  public SlidingWindowCountStrategy(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod,
+      Clock clock, KeyCapacity keyCapacity) {
+    this(timePeriodInSeconds, LimitResolver.fixed(maxAllowedRequestsPerPeriod), clock,
+        keyCapacity);
+  }
+
+  public SlidingWindowCountStrategy(int timePeriodInSeconds, LimitResolver limits, Clock clock,
+      KeyCapacity keyCapacity) {
     this.timePeriodInSeconds = timePeriodInSeconds;
-    this.maxAllowedRequestsPerPeriod = maxAllowedRequestsPerPeriod;
+    this.limits = limits;
     this.clock = clock;
+    this.keyCapacity = keyCapacity;
   }
 
   @Override
   public boolean allowed(String key) {
+    return allowed(key, 1);
+  }
+
+  @Override
+  public boolean allowed(String key, int permits) {
+    return acquire(key, permits, null);
+  }
+
+  @Override
+  public Decision decide(String key, int permits, Decision decision) {
+    acquire(key, permits, decision);
+    return decision;
+  }
+
+  // Fills the decision when one is given, the plain boolean path doesn't pay for it.
+  private boolean acquire(String key, int permits, Decision decision) {
+    if (permits < 1) {
+      throw new IllegalArgumentException("permits must be positive, was " + permits);
+    }
+    long now = clock.millis();
+    int maxAllowedRequestsPerPeriod = limits.limitOf(key);
+    while (true) {
+      SlidingWindow slidingWindow = slidingWindowOf(key, now);
+      if (slidingWindow == null) {
+        boolean allowed = overflowDecision();
+        if (decision != null) {
+          // The key has no state: a new key has its whole quota, without one we can only tell
+          // that the sweep makes room within a window length.
+          decision.set(allowed, 0, allowed ? maxAllowedRequestsPerPeriod - permits : 0,
+              allowed ? 0 : timePeriodInSeconds * 1000L);
+        }
+        return allowed;
+      }
+      long acquiredFixedWindow = tryAcquire(slidingWindow, now, maxAllowedRequestsPerPeriod,
+          permits, decision);
+      if (acquiredFixedWindow != EVICTED) {
+        return acquiredFixedWindow != REJECTED;
+      }
+    }
+  }
+
+  @Override
+  public boolean[] allowedAll(List<String> keys, boolean allOrNothing) {
+    long now = clock.millis();
+    int size = keys.size();
+
+    // Resolve the sliding windows of all keys in one pass over the map.
+    SlidingWindow[] slidingWindows = new SlidingWindow[size];
+    for (int i = 0; i < size; i++) {
+      slidingWindows[i] = slidingWindowOf(keys.get(i), now);
+    }
+
+    boolean[] decisions = new boolean[size];
+    long[] acquiredFixedWindows = new long[size];
+    boolean allAllowed = true;
+    for (int i = 0; i < size; i++) {
+      if (slidingWindows[i] == null) {
+        acquiredFixedWindows[i] = REJECTED;
+        decisions[i] = overflowDecision();
+      } else {
+        int maxAllowedRequestsPerPeriod = limits.limitOf(keys.get(i));
+        acquiredFixedWindows[i] =
+            tryAcquire(slidingWindows[i], now, maxAllowedRequestsPerPeriod, 1, null);
+        while (acquiredFixedWindows[i] == EVICTED) {
+          slidingWindows[i] = slidingWindowOf(keys.get(i), now);
+          acquiredFixedWindows[i] = slidingWindows[i] == null ? REJECTED
+              : tryAcquire(slidingWindows[i], now, maxAllowedRequestsPerPeriod, 1, null);
+        }
+        decisions[i] = slidingWindows[i] == null
+            ? overflowDecision() : acquiredFixedWindows[i] != REJECTED;
+      }
+      allAllowed &= decisions[i];
+    }
+
+    // One of the limits rejected the request, so give the quota back to the others.
+    if (allOrNothing && !allAllowed) {
+      for (int i = 0; i < size; i++) {
+        if (acquiredFixedWindows[i] != REJECTED) {
+          release(slidingWindows[i], acquiredFixedWindows[i], 1);
+        }
+      }
+    }
+    return decisions;
+  }
+
+  private SlidingWindow slidingWindowOf(String key, long now) {
+    // Plain get first: computeIfAbsent would allocate a capturing lambda on every call.
+    SlidingWindow slidingWindow = userSlidingWindow.get(key);
+    if (slidingWindow != null) {
+      return slidingWindow;
+    }
+    // The limiter is full: make room for the new key, or let the overflow policy decide.
+    if (keyCapacity.isBounded() && userSlidingWindow.size() >= keyCapacity.maxKeys()
+        && !makeRoom(now)) {
+      return null;
+    }
+    // Looked up before computeIfAbsent, which would hold the lock of the map bin while the page
+    // of the snapshot is read from disk.
+    SlidingWindow restored = restore(key, now);
+    if (restored != null) {
+      slidingWindow = userSlidingWindow.putIfAbsent(key, restored);
+      return slidingWindow != null ? slidingWindow : restored;
+    }
+    // Initialize an empty sliding window for new users.
+    return userSlidingWindow.computeIfAbsent(key, k -> new SlidingWindow(now));
+  }
+
+  private SlidingWindow restore(String key, long now) {
+    SlidingWindowSnapshot snapshot = restoredSnapshot;
+    if (snapshot == null) {
+      return null;
+    }
+    if (snapshot.takenAt() + 2 * timePeriodInSeconds * 1000L <= now) {
+      // Every key of the snapshot has expired by now, drop the mapping.
+      restoredSnapshot = null;
+      return null;
+    }
+    int state = snapshot.find(key);
+    if (state < 0) {
+      return null;
+    }
+    restoredKeys.increment();
+    return new SlidingWindow(snapshot.previousTimestamp(state), snapshot.currentTimestamp(state),
+        snapshot.counts(state), now);
+  }
+
+  private boolean overflowDecision() {
+    overflowDecisions.increment();
+    return keyCapacity.overflowPolicy() == KeyCapacity.OverflowPolicy.ALLOW;
+  }
+
+  // Evicts one key of a small random sample: an expired one if there is any, otherwise the least
+  // recently used one if the policy allows it. Runs on the insert path of a full limiter, the
+  // sample allocates about a hundred short-lived objects there, see KeySample.
+  private boolean makeRoom(long now) {
+    long windowLengthInMilliSeconds = timePeriodInSeconds * 1000L;
+    Map.Entry<String, SlidingWindow> leastRecentlyUsed = null;
+    for (Map.Entry<String, SlidingWindow> entry
+        : KeySample.of(userSlidingWindow, EVICTION_SAMPLE_SIZE)) {
+      SlidingWindow slidingWindow = entry.getValue();
+      if (slidingWindow.isExpired(now, windowLengthInMilliSeconds)) {
+        if (evict(entry.getKey(), slidingWindow, now, true)) {
+          expiredEvictions.increment();
+          return true;
+        }
+      } else if (leastRecentlyUsed == null
+          || slidingWindow.lastAccess < leastRecentlyUsed.getValue().lastAccess) {
+        leastRecentlyUsed = entry;
+      }
+    }
+    if (keyCapacity.overflowPolicy() == KeyCapacity.OverflowPolicy.EVICT_LEAST_RECENTLY_USED
+        && leastRecentlyUsed != null
+        && evict(leastRecentlyUsed.getKey(), leastRecentlyUsed.getValue(), now, false)) {
+      capacityEvictions.increment();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Removes all keys whose previous and current fixed window have both expired. Such a key has no
+   * weight in any future sliding window, so dropping it doesn't change any decision.
+   *
+   * @return number of evicted keys
+   */
+  public int evictExpiredKeys() {
+    long now = clock.millis();
+    long windowLengthInMilliSeconds = timePeriodInSeconds * 1000L;
+    int evicted = 0;
+    for (Map.Entry<String, SlidingWindow> entry : userSlidingWindow.entrySet()) {
+      if (entry.getValue().isExpired(now, windowLengthInMilliSeconds)
+          && evict(entry.getKey(), entry.getValue(), now, true)) {
+        evicted++;
+      }
+    }
+    expiredEvictions.add(evicted);
+    return evicted;
+  }
+
+  /**
+   * Runs {@link #evictExpiredKeys()} periodically on the given scheduler, which stays owned by the
+   * caller. Cancel the returned future to stop it.
+   */
+  public ScheduledFuture<?> scheduleEviction(ScheduledExecutorService scheduler,
+      Duration interval) {
+    return scheduler.scheduleWithFixedDelay(this::evictExpiredKeys, interval.toMillis(),
+        interval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public long liveKeys() {
+    return userSlidingWindow.size();
+  }
+
+  public KeyMetrics keyMetrics() {
+    return new KeyMetrics(userSlidingWindow.size(), expiredEvictions.sum(),
+        capacityEvictions.sum(), overflowDecisions.sum());
+  }
+
+  /**
+   * Writes the state of all keys which still count to the file, replacing it atomically once
+   * complete. Decisions go on meanwhile, keys inserted during the snapshot may miss it. The buffer
+   * the snapshot is written from is kept for the next one.
+   *
+   * @return number of keys written
+   */
+  public int snapshot(Path file) throws IOException {
     long now = clock.millis();
     long windowLengthInMilliSeconds = timePeriodInSeconds * 1000L;
+    // forEach walks the map without allocating per entry, unlike an iterator over its entries.
+    long[] size = new long[2];
+    userSlidingWindow.forEach((key, slidingWindow) -> {
+      size[0]++;
+      size[1] += key.length();
+    });
+    try (SlidingWindowSnapshot.Writer writer = new SlidingWindowSnapshot.Writer(file,
+        windowLengthInMilliSeconds, now, (int) Math.min(size[0], Integer.MAX_VALUE), size[1],
+        snapshotBuffer.getAndSet(null))) {
+      userSlidingWindow.forEach((key, slidingWindow) ->
+          slidingWindow.writeTo(key, writer, now, windowLengthInMilliSeconds));
+      int written = writer.commit();
+      snapshotBuffer.set(writer.buffer());
+      snapshots.increment();
+      return written;
+    } catch (IOException | RuntimeException e) {
+      failedSnapshots.increment();
+      throw e;
+    }
+  }
+
+  /**
+   * Runs {@link #snapshot(Path)} periodically on the given scheduler, which stays owned by the
+   * caller. A failed snapshot is counted in {@link #snapshotMetrics()} and retried with the next
+   * one. Cancel the returned future to stop it.
+   */
+  public ScheduledFuture<?> scheduleSnapshot(ScheduledExecutorService scheduler,
+      Duration interval, Path file) {
+    return scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        snapshot(file);
+      } catch (IOException | RuntimeException e) {
+        // Counted by snapshot(), an exception would cancel the schedule.
+      }
+    }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Restores the keys of a snapshot written by {@link #snapshot(Path)}, e.g. by the previous
+   * process or by the instance this one replaces. The file is only mapped, a key is decoded from it
+   * when it is first seen, and the page holding it is read then unless it is still in the page
+   * cache, as it usually is right after the snapshot was written. Keys the limiter already holds
+   * keep their state. The snapshot is released once all of its windows have expired.
+   *
+   * @return number of keys in the snapshot
+   * @throws IOException if the file can't be read or was written for another window length
+   */
+  public int restore(Path file) throws IOException {
+    SlidingWindowSnapshot snapshot =
+        SlidingWindowSnapshot.open(file, timePeriodInSeconds * 1000L);
+    restoredSnapshot = snapshot;
+    return snapshot.entries();
+  }
+
+  public SnapshotMetrics snapshotMetrics() {
+    return new SnapshotMetrics(snapshots.sum(), failedSnapshots.sum(), restoredKeys.sum());
+  }
 
-    // Initialize an empty sliding window for new users or retrieve existing one.
-    SlidingWindow slidingWindow = userSlidingWindow.computeIfAbsent(key,
-        k -> new SlidingWindow(new FixedWindow(now, ZERO),
-            new FixedWindow(now, ZERO)));
+  private boolean evict(String key, SlidingWindow slidingWindow, long now,
+      boolean onlyIfExpired) {
+    if (!slidingWindow.evict(now, timePeriodInSeconds * 1000L, onlyIfExpired)) {
+      return false;
+    }
+    userSlidingWindow.remove(key, slidingWindow);
+    return true;
+  }
 
-    // Use synchronized block to ensure atomicity of operations on the sliding window.
-    synchronized (slidingWindow) {
-      FixedWindow currentFixedWindow = slidingWindow.currentFixedWindow();
-      FixedWindow previousFixedWindow = slidingWindow.previousFixedWindow();
+  // Returns the timestamp of the fixed window the permits were counted in, or REJECTED.
+  private long tryAcquire(SlidingWindow slidingWindow, long now, int maxAllowedRequestsPerPeriod,
+      int permits, Decision decision) {
+    long windowLengthInMilliSeconds = timePeriodInSeconds * 1000L;
+
+    // Optimistic loop instead of a synchronized block: read a consistent snapshot of the sliding
+    // window, decide, and count the request with a compare-and-set of the packed counts. When
+    // another thread counted a request or rolled the window over in the meantime, try again.
+    while (true) {
+      long version = slidingWindow.version;
+      if (version == EVICTED_VERSION) {
+        return EVICTED;
+      }
+      if ((version & 1) != 0) {
+        // Roll-over in progress, it only rewrites a few fields.
+        Thread.onSpinWait();
+        continue;
+      }
+      long currentFixedWindowTimestamp = slidingWindow.currentTimestamp;
+      long previousFixedWindowTimestamp = slidingWindow.previousTimestamp;
+      long counts = slidingWindow.counts;
+      if (!slidingWindow.validate(version)) {
+        continue;
+      }
 
       // Transition to a new fixed window when the current one expires.
-      if (currentFixedWindow.timestamp() + windowLengthInMilliSeconds < now) {
-        previousFixedWindow = currentFixedWindow;
-        currentFixedWindow = new FixedWindow(now, ZERO);
-        userSlidingWindow.put(key,
-            new SlidingWindow(previousFixedWindow, currentFixedWindow));
+      if (currentFixedWindowTimestamp + windowLengthInMilliSeconds < now) {
+        slidingWindow.rollOver(now, windowLengthInMilliSeconds);
+        continue;
       }
 
       // Weight calculation for the previous window.
       long slidingWindowStart = Math.max(0, now - windowLengthInMilliSeconds);
-      long previousFixedWindowEnd =
-          previousFixedWindow.timestamp() + windowLengthInMilliSeconds;
+      long previousFixedWindowEnd = previousFixedWindowTimestamp + windowLengthInMilliSeconds;
 
       // Weight of the previous window based on overlap with the sliding window.
       // Math.max is necessary for cases when we don't have any new request for longer time,
@@ -100,33 +446,232 @@ public class SlidingWindowCountStrategy implements RateLimiterStrategy {
       // So now when we calculate the weight of the previous window, it will be 6/10 = 0.6.
       // And weight of the current window will be 0.4.
       // So, the total count will be 0.6 * count of previous window + count of current window.
-      int count = (int) (previousFixedWindow.count()
+      int count = (int) (previousCount(counts)
           * previousFixedWindowWeight
-          + currentFixedWindow.count());
+          + currentCount(counts));
 
-      // Check if the request count within the sliding window exceeds the limit.
-      // If so, reject the request; otherwise, update the request count
+      // Check if the request count within the sliding window would exceed the limit.
+      // If so, reject the request; otherwise, add the permits to the request count
       // in the current fixed window and allow the request.
-      if (count >= maxAllowedRequestsPerPeriod) {
-        return false;
+      slidingWindow.touch(now);
+      if ((long) count + permits > maxAllowedRequestsPerPeriod) {
+        if (decision != null) {
+          decision.set(false, count, Math.max(0, maxAllowedRequestsPerPeriod - count),
+              retryAfterMillis(now, timePeriodInSeconds * 1000L, maxAllowedRequestsPerPeriod,
+                  permits, previousFixedWindowTimestamp, previousCount(counts),
+                  currentFixedWindowTimestamp, currentCount(counts),
+                  // Rolls over once it is more than a window length old.
+                  currentFixedWindowTimestamp + timePeriodInSeconds * 1000L + 1));
+        }
+        return REJECTED;
+      } else if (slidingWindow.compareAndSetCounts(counts, counts + permits)) {
+        if (decision != null) {
+          decision.set(true, count, maxAllowedRequestsPerPeriod - count - permits, 0);
+        }
+        return currentFixedWindowTimestamp;
+      }
+    }
+  }
+
+  // Milliseconds until the permits fit into the sliding window, if no other request is counted.
+  // The weight of the previous window falls linearly while the sliding window moves over it:
+  // weight(t) = (previousFixedWindowTimestamp + 2 * windowLength - t) / windowLength,
+  // so we solve floor(previousCount * weight(t)) + currentCount + permits <= limit for the
+  // earliest t instead of telling the client to come back after a whole window. Shared with the
+  // strategies built on the same two window model, they only differ in when a window rolls over.
+  static long retryAfterMillis(long now, long windowLengthInMilliSeconds,
+      int maxAllowedRequestsPerPeriod, int permits, long previousFixedWindowTimestamp,
+      long previousCount, long currentFixedWindowTimestamp, long currentCount, long rollOverAt) {
+    long budget = (long) maxAllowedRequestsPerPeriod - permits - currentCount;
+    long earliest = now;
+    // The current window rolls over at the latest, then only its weighted count is left.
+    long latest = rollOverAt;
+    if (budget < 0) {
+      // The current window alone is over the limit, so not before it became the previous window.
+      budget = (long) maxAllowedRequestsPerPeriod - permits;
+      if (budget < 0) {
+        return Decision.NEVER;
+      }
+      previousFixedWindowTimestamp = currentFixedWindowTimestamp;
+      previousCount = currentCount;
+      earliest = latest;
+      latest = Long.MAX_VALUE;
+    }
+    if (previousCount <= budget) {
+      return earliest - now;
+    }
+    // floor(previousCount * weight(t)) <= budget  <=>  previousCount * weight(t) < budget + 1
+    long retryAt = previousFixedWindowTimestamp + 2 * windowLengthInMilliSeconds
+        - Math.ceilDiv(windowLengthInMilliSeconds * (budget + 1), previousCount) + 1;
+    return Math.min(Math.max(retryAt, earliest), latest) - now;
+  }
+
+  // Takes back permits counted by tryAcquire. The window may have rolled over in the meantime,
+  // then the permits are in the previous fixed window now.
+  private void release(SlidingWindow slidingWindow, long acquiredFixedWindow, int permits) {
+    while (true) {
+      long version = slidingWindow.version;
+      long currentFixedWindowTimestamp = slidingWindow.currentTimestamp;
+      long previousFixedWindowTimestamp = slidingWindow.previousTimestamp;
+      long counts = slidingWindow.counts;
+      if (version == EVICTED_VERSION) {
+        // Evicted keys start from scratch, nothing to give back.
+        return;
+      }
+      if ((version & 1) != 0 || !slidingWindow.validate(version)) {
+        Thread.onSpinWait();
+        continue;
+      }
+      long released;
+      if (currentFixedWindowTimestamp == acquiredFixedWindow) {
+        released = counts - permits;
+      } else if (previousFixedWindowTimestamp == acquiredFixedWindow) {
+        released = counts - permits * PREVIOUS_COUNT_ONE;
       } else {
-        // Create a new FixedWindow with updated count
-        currentFixedWindow = new FixedWindow(currentFixedWindow.timestamp(),
-            currentFixedWindow.count() + 1);
-        userSlidingWindow.put(key,
-            new SlidingWindow(previousFixedWindow, currentFixedWindow));
-        return true;
+        // Both windows have rolled over since, the request doesn't count anymore anyway.
+        return;
+      }
+      if (slidingWindow.compareAndSetCounts(counts, released)) {
+        return;
       }
     }
   }
 
-  // Shorter version for static class with record - no need for getters, setters, equals, hashcode, toString
-  private record SlidingWindow(FixedWindow previousFixedWindow, FixedWindow currentFixedWindow) {
+  private static int previousCount(long counts) {
+    return (int) ((counts & ~GENERATION) >>> 32);
+  }
+
+  private static int currentCount(long counts) {
+    return (int) counts;
+  }
+
+  // Mutable sliding window state of one key. It lives as long as the key is in the map, so it can
+  // be resolved once and updated in place without allocating or writing to the map.
+  private static final class SlidingWindow {
+
+    private static final VarHandle VERSION;
+    private static final VarHandle COUNTS;
+
+    static {
+      try {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        VERSION = lookup.findVarHandle(SlidingWindow.class, "version", long.class);
+        COUNTS = lookup.findVarHandle(SlidingWindow.class, "counts", long.class);
+      } catch (ReflectiveOperationException e) {
+        throw new ExceptionInInitializerError(e);
+      }
+    }
+
+    // Sequence number of the timestamps, odd while a roll-over is rewriting them, EVICTED_VERSION
+    // once the window was removed from the map. Readers check
+    // it did not change while they read the timestamps (same idea as a StampedLock optimistic read).
+    private volatile long version;
+    // Count of the previous fixed window in the high 32 bits, count of the current in the low 32.
+    private volatile long counts;
+    // Start of the previous and current fixed window, only written by a roll-over.
+    private long previousTimestamp;
+    private long currentTimestamp;
+    // Time of the last decision, for the approximated LRU eviction. Written at most once per
+    // millisecond, so a hot key doesn't write it on every request.
+    private long lastAccess;
+
+    private SlidingWindow(long now) {
+      this.previousTimestamp = now;
+      this.currentTimestamp = now;
+      this.lastAccess = now;
+    }
+
+    private SlidingWindow(long previousTimestamp, long currentTimestamp, long counts, long now) {
+      this.previousTimestamp = previousTimestamp;
+      this.currentTimestamp = currentTimestamp;
+      this.counts = counts;
+      this.lastAccess = now;
+    }
+
+    private void touch(long now) {
+      if (lastAccess != now) {
+        lastAccess = now;
+      }
+    }
 
+    // Both fixed windows end before the sliding window starts, nothing of this key counts anymore.
+    private boolean isExpired(long now, long windowLengthInMilliSeconds) {
+      return currentTimestamp + 2 * windowLengthInMilliSeconds <= now;
+    }
+
+    private synchronized boolean evict(long now, long windowLengthInMilliSeconds,
+        boolean onlyIfExpired) {
+      if (version == EVICTED_VERSION
+          || onlyIfExpired && !isExpired(now, windowLengthInMilliSeconds)) {
+        return false;
+      }
+      version = EVICTED_VERSION;
+      // Fails every compare-and-set which read the counts before the eviction.
+      COUNTS.getAndSet(this, EVICTED_COUNTS);
+      return true;
+    }
+
+    // Adds a consistent copy of the state to the snapshot, unless it was evicted or has expired.
+    private void writeTo(String key, SlidingWindowSnapshot.Writer writer, long now,
+        long windowLengthInMilliSeconds) {
+      while (true) {
+        long version = this.version;
+        if (version == EVICTED_VERSION) {
+          return;
+        }
+        if ((version & 1) != 0) {
+          Thread.onSpinWait();
+          continue;
+        }
+        long previousTimestamp = this.previousTimestamp;
+        long currentTimestamp = this.currentTimestamp;
+        long counts = this.counts;
+        if (validate(version)) {
+          if (currentTimestamp + 2 * windowLengthInMilliSeconds > now) {
+            writer.add(key, previousTimestamp, currentTimestamp, counts & ~GENERATION);
+          }
+          return;
+        }
+      }
+    }
+
+    private boolean validate(long version) {
+      // Keeps the plain reads of the timestamps before the second read of the version.
+      VarHandle.acquireFence();
+      return this.version == version;
+    }
+
+    private boolean compareAndSetCounts(long expected, long counts) {
+      return COUNTS.compareAndSet(this, expected, counts);
+    }
+
+    private synchronized void rollOver(long now, long windowLengthInMilliSeconds) {
+      // Another thread may have rolled the window over while we waited for the monitor.
+      if (version == EVICTED_VERSION || currentTimestamp + windowLengthInMilliSeconds >= now) {
+        return;
+      }
+      VERSION.getAndAdd(this, 1L);
+      VarHandle.storeStoreFence();
+      // The current fixed window becomes the previous one, concurrent compare-and-sets of the
+      // current count are still counted into it. Later ones fail, the generation has changed.
+      long counts;
+      do {
+        counts = this.counts;
+      } while (!compareAndSetCounts(counts, (counts << 32) | (~counts & GENERATION)));
+      previousTimestamp = currentTimestamp;
+      currentTimestamp = now;
+      VERSION.getAndAdd(this, 1L);
+    }
   }
 
-  // Shorter version for static class with record - no need for getters, setters, equals, hashcode, toString
-  private record FixedWindow(long timestamp, int count) {
+  /**
+   * Point in time counts of the snapshots of the limiter.
+   *
+   * @param snapshots snapshots written
+   * @param failedSnapshots snapshots which could not be written
+   * @param restoredKeys keys whose state was restored from a snapshot
+   */
+  public record SnapshotMetrics(long snapshots, long failedSnapshots, long restoredKeys) {
 
   }
 }
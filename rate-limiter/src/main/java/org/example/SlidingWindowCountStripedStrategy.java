@@ -0,0 +1,493 @@
+package org.example;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sliding window counter for hot keys, e.g. the global cap of a route which every request of every
+ * client checks. Same weighted count of two fixed windows as the {@link SlidingWindowCountStrategy},
+ * but the permits of the current window are handed out through stripes, like the cells of a
+ * {@link LongAdder}, so the cores don't all compare-and-set the same counter.
+ * <p>Every thread takes its permits from the local budget of its stripe. A stripe which runs dry
+ * leases a new budget from the shared count of the key under its monitor: the lease is counted in
+ * the current window at once, as if its requests had been made, so the limit holds whatever the
+ * stripes do with their budgets. Only one decision in a lease takes the monitor, all others are a
+ * compare-and-set of a counter no other stripe writes.
+ * <p>The accuracy bound is the most permits which may be leased out at a time,
+ * {@code maxLeasedPermits}, split evenly over the stripes. Leases never go over the limit and a
+ * roll-over takes the permits the stripes didn't use back out of the ending window, so only
+ * requests of more permits than any single stripe holds can be rejected while the stripes together
+ * still hold enough: before rejecting, a stripe takes from the budgets of the others. The larger
+ * the bound, the less often the monitor is taken: once per {@code maxLeasedPermits / stripes}
+ * permits of a stripe.
+ * <p>Stripes are picked by the id of the thread, so use at least twice as many stripes as threads
+ * deciding in parallel. Each stripe is padded to 128 bytes against false sharing: with 64 stripes a
+ * key takes 8 KiB, which is why this strategy is meant for a few hot keys, not for millions of
+ * clients. {@link #decide} sums the budgets of all stripes for the count, {@link #allowed} doesn't.
+ * <p>Keys whose fixed windows have both expired are removed by {@link #evictExpiredKeys()}, or
+ * lazily when a new key is inserted into a limiter bounded by a {@link KeyCapacity}.
+ */
+public class SlidingWindowCountStripedStrategy implements RateLimiterStrategy {
+
+  private static final long REJECTED = Long.MIN_VALUE;
+  // The window was evicted while we used it, resolve the key again.
+  private static final long EVICTED = Long.MIN_VALUE + 1;
+  // Odd, so no decision ever takes the fast path of an evicted window.
+  private static final long EVICTED_VERSION = -1L;
+  // Longs per stripe: each budget on its own 128 bytes, the pair of cache lines which the adjacent
+  // line prefetcher of x86 CPUs fetches together.
+  private static final int STRIPE_LONGS = 16;
+  // Keys looked at to make room for a new key in a full limiter.
+  private static final int EVICTION_SAMPLE_SIZE = 16;
+  private static final VarHandle BUDGETS = MethodHandles.arrayElementVarHandle(long[].class);
+
+  private final int maxAllowedRequestsPerPeriod;
+  private final long windowLengthInMilliSeconds;
+  private final int stripeMask;
+  private final int leaseSize;
+  private final Clock clock;
+  private final KeyCapacity keyCapacity;
+  private final LongAdder expiredEvictions = new LongAdder();
+  private final LongAdder capacityEvictions = new LongAdder();
+  private final LongAdder overflowDecisions = new LongAdder();
+  private final ConcurrentMap<String, StripedWindow> windows = new ConcurrentHashMap<>();
+
+  /**
+   * @param stripes budgets per key, rounded up to a power of two
+   * @param maxLeasedPermits most permits leased to the stripes of a key at a time, at least one
+   *     per stripe after rounding
+   */
+  public SlidingWindowCountStripedStrategy(int timePeriodInSeconds,
+      int maxAllowedRequestsPerPeriod, int stripes, int maxLeasedPermits, Clock clock) {
+    this(timePeriodInSeconds, maxAllowedRequestsPerPeriod, stripes, maxLeasedPermits, clock,
+        KeyCapacity.UNBOUNDED);
+  }
+
+  /**
+   * @param stripes budgets per key, rounded up to a power of two
+   * @param maxLeasedPermits most permits leased to the stripes of a key at a time, at least one
+   *     per stripe after rounding
+   */
+  public SlidingWindowCountStripedStrategy(int timePeriodInSeconds,
+      int maxAllowedRequestsPerPeriod, int stripes, int maxLeasedPermits, Clock clock,
+      KeyCapacity keyCapacity) {
+    if (stripes < 1 || stripes > 1 << 16) {
+      throw new IllegalArgumentException("stripes must be between 1 and 65536, was " + stripes);
+    }
+    int roundedStripes = roundedStripes(stripes);
+    // Fewer permits than stripes would lease a single permit at a time: every decision would take
+    // the monitor, the contention the stripes are there to avoid.
+    if (maxLeasedPermits < roundedStripes) {
+      throw new IllegalArgumentException("maxLeasedPermits must be at least the " + roundedStripes
+          + " stripes, was " + maxLeasedPermits);
+    }
+    this.maxAllowedRequestsPerPeriod = maxAllowedRequestsPerPeriod;
+    this.windowLengthInMilliSeconds = timePeriodInSeconds * 1000L;
+    this.stripeMask = roundedStripes - 1;
+    this.leaseSize = maxLeasedPermits / roundedStripes;
+    this.clock = clock;
+    this.keyCapacity = keyCapacity;
+  }
+
+  /**
+   * Default bound of the permits leased out at a time: 16 per stripe or a hundredth of the limit,
+   * whichever is more, so a stripe takes the monitor once per 16 or more of its decisions. No more
+   * than a tenth of the limit though, which would let too few stripes take most of a small limit,
+   * but at least one permit per stripe.
+   */
+  public static int defaultMaxLeasedPermits(int maxAllowedRequestsPerPeriod, int stripes) {
+    int roundedStripes = roundedStripes(stripes);
+    long leased = Math.min(Math.max(16L * roundedStripes, maxAllowedRequestsPerPeriod / 100),
+        maxAllowedRequestsPerPeriod / 10);
+    return (int) Math.max(roundedStripes, leased);
+  }
+
+  private static int roundedStripes(int stripes) {
+    return stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+  }
+
+  @Override
+  public boolean allowed(String key) {
+    return allowed(key, 1);
+  }
+
+  @Override
+  public boolean allowed(String key, int permits) {
+    return acquire(key, permits, null);
+  }
+
+  @Override
+  public Decision decide(String key, int permits, Decision decision) {
+    acquire(key, permits, decision);
+    return decision;
+  }
+
+  private boolean acquire(String key, int permits, Decision decision) {
+    if (permits < 1) {
+      throw new IllegalArgumentException("permits must be positive, was " + permits);
+    }
+    long now = clock.millis();
+    int stripe = stripe();
+    while (true) {
+      StripedWindow window = windowOf(key, now);
+      if (window == null) {
+        boolean allowed = overflowDecision();
+        if (decision != null) {
+          // The key has no state: a new key has its whole quota, without one we can only tell
+          // that the sweep makes room within a window length.
+          decision.set(allowed, 0, allowed ? maxAllowedRequestsPerPeriod - permits : 0,
+              allowed ? 0 : windowLengthInMilliSeconds);
+        }
+        return allowed;
+      }
+      long acquired = window.tryAcquire(stripe, now, permits, decision);
+      if (acquired != EVICTED) {
+        return acquired != REJECTED;
+      }
+    }
+  }
+
+  @Override
+  public boolean[] allowedAll(List<String> keys, boolean allOrNothing) {
+    long now = clock.millis();
+    int stripe = stripe();
+    int size = keys.size();
+    StripedWindow[] acquiredWindows = new StripedWindow[size];
+    long[] acquired = new long[size];
+    boolean[] decisions = new boolean[size];
+    boolean allAllowed = true;
+    for (int i = 0; i < size; i++) {
+      do {
+        acquiredWindows[i] = windowOf(keys.get(i), now);
+        acquired[i] = acquiredWindows[i] == null ? REJECTED
+            : acquiredWindows[i].tryAcquire(stripe, now, 1, null);
+      } while (acquired[i] == EVICTED);
+      decisions[i] = acquiredWindows[i] == null
+          ? overflowDecision() : acquired[i] != REJECTED;
+      allAllowed &= decisions[i];
+    }
+
+    // One of the limits rejected the request, so give the quota back to the others.
+    if (allOrNothing && !allAllowed) {
+      for (int i = 0; i < size; i++) {
+        if (acquired[i] != REJECTED) {
+          acquiredWindows[i].release(acquired[i], 1);
+        }
+      }
+    }
+    return decisions;
+  }
+
+  // Spreads the sequential ids of the threads over the stripes.
+  private int stripe() {
+    return (int) (Thread.currentThread().threadId() * 0x9E3779B97F4A7C15L >>> 32) & stripeMask;
+  }
+
+  // Returns null if the limiter is full and no key could be evicted.
+  private StripedWindow windowOf(String key, long now) {
+    // Plain get first: computeIfAbsent would allocate a capturing lambda on every call.
+    StripedWindow window = windows.get(key);
+    if (window != null) {
+      return window;
+    }
+    if (keyCapacity.isBounded() && windows.size() >= keyCapacity.maxKeys() && !makeRoom(now)) {
+      return null;
+    }
+    return windows.computeIfAbsent(key, k -> new StripedWindow(now));
+  }
+
+  private boolean overflowDecision() {
+    overflowDecisions.increment();
+    return keyCapacity.overflowPolicy() == KeyCapacity.OverflowPolicy.ALLOW;
+  }
+
+  // Evicts one key of a small random sample: an expired one if there is any, otherwise the least
+  // recently leased one if the policy allows it.
+  private boolean makeRoom(long now) {
+    Map.Entry<String, StripedWindow> leastRecentlyUsed = null;
+    for (Map.Entry<String, StripedWindow> entry : KeySample.of(windows, EVICTION_SAMPLE_SIZE)) {
+      StripedWindow window = entry.getValue();
+      if (window.evict(now, true)) {
+        windows.remove(entry.getKey(), window);
+        expiredEvictions.increment();
+        return true;
+      }
+      if (leastRecentlyUsed == null
+          || window.lastLease < leastRecentlyUsed.getValue().lastLease) {
+        leastRecentlyUsed = entry;
+      }
+    }
+    if (keyCapacity.overflowPolicy() == KeyCapacity.OverflowPolicy.EVICT_LEAST_RECENTLY_USED
+        && leastRecentlyUsed != null && leastRecentlyUsed.getValue().evict(now, false)) {
+      windows.remove(leastRecentlyUsed.getKey(), leastRecentlyUsed.getValue());
+      capacityEvictions.increment();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Removes all keys whose previous and current fixed window have both expired.
+   *
+   * @return number of evicted keys
+   */
+  public int evictExpiredKeys() {
+    long now = clock.millis();
+    int evicted = 0;
+    for (Map.Entry<String, StripedWindow> entry : windows.entrySet()) {
+      if (entry.getValue().evict(now, true)) {
+        windows.remove(entry.getKey(), entry.getValue());
+        evicted++;
+      }
+    }
+    expiredEvictions.add(evicted);
+    return evicted;
+  }
+
+  /**
+   * Runs {@link #evictExpiredKeys()} periodically on the given scheduler, which stays owned by the
+   * caller. Cancel the returned future to stop it.
+   */
+  public ScheduledFuture<?> scheduleEviction(ScheduledExecutorService scheduler,
+      Duration interval) {
+    return scheduler.scheduleWithFixedDelay(this::evictExpiredKeys, interval.toMillis(),
+        interval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public long liveKeys() {
+    return windows.size();
+  }
+
+  public KeyMetrics keyMetrics() {
+    return new KeyMetrics(windows.size(), expiredEvictions.sum(), capacityEvictions.sum(),
+        overflowDecisions.sum());
+  }
+
+  /**
+   * @return permits a stripe leases at once
+   */
+  public int leaseSize() {
+    return leaseSize;
+  }
+
+  // Two fixed windows of one key and the budgets of its stripes. The counts include the permits
+  // leased to the stripes, they only change under the monitor.
+  private final class StripedWindow {
+
+    // Sequence number of the windows, odd while a roll-over is rewriting them, EVICTED_VERSION once
+    // the window was removed from the map. Half of it is the generation the budgets are tagged
+    // with, a budget of an older generation is empty.
+    private volatile long version;
+    private volatile long previousTimestamp;
+    private volatile long currentTimestamp;
+    private volatile int previousCount;
+    private volatile int currentCount;
+    // Time of the last lease, written under the monitor only: the fast path writes nothing the
+    // stripes share, so a busy key is as recent as its last lease. Read without the monitor to
+    // pick the least recently used key, a stale value only makes the pick less exact.
+    private long lastLease;
+    // Generation in the high 32 bits, remaining permits of the stripe in the low 32 bits, at every
+    // STRIPE_LONGS-th long.
+    private final long[] budgets = new long[(stripeMask + 1) * STRIPE_LONGS];
+
+    private StripedWindow(long now) {
+      this.previousTimestamp = now;
+      this.currentTimestamp = now;
+      this.lastLease = now;
+    }
+
+    private long tryAcquire(int stripe, long now, int permits, Decision decision) {
+      // Fast path: the budget of the stripe, one compare-and-set without the monitor.
+      long version = this.version;
+      if ((version & 1) == 0 && currentTimestamp + windowLengthInMilliSeconds >= now
+          && take(stripe, generation(version), permits)) {
+        return allowed(version, stripe, now, permits, decision);
+      }
+
+      while (true) {
+        version = this.version;
+        if (version == EVICTED_VERSION) {
+          return EVICTED;
+        }
+        if ((version & 1) != 0) {
+          // Roll-over in progress, it only rewrites a few fields and the budgets.
+          Thread.onSpinWait();
+          continue;
+        }
+        if (currentTimestamp + windowLengthInMilliSeconds < now) {
+          rollOver(now);
+          continue;
+        }
+        int generation = generation(version);
+        // Another thread of the stripe may have leased a new budget meanwhile.
+        if (take(stripe, generation, permits)) {
+          return allowed(version, stripe, now, permits, decision);
+        }
+        if ((long) weightedCount(now) + permits <= maxAllowedRequestsPerPeriod) {
+          if (lease(version, stripe, now, permits)) {
+            return allowed(version, stripe, now, permits, decision);
+          }
+          // Rolled over or used up by the lease of another stripe, look again.
+          continue;
+        }
+        // The shared count is used up, but other stripes may still hold leased permits.
+        for (int i = 1; i <= stripeMask; i++) {
+          int other = (stripe + i) & stripeMask;
+          if (take(other, generation, permits)) {
+            return allowed(version, other, now, permits, decision);
+          }
+        }
+        if (this.version != version) {
+          // The counts were read while the window rolled over.
+          continue;
+        }
+        if (decision != null) {
+          int outstanding = outstanding(generation);
+          int count = Math.max(0, weightedCount(now) - outstanding);
+          decision.set(false, count, Math.max(0, maxAllowedRequestsPerPeriod - count),
+              SlidingWindowCountStrategy.retryAfterMillis(now, windowLengthInMilliSeconds,
+                  maxAllowedRequestsPerPeriod, permits, previousTimestamp, previousCount,
+                  currentTimestamp, Math.max(0, currentCount - outstanding),
+                  // Rolls over once it is more than a window length old.
+                  currentTimestamp + windowLengthInMilliSeconds + 1));
+        }
+        return REJECTED;
+      }
+    }
+
+    private long allowed(long version, int stripe, long now, int permits, Decision decision) {
+      if (decision != null) {
+        // Leased permits the stripes haven't handed out yet are not requests.
+        int count = Math.max(0,
+            weightedCount(now) - outstanding(generation(version)) - permits);
+        decision.set(true, count, maxAllowedRequestsPerPeriod - count - permits, 0);
+      }
+      return (long) generation(version) << 32 | stripe;
+    }
+
+    // Same weighted count of the two fixed windows as SlidingWindowCountStrategy.
+    private int weightedCount(long now) {
+      long slidingWindowStart = Math.max(0, now - windowLengthInMilliSeconds);
+      long previousFixedWindowEnd = previousTimestamp + windowLengthInMilliSeconds;
+      double previousFixedWindowWeight =
+          Math.max(0, previousFixedWindowEnd - slidingWindowStart)
+              / (double) windowLengthInMilliSeconds;
+      return (int) (previousCount * previousFixedWindowWeight + currentCount);
+    }
+
+    private boolean take(int stripe, int generation, int permits) {
+      int index = stripe * STRIPE_LONGS;
+      while (true) {
+        long budget = (long) BUDGETS.getVolatile(budgets, index);
+        if ((int) (budget >>> 32) != generation || (int) budget < permits) {
+          return false;
+        }
+        if (BUDGETS.compareAndSet(budgets, index, budget, budget - permits)) {
+          return true;
+        }
+      }
+    }
+
+    // Counts a new budget for the stripe in the current window, the permits of the request
+    // included. The count is checked again under the monitor, so leases never go over the limit.
+    private synchronized boolean lease(long version, int stripe, long now, int permits) {
+      if (this.version != version) {
+        return false;
+      }
+      long available = (long) maxAllowedRequestsPerPeriod - weightedCount(now);
+      if (available < permits) {
+        return false;
+      }
+      int leased = (int) Math.min(Math.max(permits, leaseSize), available);
+      lastLease = now;
+      currentCount += leased;
+      give(stripe, generation(version), leased - permits);
+      return true;
+    }
+
+    // Adds permits to the budget of the stripe. Only called while the generation is current: under
+    // the monitor, or for permits taken in it which the roll-over would have taken back.
+    private void give(int stripe, int generation, int permits) {
+      int index = stripe * STRIPE_LONGS;
+      while (true) {
+        long budget = (long) BUDGETS.getVolatile(budgets, index);
+        if ((int) (budget >>> 32) != generation) {
+          return;
+        }
+        if (BUDGETS.compareAndSet(budgets, index, budget, budget + permits)) {
+          return;
+        }
+      }
+    }
+
+    // Takes back permits of a decision of the same generation. After a roll-over they count in
+    // the previous window, like the permits of the other strategies.
+    private void release(long acquired, int permits) {
+      give((int) acquired, (int) (acquired >>> 32), permits);
+    }
+
+    // Permits leased to the stripes and not handed out yet, read without stopping them.
+    private int outstanding(int generation) {
+      long outstanding = 0;
+      for (int index = 0; index < budgets.length; index += STRIPE_LONGS) {
+        long budget = (long) BUDGETS.getVolatile(budgets, index);
+        if ((int) (budget >>> 32) == generation) {
+          outstanding += (int) budget;
+        }
+      }
+      return (int) outstanding;
+    }
+
+    private synchronized void rollOver(long now) {
+      // Another thread may have rolled the window over while we waited for the monitor.
+      long version = this.version;
+      if (version == EVICTED_VERSION || currentTimestamp + windowLengthInMilliSeconds >= now) {
+        return;
+      }
+      this.version = version + 1;
+      // Empties every budget into the next generation: a decision still holding the old one fails
+      // its compare-and-set, and the permits nobody took are no requests of the ending window.
+      int generation = generation(version);
+      long nextGeneration = (long) generation(version + 2) << 32;
+      int unused = 0;
+      for (int index = 0; index < budgets.length; index += STRIPE_LONGS) {
+        long budget = (long) BUDGETS.getAndSet(budgets, index, nextGeneration);
+        if ((int) (budget >>> 32) == generation) {
+          unused += (int) budget;
+        }
+      }
+      previousCount = currentCount - unused;
+      previousTimestamp = currentTimestamp;
+      currentCount = 0;
+      currentTimestamp = now;
+      this.version = version + 2;
+    }
+
+    // With onlyIfExpired, only once both fixed windows end before the sliding window starts and
+    // nothing of this key counts anymore. The evicted version is odd, so no decision takes the
+    // budgets of the stripes afterwards.
+    private synchronized boolean evict(long now, boolean onlyIfExpired) {
+      if (version == EVICTED_VERSION || onlyIfExpired
+          && currentTimestamp + 2 * windowLengthInMilliSeconds > now) {
+        return false;
+      }
+      version = EVICTED_VERSION;
+      return true;
+    }
+  }
+
+  private static int generation(long version) {
+    return (int) (version >>> 1);
+  }
+}
@@ -0,0 +1,201 @@
+package org.example;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import redis.clients.jedis.Jedis;
+
+/**
+ * Distributed version of the {@link SlidingWindowLogStrategy} which keeps the log of every key in
+ * a Redis sorted set, the timestamps of the allowed requests as scores.
+ * <p>A decision is one Lua script call (EVALSHA): trim the requests which left the window
+ * (ZREMRANGEBYSCORE), count the rest (ZCARD) and log the request (ZADD). The script is atomic, so
+ * concurrent gateway nodes can not both take the last permit, and the set expires one window
+ * length after its newest request. A set holds at most the limit of members, so size the limit
+ * with the memory of Redis in mind: about 60 bytes per member.
+ * <p>Members must be unique, so a request is logged as {@code <timestamp>-<n>}, n counting the
+ * members of the same millisecond. Members are only ever removed by whole milliseconds, so n is
+ * the number of members with that score and never collides.
+ * <p>Batches work like those of the {@link GcraDistributedUsingRedisStrategy}: independent
+ * decisions are pipelined per node, an all-or-nothing batch is one script call which logs the
+ * request only when every key allows it. Keys are hash-tagged ({@code {key}:log}, see
+ * {@link RedisKeys}).
+ */
+public class SlidingWindowLogDistributedUsingRedisStrategy implements RateLimiterStrategy {
+
+  // KEYS - log of each limited key, a sorted set of the allowed requests by timestamp.
+  // ARGV[1] - window length in milliseconds, ARGV[2] - max allowed requests, ARGV[3] - now,
+  // ARGV[4] - 1 when no key may consume quota unless every key allows the request,
+  // ARGV[5] - permits the request takes from every key, ARGV[6] - now - window.
+  // Timestamps are passed as strings and used as such, Lua can not format an epoch as an integer.
+  // Returns three values per key: the decision (1 when the request is allowed, 0 when it is
+  // rejected), the requests in the window and the milliseconds until a rejected request fits
+  // (-1 never).
+  static final RedisScript SLIDING_WINDOW_LOG_SCRIPT = new RedisScript("""
+      local window = tonumber(ARGV[1])
+      local limit = tonumber(ARGV[2])
+      local now = tonumber(ARGV[3])
+      local allOrNothing = ARGV[4] == '1'
+      local permits = tonumber(ARGV[5])
+      local score = ARGV[3]
+      local cutoff = ARGV[6]
+
+      local decisions = {}
+      -- Permits logged by this call, per key (same key twice in a batch).
+      local pending = {}
+      local allAllowed = true
+      for i = 1, #KEYS do
+        local key = KEYS[i]
+        -- Requests at or before now - window have left the window ending now.
+        redis.call('ZREMRANGEBYSCORE', key, '-inf', cutoff)
+        local logged = redis.call('ZCARD', key)
+        local count = logged + (pending[key] or 0)
+        if count + permits <= limit then
+          decisions[3 * i - 2] = 1
+          decisions[3 * i] = 0
+          pending[key] = (pending[key] or 0) + permits
+        else
+          decisions[3 * i - 2] = 0
+          if permits > limit then
+            decisions[3 * i] = -1
+          else
+            -- The oldest count + permits - limit requests have to leave the window first.
+            -- Requests of this call are logged at now, they leave a whole window later.
+            local leaving = count + permits - limit - 1
+            if leaving < logged then
+              local oldest = redis.call('ZRANGE', key, leaving, leaving, 'WITHSCORES')
+              decisions[3 * i] = tonumber(oldest[2]) + window - now
+            else
+              decisions[3 * i] = window
+            end
+          end
+          allAllowed = false
+        end
+        decisions[3 * i - 1] = count
+      end
+
+      -- Log the request only now, so a rejection by one key leaves the others untouched.
+      if allAllowed or not allOrNothing then
+        for key, keyPermits in pairs(pending) do
+          local sameMillisecond = redis.call('ZCOUNT', key, score, score)
+          -- In chunks, unpack is limited by the stack of the Lua interpreter.
+          for first = 0, keyPermits - 1, 1000 do
+            local members = {}
+            for n = first, math.min(first + 1000, keyPermits) - 1 do
+              members[#members + 1] = score
+              members[#members + 1] = score .. '-' .. (sameMillisecond + n)
+            end
+            redis.call('ZADD', key, (table.unpack or unpack)(members))
+          end
+          redis.call('PEXPIRE', key, window)
+        end
+      end
+      return decisions
+      """);
+
+  private static final Long ALLOWED = 1L;
+
+  private final int maxAllowedRequestsPerPeriod;
+  private final long windowLengthInMilliSeconds;
+  private final Clock clock;
+  private final RedisConnectionProvider connections;
+
+  public SlidingWindowLogDistributedUsingRedisStrategy(int timePeriodInSeconds,
+      int maxAllowedRequestsPerPeriod, Clock clock, RedisConnectionProvider connections) {
+    this.maxAllowedRequestsPerPeriod = maxAllowedRequestsPerPeriod;
+    this.windowLengthInMilliSeconds = timePeriodInSeconds * 1000L;
+    this.clock = clock;
+    this.connections = connections;
+  }
+
+  // A single connection is not thread-safe, calls on it are serialized by the provider.
+  public SlidingWindowLogDistributedUsingRedisStrategy(int timePeriodInSeconds,
+      int maxAllowedRequestsPerPeriod, Clock clock, Jedis jedis) {
+    this(timePeriodInSeconds, maxAllowedRequestsPerPeriod, clock,
+        RedisConnectionProvider.of(jedis));
+  }
+
+  @Override
+  public boolean allowed(String key) {
+    return allowed(key, 1);
+  }
+
+  @Override
+  public boolean allowed(String key, int permits) {
+    return ALLOWED.equals(eval(key, permits).get(0));
+  }
+
+  @Override
+  public Decision decide(String key, int permits, Decision decision) {
+    List<?> result = eval(key, permits);
+    int count = ((Long) result.get(1)).intValue();
+    if (ALLOWED.equals(result.get(0))) {
+      return decision.set(true, count, maxAllowedRequestsPerPeriod - count - permits, 0);
+    }
+    return decision.set(false, count, Math.max(0, maxAllowedRequestsPerPeriod - count),
+        (Long) result.get(2));
+  }
+
+  private List<?> eval(String key, int permits) {
+    if (permits < 1) {
+      throw new IllegalArgumentException("permits must be positive, was " + permits);
+    }
+    List<String> keys = List.of(logKey(key));
+    List<String> args = scriptArgs(clock.millis(), false, permits);
+    return connections.execute(keys.get(0),
+        jedis -> (List<?>) SLIDING_WINDOW_LOG_SCRIPT.eval(jedis, keys, args));
+  }
+
+  @Override
+  public boolean[] allowedAll(List<String> keys, boolean allOrNothing) {
+    if (keys.isEmpty()) {
+      return new boolean[0];
+    }
+    List<String> scriptKeys = new ArrayList<>(keys.size());
+    for (String key : keys) {
+      scriptKeys.add(logKey(key));
+    }
+    List<String> args = scriptArgs(clock.millis(), allOrNothing, 1);
+    boolean[] decisions = new boolean[keys.size()];
+
+    if (allOrNothing) {
+      // All keys in one script call, so the keys are checked and logged in one atomic step.
+      List<?> results = connections.execute(scriptKeys.get(0),
+          jedis -> (List<?>) SLIDING_WINDOW_LOG_SCRIPT.eval(jedis, scriptKeys, args));
+      for (int i = 0; i < decisions.length; i++) {
+        decisions[i] = ALLOWED.equals(results.get(3 * i));
+      }
+      return decisions;
+    }
+
+    // Independent decisions: one script call per key, pipelined in one round trip per node.
+    for (List<Integer> node : connections.groupByNode(scriptKeys)) {
+      List<List<String>> nodeKeys = new ArrayList<>(node.size());
+      for (int i : node) {
+        nodeKeys.add(List.of(scriptKeys.get(i)));
+      }
+      List<Object> results = connections.execute(nodeKeys.get(0).get(0),
+          jedis -> SLIDING_WINDOW_LOG_SCRIPT.evalPipelined(jedis, nodeKeys, args));
+      for (int i = 0; i < node.size(); i++) {
+        Object result = results.get(i);
+        if (RedisScript.isRedirected(result)) {
+          // The slot moved since the keys were grouped by node, the call did not run.
+          result = SLIDING_WINDOW_LOG_SCRIPT.eval(connections, nodeKeys.get(i), args);
+        }
+        decisions[node.get(i)] = ALLOWED.equals(((List<?>) result).get(0));
+      }
+    }
+    return decisions;
+  }
+
+  static String logKey(String key) {
+    return RedisKeys.of(key, "log");
+  }
+
+  private List<String> scriptArgs(long now, boolean allOrNothing, int permits) {
+    return List.of(String.valueOf(windowLengthInMilliSeconds),
+        String.valueOf(maxAllowedRequestsPerPeriod), String.valueOf(now),
+        allOrNothing ? "1" : "0", String.valueOf(permits),
+        String.valueOf(now - windowLengthInMilliSeconds));
+  }
+}
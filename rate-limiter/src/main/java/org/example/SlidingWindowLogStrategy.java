@@ -0,0 +1,323 @@
+package org.example;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sliding window log strategy: the timestamp of every allowed request of the last window length is
+ * kept, so a request is allowed exactly when fewer than the limit requests were allowed in the
+ * window ending now. No approximation, no burst at a window edge can go over the limit, for
+ * contracts like "no more than 100 calls in any 60 seconds".
+ * <p>The timestamps of a key are a ring buffer in a {@code long[]}. Timestamps only ever enter at
+ * the tail in order, so the expired ones are dropped from the head and the ring never holds more
+ * than the limit: memory is bounded by 8 bytes per permit of the limit and key. The ring starts
+ * small and doubles up to the limit while the key gets busier, after that a decision allocates
+ * nothing.
+ * <p>A decision drops the timestamps which left the window, compares the rest with the limit and
+ * appends the timestamp of the request, under the monitor of the key. The retry-after of a rejected
+ * request is exact as well: the time until enough of the oldest requests left the window.
+ * <p>Keys without a request in the last window length are removed by {@link #evictExpiredKeys()},
+ * or lazily when a new key is inserted into a limiter bounded by a {@link KeyCapacity}.
+ * <p>Use it for limits of up to a few thousand requests per window. Above that the weighted count
+ * of the {@link SlidingWindowCountStrategy} or the buckets of the
+ * {@link SlidingWindowBucketStrategy} need a fraction of the memory.
+ */
+public class SlidingWindowLogStrategy implements RateLimiterStrategy {
+
+  private static final long REJECTED = Long.MIN_VALUE;
+  // The log was evicted while we used it, resolve the key again.
+  private static final long EVICTED = Long.MIN_VALUE + 1;
+  private static final int INITIAL_CAPACITY = 8;
+  // Keys looked at to make room for a new key in a full limiter.
+  private static final int EVICTION_SAMPLE_SIZE = 16;
+
+  private final int maxAllowedRequestsPerPeriod;
+  private final long windowLengthInMilliSeconds;
+  private final Clock clock;
+  private final KeyCapacity keyCapacity;
+  private final LongAdder expiredEvictions = new LongAdder();
+  private final LongAdder capacityEvictions = new LongAdder();
+  private final LongAdder overflowDecisions = new LongAdder();
+  private final ConcurrentMap<String, Log> logs = new ConcurrentHashMap<>();
+
+  public SlidingWindowLogStrategy(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod,
+      Clock clock) {
+    this(timePeriodInSeconds, maxAllowedRequestsPerPeriod, clock, KeyCapacity.UNBOUNDED);
+  }
+
+  public SlidingWindowLogStrategy(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod,
+      Clock clock, KeyCapacity keyCapacity) {
+    this.maxAllowedRequestsPerPeriod = maxAllowedRequestsPerPeriod;
+    this.windowLengthInMilliSeconds = timePeriodInSeconds * 1000L;
+    this.clock = clock;
+    this.keyCapacity = keyCapacity;
+  }
+
+  @Override
+  public boolean allowed(String key) {
+    return allowed(key, 1);
+  }
+
+  @Override
+  public boolean allowed(String key, int permits) {
+    return acquire(key, permits, null);
+  }
+
+  @Override
+  public Decision decide(String key, int permits, Decision decision) {
+    acquire(key, permits, decision);
+    return decision;
+  }
+
+  private boolean acquire(String key, int permits, Decision decision) {
+    if (permits < 1) {
+      throw new IllegalArgumentException("permits must be positive, was " + permits);
+    }
+    long now = clock.millis();
+    while (true) {
+      Log log = logOf(key, now);
+      if (log == null) {
+        boolean allowed = overflowDecision();
+        if (decision != null) {
+          // The key has no state: a new key has its whole quota, without one we can only tell
+          // that the sweep makes room within a window length.
+          decision.set(allowed, 0, allowed ? maxAllowedRequestsPerPeriod - permits : 0,
+              allowed ? 0 : windowLengthInMilliSeconds);
+        }
+        return allowed;
+      }
+      long acquired = log.tryAcquire(now, permits, decision);
+      if (acquired != EVICTED) {
+        return acquired != REJECTED;
+      }
+    }
+  }
+
+  @Override
+  public boolean[] allowedAll(List<String> keys, boolean allOrNothing) {
+    long now = clock.millis();
+    int size = keys.size();
+    Log[] acquiredLogs = new Log[size];
+    long[] acquired = new long[size];
+    boolean[] decisions = new boolean[size];
+    boolean allAllowed = true;
+    for (int i = 0; i < size; i++) {
+      do {
+        acquiredLogs[i] = logOf(keys.get(i), now);
+        acquired[i] = acquiredLogs[i] == null ? REJECTED
+            : acquiredLogs[i].tryAcquire(now, 1, null);
+      } while (acquired[i] == EVICTED);
+      decisions[i] = acquiredLogs[i] == null ? overflowDecision() : acquired[i] != REJECTED;
+      allAllowed &= decisions[i];
+    }
+
+    // One of the limits rejected the request, so give the quota back to the others.
+    if (allOrNothing && !allAllowed) {
+      for (int i = 0; i < size; i++) {
+        if (acquired[i] != REJECTED) {
+          acquiredLogs[i].release(acquired[i]);
+        }
+      }
+    }
+    return decisions;
+  }
+
+  // Returns null if the limiter is full and no key could be evicted.
+  private Log logOf(String key, long now) {
+    // Plain get first: computeIfAbsent would allocate a capturing lambda on every call.
+    Log log = logs.get(key);
+    if (log != null) {
+      return log;
+    }
+    if (keyCapacity.isBounded() && logs.size() >= keyCapacity.maxKeys() && !makeRoom(now)) {
+      return null;
+    }
+    return logs.computeIfAbsent(key, k -> new Log(now));
+  }
+
+  private boolean overflowDecision() {
+    overflowDecisions.increment();
+    return keyCapacity.overflowPolicy() == KeyCapacity.OverflowPolicy.ALLOW;
+  }
+
+  // Evicts one key of a small random sample: an expired one if there is any, otherwise the least
+  // recently used one if the policy allows it.
+  private boolean makeRoom(long now) {
+    Map.Entry<String, Log> leastRecentlyUsed = null;
+    for (Map.Entry<String, Log> entry : KeySample.of(logs, EVICTION_SAMPLE_SIZE)) {
+      Log log = entry.getValue();
+      if (log.evict(now, true)) {
+        logs.remove(entry.getKey(), log);
+        expiredEvictions.increment();
+        return true;
+      }
+      if (leastRecentlyUsed == null || log.lastAccess < leastRecentlyUsed.getValue().lastAccess) {
+        leastRecentlyUsed = entry;
+      }
+    }
+    if (keyCapacity.overflowPolicy() == KeyCapacity.OverflowPolicy.EVICT_LEAST_RECENTLY_USED
+        && leastRecentlyUsed != null && leastRecentlyUsed.getValue().evict(now, false)) {
+      logs.remove(leastRecentlyUsed.getKey(), leastRecentlyUsed.getValue());
+      capacityEvictions.increment();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Removes all keys without a request in the last window length.
+   *
+   * @return number of evicted keys
+   */
+  public int evictExpiredKeys() {
+    long now = clock.millis();
+    int evicted = 0;
+    for (Map.Entry<String, Log> entry : logs.entrySet()) {
+      if (entry.getValue().evict(now, true)) {
+        logs.remove(entry.getKey(), entry.getValue());
+        evicted++;
+      }
+    }
+    expiredEvictions.add(evicted);
+    return evicted;
+  }
+
+  /**
+   * Runs {@link #evictExpiredKeys()} periodically on the given scheduler, which stays owned by the
+   * caller. Cancel the returned future to stop it.
+   */
+  public ScheduledFuture<?> scheduleEviction(ScheduledExecutorService scheduler,
+      Duration interval) {
+    return scheduler.scheduleWithFixedDelay(this::evictExpiredKeys, interval.toMillis(),
+        interval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public long liveKeys() {
+    return logs.size();
+  }
+
+  public KeyMetrics keyMetrics() {
+    return new KeyMetrics(logs.size(), expiredEvictions.sum(), capacityEvictions.sum(),
+        overflowDecisions.sum());
+  }
+
+  // Timestamps of the allowed requests of one key, oldest at head.
+  private final class Log {
+
+    private long[] timestamps = new long[Math.min(INITIAL_CAPACITY, maxAllowedRequestsPerPeriod)];
+    private int head;
+    private int size;
+    // Read without the monitor to pick the least recently used key, a stale value only makes the
+    // pick less exact.
+    private long lastAccess;
+    private boolean evicted;
+
+    private Log(long now) {
+      this.lastAccess = now;
+    }
+
+    private synchronized long tryAcquire(long now, int permits, Decision decision) {
+      if (evicted) {
+        return EVICTED;
+      }
+      lastAccess = now;
+      expire(now);
+      if ((long) size + permits > maxAllowedRequestsPerPeriod) {
+        if (decision != null) {
+          decision.set(false, size, maxAllowedRequestsPerPeriod - size,
+              retryAfterMillis(now, permits));
+        }
+        return REJECTED;
+      }
+      // A clock which went back must not break the order of the ring.
+      long timestamp = size == 0 ? now : Math.max(now, timestamps[index(size - 1)]);
+      if (size + permits > timestamps.length) {
+        grow(size + permits);
+      }
+      for (int i = 0; i < permits; i++) {
+        timestamps[index(size++)] = timestamp;
+      }
+      if (decision != null) {
+        decision.set(true, size - permits, maxAllowedRequestsPerPeriod - size, 0);
+      }
+      return timestamp;
+    }
+
+    // Requests at or before now - window length have left the window ending now.
+    private void expire(long now) {
+      long windowStart = now - windowLengthInMilliSeconds;
+      while (size > 0 && timestamps[head] <= windowStart) {
+        head = index(1);
+        size--;
+      }
+    }
+
+    // The oldest size + permits - limit requests have to leave the window first.
+    private long retryAfterMillis(long now, int permits) {
+      if (permits > maxAllowedRequestsPerPeriod) {
+        return Decision.NEVER;
+      }
+      long leaving = timestamps[index(size + permits - maxAllowedRequestsPerPeriod - 1)];
+      return leaving + windowLengthInMilliSeconds - now;
+    }
+
+    // Takes back one permit logged with the given timestamp. Later permits may have been logged
+    // after it, they move up by one.
+    private synchronized void release(long timestamp) {
+      for (int i = size - 1; i >= 0; i--) {
+        long logged = timestamps[index(i)];
+        if (logged == timestamp) {
+          for (int j = i; j < size - 1; j++) {
+            timestamps[index(j)] = timestamps[index(j + 1)];
+          }
+          size--;
+          return;
+        }
+        if (logged < timestamp) {
+          // Already left the window, the request doesn't count anymore anyway.
+          return;
+        }
+      }
+    }
+
+    private void grow(int minCapacity) {
+      int capacity = (int) Math.min(maxAllowedRequestsPerPeriod,
+          Math.max(minCapacity, 2L * timestamps.length));
+      long[] grown = new long[capacity];
+      for (int i = 0; i < size; i++) {
+        grown[i] = timestamps[index(i)];
+      }
+      timestamps = grown;
+      head = 0;
+    }
+
+    // Position of the i-th oldest timestamp in the array.
+    private int index(int i) {
+      int index = head + i;
+      return index < timestamps.length ? index : index - timestamps.length;
+    }
+
+    // With onlyIfExpired, only once no request is left in the window. A decision which resolved
+    // the log before sees the flag and resolves its key again.
+    private synchronized boolean evict(long now, boolean onlyIfExpired) {
+      if (evicted) {
+        return false;
+      }
+      expire(now);
+      if (onlyIfExpired && size > 0) {
+        return false;
+      }
+      evicted = true;
+      return true;
+    }
+  }
+}
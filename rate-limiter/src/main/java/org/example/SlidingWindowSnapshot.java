@@ -0,0 +1,270 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Binary file of the sliding window state of many keys, written from a buffer and read through a
+ * memory mapping.
+ * <p>The file is a header, a hash index and the entries. The index is an open-addressing table
+ * (linear probing, at most half full) of the 64-bit hash of the key and the position of its entry,
+ * an entry is the key as UTF-16 chars followed by the two fixed window timestamps and the packed
+ * counts of {@link SlidingWindowCountStrategy}. All numbers are big-endian, so a snapshot can be
+ * handed to an instance on another machine, e.g. from the blue to the green deployment.
+ * <p>Writing copies the chars and longs into a direct buffer, which the next snapshot reuses, so
+ * no object is allocated per entry and no mapping is left behind per snapshot. The buffer is
+ * written to a temporary file of its own next to the target and renamed over it when complete, so
+ * a reader never maps a half written snapshot, and writers sharing the directory, e.g. two
+ * instances, never write the same file. Reading only maps the file, its pages are read when a key
+ * on them is first looked up. Right after a restart or on the instance which wrote it the file is
+ * usually still in the page cache. A key is decoded from the index when it is first needed, keys
+ * which never come back are never decoded.
+ */
+final class SlidingWindowSnapshot {
+
+  private static final int MAGIC = 0x524c5357;
+  private static final int FORMAT_VERSION = 1;
+  // magic, format version, window length, time of the snapshot, hash seed, entries, index slots.
+  private static final int WINDOW_LENGTH = 8;
+  private static final int TAKEN_AT = 16;
+  private static final int SEED = 24;
+  private static final int ENTRIES = 32;
+  private static final int INDEX_SLOTS = 36;
+  private static final int HEADER_BYTES = 40;
+  // Hash and position of the entry.
+  private static final int INDEX_SLOT_BYTES = 16;
+  // Previous and current fixed window timestamp, packed counts.
+  private static final int STATE_BYTES = 24;
+  private static final long EMPTY = 0;
+
+  private final MappedByteBuffer buffer;
+  private final long seed;
+  private final int indexMask;
+
+  private SlidingWindowSnapshot(MappedByteBuffer buffer) {
+    this.buffer = buffer;
+    this.seed = buffer.getLong(SEED);
+    this.indexMask = buffer.getInt(INDEX_SLOTS) - 1;
+  }
+
+  /**
+   * Maps the snapshot and checks its header. The rest of the file is read lazily by the lookups.
+   *
+   * @throws IOException if the file can't be read or isn't a snapshot of the given window length
+   */
+  static SlidingWindowSnapshot open(Path file, long windowLengthInMilliSeconds)
+      throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() < HEADER_BYTES || channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(file + " is not a sliding window snapshot");
+      }
+      // The mapping stays valid after the channel is closed.
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+        throw new IOException(file + " is not a sliding window snapshot");
+      }
+      if (buffer.getLong(WINDOW_LENGTH) != windowLengthInMilliSeconds) {
+        throw new IOException(file + " has windows of " + buffer.getLong(WINDOW_LENGTH)
+            + " ms, not " + windowLengthInMilliSeconds + " ms");
+      }
+      return new SlidingWindowSnapshot(buffer);
+    }
+  }
+
+  long takenAt() {
+    return buffer.getLong(TAKEN_AT);
+  }
+
+  int entries() {
+    return buffer.getInt(ENTRIES);
+  }
+
+  /**
+   * @return position of the state of the key, for the accessors below, or -1 if the key is not in
+   * the snapshot
+   */
+  int find(String key) {
+    long hash = hash(key, seed);
+    for (int slot = (int) hash & indexMask; ; slot = (slot + 1) & indexMask) {
+      int indexPosition = HEADER_BYTES + slot * INDEX_SLOT_BYTES;
+      long slotHash = buffer.getLong(indexPosition);
+      if (slotHash == EMPTY) {
+        return -1;
+      }
+      if (slotHash == hash) {
+        int entry = (int) buffer.getLong(indexPosition + 8);
+        if (keyEquals(entry, key)) {
+          return entry + Integer.BYTES + key.length() * Character.BYTES;
+        }
+      }
+    }
+  }
+
+  long previousTimestamp(int state) {
+    return buffer.getLong(state);
+  }
+
+  long currentTimestamp(int state) {
+    return buffer.getLong(state + 8);
+  }
+
+  long counts(int state) {
+    return buffer.getLong(state + 16);
+  }
+
+  private boolean keyEquals(int entry, String key) {
+    if (buffer.getInt(entry) != key.length()) {
+      return false;
+    }
+    int chars = entry + Integer.BYTES;
+    for (int i = 0; i < key.length(); i++) {
+      if (buffer.getChar(chars + i * Character.BYTES) != key.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static long hash(String key, long seed) {
+    long hash = CountMinSketch.hash(key, seed);
+    // Zero marks an empty index slot.
+    return hash == EMPTY ? 1 : hash;
+  }
+
+  /**
+   * Writes a snapshot of at most the given number of entries and key chars. Not thread-safe, one
+   * thread adds the entries and commits. The buffer can be handed to the writer of the next
+   * snapshot once this one is closed.
+   */
+  static final class Writer implements AutoCloseable {
+
+    private final Path file;
+    private final Path temporaryFile;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final int size;
+    private final long seed = ThreadLocalRandom.current().nextLong();
+    private final int maxEntries;
+    private final int indexMask;
+    private int entries;
+    private int position;
+
+    Writer(Path file, long windowLengthInMilliSeconds, long takenAt, int maxEntries,
+        long maxKeyChars) throws IOException {
+      this(file, windowLengthInMilliSeconds, takenAt, maxEntries, maxKeyChars, null);
+    }
+
+    /**
+     * @param reusable {@link #buffer()} of an earlier writer, used if it is big enough, or null
+     */
+    Writer(Path file, long windowLengthInMilliSeconds, long takenAt, int maxEntries,
+        long maxKeyChars, ByteBuffer reusable) throws IOException {
+      int indexSlots = Integer.highestOneBit(Math.max(1, maxEntries)) << 1;
+      long size = HEADER_BYTES + (long) indexSlots * INDEX_SLOT_BYTES
+          + (long) maxEntries * (Integer.BYTES + STATE_BYTES) + maxKeyChars * Character.BYTES;
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("snapshot of " + maxEntries + " keys needs " + size
+            + " bytes, more than one buffer can hold");
+      }
+      this.buffer = reusable != null && reusable.capacity() >= size
+          ? reusable : ByteBuffer.allocateDirect((int) size);
+      this.file = file;
+      // A name of its own, so writers sharing the directory never write the same file.
+      this.temporaryFile = Files.createTempFile(file.toAbsolutePath().getParent(),
+          file.getFileName().toString(), ".tmp");
+      try {
+        this.channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE);
+      } catch (IOException | RuntimeException e) {
+        Files.deleteIfExists(temporaryFile);
+        throw e;
+      }
+      this.size = (int) size;
+      this.maxEntries = maxEntries;
+      this.indexMask = indexSlots - 1;
+      this.position = HEADER_BYTES + indexSlots * INDEX_SLOT_BYTES;
+      // Zero marks an empty index slot, a reused buffer still holds the index of its last snapshot.
+      for (int i = HEADER_BYTES; i < position; i += Long.BYTES) {
+        buffer.putLong(i, EMPTY);
+      }
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(4, FORMAT_VERSION);
+      buffer.putLong(WINDOW_LENGTH, windowLengthInMilliSeconds);
+      buffer.putLong(TAKEN_AT, takenAt);
+      buffer.putLong(SEED, seed);
+      buffer.putInt(INDEX_SLOTS, indexSlots);
+    }
+
+    /**
+     * @return false if the snapshot is full, e.g. the key was added after the snapshot was sized
+     */
+    boolean add(String key, long previousTimestamp, long currentTimestamp, long counts) {
+      int entryBytes = Integer.BYTES + key.length() * Character.BYTES + STATE_BYTES;
+      if (entries == maxEntries || position + entryBytes > size) {
+        return false;
+      }
+      long hash = hash(key, seed);
+      int slot = (int) hash & indexMask;
+      while (buffer.getLong(HEADER_BYTES + slot * INDEX_SLOT_BYTES) != EMPTY) {
+        slot = (slot + 1) & indexMask;
+      }
+      buffer.putLong(HEADER_BYTES + slot * INDEX_SLOT_BYTES, hash);
+      buffer.putLong(HEADER_BYTES + slot * INDEX_SLOT_BYTES + 8, position);
+
+      buffer.putInt(position, key.length());
+      int chars = position + Integer.BYTES;
+      for (int i = 0; i < key.length(); i++) {
+        buffer.putChar(chars + i * Character.BYTES, key.charAt(i));
+      }
+      int state = chars + key.length() * Character.BYTES;
+      buffer.putLong(state, previousTimestamp);
+      buffer.putLong(state + 8, currentTimestamp);
+      buffer.putLong(state + 16, counts);
+      position = state + STATE_BYTES;
+      entries++;
+      return true;
+    }
+
+    /**
+     * Writes the snapshot to disk and replaces the target file with it.
+     *
+     * @return number of entries written
+     */
+    int commit() throws IOException {
+      buffer.putInt(ENTRIES, entries);
+      // Only the index and the entries added, not the space left for keys which never came.
+      buffer.position(0).limit(position);
+      try {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      } finally {
+        buffer.clear();
+      }
+      channel.force(false);
+      channel.close();
+      Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      return entries;
+    }
+
+    ByteBuffer buffer() {
+      return buffer;
+    }
+
+    // Discards the snapshot unless it was committed.
+    @Override
+    public void close() throws IOException {
+      if (channel.isOpen()) {
+        channel.close();
+        Files.deleteIfExists(temporaryFile);
+      }
+    }
+  }
+}
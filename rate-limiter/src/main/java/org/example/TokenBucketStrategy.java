@@ -0,0 +1,300 @@
+package org.example;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token bucket strategy for rate limiting.
+ * <p>Every key has a bucket which holds at most {@code burst} tokens and is refilled at a constant
+ * rate of maxAllowedRequestsPerPeriod tokens per time period. A request takes one token, and it
+ * is rejected when the bucket is empty. The bucket is not refilled by a timer - the tokens which
+ * accumulated since the last request are added lazily when the next request arrives.
+ * <p>Let's take an example: 5 requests per 10 seconds with a burst of 5. A new key can send 5
+ * requests at once, then the bucket is empty and gets one new token every 2 seconds.
+ * <p>The state of a key is a token count and the time of the last refill, updated under the
+ * monitor of the bucket. Tokens are counted in fixed point, one token is time period in
+ * milliseconds units and every millisecond adds maxAllowedRequestsPerPeriod units, so the refill
+ * is exact integer arithmetic without any rounding drift. {@link GcraStrategy} makes the same
+ * decisions with a single long per key and a compare-and-set, prefer it for hot keys.
+ * <p>A key whose bucket refilled to the burst is in the state of a new key, so it is removed by
+ * {@link #evictExpiredKeys()} without changing any decision, or lazily when a new key is inserted
+ * into a limiter bounded by a {@link KeyCapacity}.
+ */
+public class TokenBucketStrategy implements RateLimiterStrategy {
+
+  private static final int REJECTED = 0;
+  private static final int ALLOWED = 1;
+  // The bucket was evicted while we used it, resolve the key again.
+  private static final int EVICTED = 2;
+  // Keys looked at to make room for a new key in a full limiter.
+  private static final int EVICTION_SAMPLE_SIZE = 16;
+
+  // One token in fixed point units.
+  private final long tokenUnits;
+  // Units added to a bucket every millisecond.
+  private final long unitsPerMilliSecond;
+  private final long capacityUnits;
+  private final Clock clock;
+  private final KeyCapacity keyCapacity;
+  private final LongAdder expiredEvictions = new LongAdder();
+  private final LongAdder capacityEvictions = new LongAdder();
+  private final LongAdder overflowDecisions = new LongAdder();
+  private final ConcurrentMap<String, TokenBucket> userTokenBucket = new ConcurrentHashMap<>();
+
+  // Burst of maxAllowedRequestsPerPeriod - the whole quota of a period may be used at once.
+  public TokenBucketStrategy(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod,
+      Clock clock) {
+    this(timePeriodInSeconds, maxAllowedRequestsPerPeriod, maxAllowedRequestsPerPeriod, clock);
+  }
+
+  public TokenBucketStrategy(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod, int burst,
+      Clock clock) {
+    this(timePeriodInSeconds, maxAllowedRequestsPerPeriod, burst, clock, KeyCapacity.UNBOUNDED);
+  }
+
+  public TokenBucketStrategy(int timePeriodInSeconds, int maxAllowedRequestsPerPeriod, int burst,
+      Clock clock, KeyCapacity keyCapacity) {
+    this.tokenUnits = timePeriodInSeconds * 1000L;
+    this.unitsPerMilliSecond = maxAllowedRequestsPerPeriod;
+    this.capacityUnits = tokenUnits * burst;
+    this.clock = clock;
+    this.keyCapacity = keyCapacity;
+  }
+
+  @Override
+  public boolean allowed(String key) {
+    return allowed(key, 1);
+  }
+
+  @Override
+  public boolean allowed(String key, int permits) {
+    return take(key, permits, null);
+  }
+
+  @Override
+  public Decision decide(String key, int permits, Decision decision) {
+    take(key, permits, decision);
+    return decision;
+  }
+
+  private boolean take(String key, int permits, Decision decision) {
+    if (permits < 1) {
+      throw new IllegalArgumentException("permits must be positive, was " + permits);
+    }
+    long now = clock.millis();
+    while (true) {
+      TokenBucket tokenBucket = tokenBucketOf(key, now);
+      if (tokenBucket == null) {
+        boolean allowed = overflowDecision();
+        if (decision != null) {
+          // The key has no state: a new key has its whole burst, without one we can only tell
+          // that the sweep makes room once a bucket refilled.
+          long burst = capacityUnits / tokenUnits;
+          decision.set(allowed, 0, allowed ? (int) Math.max(0, burst - permits) : 0,
+              allowed ? 0 : Math.ceilDiv(capacityUnits, unitsPerMilliSecond));
+        }
+        return allowed;
+      }
+      int taken = tokenBucket.tryTake(now, permits, decision);
+      if (taken != EVICTED) {
+        return taken == ALLOWED;
+      }
+    }
+  }
+
+  @Override
+  public boolean[] allowedAll(List<String> keys, boolean allOrNothing) {
+    long now = clock.millis();
+    int size = keys.size();
+    TokenBucket[] tokenBuckets = new TokenBucket[size];
+    boolean[] decisions = new boolean[size];
+    boolean allAllowed = true;
+    int[] taken = new int[size];
+    for (int i = 0; i < size; i++) {
+      do {
+        tokenBuckets[i] = tokenBucketOf(keys.get(i), now);
+        taken[i] = tokenBuckets[i] == null ? REJECTED : tokenBuckets[i].tryTake(now, 1, null);
+      } while (taken[i] == EVICTED);
+      decisions[i] = tokenBuckets[i] == null ? overflowDecision() : taken[i] == ALLOWED;
+      allAllowed &= decisions[i];
+    }
+
+    // One of the limits rejected the request, put the tokens back into the other buckets.
+    if (allOrNothing && !allAllowed) {
+      for (int i = 0; i < size; i++) {
+        if (taken[i] == ALLOWED) {
+          tokenBuckets[i].giveBack();
+        }
+      }
+    }
+    return decisions;
+  }
+
+  /**
+   * Removes all keys whose bucket refilled to the burst since their last request.
+   *
+   * @return number of evicted keys
+   */
+  public int evictExpiredKeys() {
+    long now = clock.millis();
+    int evicted = 0;
+    for (Map.Entry<String, TokenBucket> entry : userTokenBucket.entrySet()) {
+      if (entry.getValue().evict(now, true)) {
+        userTokenBucket.remove(entry.getKey(), entry.getValue());
+        evicted++;
+      }
+    }
+    expiredEvictions.add(evicted);
+    return evicted;
+  }
+
+  /**
+   * Runs {@link #evictExpiredKeys()} periodically on the given scheduler, which stays owned by the
+   * caller. Cancel the returned future to stop it.
+   */
+  public ScheduledFuture<?> scheduleEviction(ScheduledExecutorService scheduler,
+      Duration interval) {
+    return scheduler.scheduleWithFixedDelay(this::evictExpiredKeys, interval.toMillis(),
+        interval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public long liveKeys() {
+    return userTokenBucket.size();
+  }
+
+  public KeyMetrics keyMetrics() {
+    return new KeyMetrics(userTokenBucket.size(), expiredEvictions.sum(), capacityEvictions.sum(),
+        overflowDecisions.sum());
+  }
+
+  // Returns null if the limiter is full and no key could be evicted.
+  private TokenBucket tokenBucketOf(String key, long now) {
+    TokenBucket tokenBucket = userTokenBucket.get(key);
+    if (tokenBucket != null) {
+      return tokenBucket;
+    }
+    if (keyCapacity.isBounded() && userTokenBucket.size() >= keyCapacity.maxKeys()
+        && !makeRoom(now)) {
+      return null;
+    }
+    // A new key starts with a full bucket.
+    return userTokenBucket.computeIfAbsent(key, k -> new TokenBucket(capacityUnits, now));
+  }
+
+  private boolean overflowDecision() {
+    overflowDecisions.increment();
+    return keyCapacity.overflowPolicy() == KeyCapacity.OverflowPolicy.ALLOW;
+  }
+
+  // Evicts one key of a small random sample: a full bucket if there is any, otherwise the least
+  // recently used one if the policy allows it.
+  private boolean makeRoom(long now) {
+    Map.Entry<String, TokenBucket> leastRecentlyUsed = null;
+    for (Map.Entry<String, TokenBucket> entry : KeySample.of(userTokenBucket,
+        EVICTION_SAMPLE_SIZE)) {
+      TokenBucket tokenBucket = entry.getValue();
+      if (tokenBucket.evict(now, true)) {
+        userTokenBucket.remove(entry.getKey(), tokenBucket);
+        expiredEvictions.increment();
+        return true;
+      }
+      if (leastRecentlyUsed == null
+          || tokenBucket.lastRefill < leastRecentlyUsed.getValue().lastRefill) {
+        leastRecentlyUsed = entry;
+      }
+    }
+    if (keyCapacity.overflowPolicy() == KeyCapacity.OverflowPolicy.EVICT_LEAST_RECENTLY_USED
+        && leastRecentlyUsed != null && leastRecentlyUsed.getValue().evict(now, false)) {
+      userTokenBucket.remove(leastRecentlyUsed.getKey(), leastRecentlyUsed.getValue());
+      capacityEvictions.increment();
+      return true;
+    }
+    return false;
+  }
+
+  private final class TokenBucket {
+
+    private long units;
+    // Time of the last request. Read without the monitor to pick the least recently used key, a
+    // stale value only makes the pick less exact.
+    private long lastRefill;
+    private boolean evicted;
+
+    private TokenBucket(long units, long now) {
+      this.units = units;
+      this.lastRefill = now;
+    }
+
+    // The decision is only filled in when one is given, the plain boolean path doesn't pay for it.
+    private synchronized int tryTake(long now, int permits, Decision decision) {
+      if (evicted) {
+        return EVICTED;
+      }
+      long requestedUnits = tokenUnits * permits;
+      refill(now);
+      if (units < requestedUnits) {
+        if (decision != null) {
+          // The request fits once enough units were refilled, nothing fits more than the burst.
+          long retryAfterMillis = requestedUnits > capacityUnits
+              ? Decision.NEVER : Math.ceilDiv(requestedUnits - units, unitsPerMilliSecond);
+          decision.set(false, tokensInUse(), (int) (units / tokenUnits), retryAfterMillis);
+        }
+        return REJECTED;
+      }
+      if (decision != null) {
+        decision.set(true, tokensInUse(), (int) ((units - requestedUnits) / tokenUnits), 0);
+      }
+      units -= requestedUnits;
+      return ALLOWED;
+    }
+
+    // Adds the tokens which accumulated since the last request, never more than the burst.
+    private void refill(long now) {
+      if (now > lastRefill) {
+        long elapsed = now - lastRefill;
+        // Once the bucket would be full anyway, don't multiply a long idle time into an overflow.
+        units = elapsed >= capacityUnits / unitsPerMilliSecond
+            ? capacityUnits
+            : Math.min(capacityUnits, units + elapsed * unitsPerMilliSecond);
+        lastRefill = now;
+      }
+    }
+
+    // With onlyIfExpired, only once the bucket refilled to the burst: a new bucket of the key
+    // would make the same decisions. A decision which resolved the bucket before sees the flag
+    // and resolves its key again.
+    private synchronized boolean evict(long now, boolean onlyIfExpired) {
+      if (evicted) {
+        return false;
+      }
+      if (onlyIfExpired) {
+        // Without moving lastRefill, the eviction is no request.
+        long elapsed = Math.max(0, now - lastRefill);
+        if (elapsed < capacityUnits / unitsPerMilliSecond
+            && units + elapsed * unitsPerMilliSecond < capacityUnits) {
+          return false;
+        }
+      }
+      evicted = true;
+      return true;
+    }
+
+    // Tokens taken from the full bucket, a partially refilled token still counts as taken.
+    private int tokensInUse() {
+      return (int) Math.ceilDiv(capacityUnits - units, tokenUnits);
+    }
+
+    private synchronized void giveBack() {
+      units = Math.min(capacityUnits, units + tokenUnits);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import org.junit.jupiter.api.Test;
+
+class CoarseClockTest {
+
+  private static void awaitMillis(Clock clock, long millis) throws InterruptedException {
+    for (int i = 0; i < 1000 && clock.millis() != millis; i++) {
+      Thread.sleep(1);
+    }
+    assertEquals(millis, clock.millis());
+  }
+
+  @Test
+  void testFollowsTheSource() throws InterruptedException {
+    ManualClock source = new ManualClock();
+    source.set(1000);
+    try (CoarseClock clock = new CoarseClock(source, Duration.ofMillis(1))) {
+      // Read once when created, a strategy never sees the time before the first tick.
+      assertEquals(1000, clock.millis());
+
+      source.set(2000);
+      awaitMillis(clock, 2000);
+      assertEquals(Instant.ofEpochMilli(2000), clock.instant());
+    }
+  }
+
+  @Test
+  void testReadsDoNotReadTheSource() {
+    ManualClock source = new ManualClock();
+    try (CoarseClock clock = new CoarseClock(source, Duration.ofSeconds(10))) {
+      int readsBefore = source.reads();
+      for (int i = 0; i < 1_000_000; i++) {
+        clock.millis();
+      }
+      // At most the one tick which may have been under way.
+      assertTrue(source.reads() - readsBefore <= 1);
+    }
+  }
+
+  @Test
+  void testCloseStopsTheTicker() throws InterruptedException {
+    ManualClock source = new ManualClock();
+    CoarseClock clock = new CoarseClock(source, Duration.ofMillis(1));
+    clock.close();
+    Thread.sleep(20);
+
+    source.set(5000);
+    Thread.sleep(20);
+    assertEquals(0, clock.millis());
+  }
+
+  @Test
+  void testDrivesAStrategy() throws InterruptedException {
+    ManualClock source = new ManualClock();
+    try (CoarseClock clock = new CoarseClock(source, Duration.ofMillis(1))) {
+      SlidingWindowCountStrategy rateLimiter = new SlidingWindowCountStrategy(1, 1, clock);
+      assertTrue(rateLimiter.allowed("User1"));
+      assertEquals(1001, rateLimiter.decide("User1", 1).retryAfterMillis());
+
+      // Two windows later the request fits again.
+      source.set(2001);
+      awaitMillis(clock, 2001);
+      assertTrue(rateLimiter.allowed("User1"));
+    }
+  }
+
+  @Test
+  void testWithZoneReadsTheSameTicker() throws InterruptedException {
+    ManualClock source = new ManualClock();
+    try (CoarseClock clock = new CoarseClock(source, Duration.ofMillis(1))) {
+      ZoneId paris = ZoneId.of("Europe/Paris");
+      Clock zoned = clock.withZone(paris);
+      assertEquals(paris, zoned.getZone());
+      assertSame(clock, zoned.withZone(ZoneOffset.UTC));
+
+      source.set(3000);
+      awaitMillis(zoned, 3000);
+      assertEquals(Instant.ofEpochMilli(3000), zoned.instant());
+    }
+  }
+
+  @Test
+  void testResolutionMustBePositive() {
+    assertThrows(IllegalArgumentException.class,
+        () -> new CoarseClock(Clock.systemUTC(), Duration.ZERO));
+  }
+}
@@ -0,0 +1,81 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+class CountMinSketchTest {
+
+  @Test
+  void testWidthIsRoundedUpToAPowerOfTwo() {
+    assertEquals(1024, new CountMinSketch(1000, 4).width());
+    assertEquals(1024, new CountMinSketch(1024, 4).width());
+    assertThrows(IllegalArgumentException.class, () -> new CountMinSketch(0, 4));
+  }
+
+  @Test
+  void testNeverUnderCountsAndStaysWithinTheErrorBound() {
+    CountMinSketch sketch = new CountMinSketch(1024, 4);
+    Random random = new Random(42);
+    int keys = 20_000;
+    long[] counts = new long[keys];
+    long total = 0;
+    for (int i = 0; i < 200_000; i++) {
+      int key = random.nextInt(keys);
+      counts[key]++;
+      total++;
+      sketch.add("key-" + key, 1);
+    }
+
+    // e / width * N, exceeded by at most e^-depth (1.8%) of the keys.
+    double bound = Math.E / sketch.width() * total;
+    int aboveBound = 0;
+    for (int key = 0; key < keys; key++) {
+      long estimate = sketch.estimate("key-" + key);
+      assertTrue(estimate >= counts[key], "key-" + key + " was under-counted");
+      if (estimate - counts[key] > bound) {
+        aboveBound++;
+      }
+    }
+    assertTrue(aboveBound <= keys * Math.exp(-4), aboveBound + " keys above the bound");
+  }
+
+  @Test
+  void testHalveFadesOutOldCounts() {
+    CountMinSketch sketch = new CountMinSketch(64, 2);
+    assertEquals(10, sketch.add("User1", 10));
+
+    sketch.halve();
+    assertEquals(5, sketch.estimate("User1"));
+    sketch.clear();
+    assertEquals(0, sketch.estimate("User1"));
+  }
+
+  @Test
+  void testConcurrentAddsAreNotLost() throws Exception {
+    CountMinSketch sketch = new CountMinSketch(64, 2);
+    ExecutorService executorService = Executors.newFixedThreadPool(4);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      futures.add(executorService.submit(() -> {
+        for (int i = 0; i < 10_000; i++) {
+          sketch.add("User1", 1);
+        }
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executorService.shutdown();
+
+    assertEquals(40_000, sketch.estimate("User1"));
+  }
+}
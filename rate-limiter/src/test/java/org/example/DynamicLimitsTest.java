@@ -0,0 +1,86 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DynamicLimitsTest {
+
+  @Test
+  void testKeysWithoutLimitFallBack() {
+    DynamicLimits limits = new DynamicLimits(new LimitPolicy(Map.of("orders:tenant-7", 1000)));
+    LimitResolver resolver = limits.resolver(100);
+
+    assertEquals(1000, resolver.limitOf("orders:tenant-7"));
+    assertEquals(100, resolver.limitOf("orders:tenant-8"));
+  }
+
+  @Test
+  void testChangesReplaceTheTable() {
+    DynamicLimits limits = new DynamicLimits();
+    LimitPolicy before = limits.policy();
+
+    limits.setLimit("tenant-7", 1000);
+    limits.setLimit("tenant-8", 0);
+
+    // The table a reader holds never changes under it.
+    assertSame(LimitPolicy.EMPTY, before);
+    assertEquals(Map.of("tenant-7", 1000, "tenant-8", 0), limits.policy().limits());
+    assertEquals(Map.of("tenant-8", 0), limits.removeLimit("tenant-7").limits());
+    assertSame(limits.policy(), limits.removeLimit("tenant-7"));
+    assertThrows(IllegalArgumentException.class, () -> limits.setLimit("tenant-9", -1));
+    assertEquals(1, limits.policy().limits().size());
+  }
+
+  @Test
+  void testReloadReadsTheFileOnlyWhenModified(@TempDir Path directory) throws IOException {
+    Path file = directory.resolve("limits");
+    Files.writeString(file, """
+        # Incident: tenant-7 gets ten times its quota.
+        orders:tenant-7 = 1000
+
+        key:with=equals=5
+        """);
+    DynamicLimits limits = new DynamicLimits();
+
+    assertTrue(limits.reload(file));
+    assertEquals(new LimitPolicy(Map.of("orders:tenant-7", 1000, "key:with=equals", 5)),
+        limits.policy());
+    limits.setLimit("orders:tenant-8", 10);
+    assertFalse(limits.reload(file));
+    assertEquals(10, limits.limitOf("orders:tenant-8", 100));
+
+    // A modified file replaces the whole table, the limit set since included.
+    Files.writeString(file, "orders:tenant-7=2000\n");
+    Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 1000));
+    assertTrue(limits.reload(file));
+    assertEquals(Map.of("orders:tenant-7", 2000), limits.policy().limits());
+    assertEquals(new DynamicLimits.ReloadMetrics(2, 0, 1), limits.reloadMetrics());
+  }
+
+  @Test
+  void testBrokenFileKeepsTheCurrentTable(@TempDir Path directory) throws IOException {
+    Path file = directory.resolve("limits");
+    DynamicLimits limits = new DynamicLimits(new LimitPolicy(Map.of("tenant-7", 1000)));
+
+    for (String content : new String[]{"tenant-7=lots\n", "tenant-7\n", "tenant-7=-1\n"}) {
+      Files.writeString(file, "tenant-8=5\n" + content);
+      IOException e = assertThrows(IOException.class, () -> limits.reload(file));
+      assertTrue(e.getMessage().contains("line 2"), e.getMessage());
+    }
+    assertThrows(IOException.class, () -> limits.reload(directory.resolve("missing")));
+
+    assertEquals(Map.of("tenant-7", 1000), limits.policy().limits());
+    assertEquals(new DynamicLimits.ReloadMetrics(0, 4, 1), limits.reloadMetrics());
+  }
+}
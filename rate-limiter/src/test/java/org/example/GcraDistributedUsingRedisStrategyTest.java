@@ -0,0 +1,186 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.github.fppt.jedismock.RedisServer;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.List;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+import redis.clients.jedis.Jedis;
+
+@TestInstance(Lifecycle.PER_CLASS)
+class GcraDistributedUsingRedisStrategyTest {
+
+  private static final String USER1 = "User1";
+  private static final String USER2 = "User2";
+  private static final String USER3 = "User3";
+  private static final String USER4 = "User4";
+  private static final String USER5 = "User5";
+  private static final String USER6 = "User6";
+  private static final String USER7 = "User7";
+  RedisServer redisServer;
+  Jedis jedis;
+  private GcraDistributedUsingRedisStrategy rateLimiter;
+  private Clock clock;
+
+  @BeforeAll
+  void startRedis() throws IOException {
+    redisServer = RedisServer.newRedisServer().start();
+    jedis = new Jedis(redisServer.getHost(), redisServer.getBindPort());
+  }
+
+  @BeforeEach
+  void setUp() {
+    clock = Clock.fixed(Instant.now(), ZoneId.systemDefault());
+    rateLimiter = new GcraDistributedUsingRedisStrategy(1, 5, clock, jedis);
+  }
+
+  @AfterAll
+  void tearDown() throws IOException {
+    // delete the keys from redis for the next round of test execution
+    jedis.flushDB();
+    jedis.close();
+    redisServer.stop();
+  }
+
+  @Test
+  void testSingleRoundTripPerDecision() {
+    Jedis jedisSpy = spy(jedis);
+    rateLimiter = new GcraDistributedUsingRedisStrategy(1, 5, clock, jedisSpy);
+
+    for (int i = 0; i < 3; i++) {
+      assertTrue(rateLimiter.allowed(USER1));
+    }
+
+    // Every decision is exactly one EVALSHA, no separate read or write of the arrival time.
+    verify(jedisSpy, times(3)).evalsha(anyString(), anyList(), anyList());
+    verify(jedisSpy, never()).get(anyString());
+    verify(jedisSpy, never()).set(anyString(), anyString());
+  }
+
+  @Test
+  void testIdleKeysExpire() {
+    assertTrue(rateLimiter.allowed(USER2));
+
+    // The key expires once the burst is available again, one emission interval (200 ms) later.
+    long ttl = jedis.pttl("{" + USER2 + "}:gcra");
+    assertTrue(ttl > 0 && ttl <= 200, "TTL of the arrival time should be set, was " + ttl);
+  }
+
+  @Test
+  void testRequestsAreSpacedByEmissionInterval() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L, 0L, 0L, 499L, 500L, 500L, 1000L, 5000L, 5000L, 5000L);
+
+    // 2 requests per second, burst of 2: emission interval is 500 milliseconds.
+    rateLimiter = new GcraDistributedUsingRedisStrategy(1, 2, clock, jedis);
+
+    assertTrue(rateLimiter.allowed(USER3), "request 1 at timestamp=0 should be allowed");
+    assertTrue(rateLimiter.allowed(USER3), "request 2 at timestamp=0 should be allowed");
+    assertFalse(rateLimiter.allowed(USER3), "request 3 at timestamp=0 should be blocked");
+    assertFalse(rateLimiter.allowed(USER3), "request 4 at timestamp=499 should be blocked");
+    assertTrue(rateLimiter.allowed(USER3), "request 5 at timestamp=500 should be allowed");
+    assertFalse(rateLimiter.allowed(USER3), "request 6 at timestamp=500 should be blocked");
+    assertTrue(rateLimiter.allowed(USER3), "request 7 at timestamp=1000 should be allowed");
+
+    // A long idle time doesn't bank more than the burst.
+    assertTrue(rateLimiter.allowed(USER3), "request 8 at timestamp=5000 should be allowed");
+    assertTrue(rateLimiter.allowed(USER3), "request 9 at timestamp=5000 should be allowed");
+    assertFalse(rateLimiter.allowed(USER3), "request 10 at timestamp=5000 should be blocked");
+  }
+
+  @Test
+  void testScriptIsReloadedAfterScriptCacheFlush() {
+    assertTrue(rateLimiter.allowed(USER4));
+
+    jedis.scriptFlush();
+
+    assertTrue(rateLimiter.allowed(USER4));
+  }
+
+  @Test
+  void testAllowedAllDecidesPerKeyInOneRoundTrip() {
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER5));
+    }
+
+    // USER5 used up its burst, USER6 has not made any request yet.
+    assertArrayEquals(new boolean[]{false, true, true},
+        rateLimiter.allowedAll(List.of(USER5, USER6, USER6)));
+  }
+
+  @Test
+  void testWeightedPermits() {
+    String bulkUser = USER6 + "Weighted";
+    // A bulk request of 3 permits and a request of 2 use up the burst of 5.
+    assertTrue(rateLimiter.allowed(bulkUser, 3));
+    assertFalse(rateLimiter.allowed(bulkUser, 3));
+    assertTrue(rateLimiter.allowed(bulkUser, 2));
+    assertFalse(rateLimiter.allowed(bulkUser));
+
+    // 5 permits of 200 milliseconds each, the arrival time is stored to the microsecond.
+    assertEquals(String.valueOf(clock.millis() * 1000L + 1_000_000L),
+        jedis.get(GcraDistributedUsingRedisStrategy.arrivalTimeKey(bulkUser)));
+  }
+
+  @Test
+  void testDecisionCarriesRemainingPermitsAndExactRetryAfter() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L, 0L, 0L, 499L, 500L);
+    // 2 requests per second, burst of 2: one permit frees up every 500 milliseconds.
+    rateLimiter = new GcraDistributedUsingRedisStrategy(1, 2, clock, jedis);
+    Decision decision = new Decision();
+
+    assertDecision(true, 0, 1, 0, rateLimiter.decide(USER1 + "Decision", 1, decision));
+    assertDecision(true, 1, 0, 0, rateLimiter.decide(USER1 + "Decision", 1, decision));
+    assertDecision(false, 2, 0, 500, rateLimiter.decide(USER1 + "Decision", 1, decision));
+    assertDecision(false, 2, 0, 1, rateLimiter.decide(USER1 + "Decision", 1, decision));
+    assertDecision(false, 1, 1, Decision.NEVER, rateLimiter.decide(USER1 + "Decision", 3, decision));
+  }
+
+  @Test
+  void testAllOrNothingDoesNotConsumeQuotaOfOtherKeys() {
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER5 + "AllOrNothing"));
+    }
+
+    // The second key rejects every request, so USER7 must not be charged for any of them.
+    for (int i = 0; i < 10; i++) {
+      assertArrayEquals(new boolean[]{true, false},
+          rateLimiter.allowedAll(List.of(USER7, USER5 + "AllOrNothing"), true));
+    }
+
+    // USER7 still has its whole burst.
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER7));
+    }
+    assertFalse(rateLimiter.allowed(USER7));
+  }
+
+  private static void assertDecision(boolean allowed, int count, int remaining,
+      long retryAfterMillis, Decision decision) {
+    assertEquals(allowed, decision.allowed(), decision.toString());
+    assertEquals(count, decision.count(), decision.toString());
+    assertEquals(remaining, decision.remaining(), decision.toString());
+    assertEquals(retryAfterMillis, decision.retryAfterMillis(), decision.toString());
+  }
+}
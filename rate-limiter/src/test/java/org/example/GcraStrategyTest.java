@@ -0,0 +1,224 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class GcraStrategyTest {
+
+  private static final String USER1 = "User1";
+  private static final String USER2 = "User2";
+  private static final String USER3 = "User3";
+  private GcraStrategy rateLimiter;
+  private Clock clock;
+
+  @BeforeEach
+  void setUp() {
+    clock = Clock.fixed(Instant.now(), ZoneId.systemDefault());
+
+    // start rate limiter with 5 requests per second
+    rateLimiter = new GcraStrategy(1, 5, clock);
+  }
+
+  @Test
+  void testBurstUpToLimit() {
+    // The whole burst is available at once.
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER1));
+    }
+    assertFalse(rateLimiter.allowed(USER1));
+  }
+
+  @Test
+  void testRequestsAreSpacedByEmissionInterval() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L, 0L, 0L, 499L, 500L, 500L, 1000L, 5000L, 5000L, 5000L);
+
+    // 2 requests per second, burst of 2: emission interval is 500 milliseconds.
+    rateLimiter = new GcraStrategy(1, 2, clock);
+
+    assertTrue(rateLimiter.allowed(USER2), "request 1 at timestamp=0 should be allowed");
+    assertTrue(rateLimiter.allowed(USER2), "request 2 at timestamp=0 should be allowed");
+    assertFalse(rateLimiter.allowed(USER2), "request 3 at timestamp=0 should be blocked");
+    assertFalse(rateLimiter.allowed(USER2), "request 4 at timestamp=499 should be blocked");
+    assertTrue(rateLimiter.allowed(USER2), "request 5 at timestamp=500 should be allowed");
+    assertFalse(rateLimiter.allowed(USER2), "request 6 at timestamp=500 should be blocked");
+    assertTrue(rateLimiter.allowed(USER2), "request 7 at timestamp=1000 should be allowed");
+
+    // A long idle time doesn't bank more than the burst.
+    assertTrue(rateLimiter.allowed(USER2), "request 8 at timestamp=5000 should be allowed");
+    assertTrue(rateLimiter.allowed(USER2), "request 9 at timestamp=5000 should be allowed");
+    assertFalse(rateLimiter.allowed(USER2), "request 10 at timestamp=5000 should be blocked");
+  }
+
+  @Test
+  void testSmallerBurstThanLimit() {
+    rateLimiter = new GcraStrategy(1, 5, 1, clock);
+
+    assertTrue(rateLimiter.allowed(USER3));
+    assertFalse(rateLimiter.allowed(USER3));
+  }
+
+  @Test
+  void testWeightedPermits() {
+    // A bulk request of 3 permits and a request of 2 use up the burst of 5.
+    assertTrue(rateLimiter.allowed(USER1, 3));
+    assertFalse(rateLimiter.allowed(USER1, 3));
+    assertTrue(rateLimiter.allowed(USER1, 2));
+    assertFalse(rateLimiter.allowed(USER1));
+
+    // More permits than the burst are never granted.
+    assertFalse(rateLimiter.allowed(USER2, 6));
+    assertTrue(rateLimiter.allowed(USER2, 5));
+  }
+
+  @Test
+  void testDecisionCarriesRemainingPermitsAndExactRetryAfter() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L, 0L, 0L, 499L, 500L);
+    // 2 requests per second, burst of 2: one permit frees up every 500 milliseconds.
+    rateLimiter = new GcraStrategy(1, 2, clock);
+    Decision decision = new Decision();
+
+    assertDecision(true, 0, 1, 0, rateLimiter.decide(USER3, 1, decision));
+    assertDecision(true, 1, 0, 0, rateLimiter.decide(USER3, 1, decision));
+    assertDecision(false, 2, 0, 500, rateLimiter.decide(USER3, 1, decision));
+    assertDecision(false, 2, 0, 1, rateLimiter.decide(USER3, 1, decision));
+    assertDecision(false, 1, 1, Decision.NEVER, rateLimiter.decide(USER3, 3, decision));
+  }
+
+  @Test
+  void testAllOrNothingDoesNotConsumeQuotaOfOtherKeys() {
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER1));
+    }
+
+    // USER1 rejects every request, so USER2 must not be charged for any of them.
+    for (int i = 0; i < 10; i++) {
+      assertArrayEquals(new boolean[]{true, false},
+          rateLimiter.allowedAll(List.of(USER2, USER1), true));
+    }
+
+    // USER2 still has its whole quota.
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER2));
+    }
+    assertFalse(rateLimiter.allowed(USER2));
+  }
+
+  @Test
+  void testConcurrentRequestsOnHotKeyNeverExceedLimit() throws Exception {
+    rateLimiter = new GcraStrategy(1, 10_000, clock);
+    int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      futures.add(executor.submit(() -> {
+        int allowed = 0;
+        for (int i = 0; i < 5_000; i++) {
+          if (rateLimiter.allowed(USER1)) {
+            allowed++;
+          }
+        }
+        return allowed;
+      }));
+    }
+    int allowed = 0;
+    for (Future<Integer> future : futures) {
+      allowed += future.get();
+    }
+    executor.shutdown();
+
+    // 40000 concurrent requests on one key, exactly the burst of them get through.
+    assertEquals(10_000, allowed);
+  }
+
+  @Test
+  void testExpiredKeysAreEvicted() {
+    ManualClock clock = new ManualClock();
+    rateLimiter = new GcraStrategy(1, 5, clock);
+    assertTrue(rateLimiter.allowed(USER1));
+    clock.set(500);
+    assertTrue(rateLimiter.allowed(USER2));
+
+    // USER1's theoretical arrival time has passed, USER2's is at 700.
+    clock.set(600);
+    assertEquals(1, rateLimiter.evictExpiredKeys());
+    assertEquals(new KeyMetrics(1, 1, 0, 0), rateLimiter.keyMetrics());
+    assertEquals(1, rateLimiter.decide(USER2, 1).count());
+  }
+
+  @Test
+  void testBoundedCapacityEvictsExpiredKeysFirst() {
+    ManualClock clock = new ManualClock();
+    rateLimiter = new GcraStrategy(1, 5, 5, clock,
+        new KeyCapacity(2, KeyCapacity.OverflowPolicy.EVICT_LEAST_RECENTLY_USED));
+    assertTrue(rateLimiter.allowed(USER1));
+    clock.set(500);
+    assertTrue(rateLimiter.allowed(USER2));
+
+    // USER1 is back to its whole burst, it makes room for USER3 and USER2 keeps its count.
+    clock.set(600);
+    assertTrue(rateLimiter.allowed(USER3));
+    assertEquals(new KeyMetrics(2, 1, 0, 0), rateLimiter.keyMetrics());
+    assertEquals(1, rateLimiter.decide(USER2, 1).count());
+  }
+
+  @Test
+  void testBoundedCapacityEvictsTheKeyWithTheEarliestArrivalTime() {
+    ManualClock clock = new ManualClock();
+    rateLimiter = new GcraStrategy(1, 5, 5, clock,
+        new KeyCapacity(2, KeyCapacity.OverflowPolicy.EVICT_LEAST_RECENTLY_USED));
+    assertTrue(rateLimiter.allowed(USER1));
+    assertTrue(rateLimiter.allowed(USER1));
+    assertTrue(rateLimiter.allowed(USER2));
+    // No key is back to its whole burst, USER2 will be first and makes room for USER3.
+    clock.set(100);
+    assertTrue(rateLimiter.allowed(USER3));
+
+    assertEquals(new KeyMetrics(2, 0, 1, 0), rateLimiter.keyMetrics());
+    assertEquals(2, rateLimiter.decide(USER1, 1).count());
+  }
+
+  @Test
+  void testBoundedCapacityFailsClosedOrOpen() {
+    GcraStrategy failClosed = new GcraStrategy(1, 5, 5, clock,
+        new KeyCapacity(1, KeyCapacity.OverflowPolicy.REJECT));
+    GcraStrategy failOpen = new GcraStrategy(1, 5, 5, clock,
+        new KeyCapacity(1, KeyCapacity.OverflowPolicy.ALLOW));
+
+    assertTrue(failClosed.allowed(USER1));
+    assertFalse(failClosed.allowed(USER2));
+    assertTrue(failOpen.allowed(USER1));
+    assertTrue(failOpen.allowed(USER2));
+    // An overflowing key of an all-or-nothing request gives the quota of the others back.
+    assertArrayEquals(new boolean[]{true, false},
+        failClosed.allowedAll(List.of(USER1, USER2), true));
+    assertEquals(1, failClosed.decide(USER1, 1).count());
+
+    assertEquals(new KeyMetrics(1, 0, 0, 2), failClosed.keyMetrics());
+    assertEquals(new KeyMetrics(1, 0, 0, 1), failOpen.keyMetrics());
+  }
+
+  private static void assertDecision(boolean allowed, int count, int remaining,
+      long retryAfterMillis, Decision decision) {
+    assertEquals(allowed, decision.allowed(), decision.toString());
+    assertEquals(count, decision.count(), decision.toString());
+    assertEquals(remaining, decision.remaining(), decision.toString());
+    assertEquals(retryAfterMillis, decision.retryAfterMillis(), decision.toString());
+  }
+}
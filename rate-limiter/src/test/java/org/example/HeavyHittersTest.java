@@ -0,0 +1,132 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+class HeavyHittersTest {
+
+  @Test
+  void testFindsTheHeaviestKeysInALongTail() {
+    HeavyHitters heavyHitters = new HeavyHitters(3, 4096, 4);
+    Random random = new Random(42);
+    for (int i = 0; i < 100_000; i++) {
+      // Three attackers send a tenth of the traffic each, the rest comes from 50000 clients.
+      int draw = random.nextInt(10);
+      String key = draw < 3 ? "attacker-" + draw : "client-" + random.nextInt(50_000);
+      heavyHitters.record(key);
+    }
+
+    List<HeavyHitters.HeavyHitter> top = heavyHitters.top();
+    assertEquals(3, top.size());
+    for (HeavyHitters.HeavyHitter heavyHitter : top) {
+      assertTrue(heavyHitter.key().startsWith("attacker-"), heavyHitter.toString());
+      // A tenth of the traffic, plus the over-count of the sketch.
+      assertTrue(heavyHitter.count() >= 9_000 && heavyHitter.count() <= 12_000,
+          heavyHitter.toString());
+    }
+    assertTrue(top.get(0).count() >= top.get(1).count());
+    assertTrue(top.get(1).count() >= top.get(2).count());
+  }
+
+  @Test
+  void testNewHeavyHitterReplacesTheSmallestTrackedKey() {
+    HeavyHitters heavyHitters = new HeavyHitters(2, 1024, 4);
+    heavyHitters.record("User1", 10);
+    heavyHitters.record("User2", 5);
+    // Not more than the smallest tracked count yet.
+    heavyHitters.record("User3", 5);
+    assertEquals(List.of("User1", "User2"), keys(heavyHitters));
+
+    heavyHitters.record("User3", 2);
+    assertEquals(List.of("User1", "User3"), keys(heavyHitters));
+    assertEquals(7, heavyHitters.estimate("User3"));
+  }
+
+  // The counts of tracked keys grow after they were tracked, the smallest one is the one with the
+  // smallest count now.
+  @Test
+  void testReplacementFollowsTheCountsOfTrackedKeys() {
+    HeavyHitters heavyHitters = new HeavyHitters(2, 1024, 4);
+    heavyHitters.record("User1", 1);
+    heavyHitters.record("User2", 1);
+    heavyHitters.record("User1", 4);
+    heavyHitters.record("User2", 10);
+
+    // Not more than User1's count of 5 yet.
+    heavyHitters.record("User3", 5);
+    assertEquals(List.of("User2", "User1"), keys(heavyHitters));
+
+    heavyHitters.record("User3", 1);
+    assertEquals(List.of("User2", "User3"), keys(heavyHitters));
+  }
+
+  @Test
+  void testDecayFollowsTheCurrentTraffic() {
+    HeavyHitters heavyHitters = new HeavyHitters(2, 1024, 4);
+    heavyHitters.record("User1", 1);
+    heavyHitters.record("User2", 8);
+
+    heavyHitters.decay();
+
+    // User1 faded out, User2 counts half.
+    assertEquals(List.of(new HeavyHitters.HeavyHitter("User2", 4)), heavyHitters.top());
+    assertEquals(4, heavyHitters.estimate("User2"));
+  }
+
+  @Test
+  void testConcurrentRecordingCountsTrackedKeys() throws Exception {
+    HeavyHitters heavyHitters = new HeavyHitters(4, 1024, 4);
+    ExecutorService executorService = Executors.newFixedThreadPool(4);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      int thread = t;
+      futures.add(executorService.submit(() -> {
+        for (int i = 0; i < 10_000; i++) {
+          heavyHitters.record("User1");
+          heavyHitters.record("client-" + thread + "-" + i);
+        }
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executorService.shutdown();
+
+    HeavyHitters.HeavyHitter top = heavyHitters.top().get(0);
+    assertEquals("User1", top.key());
+    assertTrue(top.count() >= 40_000, top.toString());
+    assertTrue(heavyHitters.top().size() <= 4);
+  }
+
+  @Test
+  void testInstrumentedStrategyRecordsRejectedKeys() {
+    HeavyHitters rejectedKeys = new HeavyHitters(10, 1024, 4);
+    Clock clock = Clock.fixed(Instant.now(), ZoneId.systemDefault());
+    InstrumentedRateLimiterStrategy rateLimiter = new InstrumentedRateLimiterStrategy(
+        new SlidingWindowCountStrategy(1, 2, clock), rejectedKeys);
+
+    for (int i = 0; i < 5; i++) {
+      rateLimiter.allowed("User1");
+    }
+    rateLimiter.allowed("User2");
+
+    assertEquals(List.of(new HeavyHitters.HeavyHitter("User1", 3)), rejectedKeys.top());
+    assertFalse(keys(rejectedKeys).contains("User2"));
+  }
+
+  private static List<String> keys(HeavyHitters heavyHitters) {
+    return heavyHitters.top().stream().map(HeavyHitters.HeavyHitter::key).toList();
+  }
+}
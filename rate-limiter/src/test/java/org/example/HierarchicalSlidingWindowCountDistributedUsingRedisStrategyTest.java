@@ -0,0 +1,162 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.github.fppt.jedismock.RedisServer;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.List;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.util.JedisClusterCRC16;
+
+@TestInstance(Lifecycle.PER_CLASS)
+class HierarchicalSlidingWindowCountDistributedUsingRedisStrategyTest {
+
+  private static final String TENANT1 = "Tenant1";
+  private static final String TENANT2 = "Tenant2";
+  private static final String USER1 = "User1";
+  private static final String USER2 = "User2";
+  // 10 requests per second on the route, 6 per tenant, 3 per user.
+  private static final List<RateLimitTier> TIERS = List.of(new RateLimitTier("route", 1, 10),
+      new RateLimitTier("tenant", 1, 6), new RateLimitTier("user", 1, 3));
+  RedisServer redisServer;
+  Jedis jedis;
+  private HierarchicalSlidingWindowCountDistributedUsingRedisStrategy rateLimiter;
+  private Clock clock;
+  // Every test limits a route of its own, the keys in redis outlive a test.
+  private String route;
+  private int routes;
+
+  @BeforeAll
+  void startRedis() throws IOException {
+    // In-process mock of the redis server, it supports Lua scripts, so no real redis is needed.
+    redisServer = RedisServer.newRedisServer().start();
+    jedis = new Jedis(redisServer.getHost(), redisServer.getBindPort());
+  }
+
+  @BeforeEach
+  void setUp() {
+    clock = Clock.fixed(Instant.now(), ZoneId.systemDefault());
+    rateLimiter = new HierarchicalSlidingWindowCountDistributedUsingRedisStrategy(TIERS, clock,
+        RedisConnectionProvider.of(jedis));
+    route = "route-" + routes++;
+  }
+
+  @AfterAll
+  void tearDown() throws IOException {
+    // delete the keys from redis for the next round of test execution
+    jedis.flushDB();
+    jedis.close();
+    redisServer.stop();
+  }
+
+  private Decision decide(String tenant, String user) {
+    return rateLimiter.decide(List.of(route, tenant, user), 1);
+  }
+
+  @Test
+  void testInnermostRejectionLeavesOuterTiersUntouched() {
+    for (int i = 0; i < 3; i++) {
+      assertTrue(decide(TENANT1, USER1).allowed());
+    }
+    for (int i = 0; i < 10; i++) {
+      Decision rejected = decide(TENANT1, USER1);
+      assertFalse(rejected.allowed());
+      assertEquals(2, rejected.tier());
+    }
+
+    // The rejected requests took nothing from the tenant: 3 of its 6 permits are left.
+    for (int i = 0; i < 3; i++) {
+      assertTrue(decide(TENANT1, USER2).allowed());
+    }
+    assertEquals(1, decide(TENANT1, "User3").tier());
+  }
+
+  @Test
+  void testOuterRejectionTakesNoInnerQuota() {
+    for (int i = 0; i < 6; i++) {
+      assertTrue(decide(TENANT1, "user-" + i).allowed());
+    }
+    for (int i = 0; i < 4; i++) {
+      assertTrue(decide(TENANT2, "user-" + i).allowed());
+    }
+
+    for (int i = 0; i < 5; i++) {
+      Decision rejected = decide(TENANT2, USER1);
+      assertFalse(rejected.allowed());
+      assertEquals(0, rejected.tier());
+      assertEquals(10, rejected.count());
+    }
+  }
+
+  @Test
+  void testReportsTheTierWithFewestPermitsLeft() {
+    Decision decision = decide(TENANT1, USER1);
+    assertTrue(decision.allowed());
+    assertEquals(2, decision.tier());
+    assertEquals(2, decision.remaining());
+  }
+
+  @Test
+  void testSingleRoundTripForAllTiers() {
+    Jedis jedisSpy = spy(jedis);
+    rateLimiter = new HierarchicalSlidingWindowCountDistributedUsingRedisStrategy(TIERS, clock,
+        RedisConnectionProvider.of(jedisSpy));
+
+    for (int i = 0; i < 3; i++) {
+      assertTrue(decide(TENANT1, USER1).allowed());
+    }
+
+    verify(jedisSpy, times(3)).evalsha(anyString(), anyList(), anyList());
+  }
+
+  @Test
+  void testTiersShareTheHashTagOfTheOutermostKey() {
+    assertTrue(decide(TENANT1, USER1).allowed());
+
+    // The windows of every tier expire after two of their own window lengths.
+    String tenantPath = "{" + route.length() + ":" + route + "}:7:" + TENANT1;
+    long ttl = jedis.pttl(tenantPath + ":5:" + USER1 + ":cur");
+    assertTrue(ttl > 0 && ttl <= 2000, "TTL of the current window should be set, was " + ttl);
+    assertTrue(jedis.exists(tenantPath + ":cur"));
+  }
+
+  // Without the lengths both would be the path route:a:b:c.
+  @Test
+  void testKeysContainingTheSeparatorDoNotShareAWindow() {
+    for (int i = 0; i < 3; i++) {
+      assertTrue(decide("a:b", "c").allowed());
+    }
+    assertFalse(decide("a:b", "c").allowed());
+
+    assertTrue(decide("a", "b:c").allowed());
+  }
+
+  @Test
+  void testHashTagOfTheOutermostKeyIsAlwaysBuiltByTheLimiter() {
+    String key = "{" + route + "}x";
+    assertTrue(rateLimiter.decide(List.of(key, TENANT1, USER1), 1).allowed());
+
+    // The tag of the client ends at the escaped '}', the slot is the one of the whole key.
+    String tag = "{" + key.length() + ":{" + route + "%7Dx}";
+    String userWindow = tag + ":7:" + TENANT1 + ":5:" + USER1 + ":cur";
+    assertTrue(jedis.exists(userWindow));
+    assertEquals(JedisClusterCRC16.getSlot(key.length() + ":{" + route + "%7Dx"),
+        JedisClusterCRC16.getSlot(userWindow));
+  }
+}
@@ -0,0 +1,272 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class HierarchicalSlidingWindowCountStrategyTest {
+
+  private static final String ROUTE = "route";
+  private static final String TENANT1 = "Tenant1";
+  private static final String TENANT2 = "Tenant2";
+  private static final String USER1 = "User1";
+  private static final String USER2 = "User2";
+  private static final String USER3 = "User3";
+  // 10 requests per second on the route, 6 per tenant, 3 per user.
+  private static final List<RateLimitTier> TIERS = List.of(new RateLimitTier("route", 1, 10),
+      new RateLimitTier("tenant", 1, 6), new RateLimitTier("user", 1, 3));
+  // 10 requests per second on the route, 3 per user.
+  private static final List<RateLimitTier> ROUTE_AND_USER =
+      List.of(new RateLimitTier("route", 1, 10), new RateLimitTier("user", 1, 3));
+  private HierarchicalSlidingWindowCountStrategy rateLimiter;
+  private Clock clock;
+
+  @BeforeEach
+  void setUp() {
+    clock = Clock.fixed(Instant.now(), ZoneId.systemDefault());
+    rateLimiter = new HierarchicalSlidingWindowCountStrategy(TIERS, clock);
+  }
+
+  private static Clock clockOf(AtomicLong now) {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenAnswer(invocation -> now.get());
+    return clock;
+  }
+
+  private Decision decide(String tenant, String user) {
+    return rateLimiter.decide(List.of(ROUTE, tenant, user), 1);
+  }
+
+  @Test
+  void testInnermostRejectionLeavesOuterTiersUntouched() {
+    for (int i = 0; i < 3; i++) {
+      assertTrue(decide(TENANT1, USER1).allowed());
+    }
+    for (int i = 0; i < 10; i++) {
+      Decision rejected = decide(TENANT1, USER1);
+      assertFalse(rejected.allowed());
+      assertEquals(2, rejected.tier());
+      assertEquals(0, rejected.remaining());
+    }
+
+    // The rejected requests took nothing from the tenant: 3 of its 6 permits are left.
+    for (int i = 0; i < 3; i++) {
+      assertTrue(decide(TENANT1, USER2).allowed());
+    }
+    assertEquals(1, decide(TENANT1, USER3).tier());
+  }
+
+  @Test
+  void testOuterRejectionGivesInnerPermitsBack() {
+    // The route cap of 10 is reached by tenants of 6 and 4 requests.
+    for (int i = 0; i < 6; i++) {
+      assertTrue(decide(TENANT1, "user-" + i).allowed());
+    }
+    for (int i = 0; i < 4; i++) {
+      assertTrue(decide(TENANT2, "user-" + i).allowed());
+    }
+
+    // Had USER1 and TENANT2 kept the permits, USER1 would run into the limit of TENANT2 after two
+    // and into its own after three rejected requests.
+    for (int i = 0; i < 5; i++) {
+      Decision rejected = decide(TENANT2, USER1);
+      assertFalse(rejected.allowed());
+      assertEquals(0, rejected.tier());
+      assertEquals(10, rejected.count());
+    }
+  }
+
+  @Test
+  void testReportsTheTierWithFewestPermitsLeft() {
+    Decision decision = decide(TENANT1, USER1);
+    assertTrue(decision.allowed());
+    // User: 2 left, tenant: 5 left, route: 9 left.
+    assertEquals(2, decision.tier());
+    assertEquals(2, decision.remaining());
+
+    rateLimiter = new HierarchicalSlidingWindowCountStrategy(
+        List.of(new RateLimitTier("route", 1, 2), new RateLimitTier("user", 1, 100)), clock);
+    decision = rateLimiter.decide(List.of(ROUTE, USER1), 1);
+    assertEquals(0, decision.tier());
+    assertEquals(1, decision.remaining());
+  }
+
+  @Test
+  void testWeightedPermitsAndRetryAfter() {
+    assertTrue(rateLimiter.decide(List.of(ROUTE, TENANT1, USER1), 2).allowed());
+    Decision rejected = rateLimiter.decide(List.of(ROUTE, TENANT1, USER1), 2);
+    assertFalse(rejected.allowed());
+    assertEquals(2, rejected.tier());
+    assertEquals(1, rejected.remaining());
+    assertEquals(1001, rejected.retryAfterMillis());
+
+    // More permits than the tier ever allows.
+    assertEquals(Decision.NEVER,
+        rateLimiter.decide(List.of(ROUTE, TENANT2, USER2), 4).retryAfterMillis());
+  }
+
+  @Test
+  void testIdleSubtreesAreEvicted() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L, 0L, 2000L, 2000L);
+    rateLimiter = new HierarchicalSlidingWindowCountStrategy(TIERS, clock);
+
+    assertTrue(decide(TENANT1, USER1).allowed());
+    assertTrue(decide(TENANT2, USER2).allowed());
+    // The route and TENANT2 stay active, TENANT1 and its user don't make any request for two
+    // window lengths.
+    assertTrue(decide(TENANT2, USER2).allowed());
+    assertEquals(5, rateLimiter.liveKeys());
+
+    assertEquals(2, rateLimiter.evictExpiredKeys());
+    assertEquals(new KeyMetrics(3, 2, 0, 0), rateLimiter.keyMetrics());
+  }
+
+  @Test
+  void testBoundedCapacityEvictsExpiredKeysFirst() {
+    AtomicLong now = new AtomicLong();
+    rateLimiter = new HierarchicalSlidingWindowCountStrategy(ROUTE_AND_USER, clockOf(now),
+        new KeyCapacity(2, KeyCapacity.OverflowPolicy.REJECT));
+    assertTrue(rateLimiter.decide(List.of(ROUTE, USER1), 1).allowed());
+
+    // USER1 is the only key without nested keys, and both of its windows have ended.
+    now.set(2000);
+    assertTrue(rateLimiter.decide(List.of(ROUTE, USER2), 1).allowed());
+    assertEquals(new KeyMetrics(2, 1, 0, 0), rateLimiter.keyMetrics());
+  }
+
+  @Test
+  void testBoundedCapacityEvictsTheLeastRecentlyUsedKey() {
+    AtomicLong now = new AtomicLong();
+    rateLimiter = new HierarchicalSlidingWindowCountStrategy(ROUTE_AND_USER, clockOf(now),
+        new KeyCapacity(2, KeyCapacity.OverflowPolicy.EVICT_LEAST_RECENTLY_USED));
+    for (int i = 0; i < 3; i++) {
+      assertTrue(rateLimiter.decide(List.of(ROUTE, USER1), 1).allowed());
+    }
+
+    // The route is on the path of the request, USER1 makes room.
+    now.set(10);
+    assertTrue(rateLimiter.decide(List.of(ROUTE, USER2), 1).allowed());
+    now.set(20);
+    // USER1 lost its state with its count.
+    assertTrue(rateLimiter.decide(List.of(ROUTE, USER1), 1).allowed());
+    assertEquals(new KeyMetrics(2, 0, 2, 0), rateLimiter.keyMetrics());
+  }
+
+  @Test
+  void testFullLimiterAppliesTheOverflowPolicyToNewKeys() {
+    AtomicLong now = new AtomicLong();
+    rateLimiter = new HierarchicalSlidingWindowCountStrategy(ROUTE_AND_USER, clockOf(now),
+        new KeyCapacity(2, KeyCapacity.OverflowPolicy.REJECT));
+    assertTrue(rateLimiter.decide(List.of(ROUTE, USER1), 1).allowed());
+    Decision rejected = rateLimiter.decide(List.of(ROUTE, USER2), 1);
+    assertFalse(rejected.allowed());
+    assertEquals(1, rejected.tier());
+    assertEquals(1000, rejected.retryAfterMillis());
+
+    rateLimiter = new HierarchicalSlidingWindowCountStrategy(ROUTE_AND_USER, clockOf(now),
+        new KeyCapacity(2, KeyCapacity.OverflowPolicy.ALLOW));
+    assertTrue(rateLimiter.decide(List.of(ROUTE, USER1), 1).allowed());
+    Decision allowed = rateLimiter.decide(List.of(ROUTE, USER2), 1);
+    assertTrue(allowed.allowed());
+    assertEquals(2, allowed.remaining());
+    assertEquals(new KeyMetrics(2, 0, 0, 1), rateLimiter.keyMetrics());
+
+    assertThrows(IllegalArgumentException.class,
+        () -> new HierarchicalSlidingWindowCountStrategy(TIERS, clock,
+            new KeyCapacity(2, KeyCapacity.OverflowPolicy.REJECT)));
+  }
+
+  // A key evicted while a key is inserted into it would take the new key with it, which then
+  // counted as live forever.
+  @Test
+  void testEvictionRacingWithInsertsKeepsTheLiveKeysExact() throws Exception {
+    AtomicLong now = new AtomicLong();
+    rateLimiter = new HierarchicalSlidingWindowCountStrategy(ROUTE_AND_USER, clockOf(now));
+    AtomicBoolean done = new AtomicBoolean();
+    Thread evictor = new Thread(() -> {
+      while (!done.get()) {
+        // Every key expires, the route as soon as its users are gone.
+        now.addAndGet(2000);
+        rateLimiter.evictExpiredKeys();
+      }
+    });
+    evictor.start();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      int thread = t;
+      futures.add(executor.submit(() -> {
+        for (int i = 0; i < 20_000; i++) {
+          rateLimiter.decide(List.of(ROUTE, "user-" + thread + "-" + i), 1);
+        }
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    done.set(true);
+    evictor.join();
+
+    now.addAndGet(2000);
+    rateLimiter.evictExpiredKeys();
+    assertEquals(0, rateLimiter.liveKeys());
+  }
+
+  @Test
+  void testConcurrentRequestsNeverExceedOuterCap() throws Exception {
+    rateLimiter = new HierarchicalSlidingWindowCountStrategy(
+        List.of(new RateLimitTier("route", 1, 10_000), new RateLimitTier("user", 1, 3_000)),
+        clock);
+    int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      // Two threads per user, the four users could take 12000 of the 10000.
+      String user = "user-" + t % 4;
+      futures.add(executor.submit(() -> {
+        int allowed = 0;
+        for (int i = 0; i < 5_000; i++) {
+          if (rateLimiter.decide(List.of(ROUTE, user), 1).allowed()) {
+            allowed++;
+          }
+        }
+        return allowed;
+      }));
+    }
+    int allowed = 0;
+    for (Future<Integer> future : futures) {
+      allowed += future.get();
+    }
+    executor.shutdown();
+
+    assertEquals(10_000, allowed);
+  }
+
+  @Test
+  void testOneKeyPerTierIsRequired() {
+    assertThrows(IllegalArgumentException.class,
+        () -> rateLimiter.decide(List.of(ROUTE, USER1), 1));
+    assertThrows(IllegalArgumentException.class,
+        () -> rateLimiter.decide(List.of(ROUTE, TENANT1, USER1), 0));
+    assertThrows(IllegalArgumentException.class,
+        () -> new HierarchicalSlidingWindowCountStrategy(List.of(), clock));
+  }
+}
@@ -0,0 +1,118 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class InstrumentedRateLimiterStrategyTest {
+
+  private static final String USER1 = "User1";
+  private static final String USER2 = "User2";
+  private InstrumentedRateLimiterStrategy rateLimiter;
+
+  @BeforeEach
+  void setUp() {
+    Clock clock = Clock.fixed(Instant.now(), ZoneId.systemDefault());
+
+    // start rate limiter with 5 requests per second
+    rateLimiter = new InstrumentedRateLimiterStrategy(new SlidingWindowCountStrategy(1, 5, clock));
+  }
+
+  @Test
+  void testCountsAllowedAndRejectedDecisions() {
+    for (int i = 0; i < 7; i++) {
+      rateLimiter.allowed(USER1);
+    }
+    assertFalse(rateLimiter.decide(USER1, 1).allowed());
+    assertTrue(rateLimiter.allowed(USER2, 2));
+
+    assertEquals(new InstrumentedRateLimiterStrategy.Metrics(6, 3, 0), rateLimiter.metrics());
+  }
+
+  @Test
+  void testCountsEveryKeyOfABatch() {
+    boolean[] decisions = rateLimiter.allowedAll(List.of(USER1, USER2), false);
+
+    assertTrue(decisions[0] && decisions[1]);
+    assertEquals(2, rateLimiter.metrics().allowed());
+    // One latency for the whole batch.
+    rateLimiter.latency().roll();
+    assertEquals(1, rateLimiter.latency().count());
+  }
+
+  @Test
+  void testCountsFailedDecisionsAndRethrows() {
+    RateLimiterStrategy failing = mock(RateLimiterStrategy.class);
+    when(failing.allowed(USER1)).thenThrow(new IllegalStateException("redis can't be reached"));
+    rateLimiter = new InstrumentedRateLimiterStrategy(failing);
+
+    assertThrows(IllegalStateException.class, () -> rateLimiter.allowed(USER1));
+    assertEquals(new InstrumentedRateLimiterStrategy.Metrics(0, 0, 1), rateLimiter.metrics());
+  }
+
+  @Test
+  void testRecordsLatencyPerInterval() {
+    for (int i = 0; i < 10; i++) {
+      rateLimiter.allowed(USER1);
+    }
+    // Nothing is published before the first interval ends.
+    assertEquals(0, rateLimiter.latency().count());
+
+    rateLimiter.latency().roll();
+    assertEquals(10, rateLimiter.latency().count());
+    assertTrue(rateLimiter.latency().valueAtPercentileNanos(99) > 0);
+    assertTrue(rateLimiter.latency().maxNanos()
+        >= rateLimiter.latency().valueAtPercentileNanos(50));
+
+    // An interval without decisions reports no latency.
+    rateLimiter.latency().roll();
+    assertEquals(0, rateLimiter.latency().count());
+    assertEquals(0, rateLimiter.latency().maxNanos());
+  }
+
+  @Test
+  void testReportsLiveKeysOfTheDelegate() {
+    rateLimiter.allowed(USER1);
+    rateLimiter.allowed(USER2);
+
+    assertEquals(2, rateLimiter.liveKeys());
+  }
+
+  @Test
+  void testConcurrentDecisionsAreAllCounted() throws Exception {
+    rateLimiter = new InstrumentedRateLimiterStrategy(
+        new SlidingWindowCountStrategy(1, 1000, Clock.systemUTC()));
+    ExecutorService executorService = Executors.newFixedThreadPool(4);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      futures.add(executorService.submit(() -> {
+        for (int i = 0; i < 500; i++) {
+          rateLimiter.allowed(USER1);
+        }
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executorService.shutdown();
+
+    InstrumentedRateLimiterStrategy.Metrics metrics = rateLimiter.metrics();
+    assertEquals(2000, metrics.allowed() + metrics.rejected());
+    rateLimiter.latency().roll();
+    assertEquals(2000, rateLimiter.latency().count());
+  }
+}
@@ -0,0 +1,173 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisAskDataException;
+import redis.clients.jedis.exceptions.JedisMovedDataException;
+import redis.clients.jedis.providers.ClusterConnectionProvider;
+import redis.clients.jedis.util.JedisClusterCRC16;
+
+class JedisClusterConnectionProviderTest {
+
+  private static final HostAndPort NODE1 = new HostAndPort("localhost", 7001);
+  private static final HostAndPort NODE2 = new HostAndPort("localhost", 7002);
+  private ClusterConnectionProvider cluster;
+  private JedisClusterConnectionProvider connections;
+
+  @BeforeEach
+  void setUp() {
+    // Two nodes, each owning half of the slots.
+    cluster = mock(ClusterConnectionProvider.class);
+    when(cluster.getNode(anyInt())).thenAnswer(
+        invocation -> invocation.<Integer>getArgument(0) < 8192 ? NODE1 : NODE2);
+    connections = new JedisClusterConnectionProvider(cluster);
+  }
+
+  @Test
+  void testWindowKeysOfAKeyShareASlot() {
+    for (int i = 0; i < 100; i++) {
+      List<String> keys = SlidingWindowCountDistributedUsingRedisStrategy.fixedWindowKeys(
+          "user-" + i);
+      assertEquals(JedisClusterCRC16.getSlot(keys.get(0)), JedisClusterCRC16.getSlot(keys.get(1)));
+      assertEquals(JedisClusterCRC16.getSlot("user-" + i), JedisClusterCRC16.getSlot(keys.get(1)));
+    }
+    assertEquals(List.of("{user-7}:prev", "{user-7}:cur"),
+        SlidingWindowCountDistributedUsingRedisStrategy.fixedWindowKeys("user-7"));
+    assertEquals("{user-7}:gcra", GcraDistributedUsingRedisStrategy.arrivalTimeKey("user-7"));
+  }
+
+  @Test
+  void testKeysWithHashTagKeepIt() {
+    assertEquals("{tenant-1}:user-7:cur", RedisKeys.of("{tenant-1}:user-7", "cur"));
+    assertEquals(JedisClusterCRC16.getSlot(RedisKeys.of("{tenant-1}:user-7", "cur")),
+        JedisClusterCRC16.getSlot(RedisKeys.of("{tenant-1}:ip-10.0.0.1", "prev")));
+    assertNotEquals(JedisClusterCRC16.getSlot(RedisKeys.of("user-7", "cur")),
+        JedisClusterCRC16.getSlot(RedisKeys.of("user-8", "cur")));
+
+    // Redis hashes the whole key when the braces are empty or not closed.
+    assertFalse(RedisKeys.hasHashTag("{}user-7"));
+    assertFalse(RedisKeys.hasHashTag("user-7{"));
+    assertTrue(RedisKeys.hasHashTag("user{7}"));
+    assertEquals("{{}user-7}:cur", RedisKeys.of("{}user-7", "cur"));
+  }
+
+  @Test
+  void testGroupByNodeKeepsTheOrderOfTheKeys() {
+    List<String> keys = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      keys.add(RedisKeys.of("user-" + i, "cur"));
+    }
+
+    List<List<Integer>> groups = connections.groupByNode(keys);
+
+    assertEquals(2, groups.size());
+    int grouped = 0;
+    for (List<Integer> group : groups) {
+      HostAndPort node = cluster.getNode(JedisClusterCRC16.getSlot(keys.get(group.get(0))));
+      for (int i = 0; i < group.size(); i++) {
+        assertEquals(node, cluster.getNode(JedisClusterCRC16.getSlot(keys.get(group.get(i)))));
+        if (i > 0) {
+          assertTrue(group.get(i - 1) < group.get(i));
+        }
+      }
+      grouped += group.size();
+    }
+    assertEquals(keys.size(), grouped);
+  }
+
+  @Test
+  void testSingleServerIsOneGroup() {
+    RedisConnectionProvider single = RedisConnectionProvider.of(null);
+    assertEquals(List.of(List.of(0, 1, 2)), single.groupByNode(List.of("a", "b", "c")));
+  }
+
+  @Test
+  void testExecuteRunsOnTheNodeOwningTheSlot() {
+    String key = RedisKeys.of("user-7", "cur");
+    int slot = JedisClusterCRC16.getSlot(key);
+    Connection connection = mock(Connection.class);
+    when(cluster.getConnectionFromSlot(slot)).thenReturn(connection);
+
+    assertEquals("ok", connections.execute(key, jedis -> "ok"));
+
+    verify(cluster).getConnectionFromSlot(slot);
+    // The connection goes back to the pool of its node.
+    verify(connection).close();
+  }
+
+  @Test
+  void testMovedSlotRunsAgainOnTheNewNode() {
+    String key = RedisKeys.of("user-7", "cur");
+    int slot = JedisClusterCRC16.getSlot(key);
+    Connection oldNode = mock(Connection.class);
+    Connection newNode = mock(Connection.class);
+    when(cluster.getConnectionFromSlot(slot)).thenReturn(oldNode);
+    when(cluster.getConnection(NODE2)).thenReturn(newNode);
+    AtomicInteger calls = new AtomicInteger();
+
+    assertEquals("ok", connections.execute(key, jedis -> {
+      if (calls.incrementAndGet() == 1) {
+        throw new JedisMovedDataException("MOVED " + slot + " localhost:7002", NODE2, slot);
+      }
+      return "ok";
+    }));
+
+    assertEquals(2, calls.get());
+    verify(cluster).renewSlotCache();
+    verify(oldNode).close();
+    verify(newNode).close();
+  }
+
+  @Test
+  void testAskRunsAgainOnTheTargetNodeWithoutRefreshingTheSlotCache() {
+    String key = RedisKeys.of("user-7", "cur");
+    int slot = JedisClusterCRC16.getSlot(key);
+    Connection targetNode = mock(Connection.class);
+    when(cluster.getConnectionFromSlot(slot)).thenReturn(mock(Connection.class));
+    when(cluster.getConnection(NODE2)).thenReturn(targetNode);
+    AtomicInteger calls = new AtomicInteger();
+
+    assertEquals("ok", connections.execute(key, jedis -> {
+      if (calls.incrementAndGet() == 1) {
+        throw new JedisAskDataException("ASK " + slot + " localhost:7002", NODE2, slot);
+      }
+      return "ok";
+    }));
+
+    verify(targetNode).sendCommand(Protocol.Command.ASKING);
+    verify(cluster, never()).renewSlotCache();
+  }
+
+  @Test
+  void testRedirectsAreBounded() {
+    String key = RedisKeys.of("user-7", "cur");
+    int slot = JedisClusterCRC16.getSlot(key);
+    when(cluster.getConnectionFromSlot(slot)).thenReturn(mock(Connection.class));
+    when(cluster.getConnection(NODE2)).thenReturn(mock(Connection.class));
+    AtomicInteger calls = new AtomicInteger();
+
+    assertThrows(JedisMovedDataException.class, () -> connections.execute(key, jedis -> {
+      calls.incrementAndGet();
+      throw new JedisMovedDataException("MOVED " + slot + " localhost:7002", NODE2, slot);
+    }));
+
+    assertEquals(JedisClusterConnectionProvider.MAX_REDIRECTS + 1, calls.get());
+  }
+}
@@ -0,0 +1,98 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.fppt.jedismock.RedisServer;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+class JedisPoolConnectionProviderTest {
+
+  private static final int DECISIONS_PER_THREAD = 200;
+  private static final int SHARED_KEY_LIMIT = 100;
+  private RedisServer redisServer;
+  private JedisPoolConnectionProvider connections;
+
+  @BeforeAll
+  void setUp() throws IOException {
+    redisServer = RedisServer.newRedisServer().start();
+    connections = new JedisPoolConnectionProvider(redisServer.getHost(),
+        redisServer.getBindPort(), 8, Duration.ofSeconds(2));
+  }
+
+  @AfterAll
+  void tearDown() throws IOException {
+    connections.execute(jedis -> jedis.flushDB());
+    connections.close();
+    redisServer.stop();
+  }
+
+  @Test
+  void testConcurrentDecisionsThroughPool() throws Exception {
+    Clock clock = Clock.fixed(Instant.now(), ZoneId.systemDefault());
+    long callsBefore = connections.metrics().calls();
+    int totalDecisions = 0;
+
+    for (int threads = 1; threads <= 8; threads *= 2) {
+      SlidingWindowCountDistributedUsingRedisStrategy rateLimiter =
+          new SlidingWindowCountDistributedUsingRedisStrategy(60, 1_000_000, clock, connections);
+      SlidingWindowCountDistributedUsingRedisStrategy sharedRateLimiter =
+          new SlidingWindowCountDistributedUsingRedisStrategy(60, SHARED_KEY_LIMIT, clock,
+              connections);
+      String sharedKey = "Shared" + threads;
+      AtomicInteger sharedAllowed = new AtomicInteger();
+
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      List<Future<Integer>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        String ownKey = "User" + threads + ":" + t;
+        futures.add(executor.submit(() -> {
+          int allowed = 0;
+          for (int i = 0; i < DECISIONS_PER_THREAD; i++) {
+            if (rateLimiter.allowed(ownKey)) {
+              allowed++;
+            }
+            if (sharedRateLimiter.allowed(sharedKey)) {
+              sharedAllowed.incrementAndGet();
+            }
+          }
+          return allowed;
+        }));
+      }
+      // Future.get rethrows any protocol error a shared, non thread-safe connection would cause.
+      for (Future<Integer> future : futures) {
+        assertEquals(DECISIONS_PER_THREAD, future.get());
+      }
+      executor.shutdown();
+
+      // The script is atomic, so concurrent threads can never go over the limit of a shared key.
+      assertEquals(SHARED_KEY_LIMIT, sharedAllowed.get());
+
+      totalDecisions += threads * DECISIONS_PER_THREAD * 2;
+    }
+
+    JedisPoolConnectionProvider.Metrics metrics = connections.metrics();
+    assertEquals(totalDecisions, metrics.calls() - callsBefore);
+    assertEquals(0, metrics.borrowTimeouts());
+    assertEquals(0, metrics.active());
+    assertEquals(8, metrics.maxTotal());
+    assertTrue(metrics.averageLatencyNanos() > 0);
+    assertTrue(metrics.maxLatencyNanos() >= metrics.averageLatencyNanos());
+  }
+}
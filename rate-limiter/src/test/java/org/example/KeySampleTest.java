@@ -0,0 +1,75 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.junit.jupiter.api.Test;
+
+class KeySampleTest {
+
+  @Test
+  void testSampleOfAnEmptyMapIsEmpty() {
+    assertTrue(KeySample.of(new ConcurrentHashMap<String, Integer>(), 16).isEmpty());
+  }
+
+  @Test
+  void testSampleHasTheAskedSizeWithReplacement() {
+    ConcurrentMap<String, Integer> map = new ConcurrentHashMap<>(Map.of("User1", 1, "User2", 2));
+    assertEquals(16, KeySample.of(map, 16).size());
+  }
+
+  // A few keys of a small map share one half of the table, every one of them is picked all the
+  // same and not only the first of its half.
+  @Test
+  void testEveryKeyOfASmallMapIsPicked() {
+    for (int keys = 2; keys <= 8; keys++) {
+      ConcurrentMap<String, Integer> map = new ConcurrentHashMap<>();
+      for (int i = 0; i < keys; i++) {
+        map.put("User" + i, i);
+      }
+      Set<String> picked = new HashSet<>();
+      for (Map.Entry<String, Integer> entry : KeySample.of(map, 256)) {
+        picked.add(entry.getKey());
+      }
+      assertEquals(map.keySet(), picked);
+    }
+  }
+
+  // The map is split into regions of a few entries, none of their entries is out of reach.
+  @Test
+  void testEveryKeyOfALargeMapIsPicked() {
+    ConcurrentMap<String, Integer> map = new ConcurrentHashMap<>();
+    for (int i = 0; i < 1000; i++) {
+      map.put("User" + i, i);
+    }
+    Set<String> picked = new HashSet<>();
+    for (int i = 0; i < 4000; i++) {
+      for (Map.Entry<String, Integer> entry : KeySample.of(map, 16)) {
+        picked.add(entry.getKey());
+      }
+    }
+    assertEquals(map.keySet(), picked);
+  }
+
+  // The first key after a run of empty bins is picked no more often than the others.
+  @Test
+  void testKeysArePickedAboutEquallyOften() {
+    ConcurrentMap<String, Integer> map = new ConcurrentHashMap<>();
+    for (int i = 0; i < 4; i++) {
+      map.put("User" + i, i);
+    }
+    Map<String, Integer> picks = new HashMap<>();
+    for (Map.Entry<String, Integer> entry : KeySample.of(map, 40_000)) {
+      picks.merge(entry.getKey(), 1, Integer::sum);
+    }
+    for (int count : picks.values()) {
+      assertTrue(count > 9_000 && count < 11_000, picks.toString());
+    }
+  }
+}
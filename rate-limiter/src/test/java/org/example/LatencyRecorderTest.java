@@ -0,0 +1,48 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class LatencyRecorderTest {
+
+  private LatencyRecorder latency;
+
+  @BeforeEach
+  void setUp() {
+    latency = new LatencyRecorder();
+  }
+
+  @Test
+  void testNothingIsPublishedBeforeTheFirstRoll() {
+    latency.record(1_000);
+    assertEquals(0, latency.count());
+    assertEquals(0, latency.valueAtPercentileNanos(99));
+  }
+
+  // Every roll recycles the histogram of the interval before, the first one included.
+  @Test
+  void testEveryRollStartsANewInterval() {
+    latency.record(1_000);
+    latency.record(2_000);
+    latency.roll();
+    assertEquals(2, latency.count());
+
+    latency.record(3_000);
+    latency.roll();
+    assertEquals(1, latency.count());
+
+    latency.roll();
+    assertEquals(0, latency.count());
+    assertEquals(0, latency.maxNanos());
+  }
+
+  @Test
+  void testNegativeLatenciesAreRecordedAsZero() {
+    latency.record(-5);
+    latency.roll();
+    assertEquals(1, latency.count());
+    assertEquals(0, latency.maxNanos());
+  }
+}
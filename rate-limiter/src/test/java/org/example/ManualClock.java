@@ -0,0 +1,61 @@
+package org.example;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Clock the tests move forward by hand. Clocks in other zones share the time and the count of
+// reads of this one.
+final class ManualClock extends Clock {
+
+  private final AtomicLong millis;
+  private final AtomicInteger reads;
+  private final ZoneId zone;
+
+  ManualClock() {
+    this(new AtomicLong(), new AtomicInteger(), ZoneOffset.UTC);
+  }
+
+  private ManualClock(AtomicLong millis, AtomicInteger reads, ZoneId zone) {
+    this.millis = millis;
+    this.reads = reads;
+    this.zone = zone;
+  }
+
+  void set(long millis) {
+    this.millis.set(millis);
+  }
+
+  void advance(long millis) {
+    this.millis.addAndGet(millis);
+  }
+
+  // How often the time was read, e.g. to check a caller reads it once per tick.
+  int reads() {
+    return reads.get();
+  }
+
+  @Override
+  public long millis() {
+    reads.incrementAndGet();
+    return millis.get();
+  }
+
+  @Override
+  public Instant instant() {
+    return Instant.ofEpochMilli(millis());
+  }
+
+  @Override
+  public ZoneId getZone() {
+    return zone;
+  }
+
+  @Override
+  public Clock withZone(ZoneId zone) {
+    return new ManualClock(millis, reads, zone);
+  }
+}
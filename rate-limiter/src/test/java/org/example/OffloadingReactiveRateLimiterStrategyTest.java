@@ -0,0 +1,147 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.github.fppt.jedismock.RedisServer;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+import reactor.blockhound.BlockHound;
+import reactor.blockhound.BlockingOperationError;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import redis.clients.jedis.JedisPool;
+
+// BlockHound fails every blocking call on a non-blocking reactor thread (parallel scheduler, Netty
+// event loop), the decisions are subscribed on the parallel scheduler like in a gateway filter.
+@TestInstance(Lifecycle.PER_CLASS)
+class OffloadingReactiveRateLimiterStrategyTest {
+
+  RedisServer redisServer;
+  JedisPoolConnectionProvider connections;
+  // Stands in for the event loop of the gateway.
+  Scheduler eventLoop;
+
+  @BeforeAll
+  void startRedis() throws IOException {
+    BlockHound.install();
+    redisServer = RedisServer.newRedisServer().start();
+    connections = new JedisPoolConnectionProvider(
+        new JedisPool(redisServer.getHost(), redisServer.getBindPort()));
+    eventLoop = Schedulers.newParallel("event-loop", 2);
+  }
+
+  @AfterAll
+  void tearDown() throws IOException {
+    // delete the keys from redis for the next round of test execution
+    connections.execute(jedis -> jedis.flushDB());
+    connections.close();
+    eventLoop.dispose();
+    redisServer.stop();
+  }
+
+  @Test
+  void testBlockHoundRejectsBlockingCallsOnTheEventLoop() {
+    // A blocking decision made right on the event loop is caught, so the tests below prove
+    // something.
+    Mono<Boolean> blocking = Mono.fromCallable(() -> {
+      Thread.sleep(1);
+      return true;
+    }).subscribeOn(eventLoop);
+    Throwable error = assertThrows(Throwable.class, () -> blocking.block(Duration.ofSeconds(5)));
+    assertTrue(error instanceof BlockingOperationError
+        || error.getCause() instanceof BlockingOperationError, error.toString());
+  }
+
+  @Test
+  void testRedisDecisionsDoNotBlockTheEventLoop() {
+    Clock clock = Clock.fixed(Instant.now(), ZoneId.systemDefault());
+    try (OffloadingReactiveRateLimiterStrategy rateLimiter =
+        new OffloadingReactiveRateLimiterStrategy(
+            new SlidingWindowCountDistributedUsingRedisStrategy(1, 5, clock, connections), 4,
+            100)) {
+
+      List<Decision> decisions = Flux.range(0, 6)
+          .flatMap(i -> Mono.defer(() -> rateLimiter.decide("User1", 1)).subscribeOn(eventLoop))
+          .collectList()
+          .block(Duration.ofSeconds(5));
+
+      assertEquals(6, decisions.size());
+      assertEquals(5, decisions.stream().filter(Decision::allowed).count());
+      assertEquals(1, decisions.stream().filter(decision -> !decision.allowed()).count());
+    }
+  }
+
+  @Test
+  void testGcraDecisionsDoNotBlockTheEventLoop() {
+    Clock clock = Clock.fixed(Instant.now(), ZoneId.systemDefault());
+    try (OffloadingReactiveRateLimiterStrategy rateLimiter =
+        new OffloadingReactiveRateLimiterStrategy(
+            new GcraDistributedUsingRedisStrategy(1, 2, clock, connections), 4, 100)) {
+
+      Mono<Decision> decision = Mono.defer(() -> rateLimiter.decide("User2", 3))
+          .subscribeOn(eventLoop);
+
+      Decision rejected = decision.block(Duration.ofSeconds(5));
+      assertFalse(rejected.allowed());
+      assertEquals(Decision.NEVER, rejected.retryAfterMillis());
+    }
+  }
+
+  @Test
+  void testInMemoryDecisionsRunOnTheEventLoop() {
+    ReactiveRateLimiterStrategy rateLimiter = ReactiveRateLimiterStrategy.of(
+        new SlidingWindowCountStrategy(1, 1, Clock.systemUTC()));
+
+    Decision decision = Mono.defer(() -> rateLimiter.decide("User3"))
+        .subscribeOn(eventLoop)
+        .block(Duration.ofSeconds(5));
+
+    assertTrue(decision.allowed());
+    assertEquals(0, decision.remaining());
+  }
+
+  @Test
+  void testFullQueueRejectsInsteadOfWaiting() throws InterruptedException {
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch started = new CountDownLatch(1);
+    RateLimiterStrategy slowStrategy = mock(RateLimiterStrategy.class);
+    when(slowStrategy.decide(anyString(), anyInt())).thenAnswer(invocation -> {
+      started.countDown();
+      release.await();
+      return new Decision().set(true, 0, 0, 0);
+    });
+
+    // One thread busy with the first decision, one decision queued, the third one is rejected.
+    try (OffloadingReactiveRateLimiterStrategy rateLimiter =
+        new OffloadingReactiveRateLimiterStrategy(slowStrategy, 1, 1)) {
+      rateLimiter.decide("User4").subscribe();
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      rateLimiter.decide("User4").subscribe();
+
+      assertThrows(RejectedExecutionException.class,
+          () -> rateLimiter.decide("User4").block(Duration.ofSeconds(5)));
+      release.countDown();
+    }
+  }
+}
@@ -0,0 +1,288 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SlidingWindowBucketStrategyTest {
+
+  private static final String USER1 = "User1";
+  private static final String USER2 = "User2";
+  private ManualClock clock;
+  private SlidingWindowBucketStrategy rateLimiter;
+
+
+  @BeforeEach
+  void setUp() {
+    clock = new ManualClock();
+    // 5 requests per second in buckets of 100 ms.
+    rateLimiter = new SlidingWindowBucketStrategy(1, 5, 10, clock);
+  }
+
+  @Test
+  void testAllowRequestsWithinLimit() {
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER1));
+    }
+    assertFalse(rateLimiter.allowed(USER1));
+    // Other keys have their own count.
+    assertTrue(rateLimiter.allowed(USER2));
+    assertEquals(2, rateLimiter.liveKeys());
+  }
+
+  @Test
+  void testBucketsDropOutOfTheWindow() {
+    assertTrue(rateLimiter.allowed(USER1, 2));
+    clock.set(450);
+    assertTrue(rateLimiter.allowed(USER1, 3));
+    assertFalse(rateLimiter.allowed(USER1));
+
+    // The first bucket drops out once the window and one bucket length have passed.
+    clock.set(1099);
+    assertFalse(rateLimiter.allowed(USER1));
+    clock.set(1100);
+    Decision decision = rateLimiter.decide(USER1, 2);
+    assertTrue(decision.allowed());
+    assertEquals(3, decision.count());
+    assertEquals(0, decision.remaining());
+
+    // Idle for longer than the whole ring: nothing counts anymore.
+    clock.set(10_000);
+    assertEquals(4, rateLimiter.decide(USER1, 1).remaining());
+  }
+
+  @Test
+  void testRetryAfterIsWhenEnoughBucketsDropOut() {
+    assertTrue(rateLimiter.allowed(USER1, 2));
+    clock.set(450);
+    assertTrue(rateLimiter.allowed(USER1, 3));
+
+    clock.set(500);
+    Decision rejected = rateLimiter.decide(USER1, 2);
+    assertFalse(rejected.allowed());
+    assertEquals(5, rejected.count());
+    // The 2 permits of the first bucket are gone at 1100.
+    assertEquals(600, rejected.retryAfterMillis());
+    // The 3 permits of the bucket at 400 are only gone at 1500.
+    assertEquals(1000, rateLimiter.decide(USER1, 3).retryAfterMillis());
+    assertEquals(Decision.NEVER, rateLimiter.decide(USER1, 6).retryAfterMillis());
+  }
+
+  @Test
+  void testAllOrNothingDoesNotConsumeQuotaOfOtherKeys() {
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER1));
+    }
+
+    for (int i = 0; i < 10; i++) {
+      assertArrayEquals(new boolean[]{true, false},
+          rateLimiter.allowedAll(List.of(USER2, USER1), true));
+    }
+
+    // USER2 still has its whole quota.
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER2));
+    }
+    assertFalse(rateLimiter.allowed(USER2));
+  }
+
+  @Test
+  void testExpiredKeysAreEvicted() {
+    assertTrue(rateLimiter.allowed(USER1));
+    clock.set(600);
+    assertTrue(rateLimiter.allowed(USER2));
+
+    // USER1's ring has fully dropped out, USER2's bucket at 600 hasn't.
+    clock.set(1100);
+    assertEquals(1, rateLimiter.evictExpiredKeys());
+    assertEquals(new KeyMetrics(1, 1, 0, 0), rateLimiter.keyMetrics());
+  }
+
+  @Test
+  void testBoundedCapacityEvictsExpiredKeysFirst() {
+    rateLimiter = new SlidingWindowBucketStrategy(1, 5, 10, clock,
+        new KeyCapacity(2, KeyCapacity.OverflowPolicy.EVICT_LEAST_RECENTLY_USED));
+    assertTrue(rateLimiter.allowed(USER1));
+    clock.set(600);
+    assertTrue(rateLimiter.allowed(USER2));
+
+    // USER1's ring dropped out of the window, it makes room for USER3 and USER2 keeps its count.
+    clock.set(1100);
+    assertTrue(rateLimiter.allowed("User3"));
+    assertEquals(new KeyMetrics(2, 1, 0, 0), rateLimiter.keyMetrics());
+    assertEquals(1, rateLimiter.decide(USER2, 1).count());
+  }
+
+  @Test
+  void testBoundedCapacityEvictsTheLeastRecentlyUsedKey() {
+    rateLimiter = new SlidingWindowBucketStrategy(1, 5, 10, clock,
+        new KeyCapacity(2, KeyCapacity.OverflowPolicy.EVICT_LEAST_RECENTLY_USED));
+    assertTrue(rateLimiter.allowed(USER1));
+    clock.set(10);
+    assertTrue(rateLimiter.allowed(USER2));
+    clock.set(20);
+    assertTrue(rateLimiter.allowed(USER1));
+    // USER2 is the least recently used key, it makes room for USER3.
+    clock.set(30);
+    assertTrue(rateLimiter.allowed("User3"));
+
+    assertEquals(new KeyMetrics(2, 0, 1, 0), rateLimiter.keyMetrics());
+    assertEquals(2, rateLimiter.decide(USER1, 1).count());
+  }
+
+  @Test
+  void testBoundedCapacityFailsClosedOrOpen() {
+    SlidingWindowBucketStrategy failClosed = new SlidingWindowBucketStrategy(1, 5, 10, clock,
+        new KeyCapacity(1, KeyCapacity.OverflowPolicy.REJECT));
+    SlidingWindowBucketStrategy failOpen = new SlidingWindowBucketStrategy(1, 5, 10, clock,
+        new KeyCapacity(1, KeyCapacity.OverflowPolicy.ALLOW));
+
+    assertTrue(failClosed.allowed(USER1));
+    assertFalse(failClosed.allowed(USER2));
+    assertTrue(failOpen.allowed(USER1));
+    assertTrue(failOpen.allowed(USER2));
+    // An overflowing key of an all-or-nothing request gives the quota of the others back.
+    assertArrayEquals(new boolean[]{true, false},
+        failClosed.allowedAll(List.of(USER1, USER2), true));
+    assertEquals(1, failClosed.decide(USER1, 1).count());
+
+    assertEquals(new KeyMetrics(1, 0, 0, 2), failClosed.keyMetrics());
+    assertEquals(new KeyMetrics(1, 0, 0, 1), failOpen.keyMetrics());
+  }
+
+  @Test
+  void testConcurrentRequestsOnHotKeyNeverExceedLimit() throws Exception {
+    rateLimiter = new SlidingWindowBucketStrategy(1, 10_000, 10, clock);
+    int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      futures.add(executor.submit(() -> {
+        int allowed = 0;
+        for (int i = 0; i < 5_000; i++) {
+          if (rateLimiter.allowed(USER1)) {
+            allowed++;
+          }
+        }
+        return allowed;
+      }));
+    }
+    int allowed = 0;
+    for (Future<Integer> future : futures) {
+      allowed += future.get();
+    }
+    executor.shutdown();
+
+    assertEquals(10_000, allowed);
+  }
+
+  @Test
+  void testWindowMustSplitIntoWholeMilliseconds() {
+    assertThrows(IllegalArgumentException.class,
+        () -> new SlidingWindowBucketStrategy(1, 5, 3, clock));
+    assertThrows(IllegalArgumentException.class,
+        () -> new SlidingWindowBucketStrategy(1, 5, 0, clock));
+    assertEquals(11 * 4, rateLimiter.bytesPerKey());
+  }
+
+  // Bursts at the edges of the fixed windows, the traffic the weighted count of two fixed windows
+  // gets wrong, replayed against the exact sliding log as reference.
+  @Test
+  void testAccuracyAgainstExactSlidingLog() {
+    long[] requests = edgeBursts(new Random(42));
+
+    int exact = allowedByExactLog(requests);
+    int[] overshoot = new int[4];
+    int[] allowed = new int[4];
+    int[] buckets = {1, 10, 100, 1000};
+    for (int i = 0; i < buckets.length; i++) {
+      clock = new ManualClock();
+      List<Long> allowedRequests = replay(
+          new SlidingWindowBucketStrategy(1, 100, buckets[i], clock), requests);
+      allowed[i] = allowedRequests.size();
+      overshoot[i] = maxInAnyWindow(allowedRequests) - 100;
+    }
+    clock = new ManualClock();
+    int weightedOvershoot = maxInAnyWindow(
+        replay(new SlidingWindowCountStrategy(1, 100, clock), requests)) - 100;
+
+    // The buckets never go over the limit in any window, the weighted count does.
+    for (int i = 0; i < buckets.length; i++) {
+      assertTrue(overshoot[i] <= 0, buckets[i] + " buckets allowed " + overshoot[i] + " too many");
+    }
+    assertTrue(weightedOvershoot > 0);
+    // More buckets reject fewer of the requests the exact log allows. Of its 2000 requests 1 bucket
+    // (8 bytes per key) allows 1000, 10 buckets (44 bytes) 1475, 100 buckets (404 bytes) 1853 and
+    // 1000 buckets (4004 bytes) 1983; the log takes 800 bytes, a long per allowed request.
+    assertEquals(2000, exact);
+    assertTrue(allowed[0] < allowed[1] && allowed[1] < allowed[2] && allowed[2] < allowed[3]);
+    assertTrue(allowed[1] >= exact * 0.7, allowed[1] + " of " + exact);
+    assertTrue(allowed[2] >= exact * 0.9, allowed[2] + " of " + exact);
+    assertTrue(allowed[3] >= exact * 0.98, allowed[3] + " of " + exact);
+  }
+
+  // 20 seconds of little background traffic and bursts around every full second.
+  private static long[] edgeBursts(Random random) {
+    List<Long> requests = new ArrayList<>();
+    for (long t = 0; t < 20_000; t++) {
+      long phase = t % 1000;
+      int count = phase >= 950 || phase < 50 ? random.nextInt(4) : random.nextInt(50) == 0 ? 1 : 0;
+      for (int i = 0; i < count; i++) {
+        requests.add(t);
+      }
+    }
+    return requests.stream().mapToLong(Long::longValue).toArray();
+  }
+
+  private List<Long> replay(RateLimiterStrategy strategy, long[] requests) {
+    List<Long> allowedRequests = new ArrayList<>();
+    for (long request : requests) {
+      clock.set(request);
+      if (strategy.allowed(USER1)) {
+        allowedRequests.add(request);
+      }
+    }
+    return allowedRequests;
+  }
+
+  // Reference: allowed if fewer than the limit requests were allowed in the last window length.
+  private static int allowedByExactLog(long[] requests) {
+    ArrayDeque<Long> log = new ArrayDeque<>();
+    int allowed = 0;
+    for (long request : requests) {
+      while (!log.isEmpty() && log.peekFirst() <= request - 1000) {
+        log.pollFirst();
+      }
+      if (log.size() < 100) {
+        log.addLast(request);
+        allowed++;
+      }
+    }
+    return allowed;
+  }
+
+  // Most allowed requests in any window (t - 1000, t].
+  private static int maxInAnyWindow(List<Long> allowedRequests) {
+    int max = 0;
+    int first = 0;
+    for (int last = 0; last < allowedRequests.size(); last++) {
+      while (allowedRequests.get(first) <= allowedRequests.get(last) - 1000) {
+        first++;
+      }
+      max = Math.max(max, last - first + 1);
+    }
+    return max;
+  }
+}
@@ -1,14 +1,26 @@
 package org.example;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.github.fppt.jedismock.RedisServer;
+import java.io.IOException;
 import java.time.Clock;
 import java.time.Instant;
 import java.time.ZoneId;
+import java.util.List;
 import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
@@ -21,21 +33,70 @@ class SlidingWindowCountDistributedUsingRedisStrategyTest {
   private static final String USER1 = "User1";
   private static final String USER2 = "User2";
   private static final String USER3 = "User3";
+  private static final String USER4 = "User4";
+  private static final String USER5 = "User5";
+  private static final String USER6 = "User6";
+  private static final String USER7 = "User7";
+  private static final String USER8 = "User8";
+  private static final String USER9 = "User9";
+  RedisServer redisServer;
   Jedis jedis;
   private SlidingWindowCountDistributedUsingRedisStrategy rateLimiter;
   private Clock clock;
 
+  @BeforeAll
+  void startRedis() throws IOException {
+    // In-process mock of the redis server, it supports Lua scripts, so no real redis is needed.
+    redisServer = RedisServer.newRedisServer().start();
+    jedis = new Jedis(redisServer.getHost(), redisServer.getBindPort());
+  }
+
   @BeforeEach
   void setUp() {
-    jedis = new Jedis("localhost", 6379);
     clock = Clock.fixed(Instant.now(), ZoneId.systemDefault());
     rateLimiter = new SlidingWindowCountDistributedUsingRedisStrategy(1, 5, clock, jedis);
   }
 
   @AfterAll
-  void tearDown() {
+  void tearDown() throws IOException {
     // delete the keys from redis for the next round of test execution
     jedis.flushDB();
+    jedis.close();
+    redisServer.stop();
+  }
+
+  @Test
+  void testSingleRoundTripPerDecision() {
+    Jedis jedisSpy = spy(jedis);
+    rateLimiter = new SlidingWindowCountDistributedUsingRedisStrategy(1, 5, clock, jedisSpy);
+
+    for (int i = 0; i < 3; i++) {
+      assertTrue(rateLimiter.allowed(USER4));
+    }
+
+    // Every decision is exactly one EVALSHA, no separate reads or writes of the windows.
+    verify(jedisSpy, times(3)).evalsha(anyString(), anyList(), anyList());
+    verify(jedisSpy, never()).hget(anyString(), anyString());
+    verify(jedisSpy, never()).hset(anyString(), anyString(), anyString());
+  }
+
+  @Test
+  void testIdleKeysExpire() {
+    assertTrue(rateLimiter.allowed(USER5));
+
+    // TTL is set inside the script to two window lengths (2 * 1000 milliseconds).
+    long ttl = jedis.pttl("{" + USER5 + "}:cur");
+    assertTrue(ttl > 0 && ttl <= 2000, "TTL of the current window should be set, was " + ttl);
+  }
+
+  @Test
+  void testScriptIsReloadedAfterScriptCacheFlush() {
+    assertTrue(rateLimiter.allowed(USER6));
+
+    // Simulates a restart/failover of redis which loses all loaded scripts (NOSCRIPT error).
+    jedis.scriptFlush();
+
+    assertTrue(rateLimiter.allowed(USER6));
   }
 
   @Test
@@ -128,4 +189,95 @@ class SlidingWindowCountDistributedUsingRedisStrategyTest {
     assertTrue(rateLimiter.allowed(USER3),
         String.format("%s's request 8 at timestamp=3000 should be allowed", USER3));
   }
+
+  @Test
+  void testWeightedPermits() {
+    String bulkUser = USER8 + "Weighted";
+    // A bulk request of 3 permits and a request of 2 use up the limit of 5.
+    assertTrue(rateLimiter.allowed(bulkUser, 3));
+    assertFalse(rateLimiter.allowed(bulkUser, 3));
+    assertTrue(rateLimiter.allowed(bulkUser, 2));
+    assertFalse(rateLimiter.allowed(bulkUser));
+  }
+
+  @Test
+  void testDecisionCarriesRemainingPermitsAndExactRetryAfter() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L, 999L, 1000L, 1001L, 1002L, 1999L, 2000L);
+    rateLimiter = new SlidingWindowCountDistributedUsingRedisStrategy(1, 2, clock, jedis);
+    String user = USER3 + "Decision";
+    Decision decision = new Decision();
+
+    assertDecision(true, 0, 1, 0, rateLimiter.decide(user, 1, decision));
+    assertDecision(true, 1, 0, 0, rateLimiter.decide(user, 1, decision));
+    // The current window is full, it becomes the previous one at 1001 with a weight of 0.999.
+    assertDecision(false, 2, 0, 1, rateLimiter.decide(user, 1, decision));
+    assertDecision(true, 1, 0, 0, rateLimiter.decide(user, 1, decision));
+    // 2 * weight + 1 < 2 once the weight of the previous window fell below 0.5, at 1501.
+    assertDecision(false, 2, 0, 499, rateLimiter.decide(user, 1, decision));
+    assertDecision(true, 1, 0, 0, rateLimiter.decide(user, 1, decision));
+    assertDecision(false, 2, 0, 2, rateLimiter.decide(user, 1, decision));
+  }
+
+  @Test
+  void testAllowedAllDecidesPerKeyInOneRoundTrip() {
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER7));
+    }
+
+    // USER7 used up its quota, USER8 has not made any request yet.
+    assertArrayEquals(new boolean[]{false, true, true},
+        rateLimiter.allowedAll(List.of(USER7, USER8, USER8)));
+  }
+
+  @Test
+  void testAllOrNothingDoesNotConsumeQuotaOfOtherKeys() {
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER7 + "AllOrNothing"));
+    }
+
+    // The first key rejects every request, so USER9 must not be charged for any of them.
+    for (int i = 0; i < 10; i++) {
+      assertArrayEquals(new boolean[]{true, false},
+          rateLimiter.allowedAll(List.of(USER9, USER7 + "AllOrNothing"), true));
+    }
+
+    // USER9 still has its whole quota.
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER9));
+    }
+    assertFalse(rateLimiter.allowed(USER9));
+  }
+
+  @Test
+  void testChangedLimitKeepsTheCountsInRedis() {
+    DynamicLimits limits = new DynamicLimits();
+    rateLimiter = new SlidingWindowCountDistributedUsingRedisStrategy(1, limits.resolver(5), clock,
+        RedisConnectionProvider.of(jedis));
+    String user = USER1 + "DynamicLimit";
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(user));
+    }
+    assertFalse(rateLimiter.allowed(user));
+
+    // The 5 requests counted in Redis still count against the raised limit.
+    limits.setLimit(user, 7);
+    assertDecision(true, 5, 1, 0, rateLimiter.decide(user, 1));
+    // Batches pass the limit of every key to the script, pipelined or all-or-nothing.
+    assertArrayEquals(new boolean[]{true, true},
+        rateLimiter.allowedAll(List.of(user, USER2 + "DynamicLimit")));
+    assertArrayEquals(new boolean[]{false, true},
+        rateLimiter.allowedAll(List.of(user, USER2 + "DynamicLimit"), false));
+    limits.setLimit(user, 8);
+    assertArrayEquals(new boolean[]{true, true},
+        rateLimiter.allowedAll(List.of(user, USER2 + "DynamicLimit"), true));
+  }
+
+  private static void assertDecision(boolean allowed, int count, int remaining,
+      long retryAfterMillis, Decision decision) {
+    assertEquals(allowed, decision.allowed(), decision.toString());
+    assertEquals(count, decision.count(), decision.toString());
+    assertEquals(remaining, decision.remaining(), decision.toString());
+    assertEquals(retryAfterMillis, decision.retryAfterMillis(), decision.toString());
+  }
 }
@@ -0,0 +1,310 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.github.fppt.jedismock.RedisServer;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+import org.mockito.ArgumentCaptor;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+@TestInstance(Lifecycle.PER_CLASS)
+class SlidingWindowCountNearCacheStrategyTest {
+
+  // Start of a fixed window of one second.
+  private static final long WINDOW_START = 1_000_000L;
+  RedisServer redisServer;
+  Jedis jedis;
+  private Clock clock;
+  private final AtomicLong now = new AtomicLong();
+  // Connections handed out by the provider, and whether Redis is reachable.
+  private final AtomicInteger connectionsUsed = new AtomicInteger();
+  private final AtomicBoolean redisDown = new AtomicBoolean();
+  private RedisConnectionProvider connections;
+
+  @BeforeAll
+  void startRedis() throws IOException {
+    redisServer = RedisServer.newRedisServer().start();
+    jedis = new Jedis(redisServer.getHost(), redisServer.getBindPort());
+  }
+
+  @BeforeEach
+  void setUp() {
+    jedis.flushDB();
+    now.set(WINDOW_START);
+    clock = mock(Clock.class);
+    when(clock.millis()).thenAnswer(invocation -> now.get());
+    connectionsUsed.set(0);
+    redisDown.set(false);
+    RedisConnectionProvider shared = RedisConnectionProvider.of(jedis);
+    connections = new RedisConnectionProvider() {
+      @Override
+      public <T> T execute(String key, Function<Jedis, T> action) {
+        connectionsUsed.incrementAndGet();
+        if (redisDown.get()) {
+          throw new JedisConnectionException("Redis is down");
+        }
+        return shared.execute(key, action);
+      }
+    };
+  }
+
+  @AfterAll
+  void tearDown() throws IOException {
+    // delete the keys from redis for the next round of test execution
+    jedis.flushDB();
+    jedis.close();
+    redisServer.stop();
+  }
+
+  @Test
+  void testDecisionsDoNotTalkToRedis() {
+    SlidingWindowCountNearCacheStrategy rateLimiter =
+        new SlidingWindowCountNearCacheStrategy(1, 5, 5, clock, connections);
+
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed("User1"));
+    }
+    assertFalse(rateLimiter.allowed("User1"));
+    assertTrue(rateLimiter.allowed("User2"));
+    assertEquals(0, connectionsUsed.get());
+
+    // One pipelined round trip for all keys.
+    rateLimiter.sync();
+    assertEquals(1, connectionsUsed.get());
+    assertEquals("5", jedis.get("{User1}:" + WINDOW_START));
+    assertEquals("1", jedis.get("{User2}:" + WINDOW_START));
+    assertEquals(new SlidingWindowCountNearCacheStrategy.Metrics(1, 0, false, 2),
+        rateLimiter.metrics());
+  }
+
+  @Test
+  void testAllOrNothingDoesNotConsumeQuotaOfOtherKeys() {
+    SlidingWindowCountNearCacheStrategy rateLimiter =
+        new SlidingWindowCountNearCacheStrategy(1, 5, 5, clock, connections);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed("User1"));
+    }
+    assertTrue(rateLimiter.allowed("User2"));
+
+    for (int i = 0; i < 10; i++) {
+      assertArrayEquals(new boolean[]{true, false},
+          rateLimiter.allowedAll(List.of("User2", "User1"), true));
+    }
+
+    // Neither locally nor in Redis does User2 count the rejected requests.
+    rateLimiter.sync();
+    assertEquals("1", jedis.get("{User2}:" + WINDOW_START));
+    assertEquals(3, rateLimiter.decide("User2", 1).remaining());
+  }
+
+  @Test
+  void testSyncSharesCountsBetweenInstances() {
+    SlidingWindowCountNearCacheStrategy node1 =
+        new SlidingWindowCountNearCacheStrategy(1, 10, 10, clock, connections);
+    SlidingWindowCountNearCacheStrategy node2 =
+        new SlidingWindowCountNearCacheStrategy(1, 10, 10, clock, connections);
+
+    for (int i = 0; i < 6; i++) {
+      assertTrue(node1.allowed("User1"));
+    }
+    node1.sync();
+    // Decisions stay local: node2 pulls the global count of a key with the first sync after its
+    // first request.
+    assertTrue(node2.allowed("User1"));
+    node2.sync();
+
+    // node2 now knows the 6 requests of node1.
+    for (int i = 0; i < 3; i++) {
+      assertTrue(node2.allowed("User1"));
+    }
+    assertFalse(node2.allowed("User1"));
+
+    // In the next window the global count of the previous one is weighted like any sliding window.
+    now.set(WINDOW_START + 1500);
+    node2.sync();
+    node1.sync();
+    Decision decision = node1.decide("User1", 1);
+    assertTrue(decision.allowed());
+    assertEquals(5, decision.count());
+    assertEquals(4, decision.remaining());
+    assertEquals(5, node2.decide("User1", 1).count());
+  }
+
+  @Test
+  void testOvershootIsBoundedByMaxUnsyncedPermits() {
+    int limit = 10;
+    int maxUnsyncedPermits = 4;
+    SlidingWindowCountNearCacheStrategy node1 =
+        new SlidingWindowCountNearCacheStrategy(1, limit, maxUnsyncedPermits, clock, connections);
+    SlidingWindowCountNearCacheStrategy node2 =
+        new SlidingWindowCountNearCacheStrategy(1, limit, maxUnsyncedPermits, clock, connections);
+
+    // Both nodes admit as much as they can between two syncs, until the limit is reached.
+    int allowed = 0;
+    for (int round = 0; round < 5; round++) {
+      while (node1.allowed("User1")) {
+        allowed++;
+      }
+      while (node2.allowed("User1")) {
+        allowed++;
+      }
+      node1.sync();
+      node2.sync();
+    }
+
+    // Round 1: 4 + 4, round 2: 4 + 2 as node1 last saw 4 and node2 saw 8.
+    assertEquals(14, allowed);
+    assertTrue(allowed <= limit + 2 * (2 - 1) * maxUnsyncedPermits);
+    assertEquals("14", jedis.get("{User1}:" + WINDOW_START));
+  }
+
+  @Test
+  void testUnsyncedPermitsWaitForTheNextSync() {
+    SlidingWindowCountNearCacheStrategy rateLimiter =
+        new SlidingWindowCountNearCacheStrategy(1, 10, 2, clock, connections);
+
+    assertTrue(rateLimiter.allowed("User1", 2));
+    now.set(WINDOW_START + 400);
+    Decision decision = rateLimiter.decide("User1", 1);
+    assertFalse(decision.allowed());
+    assertEquals(2, decision.count());
+    assertEquals(8, decision.remaining());
+    // No sync is scheduled, the roll-over starts a new batch of unsynced permits.
+    assertEquals(600, decision.retryAfterMillis());
+
+    rateLimiter.sync();
+    assertTrue(rateLimiter.allowed("User1", 2));
+  }
+
+  @Test
+  void testRequestCostingMoreThanMaxUnsyncedPermitsGetsInAlone() {
+    SlidingWindowCountNearCacheStrategy rateLimiter =
+        new SlidingWindowCountNearCacheStrategy(1, 100, 10, clock, connections);
+
+    // Nothing unsynced yet: the request is the only batch of the key until the next sync.
+    assertTrue(rateLimiter.allowed("User1", 50));
+    // The limit has room for another one, which waits for the sync or the roll-over.
+    Decision decision = rateLimiter.decide("User1", 50);
+    assertFalse(decision.allowed());
+    assertEquals(50, decision.remaining());
+    assertEquals(1000, decision.retryAfterMillis());
+
+    rateLimiter.sync();
+    assertEquals("50", jedis.get("{User1}:" + WINDOW_START));
+    assertTrue(rateLimiter.allowed("User1", 50));
+    assertFalse(rateLimiter.allowed("User1", 1));
+  }
+
+  @Test
+  void testScheduledSyncSurvivesUnexpectedExceptions() {
+    connections = new RedisConnectionProvider() {
+      @Override
+      public <T> T execute(String key, Function<Jedis, T> action) {
+        throw new IllegalStateException("unexpected");
+      }
+    };
+    SlidingWindowCountNearCacheStrategy rateLimiter =
+        new SlidingWindowCountNearCacheStrategy(1, 10, 2, clock, connections);
+    ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+    rateLimiter.scheduleSync(scheduler, Duration.ofMillis(100));
+    ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+    verify(scheduler).scheduleWithFixedDelay(task.capture(), eq(100L), eq(100L),
+        eq(TimeUnit.MILLISECONDS));
+
+    assertTrue(rateLimiter.allowed("User1", 2));
+    // An exception thrown by the task would cancel the schedule.
+    task.getValue().run();
+    task.getValue().run();
+    assertEquals(2, rateLimiter.metrics().failedSyncs());
+
+    // The permits wait for the next sync at the latest.
+    assertEquals(100, rateLimiter.decide("User1", 1).retryAfterMillis());
+  }
+
+  @Test
+  void testDegradesToLocalOnlyLimitingWhenRedisIsDown() {
+    SlidingWindowCountNearCacheStrategy rateLimiter =
+        new SlidingWindowCountNearCacheStrategy(1, 10, 2, clock, connections);
+
+    assertTrue(rateLimiter.allowed("User1"));
+    assertTrue(rateLimiter.allowed("User1"));
+    assertFalse(rateLimiter.allowed("User1"));
+
+    redisDown.set(true);
+    rateLimiter.sync();
+    assertEquals(new SlidingWindowCountNearCacheStrategy.Metrics(0, 1, true, 1),
+        rateLimiter.metrics());
+
+    // Local-only: the limit still holds, the bound on unsynced permits doesn't.
+    for (int i = 0; i < 8; i++) {
+      assertTrue(rateLimiter.allowed("User1"));
+    }
+    assertFalse(rateLimiter.allowed("User1"));
+
+    // Nothing was lost, the next sync adds every permit to Redis.
+    redisDown.set(false);
+    rateLimiter.sync();
+    assertEquals(new SlidingWindowCountNearCacheStrategy.Metrics(1, 1, false, 1),
+        rateLimiter.metrics());
+    assertEquals("10", jedis.get("{User1}:" + WINDOW_START));
+    assertFalse(rateLimiter.allowed("User1"));
+  }
+
+  @Test
+  void testFailedCommandOfThePipelineKeepsItsPermits() {
+    SlidingWindowCountNearCacheStrategy rateLimiter =
+        new SlidingWindowCountNearCacheStrategy(1, 10, 5, clock, connections);
+    assertTrue(rateLimiter.allowed("User1", 3));
+    assertTrue(rateLimiter.allowed("User2", 2));
+    // INCRBY of User1 fails with WRONGTYPE, the pipeline returns the error as its result.
+    jedis.lpush("{User1}:" + WINDOW_START, "other");
+
+    rateLimiter.sync();
+    assertEquals(1, rateLimiter.metrics().failedSyncs());
+    assertEquals("2", jedis.get("{User2}:" + WINDOW_START));
+
+    jedis.del("{User1}:" + WINDOW_START);
+    rateLimiter.sync();
+    assertEquals("3", jedis.get("{User1}:" + WINDOW_START));
+  }
+
+  @Test
+  void testSyncDropsIdleKeys() {
+    SlidingWindowCountNearCacheStrategy rateLimiter =
+        new SlidingWindowCountNearCacheStrategy(1, 10, 10, clock, connections);
+
+    assertTrue(rateLimiter.allowed("User1"));
+    now.set(WINDOW_START + 1000);
+    rateLimiter.sync();
+    assertEquals(1, rateLimiter.metrics().liveKeys());
+
+    // Nothing counts in the sliding window anymore and everything is in Redis.
+    now.set(WINDOW_START + 2000);
+    rateLimiter.sync();
+    assertEquals(0, rateLimiter.metrics().liveKeys());
+    assertTrue(rateLimiter.allowed("User1"));
+  }
+}
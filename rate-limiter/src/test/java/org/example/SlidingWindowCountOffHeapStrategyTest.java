@@ -0,0 +1,223 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SlidingWindowCountOffHeapStrategyTest {
+
+  private static final String USER1 = "User1";
+  private static final String USER2 = "User2";
+  private static final String USER3 = "User3";
+  private static final KeyCapacity CAPACITY =
+      new KeyCapacity(1000, KeyCapacity.OverflowPolicy.EVICT_LEAST_RECENTLY_USED);
+  private SlidingWindowCountOffHeapStrategy rateLimiter;
+  private Clock clock;
+
+  @BeforeEach
+  void setUp() {
+    // Start of a fixed window, so the tests don't cross a roll-over.
+    clock = Clock.fixed(Instant.ofEpochSecond(1_700_000_000), ZoneId.systemDefault());
+
+    // start rate limiter with 5 requests per second
+    rateLimiter = new SlidingWindowCountOffHeapStrategy(1, 5, clock, CAPACITY);
+  }
+
+  @Test
+  void testAllowRequestsWithinLimit() {
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER1));
+    }
+    assertFalse(rateLimiter.allowed(USER1));
+    // Other keys have their own count.
+    assertTrue(rateLimiter.allowed(USER2));
+    assertEquals(2, rateLimiter.liveKeys());
+  }
+
+  @Test
+  void testWeightedPermitsAndDecision() {
+    assertTrue(rateLimiter.allowed(USER1, 3));
+    Decision rejected = rateLimiter.decide(USER1, 3);
+    assertFalse(rejected.allowed());
+    assertEquals(3, rejected.count());
+    assertEquals(2, rejected.remaining());
+    assertEquals(1001, rejected.retryAfterMillis());
+
+    // A rejection takes no quota.
+    assertTrue(rateLimiter.allowed(USER1, 2));
+    assertEquals(Decision.NEVER, rateLimiter.decide(USER2, 6).retryAfterMillis());
+  }
+
+  @Test
+  void testPreviousWindowIsWeighted() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L, 0L, 0L, 0L, 0L, 1500L, 1500L, 1500L, 1500L, 3600L);
+    rateLimiter = new SlidingWindowCountOffHeapStrategy(1, 5, clock, CAPACITY);
+
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER1));
+    }
+    // Half of the previous window is in the sliding window: 2.5 (counted as 2) + current count.
+    assertTrue(rateLimiter.allowed(USER1));
+    assertTrue(rateLimiter.allowed(USER1));
+    assertTrue(rateLimiter.allowed(USER1));
+    assertFalse(rateLimiter.allowed(USER1));
+
+    // Two windows later both windows are empty.
+    assertEquals(4, rateLimiter.decide(USER1, 1).remaining());
+  }
+
+  @Test
+  void testAllOrNothingDoesNotConsumeQuotaOfOtherKeys() {
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER1));
+    }
+
+    for (int i = 0; i < 10; i++) {
+      assertArrayEquals(new boolean[]{true, false},
+          rateLimiter.allowedAll(List.of(USER2, USER1), true));
+    }
+
+    // USER2 still has its whole quota.
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER2));
+    }
+    assertFalse(rateLimiter.allowed(USER2));
+  }
+
+  @Test
+  void testConcurrentRequestsOnHotKeyNeverExceedLimit() throws Exception {
+    rateLimiter = new SlidingWindowCountOffHeapStrategy(1, 10_000, clock, CAPACITY);
+    int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      futures.add(executor.submit(() -> {
+        int allowed = 0;
+        for (int i = 0; i < 5_000; i++) {
+          if (rateLimiter.allowed(USER1)) {
+            allowed++;
+          }
+        }
+        return allowed;
+      }));
+    }
+    int allowed = 0;
+    for (Future<Integer> future : futures) {
+      allowed += future.get();
+    }
+    executor.shutdown();
+
+    assertEquals(10_000, allowed);
+  }
+
+  @Test
+  void testExpiredKeysAreEvicted() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L, 0L, 2000L, 2000L);
+    rateLimiter = new SlidingWindowCountOffHeapStrategy(1, 5, clock, CAPACITY);
+
+    assertTrue(rateLimiter.allowed(USER1));
+    assertTrue(rateLimiter.allowed(USER2));
+    // USER2 stays active, USER1 doesn't make any request for two window lengths.
+    assertTrue(rateLimiter.allowed(USER2));
+
+    assertEquals(1, rateLimiter.evictExpiredKeys());
+    assertEquals(new KeyMetrics(1, 1, 0, 0), rateLimiter.keyMetrics());
+  }
+
+  @Test
+  void testEvictionKeepsCollidingKeysReachable() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    // One segment of 128 slots for 90 keys: long probe sequences, many of them wrapping around.
+    rateLimiter = new SlidingWindowCountOffHeapStrategy(1, 10, clock,
+        new KeyCapacity(90, KeyCapacity.OverflowPolicy.REJECT), 1);
+    for (int i = 0; i < 90; i++) {
+      assertTrue(rateLimiter.allowed("key-" + i, i % 2 == 0 ? 1 : 5));
+    }
+
+    // Odd keys stay active, even keys expire and are removed from between them.
+    when(clock.millis()).thenReturn(1000L);
+    for (int i = 1; i < 90; i += 2) {
+      assertTrue(rateLimiter.allowed("key-" + i));
+    }
+    when(clock.millis()).thenReturn(2000L);
+    assertEquals(45, rateLimiter.evictExpiredKeys());
+
+    // Every odd key is still found with its count, the permit of the previous window.
+    for (int i = 1; i < 90; i += 2) {
+      assertEquals(1, rateLimiter.decide("key-" + i, 1).count(), "key-" + i);
+    }
+    assertEquals(45, rateLimiter.liveKeys());
+  }
+
+  @Test
+  void testBoundedCapacityEvictsLeastRecentlyUsedKey() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L, 10L, 20L, 30L);
+    rateLimiter = new SlidingWindowCountOffHeapStrategy(1, 5, clock,
+        new KeyCapacity(2, KeyCapacity.OverflowPolicy.EVICT_LEAST_RECENTLY_USED), 1);
+
+    assertTrue(rateLimiter.allowed(USER1));
+    assertTrue(rateLimiter.allowed(USER2));
+    assertTrue(rateLimiter.allowed(USER1));
+    // USER2 is the least recently used key, it makes room for USER3.
+    assertTrue(rateLimiter.allowed(USER3));
+
+    assertEquals(new KeyMetrics(2, 0, 1, 0), rateLimiter.keyMetrics());
+    // USER1 kept its count.
+    assertEquals(2, rateLimiter.decide(USER1, 1).count());
+  }
+
+  @Test
+  void testBoundedCapacityFailsClosedOrOpen() {
+    SlidingWindowCountOffHeapStrategy failClosed = new SlidingWindowCountOffHeapStrategy(1, 5,
+        clock, new KeyCapacity(1, KeyCapacity.OverflowPolicy.REJECT));
+    SlidingWindowCountOffHeapStrategy failOpen = new SlidingWindowCountOffHeapStrategy(1, 5,
+        clock, new KeyCapacity(1, KeyCapacity.OverflowPolicy.ALLOW));
+
+    assertTrue(failClosed.allowed(USER1));
+    assertFalse(failClosed.allowed(USER2));
+    assertTrue(failOpen.allowed(USER1));
+    assertTrue(failOpen.allowed(USER2));
+
+    assertEquals(new KeyMetrics(1, 0, 0, 1), failClosed.keyMetrics());
+    assertEquals(new KeyMetrics(1, 0, 0, 1), failOpen.keyMetrics());
+  }
+
+  @Test
+  void testTableIsAllocatedOnceOffHeap() {
+    rateLimiter = new SlidingWindowCountOffHeapStrategy(1, 5, clock,
+        new KeyCapacity(3000, KeyCapacity.OverflowPolicy.EVICT_LEAST_RECENTLY_USED), 4);
+    // 750 keys per segment, 1024 slots of 32 bytes.
+    assertEquals(4 * 1024 * 32, rateLimiter.offHeapBytes());
+
+    for (int i = 0; i < 10_000; i++) {
+      rateLimiter.allowed("key-" + i);
+    }
+    assertEquals(4 * 1024 * 32, rateLimiter.offHeapBytes());
+    assertTrue(rateLimiter.liveKeys() <= 3000);
+  }
+
+  @Test
+  void testUnboundedCapacityIsRejected() {
+    assertThrows(IllegalArgumentException.class,
+        () -> new SlidingWindowCountOffHeapStrategy(1, 5, clock, KeyCapacity.UNBOUNDED));
+  }
+}
@@ -0,0 +1,209 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SlidingWindowCountSketchStrategyTest {
+
+  private static final String USER1 = "User1";
+  private static final String USER2 = "User2";
+  private SlidingWindowCountSketchStrategy rateLimiter;
+  private Clock clock;
+
+  @BeforeEach
+  void setUp() {
+    // Start of a fixed window, so the tests don't cross a roll-over.
+    clock = Clock.fixed(Instant.ofEpochSecond(1_700_000_000), ZoneId.systemDefault());
+
+    // start rate limiter with 5 requests per second
+    rateLimiter = new SlidingWindowCountSketchStrategy(1, 5, 1024, 4, clock);
+  }
+
+  @Test
+  void testAllowRequestsWithinLimit() {
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER1));
+    }
+    assertFalse(rateLimiter.allowed(USER1));
+    // Other keys have their own count.
+    assertTrue(rateLimiter.allowed(USER2));
+  }
+
+  @Test
+  void testAllOrNothingDoesNotConsumeQuotaOfOtherKeys() {
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER1));
+    }
+
+    for (int i = 0; i < 10; i++) {
+      assertArrayEquals(new boolean[]{true, false},
+          rateLimiter.allowedAll(List.of(USER2, USER1), true));
+    }
+
+    // USER2 still has its whole quota.
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER2));
+    }
+    assertFalse(rateLimiter.allowed(USER2));
+  }
+
+  @Test
+  void testWeightedPermitsAndDecision() {
+    assertTrue(rateLimiter.allowed(USER1, 3));
+    Decision rejected = rateLimiter.decide(USER1, 3);
+    assertFalse(rejected.allowed());
+    assertEquals(3, rejected.count());
+    assertEquals(2, rejected.remaining());
+    // The 3 permits must have become the previous window, and lost enough weight to leave 3.
+    assertEquals(1001, rejected.retryAfterMillis());
+
+    // A rejection takes no quota.
+    assertTrue(rateLimiter.allowed(USER1, 2));
+    assertEquals(Decision.NEVER, rateLimiter.decide(USER2, 6).retryAfterMillis());
+  }
+
+  @Test
+  void testPreviousWindowIsWeighted() {
+    Clock clock = mock(Clock.class);
+    // Windows start at multiples of 1000 milliseconds.
+    when(clock.millis()).thenReturn(0L, 0L, 0L, 0L, 0L, 0L, 1500L, 1500L, 1500L, 1500L, 3600L);
+    rateLimiter = new SlidingWindowCountSketchStrategy(1, 5, 1024, 4, clock);
+
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER1));
+    }
+    // Half of the previous window is in the sliding window: 2.5 (counted as 2) + current count.
+    assertTrue(rateLimiter.allowed(USER1));
+    assertTrue(rateLimiter.allowed(USER1));
+    assertTrue(rateLimiter.allowed(USER1));
+    assertFalse(rateLimiter.allowed(USER1));
+
+    // Two windows later both windows are empty.
+    assertEquals(4, rateLimiter.decide(USER1, 1).remaining());
+  }
+
+  @Test
+  void testRetiredSketchIsClearedBeforeItCountsAgain() {
+    assertRetiredSketchIsCleared(true);
+  }
+
+  @Test
+  void testRollOverClearsTheRetiredSketchWithoutScheduledClear() {
+    assertRetiredSketchIsCleared(false);
+  }
+
+  private void assertRetiredSketchIsCleared(boolean scheduledClear) {
+    AtomicLong now = new AtomicLong();
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenAnswer(invocation -> now.get());
+    rateLimiter = new SlidingWindowCountSketchStrategy(1, 5, 1024, 4, clock);
+
+    // Every window uses up the limit, each of the three sketches counts it once.
+    for (long windowStart = 0; windowStart <= 4000; windowStart += 2000) {
+      now.set(windowStart);
+      assertTrue(rateLimiter.allowed(USER1, 5));
+      if (scheduledClear) {
+        // Each roll-over retires a sketch, the first window has none.
+        assertEquals(windowStart > 0, rateLimiter.clearRetiredSketch());
+      }
+      // The window before has lost almost all of its weight, the one before that counts nothing.
+      // More permits than the limit are rejected without counting.
+      now.set(windowStart + 1999);
+      assertEquals(0, rateLimiter.decide(USER1, 6).count());
+      if (scheduledClear) {
+        assertTrue(rateLimiter.clearRetiredSketch());
+        assertFalse(rateLimiter.clearRetiredSketch());
+      }
+    }
+  }
+
+  @Test
+  void testMemoryDoesNotGrowWithKeys() {
+    long memoryBytes = rateLimiter.memoryBytes();
+    assertEquals(3 * 1024 * 4 * Long.BYTES, memoryBytes);
+
+    for (int i = 0; i < 100_000; i++) {
+      rateLimiter.allowed("key-" + i);
+    }
+    assertEquals(memoryBytes, rateLimiter.memoryBytes());
+  }
+
+  @Test
+  void testFalseRejectRateAtAGivenMemorySize() {
+    // 2000 keys use their whole limit of 5, 10000 permits per window: over-counting can only
+    // reject requests which the exact sliding window allows.
+    assertTrue(falseRejectRate(1 << 16, 4) < 0.01, "2 x 2 MiB of counters");
+    assertTrue(falseRejectRate(1 << 10, 4) > 0.05, "2 x 32 KiB of counters");
+  }
+
+  @Test
+  void testErrorBoundSizesTheSketches() {
+    // e * 10000 / 1 counters per row, rounded up to 2^15, and ceil(ln(100)) = 5 rows.
+    rateLimiter = SlidingWindowCountSketchStrategy.withErrorBound(1, 5, 10_000, 1, 0.01, clock);
+    assertEquals(3L * (1 << 15) * 5 * Long.BYTES, rateLimiter.memoryBytes());
+    assertTrue(falseRejectRate(rateLimiter) < 0.01);
+  }
+
+  @Test
+  void testConcurrentRequestsNeverExceedTheLimit() throws Exception {
+    rateLimiter = new SlidingWindowCountSketchStrategy(1, 100, 1024, 4, clock);
+    ExecutorService executorService = Executors.newFixedThreadPool(4);
+    // One key per round, the race at the limit is a matter of interleaving.
+    for (int round = 0; round < 50; round++) {
+      String key = USER1 + "Round" + round;
+      AtomicInteger allowed = new AtomicInteger();
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        futures.add(executorService.submit(() -> {
+          for (int i = 0; i < 1000; i++) {
+            if (rateLimiter.allowed(key)) {
+              allowed.incrementAndGet();
+            }
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+
+      // Requests at the limit may reject each other, never both get in.
+      assertTrue(allowed.get() <= 100 && allowed.get() >= 90, allowed.get() + " allowed");
+    }
+    executorService.shutdown();
+  }
+
+  private double falseRejectRate(int width, int depth) {
+    return falseRejectRate(new SlidingWindowCountSketchStrategy(1, 5, width, depth, clock));
+  }
+
+  // Share of the requests rejected although their key is within its limit.
+  private static double falseRejectRate(SlidingWindowCountSketchStrategy rateLimiter) {
+    int keys = 2000;
+    int rejected = 0;
+    for (int request = 0; request < 5; request++) {
+      for (int key = 0; key < keys; key++) {
+        if (!rateLimiter.allowed("10.0." + key / 256 + "." + key % 256)) {
+          rejected++;
+        }
+      }
+    }
+    return rejected / (double) (keys * 5);
+  }
+}
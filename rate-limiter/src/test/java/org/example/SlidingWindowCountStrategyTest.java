@@ -1,15 +1,30 @@
 package org.example;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Clock;
 import java.time.Instant;
 import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 class SlidingWindowCountStrategyTest {
 
@@ -118,4 +133,407 @@ class SlidingWindowCountStrategyTest {
     assertTrue(rateLimiter.allowed(USER3),
         String.format("%s's request 8 at timestamp=3000 should be allowed", USER3));
   }
+
+  @Test
+  void testWeightedPermits() {
+    // A bulk request of 3 permits and a request of 2 use up the limit of 5.
+    assertTrue(rateLimiter.allowed(USER1, 3));
+    assertFalse(rateLimiter.allowed(USER1, 3));
+    assertTrue(rateLimiter.allowed(USER1, 2));
+    assertFalse(rateLimiter.allowed(USER1));
+
+    // More permits than the limit are never granted, and a rejection takes no quota.
+    assertFalse(rateLimiter.allowed(USER2, 6));
+    assertTrue(rateLimiter.allowed(USER2, 5));
+    assertThrows(IllegalArgumentException.class, () -> rateLimiter.allowed(USER3, 0));
+  }
+
+  @Test
+  void testDecisionCarriesRemainingPermitsAndExactRetryAfter() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L, 999L, 1000L, 1001L, 1002L, 1999L, 2000L);
+    rateLimiter = new SlidingWindowCountStrategy(1, 2, clock);
+    Decision decision = new Decision();
+
+    assertDecision(true, 0, 1, 0, rateLimiter.decide(USER3, 1, decision));
+    assertDecision(true, 1, 0, 0, rateLimiter.decide(USER3, 1, decision));
+    // The current window is full, it becomes the previous one at 1001 with a weight of 0.999.
+    assertDecision(false, 2, 0, 1, rateLimiter.decide(USER3, 1, decision));
+    assertDecision(true, 1, 0, 0, rateLimiter.decide(USER3, 1, decision));
+    // 2 * weight + 1 < 2 once the weight of the previous window fell below 0.5, at 1501.
+    assertDecision(false, 2, 0, 499, rateLimiter.decide(USER3, 1, decision));
+    assertDecision(true, 1, 0, 0, rateLimiter.decide(USER3, 1, decision));
+    assertDecision(false, 2, 0, 2, rateLimiter.decide(USER3, 1, decision));
+  }
+
+  @Test
+  void testDecisionOfMorePermitsThanLimit() {
+    Decision decision = rateLimiter.decide(USER1, 6);
+
+    assertDecision(false, 0, 5, Decision.NEVER, decision);
+  }
+
+  @Test
+  void testReusedDecisionDoesNotAllocate() {
+    rateLimiter = new SlidingWindowCountStrategy(1, Integer.MAX_VALUE, clock);
+    Decision decision = new Decision();
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    for (int i = 0; i < 10_000; i++) {
+      rateLimiter.decide(USER1, 1, decision);
+    }
+
+    long before = threads.getCurrentThreadAllocatedBytes();
+    for (int i = 0; i < 10_000; i++) {
+      rateLimiter.decide(USER1, 1, decision);
+    }
+    long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+    // No boxing and no result object per decision, only the measurement itself may allocate.
+    assertTrue(allocated < 1024, "allow path allocated " + allocated + " bytes");
+  }
+
+  @Test
+  void testAllowedAllDecidesPerKey() {
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER1));
+    }
+
+    // USER1 used up its quota, USER2 has not made any request yet.
+    assertArrayEquals(new boolean[]{false, true}, rateLimiter.allowedAll(List.of(USER1, USER2)));
+  }
+
+  @Test
+  void testAllOrNothingDoesNotConsumeQuotaOfOtherKeys() {
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER1));
+    }
+
+    // USER1 rejects every request, so USER2 must not be charged for any of them.
+    for (int i = 0; i < 10; i++) {
+      assertArrayEquals(new boolean[]{true, false},
+          rateLimiter.allowedAll(List.of(USER2, USER1), true));
+    }
+
+    // USER2 still has its whole quota.
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER2));
+    }
+    assertFalse(rateLimiter.allowed(USER2));
+  }
+
+  @Test
+  void testConcurrentRequestsOnHotKeyNeverExceedLimit() throws Exception {
+    rateLimiter = new SlidingWindowCountStrategy(1, 10_000, clock);
+    int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      futures.add(executor.submit(() -> {
+        int allowed = 0;
+        for (int i = 0; i < 5_000; i++) {
+          if (rateLimiter.allowed(USER1)) {
+            allowed++;
+          }
+        }
+        return allowed;
+      }));
+    }
+    int allowed = 0;
+    for (Future<Integer> future : futures) {
+      allowed += future.get();
+    }
+    executor.shutdown();
+
+    // 40000 concurrent requests on one key, exactly the limit of them get through.
+    assertEquals(10_000, allowed);
+  }
+
+  // A batch which read the counts of a window without any count before its roll-over must not
+  // count its permit into the new window and give it back to the old one, the previous count would
+  // end up at -1 and the permit would stay counted.
+  @Test
+  void testBatchIsReleasedAcrossTheRollOverOfAnEmptyWindow(@TempDir Path directory)
+      throws Exception {
+    // Each key is entered by both batches at once, one still in the window, one a window later.
+    // They wait for each other without parking, a parked thread wakes up long after the other.
+    AtomicLong arrivals = new AtomicLong();
+    ThreadLocal<Long> time = ThreadLocal.withInitial(() -> 0L);
+    ThreadLocal<long[]> keysEntered = ThreadLocal.withInitial(() -> new long[1]);
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenAnswer(invocation -> time.get());
+    // The last key rejects every batch, so the others are given back every permit they counted.
+    String rejecting = "Rejecting";
+    LimitResolver limits = key -> {
+      if (time.get() != 0) {
+        long entered = ++keysEntered.get()[0];
+        arrivals.incrementAndGet();
+        while (arrivals.get() < 2 * entered) {
+          Thread.yield();
+        }
+      }
+      return rejecting.equals(key) ? 0 : 5;
+    };
+    rateLimiter = new SlidingWindowCountStrategy(1, limits, clock, KeyCapacity.UNBOUNDED);
+    List<String> keys = new ArrayList<>();
+    for (int i = 0; i < 2000; i++) {
+      keys.add("User" + i);
+    }
+    keys.add(rejecting);
+    rateLimiter.allowedAll(keys, true);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      List<Future<?>> batches = new ArrayList<>();
+      for (long now : new long[]{500, 1500}) {
+        batches.add(executor.submit(() -> {
+          time.set(now);
+          rateLimiter.allowedAll(keys, true);
+        }));
+      }
+      for (Future<?> batch : batches) {
+        batch.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    Path file = directory.resolve("limiter.snapshot");
+    rateLimiter.snapshot(file);
+    SlidingWindowSnapshot snapshot = SlidingWindowSnapshot.open(file, 1000);
+    for (String key : keys) {
+      assertEquals(0, snapshot.counts(snapshot.find(key)), key);
+    }
+  }
+
+  @Test
+  void testExpiredKeysAreEvicted() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L, 0L, 2000L, 2000L);
+    rateLimiter = new SlidingWindowCountStrategy(1, 5, clock);
+
+    assertTrue(rateLimiter.allowed(USER1));
+    assertTrue(rateLimiter.allowed(USER2));
+    // USER2 stays active, USER1 doesn't make any request for two window lengths.
+    assertTrue(rateLimiter.allowed(USER2));
+
+    assertEquals(1, rateLimiter.evictExpiredKeys());
+    assertEquals(new KeyMetrics(1, 1, 0, 0), rateLimiter.keyMetrics());
+  }
+
+  @Test
+  void testBoundedCapacityEvictsLeastRecentlyUsedKey() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L, 10L, 20L, 30L);
+    rateLimiter = new SlidingWindowCountStrategy(1, 5, clock,
+        new KeyCapacity(2, KeyCapacity.OverflowPolicy.EVICT_LEAST_RECENTLY_USED));
+
+    assertTrue(rateLimiter.allowed(USER1));
+    assertTrue(rateLimiter.allowed(USER2));
+    assertTrue(rateLimiter.allowed(USER1));
+    // USER2 is the least recently used key, it makes room for USER3.
+    assertTrue(rateLimiter.allowed(USER3));
+
+    assertEquals(new KeyMetrics(2, 0, 1, 0), rateLimiter.keyMetrics());
+  }
+
+  // Evictions sample keys from all over the map, not always the same first bins: of the 1024 keys
+  // of a full limiter, the 512 new keys push out mostly the oldest ones.
+  @Test
+  void testBoundedCapacityEvictsOldKeysFromAllOverTheMap() {
+    AtomicLong now = new AtomicLong();
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenAnswer(invocation -> now.get());
+    rateLimiter = new SlidingWindowCountStrategy(60, 1, clock,
+        new KeyCapacity(1024, KeyCapacity.OverflowPolicy.EVICT_LEAST_RECENTLY_USED));
+    for (int i = 0; i < 1024; i++) {
+      now.set(i);
+      assertTrue(rateLimiter.allowed("old" + i));
+    }
+    for (int i = 0; i < 512; i++) {
+      now.set(1024 + i);
+      assertTrue(rateLimiter.allowed("new" + i));
+    }
+
+    // A key still in the map has used its limit of 1.
+    int oldestLeft = 0;
+    for (int i = 0; i < 256; i++) {
+      if (!rateLimiter.allowed("old" + i)) {
+        oldestLeft++;
+      }
+    }
+    assertTrue(oldestLeft < 56, oldestLeft + " of the 256 oldest keys left");
+  }
+
+  @Test
+  void testBoundedCapacityFailsClosedOrOpen() {
+    SlidingWindowCountStrategy failClosed = new SlidingWindowCountStrategy(1, 5, clock,
+        new KeyCapacity(1, KeyCapacity.OverflowPolicy.REJECT));
+    SlidingWindowCountStrategy failOpen = new SlidingWindowCountStrategy(1, 5, clock,
+        new KeyCapacity(1, KeyCapacity.OverflowPolicy.ALLOW));
+
+    assertTrue(failClosed.allowed(USER1));
+    assertFalse(failClosed.allowed(USER2));
+    assertTrue(failOpen.allowed(USER1));
+    assertTrue(failOpen.allowed(USER2));
+
+    assertEquals(new KeyMetrics(1, 0, 0, 1), failClosed.keyMetrics());
+    assertEquals(new KeyMetrics(1, 0, 0, 1), failOpen.keyMetrics());
+  }
+
+  @Test
+  void testRestartKeepsTheUsedQuota(@TempDir Path directory) throws IOException {
+    Path file = directory.resolve("limiter.snapshot");
+    for (int i = 0; i < 3; i++) {
+      assertTrue(rateLimiter.allowed(USER1));
+    }
+    assertTrue(rateLimiter.allowed(USER2, 5));
+    assertEquals(2, rateLimiter.snapshot(file));
+
+    // A new process restores the snapshot, the keys come back with their counts.
+    SlidingWindowCountStrategy restarted = new SlidingWindowCountStrategy(1, 5, clock);
+    assertEquals(2, restarted.restore(file));
+    assertEquals(0, restarted.liveKeys());
+    assertTrue(restarted.allowed(USER1, 2));
+    assertFalse(restarted.allowed(USER1));
+    assertFalse(restarted.allowed(USER2));
+    assertTrue(restarted.allowed(USER3, 5));
+
+    assertEquals(new SlidingWindowCountStrategy.SnapshotMetrics(0, 0, 2),
+        restarted.snapshotMetrics());
+    assertEquals(new SlidingWindowCountStrategy.SnapshotMetrics(1, 0, 0),
+        rateLimiter.snapshotMetrics());
+  }
+
+  @Test
+  void testSnapshotSkipsExpiredKeysAndExpiresItself(@TempDir Path directory) throws IOException {
+    Path file = directory.resolve("limiter.snapshot");
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L, 1500L, 1500L, 2000L, 3000L, 4000L);
+    rateLimiter = new SlidingWindowCountStrategy(1, 5, clock);
+    assertTrue(rateLimiter.allowed(USER1, 5));
+    assertTrue(rateLimiter.allowed(USER2, 5));
+    assertTrue(rateLimiter.allowed(USER3, 5));
+    // At 2000 both windows of USER1 have ended, the window of USER2 and USER3 started at 1500.
+    assertEquals(2, rateLimiter.snapshot(file));
+
+    SlidingWindowCountStrategy restarted = new SlidingWindowCountStrategy(1, 5, clock);
+    restarted.restore(file);
+    // The 5 permits are in the previous window now, with a weight of 0.5 at 3000.
+    assertEquals(2, restarted.decide(USER2, 1).count());
+    // Two window lengths after the snapshot nothing in it counts anymore, it isn't read.
+    assertEquals(0, restarted.decide(USER3, 1).count());
+    assertEquals(1, restarted.snapshotMetrics().restoredKeys());
+  }
+
+  @Test
+  void testSnapshotOfManyKeysIsFoundKeyByKey(@TempDir Path directory) throws IOException {
+    Path file = directory.resolve("limiter.snapshot");
+    for (int i = 0; i < 100_000; i++) {
+      rateLimiter.allowed("10.0." + (i >> 8) + "." + (i & 0xff), 1 + i % 5);
+    }
+    assertEquals(100_000, rateLimiter.snapshot(file));
+    // Written again over the previous one.
+    assertEquals(100_000, rateLimiter.snapshot(file));
+
+    SlidingWindowCountStrategy restarted = new SlidingWindowCountStrategy(1, 5, clock);
+    assertEquals(100_000, restarted.restore(file));
+    for (int i = 0; i < 100_000; i += 997) {
+      assertEquals(1 + i % 5, restarted.decide("10.0." + (i >> 8) + "." + (i & 0xff), 1).count());
+    }
+    assertEquals(101, restarted.liveKeys());
+  }
+
+  // Instances sharing the directory write their own temporary file, and leave none behind.
+  @Test
+  void testConcurrentSnapshotsToOneFileDoNotShareTheTemporaryFile(@TempDir Path directory)
+      throws IOException {
+    Path file = directory.resolve("limiter.snapshot");
+    Files.writeString(directory.resolve("limiter.snapshot.tmp"), "other writer");
+    try (SlidingWindowSnapshot.Writer first = new SlidingWindowSnapshot.Writer(file, 1000, 0, 1, 5);
+        SlidingWindowSnapshot.Writer second =
+            new SlidingWindowSnapshot.Writer(file, 1000, 0, 1, 5)) {
+      assertTrue(first.add(USER1, 0, 0, 1));
+      assertTrue(second.add(USER2, 0, 0, 2));
+      assertEquals(1, first.commit());
+      assertEquals(1, second.commit());
+    }
+
+    assertEquals("other writer", Files.readString(directory.resolve("limiter.snapshot.tmp")));
+    try (Stream<Path> files = Files.list(directory)) {
+      assertEquals(2, files.count());
+    }
+    SlidingWindowSnapshot snapshot = SlidingWindowSnapshot.open(file, 1000);
+    assertTrue(snapshot.find(USER2) >= 0);
+  }
+
+  // The second snapshot reuses the bigger buffer of the first, none of its keys may show up again.
+  @Test
+  void testSnapshotReusingTheBufferHoldsOnlyItsOwnKeys(@TempDir Path directory)
+      throws IOException {
+    ManualClock clock = new ManualClock();
+    rateLimiter = new SlidingWindowCountStrategy(1, key -> 5, clock, KeyCapacity.UNBOUNDED);
+    for (int i = 0; i < 100; i++) {
+      rateLimiter.allowed("Client" + i);
+    }
+    Path file = directory.resolve("limiter.snapshot");
+    assertEquals(100, rateLimiter.snapshot(file));
+
+    clock.advance(2000);
+    rateLimiter.evictExpiredKeys();
+    rateLimiter.allowed(USER1);
+    assertEquals(1, rateLimiter.snapshot(file));
+
+    SlidingWindowSnapshot snapshot = SlidingWindowSnapshot.open(file, 1000);
+    assertEquals(1, snapshot.entries());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(-1, snapshot.find("Client" + i));
+    }
+    assertEquals(1, snapshot.counts(snapshot.find(USER1)));
+  }
+
+  @Test
+  void testSnapshotOfAnotherWindowLengthIsNotRestored(@TempDir Path directory)
+      throws IOException {
+    Path file = directory.resolve("limiter.snapshot");
+    rateLimiter.allowed(USER1);
+    rateLimiter.snapshot(file);
+
+    assertThrows(IOException.class,
+        () -> new SlidingWindowCountStrategy(60, 5, clock).restore(file));
+    Files.writeString(file, "not a snapshot");
+    assertThrows(IOException.class, () -> rateLimiter.restore(file));
+  }
+
+  @Test
+  void testChangedLimitKeepsTheCountsOfTheWindow() {
+    DynamicLimits limits = new DynamicLimits();
+    rateLimiter = new SlidingWindowCountStrategy(1, limits.resolver(5), clock,
+        KeyCapacity.UNBOUNDED);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER1));
+    }
+    assertFalse(rateLimiter.allowed(USER1));
+
+    // Raised while the window is full: the 5 requests still count against the new limit.
+    limits.setLimit(USER1, 8);
+    assertDecision(true, 5, 2, 0, rateLimiter.decide(USER1, 1));
+    assertTrue(rateLimiter.allowed(USER1, 2));
+    assertFalse(rateLimiter.allowed(USER1));
+    // Other keys keep the configured limit.
+    assertEquals(4, rateLimiter.decide(USER2, 1).remaining());
+
+    // Lowered below the count: nothing fits until the window rolled over (1001 ms) and the
+    // weight of its 8 requests fell below 5 (1376 ms).
+    limits.removeLimit(USER1);
+    assertDecision(false, 8, 0, 1376, rateLimiter.decide(USER1, 1));
+  }
+
+  private static void assertDecision(boolean allowed, int count, int remaining,
+      long retryAfterMillis, Decision decision) {
+    assertEquals(allowed, decision.allowed(), decision.toString());
+    assertEquals(count, decision.count(), decision.toString());
+    assertEquals(remaining, decision.remaining(), decision.toString());
+    assertEquals(retryAfterMillis, decision.retryAfterMillis(), decision.toString());
+  }
 }
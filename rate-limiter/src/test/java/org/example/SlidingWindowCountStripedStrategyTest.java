@@ -0,0 +1,270 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SlidingWindowCountStripedStrategyTest {
+
+  private static final String USER1 = "User1";
+  private static final String USER2 = "User2";
+  private ManualClock clock;
+  private SlidingWindowCountStripedStrategy rateLimiter;
+
+
+  @BeforeEach
+  void setUp() {
+    clock = new ManualClock();
+    // 5 requests per second, 4 stripes leasing 2 permits each.
+    rateLimiter = new SlidingWindowCountStripedStrategy(1, 5, 4, 8, clock);
+  }
+
+  @Test
+  void testAllowRequestsWithinLimit() {
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER1));
+    }
+    assertFalse(rateLimiter.allowed(USER1));
+    // Other keys have their own count.
+    assertTrue(rateLimiter.allowed(USER2));
+    assertEquals(2, rateLimiter.liveKeys());
+  }
+
+  @Test
+  void testLeasedPermitsAreNotCountedAsRequests() {
+    rateLimiter = new SlidingWindowCountStripedStrategy(1, 100, 4, 40, clock);
+    assertEquals(10, rateLimiter.leaseSize());
+
+    // The first request leases 10 permits, the decision still counts the requests only.
+    assertDecision(true, 0, 99, 0, rateLimiter.decide(USER1, 1));
+    assertDecision(true, 1, 97, 0, rateLimiter.decide(USER1, 2));
+    assertDecision(true, 3, 86, 0, rateLimiter.decide(USER1, 11));
+  }
+
+  @Test
+  void testRetryAfterIgnoresUnusedLeases() {
+    rateLimiter = new SlidingWindowCountStripedStrategy(1, 10, 1, 4, clock);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(rateLimiter.allowed(USER1));
+    }
+    clock.set(500);
+    Decision rejected = rateLimiter.decide(USER1, 1);
+    assertDecision(false, 10, 0, 501, rejected);
+    assertEquals(Decision.NEVER, rateLimiter.decide(USER1, 11).retryAfterMillis());
+  }
+
+  // Single threaded every decision is the one of the sliding window count: a lease never lets
+  // through what the count would reject, and a roll-over gives the unused permits back.
+  @Test
+  void testSameDecisionsAsSlidingWindowCount() {
+    SlidingWindowCountStrategy reference = new SlidingWindowCountStrategy(1, 100, clock);
+    rateLimiter = new SlidingWindowCountStripedStrategy(1, 100, 8, 80, clock);
+    Random random = new Random(42);
+    for (long t = 0; t < 20_000; t++) {
+      clock.set(t);
+      int count = t % 1000 >= 950 ? random.nextInt(4) : random.nextInt(50) == 0 ? 1 : 0;
+      for (int i = 0; i < count; i++) {
+        assertEquals(reference.allowed(USER1), rateLimiter.allowed(USER1), "request at " + t);
+      }
+    }
+  }
+
+  @Test
+  void testAllOrNothingDoesNotConsumeQuotaOfOtherKeys() {
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER1));
+    }
+
+    for (int i = 0; i < 10; i++) {
+      assertArrayEquals(new boolean[]{true, false},
+          rateLimiter.allowedAll(List.of(USER2, USER1), true));
+    }
+
+    // USER2 still has its whole quota.
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER2));
+    }
+    assertFalse(rateLimiter.allowed(USER2));
+  }
+
+  @Test
+  void testExpiredKeysAreEvicted() {
+    assertTrue(rateLimiter.allowed(USER1));
+    clock.set(1500);
+    assertTrue(rateLimiter.allowed(USER2));
+
+    // USER1's windows have both ended, USER2's current window started at 1500.
+    clock.set(2000);
+    assertEquals(1, rateLimiter.evictExpiredKeys());
+    assertEquals(new KeyMetrics(1, 1, 0, 0), rateLimiter.keyMetrics());
+  }
+
+  @Test
+  void testBoundedCapacityEvictsExpiredKeysFirst() {
+    rateLimiter = new SlidingWindowCountStripedStrategy(1, 5, 4, 8, clock,
+        new KeyCapacity(2, KeyCapacity.OverflowPolicy.EVICT_LEAST_RECENTLY_USED));
+    assertTrue(rateLimiter.allowed(USER1));
+    clock.set(1500);
+    assertTrue(rateLimiter.allowed(USER2));
+
+    // USER1's windows have both ended, it makes room for USER3 and USER2 keeps its count.
+    clock.set(2000);
+    assertTrue(rateLimiter.allowed("User3"));
+    assertEquals(new KeyMetrics(2, 1, 0, 0), rateLimiter.keyMetrics());
+    assertEquals(1, rateLimiter.decide(USER2, 1).count());
+  }
+
+  // A key is as recent as its last lease, the decisions from the budget of a stripe write nothing
+  // the stripes share.
+  @Test
+  void testBoundedCapacityEvictsTheLeastRecentlyLeasedKey() {
+    rateLimiter = new SlidingWindowCountStripedStrategy(1, 5, 1, 1, clock,
+        new KeyCapacity(2, KeyCapacity.OverflowPolicy.EVICT_LEAST_RECENTLY_USED));
+    assertTrue(rateLimiter.allowed(USER1));
+    clock.set(10);
+    assertTrue(rateLimiter.allowed(USER2));
+    clock.set(20);
+    assertTrue(rateLimiter.allowed(USER1));
+    // USER2 is the least recently used key, it makes room for USER3.
+    clock.set(30);
+    assertTrue(rateLimiter.allowed("User3"));
+
+    assertEquals(new KeyMetrics(2, 0, 1, 0), rateLimiter.keyMetrics());
+    assertEquals(2, rateLimiter.decide(USER1, 1).count());
+  }
+
+  @Test
+  void testBoundedCapacityFailsClosedOrOpen() {
+    SlidingWindowCountStripedStrategy failClosed = new SlidingWindowCountStripedStrategy(1, 5, 4,
+        8, clock, new KeyCapacity(1, KeyCapacity.OverflowPolicy.REJECT));
+    SlidingWindowCountStripedStrategy failOpen = new SlidingWindowCountStripedStrategy(1, 5, 4,
+        8, clock, new KeyCapacity(1, KeyCapacity.OverflowPolicy.ALLOW));
+
+    assertTrue(failClosed.allowed(USER1));
+    assertFalse(failClosed.allowed(USER2));
+    assertTrue(failOpen.allowed(USER1));
+    assertTrue(failOpen.allowed(USER2));
+    // An overflowing key of an all-or-nothing request gives the quota of the others back.
+    assertArrayEquals(new boolean[]{true, false},
+        failClosed.allowedAll(List.of(USER1, USER2), true));
+    assertEquals(1, failClosed.decide(USER1, 1).count());
+
+    assertEquals(new KeyMetrics(1, 0, 0, 2), failClosed.keyMetrics());
+    assertEquals(new KeyMetrics(1, 0, 0, 1), failOpen.keyMetrics());
+  }
+
+  @Test
+  void testInvalidStripes() {
+    assertThrows(IllegalArgumentException.class,
+        () -> new SlidingWindowCountStripedStrategy(1, 5, 0, 8, clock));
+    // Rounded up to 8 stripes, at least one permit per stripe.
+    assertThrows(IllegalArgumentException.class,
+        () -> new SlidingWindowCountStripedStrategy(1, 100, 5, 7, clock));
+    assertEquals(1, new SlidingWindowCountStripedStrategy(1, 100, 5, 8, clock).leaseSize());
+    assertEquals(3, new SlidingWindowCountStripedStrategy(1, 100, 5, 24, clock).leaseSize());
+  }
+
+  @Test
+  void testDefaultMaxLeasedPermits() {
+    // 16 permits per stripe, or a hundredth of a large limit.
+    assertEquals(16 * 32, SlidingWindowCountStripedStrategy.defaultMaxLeasedPermits(30_000, 24));
+    assertEquals(10_000,
+        SlidingWindowCountStripedStrategy.defaultMaxLeasedPermits(1_000_000, 32));
+    // No more than a tenth of a small limit, but at least one permit per stripe.
+    assertEquals(100, SlidingWindowCountStripedStrategy.defaultMaxLeasedPermits(1_000, 32));
+    assertEquals(32, SlidingWindowCountStripedStrategy.defaultMaxLeasedPermits(100, 32));
+  }
+
+  // Every thread leases its own budget, a thread whose stripe ran dry takes from the others before
+  // it rejects: exactly the limit is allowed, not a permit more or less.
+  @Test
+  void testConcurrentRequestsOnHotKeyAllowExactlyTheLimit() throws Exception {
+    rateLimiter = new SlidingWindowCountStripedStrategy(1, 10_000, 16, 1_600, clock);
+    int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      futures.add(executor.submit(() -> {
+        start.await();
+        int allowed = 0;
+        for (int i = 0; i < 5_000; i++) {
+          if (rateLimiter.allowed(USER1)) {
+            allowed++;
+          }
+        }
+        return allowed;
+      }));
+    }
+    start.countDown();
+    int allowed = 0;
+    for (Future<Integer> future : futures) {
+      allowed += future.get();
+    }
+    executor.shutdown();
+
+    assertEquals(10_000, allowed);
+  }
+
+  // Threads decide while the windows roll over, leases of the ended window are given back: every
+  // window allows exactly the limit.
+  @Test
+  void testConcurrentRollOversAllowExactlyTheLimit() throws Exception {
+    rateLimiter = new SlidingWindowCountStripedStrategy(1, 1_000, 16, 1_600, clock);
+    int threads = 8;
+    int windows = 10;
+    // The clock moves two windows once all threads are done with one, nothing of the earlier
+    // windows counts anymore.
+    CyclicBarrier barrier = new CyclicBarrier(threads, () -> clock.advance(2000));
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<int[]>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      futures.add(executor.submit(() -> {
+        int[] allowed = new int[windows];
+        for (int window = 0; window < windows; window++) {
+          for (int i = 0; i < 1_000; i++) {
+            if (rateLimiter.allowed(USER1)) {
+              allowed[window]++;
+            }
+          }
+          barrier.await();
+        }
+        return allowed;
+      }));
+    }
+    int[] allowed = new int[windows];
+    for (Future<int[]> future : futures) {
+      int[] threadAllowed = future.get();
+      for (int window = 0; window < windows; window++) {
+        allowed[window] += threadAllowed[window];
+      }
+    }
+    executor.shutdown();
+
+    int[] expected = new int[windows];
+    Arrays.fill(expected, 1_000);
+    assertArrayEquals(expected, allowed);
+  }
+
+  private static void assertDecision(boolean allowed, int count, int remaining,
+      long retryAfterMillis, Decision decision) {
+    assertEquals(allowed, decision.allowed(), decision.toString());
+    assertEquals(count, decision.count(), decision.toString());
+    assertEquals(remaining, decision.remaining(), decision.toString());
+    assertEquals(retryAfterMillis, decision.retryAfterMillis(), decision.toString());
+  }
+}
@@ -0,0 +1,143 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.github.fppt.jedismock.RedisServer;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.List;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+import redis.clients.jedis.Jedis;
+
+@TestInstance(Lifecycle.PER_CLASS)
+class SlidingWindowLogDistributedUsingRedisStrategyTest {
+
+  private static final String USER1 = "User1";
+  private static final String USER2 = "User2";
+  private static final String USER3 = "User3";
+  private static final String USER4 = "User4";
+  private static final String USER5 = "User5";
+  private static final String USER6 = "User6";
+  RedisServer redisServer;
+  Jedis jedis;
+  private SlidingWindowLogDistributedUsingRedisStrategy rateLimiter;
+  private Clock clock;
+
+  @BeforeAll
+  void startRedis() throws IOException {
+    redisServer = RedisServer.newRedisServer().start();
+    jedis = new Jedis(redisServer.getHost(), redisServer.getBindPort());
+  }
+
+  @BeforeEach
+  void setUp() {
+    clock = Clock.fixed(Instant.now(), ZoneId.systemDefault());
+    rateLimiter = new SlidingWindowLogDistributedUsingRedisStrategy(1, 5, clock, jedis);
+  }
+
+  @AfterAll
+  void tearDown() throws IOException {
+    // delete the keys from redis for the next round of test execution
+    jedis.flushDB();
+    jedis.close();
+    redisServer.stop();
+  }
+
+  @Test
+  void testSingleRoundTripPerDecision() {
+    Jedis jedisSpy = spy(jedis);
+    rateLimiter = new SlidingWindowLogDistributedUsingRedisStrategy(1, 5, clock, jedisSpy);
+
+    for (int i = 0; i < 3; i++) {
+      assertTrue(rateLimiter.allowed(USER1));
+    }
+
+    // Trimming, counting and logging all happen in the one EVALSHA of a decision.
+    verify(jedisSpy, times(3)).evalsha(anyString(), anyList(), anyList());
+  }
+
+  @Test
+  void testLogHoldsOneMemberPerPermitAndExpires() {
+    assertTrue(rateLimiter.allowed(USER2, 3));
+
+    // 3 permits at the same millisecond are 3 distinct members.
+    assertEquals(3, jedis.zcard("{" + USER2 + "}:log"));
+    long ttl = jedis.pttl("{" + USER2 + "}:log");
+    assertTrue(ttl > 0 && ttl <= 1000, "TTL of the log should be set, was " + ttl);
+  }
+
+  @Test
+  void testRequestsLeaveTheWindowExactlyOneWindowLengthLater() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L, 450L, 999L, 1000L, 1449L, 1450L);
+    rateLimiter = new SlidingWindowLogDistributedUsingRedisStrategy(1, 5, clock, jedis);
+
+    assertTrue(rateLimiter.allowed(USER3, 2), "2 permits at timestamp=0 should be allowed");
+    assertTrue(rateLimiter.allowed(USER3, 3), "3 permits at timestamp=450 should be allowed");
+    assertFalse(rateLimiter.allowed(USER3), "request at timestamp=999 should be blocked");
+    assertTrue(rateLimiter.allowed(USER3, 2), "2 permits at timestamp=1000 should be allowed");
+    assertFalse(rateLimiter.allowed(USER3), "request at timestamp=1449 should be blocked");
+    assertTrue(rateLimiter.allowed(USER3, 3), "3 permits at timestamp=1450 should be allowed");
+  }
+
+  @Test
+  void testDecisionCarriesRemainingPermitsAndExactRetryAfter() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L, 450L, 500L, 500L, 500L);
+    rateLimiter = new SlidingWindowLogDistributedUsingRedisStrategy(1, 5, clock, jedis);
+    Decision decision = new Decision();
+
+    assertDecision(true, 0, 3, 0, rateLimiter.decide(USER4, 2, decision));
+    assertDecision(true, 2, 0, 0, rateLimiter.decide(USER4, 3, decision));
+    // The 2 requests at 0 leave at 1000, 3 permits need one of the requests at 450 to leave.
+    assertDecision(false, 5, 0, 500, rateLimiter.decide(USER4, 2, decision));
+    assertDecision(false, 5, 0, 950, rateLimiter.decide(USER4, 3, decision));
+    assertDecision(false, 5, 0, Decision.NEVER, rateLimiter.decide(USER4, 6, decision));
+  }
+
+  @Test
+  void testAllOrNothingDoesNotConsumeQuotaOfOtherKeys() {
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER5));
+    }
+
+    for (int i = 0; i < 10; i++) {
+      assertArrayEquals(new boolean[]{true, false},
+          rateLimiter.allowedAll(List.of(USER6, USER5), true));
+    }
+
+    // USER6 still has its whole quota.
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER6));
+    }
+    assertFalse(rateLimiter.allowed(USER6));
+    // Independent decisions still take from every key which allows the request.
+    assertArrayEquals(new boolean[]{false, true, true},
+        rateLimiter.allowedAll(List.of(USER6, USER1 + "Batch", USER1 + "Batch")));
+  }
+
+  private static void assertDecision(boolean allowed, int count, int remaining,
+      long retryAfterMillis, Decision decision) {
+    assertEquals(allowed, decision.allowed(), decision.toString());
+    assertEquals(count, decision.count(), decision.toString());
+    assertEquals(remaining, decision.remaining(), decision.toString());
+    assertEquals(retryAfterMillis, decision.retryAfterMillis(), decision.toString());
+  }
+}
@@ -0,0 +1,228 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SlidingWindowLogStrategyTest {
+
+  private static final String USER1 = "User1";
+  private static final String USER2 = "User2";
+  private ManualClock clock;
+  private SlidingWindowLogStrategy rateLimiter;
+
+
+  @BeforeEach
+  void setUp() {
+    clock = new ManualClock();
+    rateLimiter = new SlidingWindowLogStrategy(1, 5, clock);
+  }
+
+  @Test
+  void testAllowRequestsWithinLimit() {
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER1));
+    }
+    assertFalse(rateLimiter.allowed(USER1));
+    // Other keys have their own log.
+    assertTrue(rateLimiter.allowed(USER2));
+    assertEquals(2, rateLimiter.liveKeys());
+  }
+
+  @Test
+  void testRequestsLeaveTheWindowExactlyOneWindowLengthLater() {
+    assertTrue(rateLimiter.allowed(USER1, 2));
+    clock.set(450);
+    assertTrue(rateLimiter.allowed(USER1, 3));
+
+    // The window ending at 999 still holds the requests at 0.
+    clock.set(999);
+    assertFalse(rateLimiter.allowed(USER1));
+    clock.set(1000);
+    Decision decision = rateLimiter.decide(USER1, 2);
+    assertTrue(decision.allowed());
+    assertEquals(3, decision.count());
+    assertEquals(0, decision.remaining());
+
+    // The requests at 450 leave at 1450, not a moment earlier.
+    clock.set(1449);
+    assertFalse(rateLimiter.allowed(USER1));
+    clock.set(1450);
+    assertTrue(rateLimiter.allowed(USER1, 3));
+  }
+
+  @Test
+  void testRetryAfterIsWhenEnoughRequestsLeaveTheWindow() {
+    assertTrue(rateLimiter.allowed(USER1, 2));
+    clock.set(450);
+    assertTrue(rateLimiter.allowed(USER1, 3));
+
+    clock.set(500);
+    Decision rejected = rateLimiter.decide(USER1, 2);
+    assertFalse(rejected.allowed());
+    assertEquals(5, rejected.count());
+    assertEquals(0, rejected.remaining());
+    // The 2 requests at 0 leave at 1000.
+    assertEquals(500, rejected.retryAfterMillis());
+    // 3 permits need one of the requests at 450 to leave as well.
+    assertEquals(950, rateLimiter.decide(USER1, 3).retryAfterMillis());
+    assertEquals(Decision.NEVER, rateLimiter.decide(USER1, 6).retryAfterMillis());
+  }
+
+  @Test
+  void testAllOrNothingDoesNotConsumeQuotaOfOtherKeys() {
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER1));
+    }
+
+    for (int i = 0; i < 10; i++) {
+      clock.set(i);
+      assertArrayEquals(new boolean[]{true, false},
+          rateLimiter.allowedAll(List.of(USER2, USER1), true));
+    }
+
+    // USER2 still has its whole quota.
+    for (int i = 0; i < 5; i++) {
+      assertTrue(rateLimiter.allowed(USER2));
+    }
+    assertFalse(rateLimiter.allowed(USER2));
+  }
+
+  @Test
+  void testExpiredKeysAreEvicted() {
+    assertTrue(rateLimiter.allowed(USER1));
+    clock.set(600);
+    assertTrue(rateLimiter.allowed(USER2));
+
+    // USER1's only request left the window, USER2's hasn't.
+    clock.set(1000);
+    assertEquals(1, rateLimiter.evictExpiredKeys());
+    assertEquals(new KeyMetrics(1, 1, 0, 0), rateLimiter.keyMetrics());
+    // An evicted key starts with an empty log.
+    assertEquals(4, rateLimiter.decide(USER1, 1).remaining());
+  }
+
+  @Test
+  void testBoundedCapacityEvictsExpiredKeysFirst() {
+    rateLimiter = new SlidingWindowLogStrategy(1, 5, clock,
+        new KeyCapacity(2, KeyCapacity.OverflowPolicy.EVICT_LEAST_RECENTLY_USED));
+    assertTrue(rateLimiter.allowed(USER1));
+    clock.set(600);
+    assertTrue(rateLimiter.allowed(USER2));
+
+    // USER1's request left the window, it makes room for USER3 and USER2 keeps its request.
+    clock.set(1000);
+    assertTrue(rateLimiter.allowed("User3"));
+    assertEquals(new KeyMetrics(2, 1, 0, 0), rateLimiter.keyMetrics());
+    assertEquals(1, rateLimiter.decide(USER2, 1).count());
+  }
+
+  @Test
+  void testBoundedCapacityEvictsTheLeastRecentlyUsedKey() {
+    rateLimiter = new SlidingWindowLogStrategy(1, 5, clock,
+        new KeyCapacity(2, KeyCapacity.OverflowPolicy.EVICT_LEAST_RECENTLY_USED));
+    assertTrue(rateLimiter.allowed(USER1));
+    clock.set(10);
+    assertTrue(rateLimiter.allowed(USER2));
+    clock.set(20);
+    assertTrue(rateLimiter.allowed(USER1));
+    // USER2 is the least recently used key, it makes room for USER3.
+    clock.set(30);
+    assertTrue(rateLimiter.allowed("User3"));
+
+    assertEquals(new KeyMetrics(2, 0, 1, 0), rateLimiter.keyMetrics());
+    assertEquals(2, rateLimiter.decide(USER1, 1).count());
+  }
+
+  @Test
+  void testBoundedCapacityFailsClosedOrOpen() {
+    SlidingWindowLogStrategy failClosed = new SlidingWindowLogStrategy(1, 5, clock,
+        new KeyCapacity(1, KeyCapacity.OverflowPolicy.REJECT));
+    SlidingWindowLogStrategy failOpen = new SlidingWindowLogStrategy(1, 5, clock,
+        new KeyCapacity(1, KeyCapacity.OverflowPolicy.ALLOW));
+
+    assertTrue(failClosed.allowed(USER1));
+    assertFalse(failClosed.allowed(USER2));
+    assertTrue(failOpen.allowed(USER1));
+    assertTrue(failOpen.allowed(USER2));
+    // An overflowing key of an all-or-nothing request gives the quota of the others back.
+    assertArrayEquals(new boolean[]{true, false},
+        failClosed.allowedAll(List.of(USER1, USER2), true));
+    assertEquals(1, failClosed.decide(USER1, 1).count());
+
+    assertEquals(new KeyMetrics(1, 0, 0, 2), failClosed.keyMetrics());
+    assertEquals(new KeyMetrics(1, 0, 0, 1), failOpen.keyMetrics());
+  }
+
+  @Test
+  void testLogGrowsUpToTheLimitAndWrapsAround() {
+    rateLimiter = new SlidingWindowLogStrategy(1, 100, clock);
+    // A request every 10 ms keeps exactly 100 requests in the window once it is full, while the
+    // ring grows from 8 timestamps to 100 and then wraps around many times.
+    for (int i = 0; i < 1_000; i++) {
+      clock.set(i * 10L);
+      assertTrue(rateLimiter.allowed(USER1), "request at " + clock.millis());
+      if (i >= 99) {
+        assertFalse(rateLimiter.allowed(USER1), "second request at " + clock.millis());
+      }
+    }
+  }
+
+  @Test
+  void testConcurrentRequestsOnHotKeyNeverExceedLimit() throws Exception {
+    rateLimiter = new SlidingWindowLogStrategy(1, 10_000, clock);
+    int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      futures.add(executor.submit(() -> {
+        int allowed = 0;
+        for (int i = 0; i < 5_000; i++) {
+          if (rateLimiter.allowed(USER1)) {
+            allowed++;
+          }
+        }
+        return allowed;
+      }));
+    }
+    int allowed = 0;
+    for (Future<Integer> future : futures) {
+      allowed += future.get();
+    }
+    executor.shutdown();
+
+    assertEquals(10_000, allowed);
+  }
+
+  // Random bursts against a plain list of every allowed request: a request is allowed exactly
+  // when fewer than the limit requests were allowed in the last window length.
+  @Test
+  void testDecisionsMatchExactSlidingWindow() {
+    rateLimiter = new SlidingWindowLogStrategy(1, 100, clock);
+    Random random = new Random(42);
+    List<Long> allowedRequests = new ArrayList<>();
+    for (long t = 0; t < 20_000; t++) {
+      clock.set(t);
+      int count = t % 1000 >= 950 ? random.nextInt(4) : random.nextInt(50) == 0 ? 1 : 0;
+      for (int i = 0; i < count; i++) {
+        long windowStart = t - 1000;
+        long inWindow = allowedRequests.stream().filter(r -> r > windowStart).count();
+        boolean allowed = rateLimiter.allowed(USER1);
+        assertEquals(inWindow < 100, allowed, "request at " + t);
+        if (allowed) {
+          allowedRequests.add(t);
+        }
+      }
+    }
+  }
+}